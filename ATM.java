@@ -1,17 +1,30 @@
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 public class ATM {
     /**
      * Bank object
      */
-    private static Bank m_bank = new Bank("Bank of Money");
+    private static Bank m_bank;
     
     /**
-     * The current active User
+     * Session of this console terminal, holding the active User
      */
-    private static User m_activeUser = null;
+    private static Session m_session;
 
     public static void main(String[] args) {
+        //Rebuilds the bank from what was saved in the bankdata folder last time
+        try {
+            m_bank = Bank.open("Bank of Money", Paths.get("bankdata"), Journal.SyncPolicy.GROUP_COMMIT);
+        } catch (IOException e) {
+            System.err.println("Unable to open bank data: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+        m_session = new Session(m_bank);
+        m_bank.getStandingOrders().start();
+
         //Scanner instance which will be passed around
         //If Scanner is a static member there is a chance that it can be called twice
         //With multi-threading, causing issues
@@ -27,6 +40,15 @@ public class ATM {
             }
         }
         sc.close();
+
+        //Saves a snapshot so that the next start does not need to replay the journal
+        try {
+            m_bank.close();
+        } catch (IOException e) {
+            System.err.println("Unable to save bank data: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
     }
 
     /**
@@ -36,7 +58,7 @@ public class ATM {
      */
     private static int menu(Scanner sc){
         //The number of menu choices
-        int numOfMenuChoices = 10;
+        int numOfMenuChoices = 11;
 
         System.out.println("1: Create User" +
             "\n2: Login" +
@@ -48,14 +70,15 @@ public class ATM {
             "\n8: Add account" +
             "\n9: Delete account" +
             "\n10: Logout" +
+            "\n11: Search transactions" +
             "\n----------------" +
             "\n0: Exit");
         
         //Displays current User
-        if (m_activeUser == null) {
+        if (!m_session.isLoggedIn()) {
             System.out.println("\nNot logged in");
         } else {
-            System.out.println("\nHello " + m_activeUser.getName());
+            System.out.println("\nHello " + m_session.getUser().getName());
         }
         System.out.print("Please pick one of the above options (1 ~ " + numOfMenuChoices + ", 0 to exit): ");
 
@@ -85,38 +108,51 @@ public class ATM {
      * @param sc     Scanner
      */
     private static void checkLoggedIn(int choice, Scanner sc){
-        if (m_activeUser != null){
+        User activeUser = m_session.getUser();
+        if (activeUser != null){
             switch(choice){
                 case 3:
                     //Display account summary
-                    m_activeUser.showAccountInfo(sc);
+                    activeUser.showAccountInfo(sc);
                     break;
                 case 4:
-                    m_activeUser.deposit(sc);
+                    activeUser.deposit(sc);
                     break;
                 case 5:
-                    m_activeUser.withdraw(sc);
+                    activeUser.withdraw(sc);
                     break;
                 case 6:
-                    m_activeUser.transfer(sc);
+                    activeUser.transfer(sc);
                     break;
                 case 7:
-                    m_activeUser.addTransaction(sc);
+                    activeUser.addTransaction(sc);
                     break;
                 case 8:
                     //Create new account
-                    Account newAccount = new Account(Account.pickAccountType(sc), m_bank);
-                    m_activeUser.addAccount(newAccount);
-                    System.out.println("New account created: ");
-                    newAccount.accSummary();
+                    try {
+                        String type = Account.pickAccountType(sc);
+                        if (type.isEmpty()){
+                            System.out.println("Operation cancelled");
+                            break;
+                        }
+                        Account newAccount = m_bank.openAccount(activeUser, type);
+                        System.out.println("New account created: ");
+                        newAccount.accSummary();
+                    } catch (IllegalStateException e) {
+                        //No account numbers left to hand out
+                        System.out.println("\nUnable to create account: " + e.getMessage() + "\n");
+                    }
                     break;
                 case 9:
-                    m_activeUser.deleteAccount(sc);
+                    activeUser.deleteAccount(sc);
                     break;
                 case 10:
                     //Logs user out
-                    m_activeUser = null;
+                    m_session.logout();
                     System.out.println("\nLogged out\n");
+                    break;
+                case 11:
+                    activeUser.searchTransactions(sc);
             }
         } else {
             System.out.println("\nPlease log in first by choosing \"Login\" in the menu\n");
@@ -135,7 +171,18 @@ public class ATM {
         String lName = sc.nextLine();
         System.out.println("\nSet up your new PIN");
         String pin = pinInput(sc);
-        m_bank.addUser(fName, lName, pin);   
+        try {
+            User newUser = m_bank.addUser(fName, lName, pin);
+            System.out.println("New user created");
+            System.out.println("\nWelcome to " + m_bank.getName());
+            System.out.println("-------------------------------");
+            System.out.println("User: " + newUser.getName());
+            System.out.println("ID: " + newUser.getUserID());
+            System.out.println();
+        } catch (IllegalStateException e) {
+            //No User IDs or account numbers left to hand out
+            System.out.println("\nUnable to create user: " + e.getMessage() + "\n");
+        }
     }
 
     /**
@@ -168,9 +215,12 @@ public class ATM {
         System.out.print("\nPlease input user ID: ");
         int userID = Validate.validateIntRange(10000, 99999, sc);
         String pin = pinInput(sc);
-        m_activeUser = m_bank.login(userID, pin);
-        if (m_activeUser != null){
-            System.out.println("\nWelcome! " + m_activeUser.getName() + "\n");
+        if (m_session.login(userID, pin)){
+            System.out.println("\nWelcome! " + m_session.getUser().getName() + "\n");
+        } else if (m_bank.getLockout(userID) > 0){
+            //Rounds up, so a lockout with less than a second left does not show as 0
+            long seconds = (m_bank.getLockout(userID) + 999) / 1000;
+            System.out.println("\nToo many failed attempts, please try again in " + seconds + " seconds\n");
         } else {
             System.out.println("\nUser ID or password is incorrect\n");
         }
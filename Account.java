@@ -1,17 +1,39 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.time.YearMonth;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 public class Account {
+    /**
+     * Length of a day of interest
+     */
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Balance times rate times days is divided by this to give interest in cents
+     * Rates are in hundredths of a percent per year of 365 days
+     */
+    private static final long INTEREST_DIVISOR = 10000L * 365;
+
+    /**
+     * Longest page of transactions rendered through the SummaryCache, longer ones are streamed
+     */
+    static final int MAX_CACHED_TRANSACTIONS = 256;
 
     /**
      * Type of account, such as chequing, savings...
      */
-    private String m_type;
+    private AccountType m_type;
 
     /**
-     * Balance of account
+     * Balance of account in cents
+     * Guarded by the account's own lock, as is m_ledger
      */
-    private double m_balance;
+    private long m_balance;
 
     /**
      * Account number
@@ -19,10 +41,41 @@ public class Account {
     private String m_accNum;
 
     /*
-     * List of Transactions of the account
+     * Transactions of the account
      */
-    private ArrayList<Transaction> m_transactions;
+    private Ledger m_ledger;
 
+    /**
+     * Running totals of m_ledger, updated as each Transaction is added
+     */
+    private AccountStats m_stats;
+
+    /**
+     * Time interest has been accrued up to, in milliseconds since epoch, 0 if not known yet
+     * Interest is only worked out when the account is next touched, for the whole days since then
+     */
+    private long m_accruedTo;
+
+    /**
+     * Fraction of a cent of interest carried to the next accrual, in cents times INTEREST_DIVISOR
+     */
+    private long m_interestRemainder;
+
+    /**
+     * Number of changes to the balance and ledger, so cached summaries can tell they are out of date
+     */
+    private long m_version;
+
+    /**
+     * Set once the account is deleted, after which it refuses changes
+     * Guarded by the account's lock, so a session still holding the Account cannot move money into it
+     */
+    private boolean m_deleted;
+
+    /**
+     * The bank where account belongs to, whose Journal records changes to the account
+     */
+    private Bank m_bank;
 
     /**
      * Constructor, sets type, owner, and accNum
@@ -33,9 +86,24 @@ public class Account {
      */
     public Account(String type, Bank bank){
         //Sets type and owner
-        m_type = type;
-        m_accNum = bank.getNewAccNum();
-        m_transactions = new ArrayList<Transaction>();
+        this(type, bank.getNewAccNum(), bank);
+        m_accruedTo = System.currentTimeMillis();
+    }
+
+    /**
+     * Constructor for an existing account, such as one rebuilt from the Journal
+     * The time interest was accrued to is restored by the Journal or snapshot afterwards
+     * @param type      Type of account, such as chequing
+     * @param accNum    Account number
+     * @param bank      The bank where account belongs to
+     * @throws IllegalArgumentException if type is not an AccountType
+     */
+    public Account(String type, String accNum, Bank bank){
+        m_type = AccountType.of(type);
+        m_accNum = accNum;
+        m_ledger = new Ledger(bank.getHistoryStore(), bank.getHistoryHeapLimit());
+        m_stats = new AccountStats();
+        m_bank = bank;
     }
 
     /**
@@ -43,9 +111,25 @@ public class Account {
      * @return m_type
      */
     public String getAccType(){
+        return m_type.getName();
+    }
+
+    /**
+     * Returns m_type
+     * @return m_type
+     */
+    public AccountType getType(){
         return m_type;
     }
 
+    /**
+     * Returns how much can be taken out, the balance plus any overdraft or credit line
+     * @return amount in cents
+     */
+    public synchronized long getAvailable(){
+        return Money.add(m_balance, m_type.getLimit());
+    }
+
     /**
      * Gets m_accNum
      * @return m_accNum
@@ -56,75 +140,797 @@ public class Account {
 
     /**
      * Returns m_balance
-     * @return  m_balance
+     * @return  m_balance in cents
      */
-    public double getAccBalance(){
+    public synchronized long getAccBalance(){
         return m_balance;
     }
 
+    /**
+     * Returns m_version, which changes whenever the balance or a Transaction is added
+     * @return m_version
+     */
+    public synchronized long getVersion(){
+        return m_version;
+    }
+
     /**
      * Get number of transactions stored
      * @return num of transaction
      */
-    public int getNumOfTransaction(){
-        return m_transactions.size();
+    public synchronized int getNumOfTransaction(){
+        return m_ledger.size();
     }
 
     /**
      * Displays the account summary with type, accNum, balance, and all transactions
      */
     public void accSummary(){
-        System.out.println("Account Type: " + m_type);
-        System.out.println("Account Number: " + m_accNum);
-        System.out.println("Balance: $" + m_balance);
-        System.out.println("------------------------");
-        for (Transaction trans : m_transactions){
-            trans.showTrans();
-            System.out.println("------------------------");
+        accSummary(0, getNumOfTransaction());
+    }
+
+    /**
+     * Displays the account summary with type, accNum, balance, and a page of transactions
+     * @param from  Index of first transaction to show, 0 is the oldest
+     * @param to    Index after the last transaction to show
+     */
+    public void accSummary(int from, int to){
+        accrueInterest();
+        if (to - from <= MAX_CACHED_TRANSACTIONS){
+            System.out.print(getSummary(from, to, StatementRenderer.Format.TEXT));
+            return;
+        }
+        try {
+            StatementRenderer renderer = StatementRenderer.toConsole();
+            renderer.render(this, from, to);
+            renderer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the account summary with a page of transactions, from the Bank's SummaryCache if it is up to date
+     * @param from      Index of first transaction, 0 is the oldest
+     * @param to        Index after the last transaction
+     * @param format    Output format
+     * @return          Rendered summary
+     */
+    public String getSummary(int from, int to, StatementRenderer.Format format){
+        SummaryCache cache = m_bank.getSummaryCache();
+        String key = format.name() + ' ' + m_accNum + ' ' + from + ' ' + to;
+        long version = getVersion();
+        String text = cache.get(key, version);
+        if (text != null){
+            return text;
+        }
+        try {
+            StringWriter out = new StringWriter(256 + 128 * (to - from));
+            StatementRenderer renderer = new StatementRenderer(out, format);
+            renderer.render(this, from, to);
+            text = out.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        //Rendering takes the lock a block at a time, the text is only kept if nothing changed meanwhile
+        if (getVersion() == version){
+            cache.put(key, version, text);
+        }
+        return text;
+    }
+
+    /**
+     * Displays a page of transactions
+     * Only the requested entries are read, so long histories are never loaded as a whole
+     * @param from  Index of first transaction to show, 0 is the oldest
+     * @param to    Index after the last transaction to show
+     */
+    public void showTransactions(int from, int to){
+        try {
+            StatementRenderer renderer = StatementRenderer.toConsole();
+            renderer.renderTransactions(this, from, to);
+            renderer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Copies a block of transactions into the given arrays
+     * Locations and memos are the ledger's Strings, so only transfer memos, which name the other account, are allocated
+     * @param from          Index of first transaction, 0 is the oldest
+     * @param count         Number of transactions
+     * @param timestamps    Receives times in milliseconds since epoch
+     * @param amounts       Receives amounts in cents
+     * @param locations     Receives locations
+     * @param memos         Receives memos
+     */
+    public synchronized void copyTransactions(int from, int count, long timestamps[], long amounts[], String locations[], String memos[]){
+        for (int i = 0; i < count; i++){
+            timestamps[i] = m_ledger.getTimestamp(from + i);
+            amounts[i] = m_ledger.getAmount(from + i);
+            locations[i] = m_ledger.getLocation(from + i);
+            memos[i] = m_ledger.getMemo(from + i);
+        }
+    }
+
+    /**
+     * Finds the first transaction at or after a time, such as to show transactions between two dates
+     * @param timestamp Time in milliseconds since epoch
+     * @return          Index of transaction, or getNumOfTransaction() if all are earlier
+     */
+    public synchronized int findTransaction(long timestamp){
+        return m_ledger.lowerBound(timestamp);
+    }
+
+    /**
+     * Gives the account's history blocks back for reuse, if it has any, once the account is unreachable
+     */
+    public synchronized void deleteHistory(){
+        m_ledger.delete();
+    }
+
+    /**
+     * Finds a page of Transactions matching query, in time order
+     * Uses the ledger's date order and location and memo indexes instead of reading the whole history
+     * @param query Criteria and page
+     * @return      Matching Transactions
+     */
+    public synchronized List<Transaction> search(TransactionQuery query){
+        int indexes[] = m_ledger.search(query);
+        ArrayList<Transaction> page = new ArrayList<Transaction>(indexes.length);
+        for (int index : indexes){
+            page.add(m_ledger.get(index));
+        }
+        return page;
+    }
+
+    /**
+     * Returns totals of every Transaction so far, without going through the history
+     * @param category  Category, null for all categories
+     * @return          Totals
+     */
+    public synchronized AccountStats.Totals getAllTimeTotals(AccountStats.Category category){
+        return m_stats.getAllTime(category);
+    }
+
+    /**
+     * Returns totals of one day's Transactions, without going through the history
+     * @param date      Day, in the system time zone
+     * @param category  Category, null for all categories
+     * @return          Totals
+     */
+    public synchronized AccountStats.Totals getDailyTotals(LocalDate date, AccountStats.Category category){
+        return m_stats.getDay(date, category);
+    }
+
+    /**
+     * Returns totals of one month's Transactions, without going through the history
+     * @param month     Month, in the system time zone
+     * @param category  Category, null for all categories
+     * @return          Totals
+     */
+    public synchronized AccountStats.Totals getMonthlyTotals(YearMonth month, AccountStats.Category category){
+        return m_stats.getMonth(month, category);
+    }
+
+    /**
+     * Returns a stored Transaction
+     * @param index Index of transaction, 0 is the oldest
+     * @return      Transaction
+     */
+    public synchronized Transaction getTransaction(int index){
+        return m_ledger.get(index);
+    }
+
+    /**
+     * Returns whether the account has been deleted
+     * @return m_deleted
+     */
+    public synchronized boolean isDeleted(){
+        return m_deleted;
+    }
+
+    /**
+     * Marks the account deleted
+     * Caller must hold the account's lock
+     */
+    void markDeleted(){
+        m_deleted = true;
+    }
+
+    /**
+     * Throws if the account has been deleted
+     * Caller must hold the account's lock
+     * @throws IllegalStateException if deleted
+     */
+    private void checkOpen(){
+        if (m_deleted){
+            throw new IllegalStateException("Account " + m_accNum + " has been deleted");
         }
-        System.out.println("");
     }
 
     /**
      * Debits the account of amount
      * It is possible for m_balance to go into negative (overdraft)
-     * @param amount The amount to debit
+     * @param amount The amount to debit in cents
+     * @throws IllegalArgumentException if amount is 0 or negative
+     * @throws IllegalStateException if the account has been deleted
      */
-    public void debit(double amount){
-        m_balance -= amount;
-        System.out.println(m_accNum + " New balance: " + m_balance + "\n");
+    public void debit(long amount){
+        Money.checkPositive(amount);
+        long start = Metrics.start();
+        long seq;
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                checkOpen();
+                long timestamp = System.currentTimeMillis();
+                accrue(timestamp);
+                seq = logCredit(Journal.DEBIT, timestamp, amount);
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitDurable(seq);
+        m_bank.getMetrics().record(Metrics.Op.DEBIT, start, true);
+    }
+
+    /**
+     * Debits the account of amount only if the balance, with any overdraft or credit line, covers it
+     * Checking and debiting happen under one lock, so two sessions cannot both spend the same money
+     * @param amount The amount to withdraw in cents
+     * @return       true if withdrawn, false for insufficient balance
+     * @throws IllegalArgumentException if amount is 0 or negative
+     * @throws IllegalStateException if the account has been deleted
+     */
+    public boolean withdraw(long amount){
+        Money.checkPositive(amount);
+        long start = Metrics.start();
+        long seq;
+        boolean withdrawn;
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                checkOpen();
+                long timestamp = System.currentTimeMillis();
+                seq = accrue(timestamp);
+                withdrawn = (amount <= getAvailable());
+                if (withdrawn){
+                    seq = logCredit(Journal.DEBIT, timestamp, amount);
+                }
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitDurable(seq);
+        if (withdrawn){
+            m_bank.getMetrics().record(Metrics.Op.DEBIT, start, true);
+        }
+        return withdrawn;
+    }
+
+    /**
+     * Withdraws amount and adds its Transaction as one step, only if the balance,
+     * with any overdraft or credit line, covers it
+     * @param amount    The amount to withdraw in cents
+     * @param location  Location of transaction
+     * @param memo      Memo of transaction
+     * @return          true if withdrawn, false for insufficient balance
+     * @throws IllegalArgumentException if amount is 0 or negative
+     * @throws IllegalStateException if the account has been deleted
+     */
+    public boolean withdraw(long amount, String location, String memo){
+        Money.checkPositive(amount);
+        long seq;
+        boolean withdrawn;
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                checkOpen();
+                long timestamp = System.currentTimeMillis();
+                seq = accrue(timestamp);
+                withdrawn = (amount <= getAvailable());
+                if (withdrawn){
+                    seq = logEntry(Journal.POST, timestamp, location, Money.negate(amount), memo);
+                }
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitDurable(seq);
+        return withdrawn;
     }
 
     /**
      * Credits the account of amount
-     * @param amount The amount to credit
+     * @param amount The amount to credit in cents
+     * @throws IllegalArgumentException if amount is 0 or negative
+     * @throws IllegalStateException if the account has been deleted
+     */
+    public void credit(long amount){
+        Money.checkPositive(amount);
+        long start = Metrics.start();
+        long seq;
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                checkOpen();
+                long timestamp = System.currentTimeMillis();
+                accrue(timestamp);
+                seq = logCredit(Journal.CREDIT, timestamp, amount);
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitDurable(seq);
+        m_bank.getMetrics().record(Metrics.Op.CREDIT, start, true);
+    }
+
+    /**
+     * Journals a credit or debit, then applies it
+     * Caller must be within beginUpdate and hold the account's lock, and wait for the record once both are released
+     * @param type      Journal.CREDIT or Journal.DEBIT
+     * @param timestamp Time in milliseconds since epoch
+     * @param amount    Amount in cents, more than 0
+     * @return          Sequence number of the journal record, 0 for a Bank kept only in memory
+     */
+    private long logCredit(byte type, long timestamp, long amount){
+        long seq = 0;
+        if (m_bank.getJournal() != null){
+            seq = m_bank.getJournal().logBalance(type, m_accNum, timestamp, amount);
+        }
+        applyCredit(timestamp, (type == Journal.CREDIT) ? amount : Money.negate(amount));
+        return seq;
+    }
+
+    /**
+     * Credits amount and adds its Transaction as one step
+     * @param amount    Amount in cents
+     * @param location  Location of transaction
+     * @param memo      Memo of transaction, "" for none
+     * @throws IllegalArgumentException if amount is 0 or negative
+     * @throws IllegalStateException if the account has been deleted
+     */
+    public void post(long amount, String location, String memo){
+        Money.checkPositive(amount);
+        postEntry(amount, location, memo);
+    }
+
+    /**
+     * Debits amount and adds its Transaction as one step, even past any overdraft or credit line,
+     * such as for spending recorded after the fact
+     * @param amount    Amount in cents
+     * @param location  Location of transaction
+     * @param memo      Memo of transaction, "" for none
+     * @throws IllegalArgumentException if amount is 0 or negative
+     * @throws IllegalStateException if the account has been deleted
      */
-    public void credit(double amount){
-        m_balance += amount;
-        System.out.println(m_accNum + " New balance: " + m_balance + "\n");
+    public void charge(long amount, String location, String memo){
+        Money.checkPositive(amount);
+        postEntry(Money.negate(amount), location, memo);
+    }
+
+    /**
+     * Changes the balance by amount and adds its Transaction as one step
+     * @param amount    Amount in cents, negative for money going out
+     * @param location  Location of transaction
+     * @param memo      Memo of transaction, "" for none
+     * @throws IllegalStateException if the account has been deleted
+     */
+    private void postEntry(long amount, String location, String memo){
+        long seq;
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                checkOpen();
+                long timestamp = System.currentTimeMillis();
+                accrue(timestamp);
+                seq = logEntry(Journal.POST, timestamp, location, amount, memo);
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitDurable(seq);
+    }
+
+    /**
+     * Journals a Transaction, then adds it, changing the balance too if it is a POST
+     * Caller must be within beginUpdate and hold the account's lock, and wait for the record once both are released
+     * @param type      Journal.POST or Journal.TRANSACTION
+     * @param timestamp Time in milliseconds since epoch
+     * @param location  Location of transaction
+     * @param amount    Amount in cents, negative for money going out
+     * @param memo      Memo of transaction, "" for none
+     * @return          Sequence number of the journal record, 0 for a Bank kept only in memory
+     */
+    private long logEntry(byte type, long timestamp, String location, long amount, String memo){
+        long seq = 0;
+        if (m_bank.getJournal() != null){
+            seq = m_bank.getJournal().logTransaction(type, m_accNum, timestamp, location, amount, memo);
+        }
+        if (type == Journal.POST){
+            applyBalance(amount);
+        }
+        applyTransaction(timestamp, location, amount, memo);
+        return seq;
     }
 
     /**
      * Add a new Transaction with no memo
      * @param location  Location of transaction
-     * @param amount    Amount of transaction
+     * @param amount    Amount of transaction in cents
      * @param src       Source account, which is 'this'
      */
-    public void addTransaction(String location, double amount){
-        Transaction transaction = new Transaction(location, amount);
-        m_transactions.add(transaction);
+    public void addTransaction(String location, long amount){
+        addTransaction(location, amount, "");
     }
 
     /**
      * Add a new Transaction with no memo
      * @param location  Location of transaction
-     * @param amount    Amount of transaction
+     * @param amount    Amount of transaction in cents
      * @param src       Source account, which is 'this'
      * @param memo      Additional memo of transaction
+     * @throws IllegalStateException if the account has been deleted
+     */
+    public void addTransaction(String location, long amount, String memo){
+        long seq;
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                checkOpen();
+                long timestamp = System.currentTimeMillis();
+                accrue(timestamp);
+                seq = logEntry(Journal.TRANSACTION, timestamp, location, amount, memo);
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitDurable(seq);
+    }
+
+    /**
+     * Moves amount from src to dest as one step, with a Transaction on each side
+     * Both accounts are locked in account number order, so opposite transfers between
+     * the same two accounts cannot deadlock
+     * @param src       Source account
+     * @param dest      Destination account
+     * @param amount    Amount to transfer in cents
+     * @param location  Location of transfer
+     * @return          true if transferred, false if src's balance, with any overdraft or credit line, is too low
+     * @throws IllegalArgumentException if amount is 0 or negative, or both accounts are the same
+     * @throws IllegalStateException if either account has been deleted
+     */
+    public static boolean transfer(Account src, Account dest, long amount, String location){
+        Money.checkPositive(amount);
+        if (src == dest){
+            throw new IllegalArgumentException("Cannot transfer to the same account");
+        }
+        Account first = src;
+        Account second = dest;
+        if (src.getAccNum().compareTo(dest.getAccNum()) > 0){
+            first = dest;
+            second = src;
+        }
+
+        Bank bank = src.m_bank;
+        long seq;
+        boolean transferred;
+        bank.beginUpdate();
+        try {
+            synchronized (first){
+                synchronized (second){
+                    src.checkOpen();
+                    dest.checkOpen();
+                    long timestamp = System.currentTimeMillis();
+                    seq = Math.max(src.accrue(timestamp), dest.accrue(timestamp));
+                    transferred = (amount <= src.getAvailable());
+                    if (transferred){
+                        if (bank.getJournal() != null){
+                            seq = bank.getJournal().logTransfer(src.m_accNum, dest.m_accNum, timestamp, location, amount);
+                        }
+                        applyTransfer(src, dest, timestamp, location, amount);
+                    }
+                }
+            }
+        } finally {
+            bank.endUpdate();
+        }
+        bank.awaitDurable(seq);
+        return transferred;
+    }
+
+    /**
+     * Takes amount for a transfer to an account of another Bank, such as another shard, only if the balance,
+     * with any overdraft or credit line, covers it
+     * The money and the TransferOutbox intent that delivers it are journaled as one record; the caller then has the
+     * destination credit the intent and marks it done, or refunds it
+     * @param destAccNum    Destination account number, in the other Bank
+     * @param amount        Amount in cents
+     * @param location      Location of transfer
+     * @return              Intent, null for insufficient balance
+     * @throws IllegalArgumentException if amount is 0 or negative
+     * @throws IllegalStateException if the account has been deleted
+     */
+    public TransferOutbox.Intent transferOut(String destAccNum, long amount, String location){
+        Money.checkPositive(amount);
+        long seq;
+        TransferOutbox.Intent intent = null;
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                checkOpen();
+                long timestamp = System.currentTimeMillis();
+                seq = accrue(timestamp);
+                if (amount <= getAvailable()){
+                    intent = new TransferOutbox.Intent(m_bank.getTransferOutbox().nextID(), m_accNum, destAccNum, timestamp, location, amount);
+                    if (m_bank.getJournal() != null){
+                        seq = m_bank.getJournal().logTransferIntent(Journal.TRANSFER_SEND, intent, timestamp);
+                    }
+                    applyTransferOut(intent);
+                }
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitDurable(seq);
+        return intent;
+    }
+
+    /**
+     * Credits a transfer from an account of another Bank, unless this Bank has already credited its intent
+     * @param intent Intent, sent to this account
+     * @return       true if credited, false if it already was, such as when delivered again after a restart
+     * @throws IllegalStateException if the account has been deleted
+     */
+    public boolean transferIn(TransferOutbox.Intent intent){
+        long seq = 0;
+        boolean credited = false;
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                checkOpen();
+                if (!m_bank.getTransferOutbox().isReceived(intent.id)){
+                    long timestamp = System.currentTimeMillis();
+                    seq = accrue(timestamp);
+                    if (m_bank.getJournal() != null){
+                        seq = m_bank.getJournal().logTransferIntent(Journal.TRANSFER_RECEIVE, intent, timestamp);
+                    }
+                    applyTransferIn(intent, timestamp);
+                    credited = true;
+                }
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitDurable(seq);
+        return credited;
+    }
+
+    /**
+     * Posts interest for the whole days since m_accruedTo, if any have passed
+     * Called when the account is touched, so interest needs no pass over every account; the balance has not
+     * changed since m_accruedTo, as every change accrues first
+     * A deleted account is left as it is
+     */
+    public void accrueInterest(){
+        long seq = 0;
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                if (!m_deleted){
+                    seq = accrue(System.currentTimeMillis());
+                }
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitDurable(seq);
+    }
+
+    /**
+     * Returns interest for the whole days up to a time that has not been posted yet, without posting it
+     * @param now   Time in milliseconds since epoch
+     * @return      amount in cents, negative for a charge
+     */
+    public synchronized long getAccruedInterest(long now){
+        if (m_accruedTo == 0 || now - m_accruedTo < DAY_MILLIS){
+            return 0;
+        }
+        return interest((now - m_accruedTo) / DAY_MILLIS) / INTEREST_DIVISOR;
+    }
+
+    /**
+     * Returns m_accruedTo
+     * @return m_accruedTo
+     */
+    synchronized long getAccruedTo(){
+        return m_accruedTo;
+    }
+
+    /**
+     * Returns m_interestRemainder
+     * @return m_interestRemainder
+     */
+    synchronized long getInterestRemainder(){
+        return m_interestRemainder;
+    }
+
+    /**
+     * Returns a copy of the running totals, which later transactions do not change
+     * @return Copy of m_stats
+     */
+    synchronized AccountStats copyStats(){
+        return m_stats.copy();
+    }
+
+    /**
+     * Journals and posts interest for the whole days up to now
+     * An account whose m_accruedTo is not known, from before interest was kept, starts accruing from now
+     * Caller must be within beginUpdate and hold the account's lock, and wait for the record once both are released
+     * @param now   Time in milliseconds since epoch
+     * @return      Sequence number of the journal record, 0 if nothing was journaled
      */
-    public void addTransaction(String location, double amount, String memo){
-        Transaction transaction = new Transaction(location, amount, memo);
-        m_transactions.add(transaction);
+    long accrue(long now){
+        long accruedTo = now;
+        long amount = 0;
+        long remainder = m_interestRemainder;
+        if (m_accruedTo != 0){
+            long days = (now - m_accruedTo) / DAY_MILLIS;
+            if (days <= 0){
+                return 0;
+            }
+            //Only whole days are accrued, the rest of today waits for the next touch
+            accruedTo = m_accruedTo + days * DAY_MILLIS;
+            long total = interest(days);
+            amount = total / INTEREST_DIVISOR;
+            remainder = total % INTEREST_DIVISOR;
+        }
+        long seq = 0;
+        if (m_bank.getJournal() != null){
+            seq = m_bank.getJournal().logAccrual(m_accNum, now, accruedTo, amount, remainder);
+        }
+        applyAccrual(now, accruedTo, amount, remainder);
+        return seq;
+    }
+
+    /**
+     * Returns interest on the balance over a number of days, plus the remainder carried from before
+     * @param days  Number of days
+     * @return      amount in cents times INTEREST_DIVISOR
+     */
+    private long interest(long days){
+        long perDay = Math.multiplyExact(m_balance, (long) m_type.getRate(m_balance));
+        return Money.add(m_interestRemainder, Math.multiplyExact(perDay, days));
+    }
+
+    /**
+     * Moves m_accruedTo and posts interest without writing to the Journal, used when rebuilding the account
+     * Caller must hold the account's lock
+     * @param timestamp Time of the interest Transaction in milliseconds since epoch
+     * @param accruedTo Time interest has been accrued up to
+     * @param amount    Interest in cents, negative for a charge, 0 for none
+     * @param remainder Fraction of a cent carried to the next accrual
+     */
+    void applyAccrual(long timestamp, long accruedTo, long amount, long remainder){
+        m_accruedTo = accruedTo;
+        m_interestRemainder = remainder;
+        if (amount != 0){
+            applyBalance(amount);
+            applyTransaction(timestamp, "Bank", amount, "Interest");
+        }
+    }
+
+    /**
+     * Changes the balance without writing to the Journal, used when rebuilding the account
+     * Caller must hold the account's lock
+     * @param amount Amount in cents, negative for money going out
+     */
+    void applyBalance(long amount){
+        m_balance = Money.add(m_balance, amount);
+        m_version++;
+    }
+
+    /**
+     * Changes the balance by a credit or debit without writing to the Journal
+     * There is no Transaction, but the amount still counts towards the running totals as a deposit or withdrawal
+     * Caller must hold the account's lock
+     * @param timestamp Time in milliseconds since epoch
+     * @param amount    Amount in cents, negative for a debit
+     */
+    void applyCredit(long timestamp, long amount){
+        applyBalance(amount);
+        m_stats.add(timestamp, amount, (amount < 0) ? AccountStats.Category.WITHDRAW : AccountStats.Category.DEPOSIT);
+    }
+
+    /**
+     * Replaces the running totals without writing to the Journal, such as with those stored in a snapshot
+     * Caller must hold the account's lock
+     * @param stats Running totals
+     */
+    void applyStats(AccountStats stats){
+        m_stats = stats;
+    }
+
+    /**
+     * Adds a Transaction without writing to the Journal, used when rebuilding the account
+     * Caller must hold the account's lock
+     * @param timestamp Time in milliseconds since epoch
+     * @param location  Location of transaction
+     * @param amount    Amount in cents
+     * @param memo      Memo, "" for none
+     */
+    void applyTransaction(long timestamp, String location, long amount, String memo){
+        m_ledger.append(timestamp, location, amount, memo);
+        m_stats.add(timestamp, amount, memo);
+        m_version++;
+    }
+
+    /**
+     * Moves money and adds both Transactions without writing to the Journal
+     * Caller must hold both accounts' locks
+     * @param src       Source account
+     * @param dest      Destination account
+     * @param timestamp Time in milliseconds since epoch
+     * @param location  Location of transfer
+     * @param amount    Amount in cents
+     */
+    static void applyTransfer(Account src, Account dest, long timestamp, String location, long amount){
+        src.applyBalance(Money.negate(amount));
+        src.applyTransferEntry(timestamp, location, Money.negate(amount), Ledger.TRANSFER_TO, dest.m_accNum);
+        dest.applyBalance(amount);
+        dest.applyTransferEntry(timestamp, location, amount, Ledger.TRANSFER_FROM, src.m_accNum);
+    }
+
+    /**
+     * Takes the money of a transfer to another Bank and adds the intent to this Bank's TransferOutbox,
+     * without writing to the Journal
+     * Caller must hold the account's lock
+     * @param intent Intent, sent from this account
+     */
+    void applyTransferOut(TransferOutbox.Intent intent){
+        applyBalance(Money.negate(intent.amount));
+        applyTransferEntry(intent.timestamp, intent.location, Money.negate(intent.amount), Ledger.TRANSFER_TO, intent.destAccNum);
+        m_bank.getTransferOutbox().replayAdd(intent);
+    }
+
+    /**
+     * Credits a transfer from another Bank and records its intent as received, without writing to the Journal
+     * Caller must hold the account's lock
+     * @param intent    Intent, sent to this account
+     * @param timestamp Time of the credit in milliseconds since epoch
+     */
+    void applyTransferIn(TransferOutbox.Intent intent, long timestamp){
+        applyBalance(intent.amount);
+        applyTransferEntry(timestamp, intent.location, intent.amount, Ledger.TRANSFER_FROM, intent.srcAccNum);
+        m_bank.getTransferOutbox().replayReceived(intent.id);
+    }
+
+    /**
+     * Gives back the money of a transfer to another Bank that could not be credited, without writing to the Journal
+     * Caller must hold the account's lock
+     * @param intent    Intent, sent from this account
+     * @param timestamp Time of the refund in milliseconds since epoch
+     */
+    void applyRefund(TransferOutbox.Intent intent, long timestamp){
+        applyBalance(intent.amount);
+        applyTransferEntry(timestamp, intent.location, intent.amount, Ledger.TRANSFER_FROM, intent.destAccNum);
+    }
+
+    /**
+     * Adds one side of a transfer without writing to the Journal, the other account kept as a number
+     * Caller must hold the account's lock
+     * @param timestamp     Time in milliseconds since epoch
+     * @param location      Location of transfer
+     * @param amount        Amount in cents
+     * @param memo          Ledger.TRANSFER_TO or TRANSFER_FROM
+     * @param counterparty  Other account's number
+     */
+    private void applyTransferEntry(long timestamp, String location, long amount, String memo, String counterparty){
+        m_ledger.append(timestamp, location, amount, memo, counterparty);
+        m_stats.add(timestamp, amount, memo);
+        m_version++;
     }
 
     /**
@@ -134,10 +940,11 @@ public class Account {
      */
     public static String pickAccountType(Scanner sc)
     {
-        int choice, numOfAccountTypes = 2;
+        int choice, numOfAccountTypes = 4;
         System.out.println("1: Chequing");
         System.out.println("2: Savings");
-        //System.out.println("3: Line of Credit");
+        System.out.println("3: Line of Credit");
+        System.out.println("4: Chequing with $500 overdraft");
         System.out.print("Please choose an account type (1 ~ " + numOfAccountTypes + ", 0 to cancel): ");
         choice = Validate.validateIntRange(0, numOfAccountTypes, sc);
 
@@ -145,10 +952,16 @@ public class Account {
         switch (choice)
         {
         case 1:
-            type = "Chequing";
+            type = AccountType.CHEQUING.getName();
             break;
         case 2:
-            type = "Savings";
+            type = AccountType.SAVINGS.getName();
+            break;
+        case 3:
+            type = AccountType.LINE_OF_CREDIT.getName();
+            break;
+        case 4:
+            type = AccountType.CHEQUING_OVERDRAFT.getName();
             break;
         }
         
@@ -0,0 +1,404 @@
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Running totals of an account's transactions, and of credits and debits that have none, kept up to date as each is added
+ * Totals are kept for all time, for each day and for each month, split by category,
+ * so any of them is a lookup instead of a scan of the ledger
+ * Only the last DAYS_KEPT days and MONTHS_KEPT months are kept: older days are already counted in their month,
+ * and older months in all time, so their buckets are dropped and read back as empty
+ * Days and months are in the system time zone, the same as statements
+ * Snapshots store the totals, as credits and debits without a Transaction cannot be counted again from the ledger
+ * Not thread safe, the owning Account's lock guards it
+ */
+public class AccountStats {
+    /**
+     * Kind of transaction, from its memo
+     */
+    public enum Category {
+        DEPOSIT, WITHDRAW, TRANSFER, INTEREST, OTHER;
+
+        /**
+         * Returns the category of a memo
+         * @param memo Memo written by the ATM or Bank, such as Deposit or Transfer to 123-4567
+         * @return     Category, OTHER for memos entered by the User
+         */
+        public static Category of(String memo){
+            if (memo.equals("Deposit")){
+                return DEPOSIT;
+            } else if (memo.equals("Withdraw")){
+                return WITHDRAW;
+            } else if (memo.startsWith("Transfer ")){
+                return TRANSFER;
+            } else if (memo.equals("Interest")){
+                return INTEREST;
+            }
+            return OTHER;
+        }
+    }
+
+    /**
+     * Count, sum, smallest and largest of a set of amounts
+     * Amounts are signed, so withdrawals count towards sum as negative and the largest withdrawal is min
+     */
+    public static class Totals {
+        private long m_count;
+        private long m_sum;
+        private long m_min = Long.MAX_VALUE;
+        private long m_max = Long.MIN_VALUE;
+
+        /**
+         * Adds one amount
+         * @param amount Amount in cents
+         */
+        void add(long amount){
+            m_count++;
+            m_sum = Money.add(m_sum, amount);
+            m_min = Math.min(m_min, amount);
+            m_max = Math.max(m_max, amount);
+        }
+
+        /**
+         * Adds every amount of other
+         * @param other Totals to add
+         */
+        void add(Totals other){
+            m_count += other.m_count;
+            m_sum = Money.add(m_sum, other.m_sum);
+            m_min = Math.min(m_min, other.m_min);
+            m_max = Math.max(m_max, other.m_max);
+        }
+
+        /**
+         * Returns number of amounts
+         * @return count
+         */
+        public long getCount(){
+            return m_count;
+        }
+
+        /**
+         * Returns sum of amounts
+         * @return sum in cents
+         */
+        public long getSum(){
+            return m_sum;
+        }
+
+        /**
+         * Returns smallest amount
+         * @return amount in cents, 0 if there are none
+         */
+        public long getMin(){
+            return (m_count > 0) ? m_min : 0;
+        }
+
+        /**
+         * Returns largest amount
+         * @return amount in cents, 0 if there are none
+         */
+        public long getMax(){
+            return (m_count > 0) ? m_max : 0;
+        }
+    }
+
+    /**
+     * Time zone days and months are counted in
+     */
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    /**
+     * Days kept before the latest day with a transaction, about three months
+     */
+    static final int DAYS_KEPT = 92;
+
+    /**
+     * Months kept before the latest month with a transaction, three years
+     */
+    static final int MONTHS_KEPT = 36;
+
+    /**
+     * Number of categories
+     */
+    private static final int NUM_OF_CATEGORIES = Category.values().length;
+
+    /**
+     * Totals of all time, per category
+     */
+    private Totals m_allTime[];
+
+    /**
+     * Totals per day, keyed by epoch day
+     */
+    private HashMap<Long, Totals[]> m_days;
+
+    /**
+     * Totals per month, keyed by year * 12 + month - 1
+     */
+    private HashMap<Integer, Totals[]> m_months;
+
+    /**
+     * Latest epoch day with a transaction, buckets before it by DAYS_KEPT or MONTHS_KEPT are dropped
+     */
+    private long m_latestDay;
+
+    //Day of the last added transaction, most transactions fall on the same day as the one before
+    private long m_dayStart;
+    private long m_dayEnd;
+    private Totals m_day[];
+    private Totals m_month[];
+
+    /**
+     * Constructor, starts with no transactions
+     */
+    public AccountStats(){
+        m_allTime = newTotals();
+        m_days = new HashMap<Long, Totals[]>();
+        m_months = new HashMap<Integer, Totals[]>();
+        m_latestDay = Long.MIN_VALUE;
+        m_dayStart = 0;
+        m_dayEnd = 0;
+    }
+
+    /**
+     * Adds a transaction to every total it falls in
+     * @param timestamp Time in milliseconds since epoch
+     * @param amount    Amount in cents
+     * @param memo      Memo, decides the category
+     */
+    public void add(long timestamp, long amount, String memo){
+        add(timestamp, amount, Category.of(memo));
+    }
+
+    /**
+     * Adds an amount to every total it falls in, such as a credit or debit that has no Transaction
+     * @param timestamp Time in milliseconds since epoch
+     * @param amount    Amount in cents
+     * @param category  Category
+     */
+    public void add(long timestamp, long amount, Category category){
+        if (timestamp < m_dayStart || timestamp >= m_dayEnd){
+            LocalDate date = Instant.ofEpochMilli(timestamp).atZone(ZONE).toLocalDate();
+            m_dayStart = date.atStartOfDay(ZONE).toInstant().toEpochMilli();
+            m_dayEnd = date.plusDays(1).atStartOfDay(ZONE).toInstant().toEpochMilli();
+            long day = date.toEpochDay();
+            if (day > m_latestDay){
+                m_latestDay = day;
+                prune();
+            }
+            //A transaction dated before the kept buckets, such as one replayed late, only counts towards the longer totals
+            int month = monthKey(YearMonth.from(date));
+            m_day = (day > m_latestDay - DAYS_KEPT) ? m_days.computeIfAbsent(day, key -> newTotals()) : null;
+            m_month = (month > latestMonth() - MONTHS_KEPT) ? m_months.computeIfAbsent(month, key -> newTotals()) : null;
+        }
+        m_allTime[category.ordinal()].add(amount);
+        if (m_day != null){
+            m_day[category.ordinal()].add(amount);
+        }
+        if (m_month != null){
+            m_month[category.ordinal()].add(amount);
+        }
+    }
+
+    /**
+     * Returns totals of all time
+     * @param category  Category, null for all categories
+     * @return          Copy of the totals
+     */
+    public Totals getAllTime(Category category){
+        return copy(m_allTime, category);
+    }
+
+    /**
+     * Returns totals of one day
+     * @param date      Day
+     * @param category  Category, null for all categories
+     * @return          Copy of the totals, empty if there were no transactions that day
+     */
+    public Totals getDay(LocalDate date, Category category){
+        return copy(m_days.get(date.toEpochDay()), category);
+    }
+
+    /**
+     * Returns totals of one month
+     * @param month     Month
+     * @param category  Category, null for all categories
+     * @return          Copy of the totals, empty if there were no transactions that month
+     */
+    public Totals getMonth(YearMonth month, Category category){
+        return copy(m_months.get(monthKey(month)), category);
+    }
+
+    /**
+     * Creates a copy that later transactions do not change, such as for a snapshot
+     * @return new AccountStats
+     */
+    public AccountStats copy(){
+        AccountStats copy = new AccountStats();
+        copy.m_allTime = copyAll(m_allTime);
+        for (Map.Entry<Long, Totals[]> entry : m_days.entrySet()){
+            copy.m_days.put(entry.getKey(), copyAll(entry.getValue()));
+        }
+        for (Map.Entry<Integer, Totals[]> entry : m_months.entrySet()){
+            copy.m_months.put(entry.getKey(), copyAll(entry.getValue()));
+        }
+        copy.m_latestDay = m_latestDay;
+        return copy;
+    }
+
+    /**
+     * Writes the totals, laid out as described in BinaryCodec
+     * @param out Writer
+     * @throws IOException if the output fails
+     */
+    public void write(BinaryCodec.Writer out) throws IOException {
+        writeTotals(out, m_allTime);
+        out.writeVarLong(m_days.size());
+        for (Map.Entry<Long, Totals[]> entry : m_days.entrySet()){
+            out.writeSignedVarLong(entry.getKey());
+            writeTotals(out, entry.getValue());
+        }
+        out.writeVarLong(m_months.size());
+        for (Map.Entry<Integer, Totals[]> entry : m_months.entrySet()){
+            out.writeVarLong(entry.getKey());
+            writeTotals(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads totals written by write()
+     * @param in    Reader
+     * @return      new AccountStats
+     * @throws IOException if the data is cut short or malformed
+     */
+    public static AccountStats read(BinaryCodec.Reader in) throws IOException {
+        AccountStats stats = new AccountStats();
+        stats.m_allTime = readTotals(in);
+        long numOfDays = in.readVarLong();
+        for (long d = 0; d < numOfDays; d++){
+            long day = in.readSignedVarLong();
+            stats.m_days.put(day, readTotals(in));
+            stats.m_latestDay = Math.max(stats.m_latestDay, day);
+        }
+        long numOfMonths = in.readVarLong();
+        for (long m = 0; m < numOfMonths; m++){
+            int month = (int) in.readVarLong();
+            stats.m_months.put(month, readTotals(in));
+        }
+        return stats;
+    }
+
+    /**
+     * Writes the totals of every category
+     * @param out       Writer
+     * @param totals    Totals per category
+     * @throws IOException if the output fails
+     */
+    private static void writeTotals(BinaryCodec.Writer out, Totals totals[]) throws IOException {
+        for (Totals total : totals){
+            out.writeVarLong(total.m_count);
+            if (total.m_count > 0){
+                out.writeSignedVarLong(total.m_sum);
+                out.writeSignedVarLong(total.m_min);
+                out.writeSignedVarLong(total.m_max);
+            }
+        }
+    }
+
+    /**
+     * Reads the totals of every category written by writeTotals
+     * @param in    Reader
+     * @return      Totals per category
+     * @throws IOException if the data is cut short or malformed
+     */
+    private static Totals[] readTotals(BinaryCodec.Reader in) throws IOException {
+        Totals totals[] = newTotals();
+        for (Totals total : totals){
+            total.m_count = in.readVarLong();
+            if (total.m_count > 0){
+                total.m_sum = in.readSignedVarLong();
+                total.m_min = in.readSignedVarLong();
+                total.m_max = in.readSignedVarLong();
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Drops the day and month buckets that fell out of DAYS_KEPT and MONTHS_KEPT, once per new latest day
+     */
+    private void prune(){
+        long oldestDay = m_latestDay - DAYS_KEPT;
+        int oldestMonth = latestMonth() - MONTHS_KEPT;
+        m_days.keySet().removeIf(day -> day <= oldestDay);
+        m_months.keySet().removeIf(month -> month <= oldestMonth);
+    }
+
+    /**
+     * Returns the key in m_months of the month of m_latestDay
+     * @return year * 12 + month - 1
+     */
+    private int latestMonth(){
+        return monthKey(YearMonth.from(LocalDate.ofEpochDay(m_latestDay)));
+    }
+
+    /**
+     * Copies the totals of every category
+     * @param totals    Totals per category
+     * @return          new Totals per category
+     */
+    private static Totals[] copyAll(Totals totals[]){
+        Totals copy[] = newTotals();
+        for (int i = 0; i < totals.length; i++){
+            copy[i].add(totals[i]);
+        }
+        return copy;
+    }
+
+    /**
+     * Copies the totals of a category, or all categories added together
+     * @param totals    Totals per category, null for none
+     * @param category  Category, null for all categories
+     * @return          new Totals
+     */
+    private static Totals copy(Totals totals[], Category category){
+        Totals result = new Totals();
+        if (totals == null){
+            return result;
+        }
+        if (category != null){
+            result.add(totals[category.ordinal()]);
+        } else {
+            for (Totals total : totals){
+                result.add(total);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates empty totals for every category
+     * @return Totals per category
+     */
+    private static Totals[] newTotals(){
+        Totals totals[] = new Totals[NUM_OF_CATEGORIES];
+        for (int i = 0; i < totals.length; i++){
+            totals[i] = new Totals();
+        }
+        return totals;
+    }
+
+    /**
+     * Returns the key of a month in m_months
+     * @param month Month
+     * @return      year * 12 + month - 1
+     */
+    private static int monthKey(YearMonth month){
+        return month.getYear() * 12 + month.getMonthValue() - 1;
+    }
+}
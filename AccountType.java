@@ -0,0 +1,108 @@
+/**
+ * Kinds of account a User can open, with how far each may go below 0 and the interest it earns or is charged
+ * Rates are yearly, in hundredths of a percent, and accrue daily on an actual/365 basis
+ */
+public enum AccountType {
+    /**
+     * Everyday account, cannot be overdrawn by withdrawals or transfers; charged interest if spending takes it below 0
+     */
+    CHEQUING("Chequing", 0, 0, 1999),
+
+    /**
+     * Earns interest, cannot be overdrawn
+     */
+    SAVINGS("Savings", 0, 150, 0),
+
+    /**
+     * Borrowing account, the balance is what is owed and goes down to minus the credit line
+     */
+    LINE_OF_CREDIT("Line of Credit", 500000, 0, 750),
+
+    /**
+     * Everyday account with a $500 overdraft, opened only when a User asks for one, charged interest while used
+     */
+    CHEQUING_OVERDRAFT("Chequing with Overdraft", 50000, 0, 1999);
+
+    /**
+     * Name shown to Users and stored in the Journal
+     */
+    private final String m_name;
+
+    /**
+     * How far the balance may go below 0, in cents
+     */
+    private final long m_limit;
+
+    /**
+     * Rate earned on a positive balance, in hundredths of a percent per year
+     */
+    private final int m_depositRate;
+
+    /**
+     * Rate charged on a negative balance, in hundredths of a percent per year
+     */
+    private final int m_borrowRate;
+
+    /**
+     * Constructor
+     * @param name          Name of type
+     * @param limit         Overdraft or credit line in cents
+     * @param depositRate   Rate earned on a positive balance
+     * @param borrowRate    Rate charged on a negative balance
+     */
+    private AccountType(String name, long limit, int depositRate, int borrowRate){
+        m_name = name;
+        m_limit = limit;
+        m_depositRate = depositRate;
+        m_borrowRate = borrowRate;
+    }
+
+    /**
+     * Finds a type by name, ignoring case and spaces, so LineOfCredit finds Line of Credit
+     * @param name  Name of type
+     * @return      Type
+     * @throws IllegalArgumentException if no type has that name
+     */
+    public static AccountType of(String name){
+        String key = name.replace(" ", "");
+        for (AccountType type : values()){
+            if (type.m_name.replace(" ", "").equalsIgnoreCase(key)){
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown account type: " + name);
+    }
+
+    /**
+     * Returns m_name
+     * @return m_name
+     */
+    public String getName(){
+        return m_name;
+    }
+
+    /**
+     * Returns m_limit
+     * @return m_limit in cents
+     */
+    public long getLimit(){
+        return m_limit;
+    }
+
+    /**
+     * Returns the yearly rate applying to a balance
+     * @param balance   Balance in cents
+     * @return          Rate in hundredths of a percent; times a negative balance it gives a charge
+     */
+    public int getRate(long balance){
+        return (balance >= 0) ? m_depositRate : m_borrowRate;
+    }
+
+    /**
+     * Checks whether the type earns or is charged interest at all
+     * @return true if either rate is not 0
+     */
+    public boolean hasInterest(){
+        return m_depositRate != 0 || m_borrowRate != 0;
+    }
+}
@@ -0,0 +1,317 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens many terminal connections to an AtmServer at once, to check that it scales
+ * Every connection logs in and waits until all of them are connected, then they all run the same requests together
+ * Reports how many connections were open at once, request throughput and latency percentiles
+ *
+ * Usage: java AtmLoadClient [connections=10000] [users=100] [requests=20] [host=localhost port=7070] [iterations=1000]
+ *                           [replicas=host:port,...]
+ * Without port an AtmServer is started in this JVM on a test bank, and heap per connection is reported as well,
+ * counting both ends of each connection; iterations sets its PinHasher iterations
+ * With replicas, Users are still created at host:port, but connections are spread over the replicas listed and only
+ * read, to measure how reads scale with followers; list the leader as well to have it take its share
+ * Each connection uses a file descriptor at both ends, so 10000 connections in one JVM need ulimit -n above 20000
+ */
+public class AtmLoadClient {
+    /**
+     * PIN of every load test User
+     */
+    private static final String PIN = "1234";
+
+    /**
+     * Server host
+     */
+    private String m_host;
+
+    /**
+     * Server port
+     */
+    private int m_port;
+
+    /**
+     * Servers connections are spread over, reading only, empty to run the read and write mix at m_host
+     */
+    private List<InetSocketAddress> m_replicas;
+
+    /**
+     * Latencies of requests after login
+     */
+    private LatencyHistogram m_latencies;
+
+    /**
+     * Latencies of logins
+     */
+    private LatencyHistogram m_logins;
+
+    /**
+     * Connections that failed
+     */
+    private AtomicInteger m_failures;
+
+    /**
+     * Constructor
+     * @param host Server host
+     * @param port Server port
+     */
+    public AtmLoadClient(String host, int port){
+        m_host = host;
+        m_port = port;
+        m_replicas = new ArrayList<InetSocketAddress>();
+        m_latencies = new LatencyHistogram();
+        m_logins = new LatencyHistogram();
+        m_failures = new AtomicInteger();
+    }
+
+    /**
+     * One terminal connection
+     */
+    private class Terminal implements AutoCloseable {
+        Socket socket;
+        BufferedReader in;
+        Writer out;
+
+        Terminal(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 256);
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 256);
+        }
+
+        /**
+         * Sends a request and reads the first line of the reply
+         * @param request Request line
+         * @return        Reply line
+         * @throws IOException if the server failed the request or disconnected
+         */
+        String send(String request) throws IOException {
+            out.write(request);
+            out.write('\n');
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null || !reply.startsWith("OK")){
+                throw new IOException(request + ": " + reply);
+            }
+            return reply;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Creates Users, each with 1000.00 in their Chequing account
+     * @param numOfUsers Number of Users
+     * @return           User IDs
+     * @throws IOException if the server fails a request
+     */
+    public int[] createUsers(int numOfUsers) throws IOException {
+        int userIDs[] = new int[numOfUsers];
+        try (Terminal terminal = new Terminal(m_host, m_port)){
+            for (int i = 0; i < numOfUsers; i++){
+                userIDs[i] = Integer.parseInt(terminal.send("CREATE Load User" + i + " " + PIN).substring(3));
+                terminal.send("LOGIN " + userIDs[i] + " " + PIN);
+                terminal.send("DEPOSIT 0 1000.00");
+            }
+        }
+        return userIDs;
+    }
+
+    /**
+     * Connects every terminal, waits until all are logged in, then runs requests on all of them together
+     * @param userIDs       Users to log in as, shared round robin between connections
+     * @param numOfConns    Number of connections
+     * @param numOfRequests Requests per connection once all are connected
+     * @param whenConnected Run once every connection is logged in, before requests start
+     * @return              Nanoseconds taken by the requests
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public long run(int userIDs[], int numOfConns, int numOfRequests, Runnable whenConnected) throws InterruptedException {
+        CountDownLatch connected = new CountDownLatch(numOfConns);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService terminals = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < numOfConns; i++){
+            int userID = userIDs[i % userIDs.length];
+            InetSocketAddress server = m_replicas.isEmpty() ? null : m_replicas.get(i % m_replicas.size());
+            terminals.submit(() -> runTerminal(server, userID, numOfRequests, connected, start));
+        }
+
+        connected.await();
+        whenConnected.run();
+        long begin = System.nanoTime();
+        start.countDown();
+        terminals.shutdown();
+        terminals.awaitTermination(1, TimeUnit.HOURS);
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * Runs one terminal
+     * @param server        Replica to read from, null for the read and write mix at m_host
+     * @param userID        User to log in as
+     * @param numOfRequests Requests to run once all terminals are connected
+     * @param connected     Counted down once logged in or failed
+     * @param start         Released once every terminal is connected
+     */
+    private void runTerminal(InetSocketAddress server, int userID, int numOfRequests, CountDownLatch connected, CountDownLatch start){
+        boolean counted = false;
+        try (Terminal terminal = (server != null) ? new Terminal(server.getHostString(), server.getPort()) : new Terminal(m_host, m_port)){
+            long loginStart = System.nanoTime();
+            //A replica may not have the User yet, it is a moment behind the leader
+            for (int attempt = 1; ; attempt++){
+                try {
+                    terminal.send("LOGIN " + userID + " " + PIN);
+                    break;
+                } catch (IOException e) {
+                    if (server == null || attempt >= 100){
+                        throw e;
+                    }
+                    Thread.sleep(50);
+                }
+            }
+            m_logins.record(System.nanoTime() - loginStart);
+            connected.countDown();
+            counted = true;
+            start.await();
+
+            for (int i = 0; i < numOfRequests; i++){
+                String request;
+                switch ((server != null) ? 0 : i % 3){
+                    case 0:
+                        request = "BALANCE 0";
+                        break;
+                    case 1:
+                        request = "DEPOSIT 0 1.00";
+                        break;
+                    default:
+                        request = "WITHDRAW 0 1.00";
+                }
+                long requestStart = System.nanoTime();
+                terminal.send(request);
+                m_latencies.record(System.nanoTime() - requestStart);
+            }
+            terminal.send("QUIT");
+        } catch (IOException | InterruptedException e) {
+            if (m_failures.incrementAndGet() <= 5){
+                System.err.println("Terminal failed: " + e.getMessage());
+            }
+        } finally {
+            if (!counted){
+                connected.countDown();
+            }
+        }
+    }
+
+    /**
+     * Returns heap in use after a garbage collection
+     * @return bytes
+     */
+    private static long usedHeap(){
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++){
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numOfConns = 10000;
+        int numOfUsers = 100;
+        int numOfRequests = 20;
+        String host = "localhost";
+        int port = -1;
+        int iterations = 1000;
+        ArrayList<InetSocketAddress> replicas = new ArrayList<InetSocketAddress>();
+        for (String arg : args){
+            String pair[] = arg.split("=", 2);
+            switch (pair[0]){
+                case "connections":
+                    numOfConns = Integer.parseInt(pair[1]);
+                    break;
+                case "users":
+                    numOfUsers = Integer.parseInt(pair[1]);
+                    break;
+                case "requests":
+                    numOfRequests = Integer.parseInt(pair[1]);
+                    break;
+                case "host":
+                    host = pair[1];
+                    break;
+                case "port":
+                    port = Integer.parseInt(pair[1]);
+                    break;
+                case "iterations":
+                    iterations = Integer.parseInt(pair[1]);
+                    break;
+                case "replicas":
+                    for (String address : pair[1].split(",")){
+                        int colon = address.lastIndexOf(':');
+                        replicas.add(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+                    }
+                    break;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    System.exit(1);
+            }
+        }
+
+        AtmServer server = null;
+        if (port < 0){
+            PinHasher.setIterations(iterations);
+            server = new AtmServer(new Bank("Load Test Bank"), 0, 0);
+            port = server.getPort();
+            System.out.println("Started server on port " + port);
+        }
+        AtmLoadClient client = new AtmLoadClient(host, port);
+        client.m_replicas = replicas;
+
+        System.out.println("Creating " + numOfUsers + " users");
+        int userIDs[] = client.createUsers(numOfUsers);
+        long heapBefore = (server != null) ? usedHeap() : 0;
+
+        System.out.println("Opening " + numOfConns + " connections");
+        final AtmServer embedded = server;
+        final int conns = numOfConns;
+        final int requests = numOfRequests;
+        long begin = System.nanoTime();
+        long elapsed = client.run(userIDs, numOfConns, numOfRequests, () -> {
+            System.out.printf("Connected in %.2f s%n", (System.nanoTime() - begin) / 1e9);
+            if (embedded != null){
+                long perConn = (usedHeap() - heapBefore) / Math.max(1, embedded.getConnections());
+                System.out.println("Server connections open: " + embedded.getConnections());
+                System.out.println("Heap per connection, both ends: " + perConn + " bytes");
+            }
+            System.out.println("Running " + requests + " requests on each of " + conns + " connections");
+        });
+
+        long count = client.m_latencies.getCount();
+        System.out.println("Failed connections: " + client.m_failures.get());
+        System.out.printf("Logins: %d, p50 %.1f ms, p99 %.1f ms%n", client.m_logins.getCount(),
+            client.m_logins.getPercentile(0.5) / 1e6, client.m_logins.getPercentile(0.99) / 1e6);
+        System.out.printf("Requests: %d in %.2f s, %.0f requests/s%n", count, elapsed / 1e9, count / (elapsed / 1e9));
+        System.out.printf("Latency us: p50 %.1f, p99 %.1f, p999 %.1f, max %.1f%n",
+            client.m_latencies.getPercentile(0.5) / 1e3, client.m_latencies.getPercentile(0.99) / 1e3,
+            client.m_latencies.getPercentile(0.999) / 1e3, client.m_latencies.getMax() / 1e3);
+
+        if (server != null){
+            server.close();
+        }
+    }
+}
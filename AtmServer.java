@@ -0,0 +1,542 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves ATM terminals over TCP with a line protocol
+ * Each connection is its own Session on its own virtual thread, so a blocked read costs a small heap object
+ * rather than an OS thread, and one server can hold thousands of idle terminals
+ *
+ * Every request is one line of space separated words, and every reply starts with OK or ERR:
+ *   CREATE <first> <last> <pin>              OK <userID>
+ *   LOGIN <userID> <pin>                     OK <name>
+ *   LOGOUT                                   OK
+ *   ACCOUNTS                                 OK <n>, then n lines of <index> <accNum> <type> <balance>
+ *   BALANCE <index>                          OK <balance>
+ *   DEPOSIT <index> <amount>                 OK <balance>
+ *   WITHDRAW <index> <amount>                OK <balance>
+ *   TRANSFER <srcIndex> <destIndex> <amount> OK <srcBalance> <destBalance>
+ *   SPEND <index> <amount> <location> [memo] OK <balance>
+ *   OPEN <type>                              OK <accNum>, type is Chequing, Savings, LineOfCredit or ChequingWithOverdraft
+ *   DELETE <index>                           OK
+ *   HISTORY <index> <from> <to>              OK, then the CSV statement, then a line with a single .
+ *   ORDER <index> <destAccNum> <amount> <daily|weekly|monthly> [first yyyy-mm-dd]
+ *                                            OK <orderID>, a standing order starting today if first is left out
+ *   CANCELORDER <orderID>                    OK
+ *   QUIT                                     OK, then the connection is closed
+ *
+ * Usage: java AtmServer [port=7070] [dir=bankdata] [idle=300] [cache=16777216] [metrics=port] [metricsFile=path]
+ *                       [replication=port] [follow=host:port,...] [failover=seconds]
+ * idle is how many seconds a terminal may stay silent before it is disconnected,
+ * cache is how many bytes of rendered statements are kept,
+ * metrics serves Prometheus metrics at http://host:port/metrics, and metricsFile writes them to a file every 15 seconds
+ *
+ * replication ships every change to followers connecting on that port
+ * follow makes this server a read only copy of the leader found at one of the addresses, which should list the
+ * leader and any follower that may take over from it; with failover, once no leader has answered for that many
+ * seconds this server takes over, accepting changes and shipping them on its own replication port
+ */
+public class AtmServer {
+    /**
+     * Size of the read and write buffers of each connection, requests and replies are short lines
+     */
+    private static final int BUFFER_SIZE = 512;
+
+    /**
+     * Commands that change the Bank, refused while the server is a read only copy
+     */
+    private static final Set<String> WRITES = Set.of("CREATE", "DEPOSIT", "WITHDRAW", "TRANSFER", "SPEND", "OPEN",
+        "ORDER", "CANCELORDER", "DELETE");
+
+    /**
+     * Bank served
+     */
+    private Bank m_bank;
+
+    /**
+     * Listening socket
+     */
+    private ServerSocket m_server;
+
+    /**
+     * Accepts connections, a platform thread so the JVM keeps running while the server is open
+     */
+    private Thread m_acceptor;
+
+    /**
+     * Runs one virtual thread per connection
+     */
+    private ExecutorService m_threads;
+
+    /**
+     * Milliseconds a connection may stay silent, 0 for no limit
+     */
+    private int m_idleMillis;
+
+    /**
+     * Number of open connections
+     */
+    private AtomicInteger m_connections;
+
+    /**
+     * Refuses changes while the Bank is a replication follower's copy
+     */
+    private volatile boolean m_readOnly;
+
+    /**
+     * Constructor, starts listening on port
+     * @param bank          Bank to serve
+     * @param port          TCP port, 0 for any free port
+     * @param idleMillis    Milliseconds a connection may stay silent, 0 for no limit
+     * @throws IOException if the port cannot be bound
+     */
+    public AtmServer(Bank bank, int port, int idleMillis) throws IOException {
+        m_bank = bank;
+        m_idleMillis = idleMillis;
+        m_connections = new AtomicInteger();
+        m_server = new ServerSocket();
+        m_server.setReuseAddress(true);
+        //A deep backlog so a burst of terminals connecting at once is not refused
+        m_server.bind(new InetSocketAddress(port), 4096);
+        m_threads = Executors.newVirtualThreadPerTaskExecutor();
+        m_acceptor = Thread.ofPlatform().name("atm-accept").start(this::acceptLoop);
+    }
+
+    /**
+     * Returns the port the server listens on
+     * @return port
+     */
+    public int getPort(){
+        return m_server.getLocalPort();
+    }
+
+    /**
+     * Returns number of open connections
+     * @return connections
+     */
+    public int getConnections(){
+        return m_connections.get();
+    }
+
+    /**
+     * Sets whether changes are refused, as for a replication follower's copy of the Bank
+     * The Bank is marked read only too, so logins do not change it either
+     * @param readOnly true to refuse changes
+     */
+    public void setReadOnly(boolean readOnly){
+        m_readOnly = readOnly;
+        m_bank.setReadOnly(readOnly);
+    }
+
+    /**
+     * Stops accepting connections and closes the listening socket
+     * Open connections finish their current request and are closed by their terminals or the idle limit
+     * @throws IOException if the socket cannot be closed
+     */
+    public void close() throws IOException {
+        m_server.close();
+        m_threads.shutdown();
+    }
+
+    /**
+     * Accepts connections until the server is closed
+     */
+    private void acceptLoop(){
+        while (!m_server.isClosed()){
+            try {
+                Socket socket = m_server.accept();
+                m_threads.submit(() -> serve(socket));
+            } catch (IOException e) {
+                if (!m_server.isClosed()){
+                    System.err.println("Unable to accept connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs one terminal's session until it quits or disconnects
+     * @param socket Connection
+     */
+    private void serve(Socket socket){
+        m_connections.incrementAndGet();
+        Session session = new Session(m_bank);
+        try (socket;
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), BUFFER_SIZE)){
+            socket.setSoTimeout(m_idleMillis);
+            socket.setTcpNoDelay(true);
+            String line;
+            boolean quit = false;
+            while (!quit && (line = in.readLine()) != null){
+                String words[] = line.trim().split(" +");
+                quit = words[0].equalsIgnoreCase("QUIT");
+                try {
+                    handle(session, words, line, out);
+                } catch (IllegalArgumentException | IndexOutOfBoundsException | DateTimeParseException e) {
+                    out.write("ERR Invalid request\n");
+                } catch (IllegalStateException | ArithmeticException e) {
+                    out.write("ERR " + e.getMessage() + "\n");
+                }
+                out.flush();
+            }
+        } catch (SocketTimeoutException | SocketException e) {
+            //Terminal went silent or dropped, nothing to tell it
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+        } finally {
+            m_connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Handles one request
+     * @param session   Session of the connection
+     * @param words     Request split into words
+     * @param line      Whole request line, for memos with spaces
+     * @param out       Where the reply is written
+     * @throws IOException if writing fails
+     */
+    private void handle(Session session, String words[], String line, Writer out) throws IOException {
+        String command = words[0].toUpperCase();
+        if (m_readOnly && WRITES.contains(command)){
+            out.write("ERR Read only copy, make changes at the leader\n");
+            return;
+        }
+        switch (command){
+            case "CREATE": {
+                if (words.length != 4 || !words[3].matches("[0-9]{4}")){
+                    out.write("ERR Usage: CREATE <first> <last> <4 digit pin>\n");
+                    return;
+                }
+                User user = m_bank.addUser(words[1], words[2], words[3]);
+                out.write("OK " + user.getUserID() + "\n");
+                return;
+            }
+            case "LOGIN": {
+                int userID = Integer.parseInt(words[1]);
+                if (session.login(userID, words[2])){
+                    out.write("OK " + session.getUser().getName() + "\n");
+                } else if (m_bank.getLockout(userID) > 0){
+                    out.write("ERR Locked out for " + (m_bank.getLockout(userID) + 999) / 1000 + " seconds\n");
+                } else {
+                    out.write("ERR User ID or password is incorrect\n");
+                }
+                return;
+            }
+            case "QUIT":
+                out.write("OK\n");
+                return;
+        }
+
+        //Every other command needs a User
+        User user = session.getUser();
+        if (user == null){
+            out.write("ERR Not logged in\n");
+            return;
+        }
+        switch (command){
+            case "LOGOUT":
+                session.logout();
+                out.write("OK\n");
+                break;
+            case "ACCOUNTS": {
+                List<Account> accounts = user.getAccounts();
+                StringBuilder reply = new StringBuilder(64 * (accounts.size() + 1));
+                reply.append("OK ").append(accounts.size()).append('\n');
+                for (int i = 0; i < accounts.size(); i++){
+                    Account account = accounts.get(i);
+                    //Type is written as OPEN takes it, without spaces, so it stays one word
+                    reply.append(i).append(' ').append(account.getAccNum()).append(' ').append(account.getAccType().replace(" ", "")).append(' ');
+                    Money.appendTo(reply, account.getAccBalance());
+                    reply.append('\n');
+                }
+                out.write(reply.toString());
+                break;
+            }
+            case "BALANCE": {
+                //Reporting a balance brings its interest up to date, a copy leaves that to the leader
+                Account account = user.getAccount(Integer.parseInt(words[1]));
+                if (!m_readOnly){
+                    account.accrueInterest();
+                }
+                replyBalance(out, account);
+                break;
+            }
+            case "DEPOSIT": {
+                Account account = user.getAccount(Integer.parseInt(words[1]));
+                long amount = parseAmount(words[2]);
+                user.deposit(account, amount);
+                replyBalance(out, account);
+                break;
+            }
+            case "WITHDRAW": {
+                Account account = user.getAccount(Integer.parseInt(words[1]));
+                if (user.withdraw(account, parseAmount(words[2]))){
+                    replyBalance(out, account);
+                } else {
+                    out.write("ERR Insufficient balance\n");
+                }
+                break;
+            }
+            case "TRANSFER": {
+                Account src = user.getAccount(Integer.parseInt(words[1]));
+                Account dest = user.getAccount(Integer.parseInt(words[2]));
+                if (src == dest){
+                    out.write("ERR Source and destination are the same account\n");
+                } else if (user.transfer(src, dest, parseAmount(words[3]))){
+                    out.write("OK " + Money.format(src.getAccBalance()) + " " + Money.format(dest.getAccBalance()) + "\n");
+                } else {
+                    out.write("ERR Insufficient balance\n");
+                }
+                break;
+            }
+            case "SPEND": {
+                Account account = user.getAccount(Integer.parseInt(words[1]));
+                long amount = parseAmount(words[2]);
+                //Memo is the rest of the line after the location, spaces and all
+                String rest[] = line.trim().split(" +", 5);
+                String memo = (rest.length > 4) ? rest[4] : "";
+                user.addTransaction(account, words[3], amount, memo);
+                replyBalance(out, account);
+                break;
+            }
+            case "OPEN": {
+                //Same types the console offers, written without spaces such as LineOfCredit
+                AccountType type;
+                try {
+                    type = AccountType.of(words[1]);
+                } catch (IllegalArgumentException e) {
+                    out.write("ERR Account type must be Chequing, Savings, LineOfCredit or ChequingWithOverdraft\n");
+                    break;
+                }
+                Account account = m_bank.openAccount(user, type.getName());
+                out.write("OK " + account.getAccNum() + "\n");
+                break;
+            }
+            case "ORDER": {
+                Account src = user.getAccount(Integer.parseInt(words[1]));
+                Account dest = m_bank.getAccount(words[2]);
+                long amount = parseAmount(words[3]);
+                StandingOrders.Frequency frequency = StandingOrders.Frequency.valueOf(words[4].toUpperCase());
+                LocalDate first = (words.length > 5) ? LocalDate.parse(words[5]) : LocalDate.now();
+                if (dest == null){
+                    out.write("ERR No such account\n");
+                } else if (src == dest){
+                    out.write("ERR Source and destination are the same account\n");
+                } else {
+                    out.write("OK " + m_bank.getStandingOrders().add(src, dest, amount, frequency, first) + "\n");
+                }
+                break;
+            }
+            case "CANCELORDER": {
+                int id = Integer.parseInt(words[1]);
+                //Only the owner of the account an order pays from may cancel it
+                Account src = m_bank.getStandingOrders().getSource(id);
+                if (src != null && user.getAccounts().contains(src) && m_bank.getStandingOrders().cancel(id)){
+                    out.write("OK\n");
+                } else {
+                    out.write("ERR No such standing order\n");
+                }
+                break;
+            }
+            case "DELETE":
+                if (user.deleteAccount(user.getAccount(Integer.parseInt(words[1])))){
+                    out.write("OK\n");
+                } else {
+                    out.write("ERR Account needs to have 0 balance before deletion\n");
+                }
+                break;
+            case "HISTORY": {
+                Account account = user.getAccount(Integer.parseInt(words[1]));
+                int numOfTrans = account.getNumOfTransaction();
+                int from = Math.max(0, Integer.parseInt(words[2]));
+                int to = Math.min(numOfTrans, Integer.parseInt(words[3]));
+                to = Math.max(from, to);
+                out.write("OK\n");
+                if (to - from <= Account.MAX_CACHED_TRANSACTIONS){
+                    out.write(account.getSummary(from, to, StatementRenderer.Format.CSV));
+                } else {
+                    StatementRenderer renderer = new StatementRenderer(out, StatementRenderer.Format.CSV);
+                    renderer.render(account, from, to);
+                }
+                out.write(".\n");
+                break;
+            }
+            default:
+                out.write("ERR Unknown command " + words[0] + "\n");
+        }
+    }
+
+    /**
+     * Parses a positive amount
+     * @param text Amount text
+     * @return     Amount in cents
+     * @throws NumberFormatException if the amount is invalid or not positive
+     */
+    private static long parseAmount(String text){
+        long amount = Money.parse(text);
+        if (amount <= 0){
+            throw new NumberFormatException("Amount must be positive: " + text);
+        }
+        return amount;
+    }
+
+    /**
+     * Writes OK and an account's balance
+     * @param out       Where the reply is written
+     * @param account   Account
+     * @throws IOException if writing fails
+     */
+    private static void replyBalance(Writer out, Account account) throws IOException {
+        out.write("OK " + Money.format(account.getAccBalance()) + "\n");
+    }
+
+    /**
+     * Ships the Bank's changes to followers, if a replication port is given
+     * @param bank  Bank
+     * @param port  Replication port, negative for none
+     */
+    private static void lead(Bank bank, int port){
+        if (port < 0){
+            return;
+        }
+        try {
+            ReplicationLeader leader = new ReplicationLeader(bank, port).start();
+            System.out.println("Replicating to followers on port " + leader.getPort());
+        } catch (IOException e) {
+            System.err.println("Unable to replicate: " + e.getMessage());
+        }
+    }
+
+    public static void main(String[] args) {
+        int port = 7070;
+        String dir = "bankdata";
+        int idleSeconds = 300;
+        long cacheBytes = 16 << 20;
+        int metricsPort = -1;
+        Path metricsFile = null;
+        int replicationPort = -1;
+        List<InetSocketAddress> follow = null;
+        int failoverSeconds = 0;
+        for (String arg : args){
+            String pair[] = arg.split("=", 2);
+            switch (pair[0]){
+                case "port":
+                    port = Integer.parseInt(pair[1]);
+                    break;
+                case "dir":
+                    dir = pair[1];
+                    break;
+                case "idle":
+                    idleSeconds = Integer.parseInt(pair[1]);
+                    break;
+                case "cache":
+                    cacheBytes = Long.parseLong(pair[1]);
+                    break;
+                case "metrics":
+                    metricsPort = Integer.parseInt(pair[1]);
+                    break;
+                case "metricsFile":
+                    metricsFile = Paths.get(pair[1]);
+                    break;
+                case "replication":
+                    replicationPort = Integer.parseInt(pair[1]);
+                    break;
+                case "follow":
+                    follow = new ArrayList<InetSocketAddress>();
+                    for (String address : pair[1].split(",")){
+                        int colon = address.lastIndexOf(':');
+                        follow.add(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+                    }
+                    break;
+                case "failover":
+                    failoverSeconds = Integer.parseInt(pair[1]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    System.exit(1);
+            }
+        }
+
+        try {
+            ReplicationFollower follower = null;
+            Bank bank;
+            if (follow != null){
+                follower = new ReplicationFollower("Bank of Money", Paths.get(dir), follow, Journal.SyncPolicy.GROUP_COMMIT, failoverSeconds * 1000L);
+                System.out.println("Copying the bank from its leader");
+                bank = follower.start();
+            } else {
+                bank = Bank.open("Bank of Money", Paths.get(dir), Journal.SyncPolicy.GROUP_COMMIT);
+            }
+            bank.getSummaryCache().setLimit(cacheBytes);
+            AtmServer server = new AtmServer(bank, port, idleSeconds * 1000);
+            if (follower != null){
+                //Standing orders run at the leader, whose payments arrive here as changes
+                server.setReadOnly(true);
+                final int leaderPort = replicationPort;
+                follower.onFailover(() -> {
+                    server.setReadOnly(false);
+                    bank.getStandingOrders().start();
+                    lead(bank, leaderPort);
+                    System.out.println("Took over as leader");
+                });
+                follower.onDiverged(() -> {
+                    System.err.println("Restart this follower to copy the bank again");
+                    System.exit(2);
+                });
+            } else {
+                bank.getStandingOrders().start();
+                lead(bank, replicationPort);
+            }
+            if (metricsPort >= 0){
+                bank.getMetrics().serve(bank, metricsPort);
+            }
+            if (metricsFile != null){
+                bank.getMetrics().writeEvery(bank, metricsFile, 15);
+            }
+            //Saves a snapshot on Ctrl-C so that the next start does not need to replay the journal
+            final ReplicationFollower copy = follower;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                    if (copy != null){
+                        copy.stop();
+                        LatencyHistogram lag = copy.getLag();
+                        System.out.printf("Replication lag us: p50 %.1f, p99 %.1f, p999 %.1f, max %.1f over %d records%n",
+                            lag.getPercentile(0.5) / 1e3, lag.getPercentile(0.99) / 1e3, lag.getPercentile(0.999) / 1e3,
+                            lag.getMax() / 1e3, lag.getCount());
+                    }
+                    System.out.println("Statement cache: " + bank.getSummaryCache());
+                    bank.close();
+                } catch (IOException e) {
+                    System.err.println("Unable to save bank data: " + e.getMessage());
+                }
+            }));
+            System.out.println(bank.getName() + " listening on port " + server.getPort());
+        } catch (IOException e) {
+            System.err.println("Unable to start server: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -1,5 +1,16 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public class Bank {
     /**
@@ -8,83 +19,278 @@ public class Bank {
     private String m_name;
 
     /**
-     * List of Bank Users
+     * Bank Users indexed by User ID
+     * Concurrent, as many ATM sessions share one Bank
      */
-    private ArrayList<User> m_users;
+    private ConcurrentHashMap<Integer, User> m_users;
 
     /**
-     * List of Bank Accounts
+     * Bank Accounts indexed by account number
      */
-    private ArrayList<Account> m_accounts;
+    private ConcurrentHashMap<String, Account> m_accounts;
+
+    /**
+     * Failed login tracker, locks out IDs being guessed
+     */
+    private LoginThrottle m_throttle;
+
+    /**
+     * Allocator for User IDs
+     */
+    private IdAllocator m_userIDs;
+
+    /**
+     * Allocator for account numbers, without the dash
+     */
+    private IdAllocator m_accNums;
+
+    /**
+     * Write-ahead log of changes, null for a Bank kept only in memory
+     */
+    private Journal m_journal;
+
+    /**
+     * Directory of journal and snapshot files, null for a Bank kept only in memory
+     */
+    private Path m_dir;
+
+    /**
+     * Files holding account histories too long for the heap, null to keep all history on the heap
+     */
+    private HistoryStore m_history;
+
+    /**
+     * Number of transactions an account keeps on the heap before moving them to its history file
+     */
+    private int m_historyHeapLimit = 1024;
+
+    /**
+     * Changes hold the read side, checkpoint holds the write side for the moment it captures the Bank
+     */
+    private ReentrantReadWriteLock m_updateLock;
+
+    /**
+     * Rendered account summaries and listings
+     */
+    private SummaryCache m_summaryCache;
+
+    /**
+     * Operation counters and latencies
+     */
+    private Metrics m_metrics;
+
+    /**
+     * Standing orders between the Bank's accounts, created on first use
+     */
+    private StandingOrders m_orders;
+
+    /**
+     * Transfers to and from other Banks, such as other shards, created on first use
+     */
+    private TransferOutbox m_outbox;
+
+    /**
+     * Thread that takes periodic snapshots, null for a Bank kept only in memory
+     */
+    private ScheduledExecutorService m_checkpointer;
+
+    /**
+     * A snapshot is taken once the current journal segment has this many records
+     */
+    private long m_checkpointRecords = 1000000;
+
+    /**
+     * Set while the Bank is a read only copy, such as a replication follower, whose journal holds only its leader's records
+     */
+    private volatile boolean m_readOnly;
 
     /**
      * Constructor, sets bank name
+     * Uses 5 digit User IDs and 7 digit ###-#### account numbers
      * @param name
      */
     public Bank(String name){
+        this(name, 5, 7);
+    }
+
+    /**
+     * Constructor, sets bank name and ID widths
+     * @param name          Bank name
+     * @param userIDDigits  Number of digits in a User ID
+     * @param accNumDigits  Number of digits in an account number, the dash goes after the 3rd digit
+     */
+    public Bank(String name, int userIDDigits, int accNumDigits){
+        this(name, IdAllocator.ofDigits(userIDDigits), IdAllocator.ofDigits(accNumDigits));
+    }
+
+    /**
+     * Constructor, sets bank name and the allocators IDs are taken from
+     * Banks sharing allocators never hand out the same User ID or account number, as the shards of a ShardedBank
+     * @param name      Bank name
+     * @param userIDs   Allocator for User IDs
+     * @param accNums   Allocator for account numbers, without the dash
+     */
+    Bank(String name, IdAllocator userIDs, IdAllocator accNums){
         m_name = name;
         //Initialize m_users and m_accounts to empty state
-        m_users = new ArrayList<User>();
-        m_accounts = new ArrayList<Account>();
+        m_users = new ConcurrentHashMap<Integer, User>();
+        m_accounts = new ConcurrentHashMap<String, Account>();
+        m_userIDs = userIDs;
+        m_accNums = accNums;
+        m_updateLock = new ReentrantReadWriteLock();
+        m_throttle = new LoginThrottle();
+        m_summaryCache = new SummaryCache(16 << 20);
+        m_metrics = new Metrics();
+    }
+
+    /**
+     * Opens a Bank stored in dir, rebuilding it from the latest snapshot and the journal written after it
+     * Changes from then on are written to the journal, and a snapshot is taken in the background
+     * every so often to keep the journal short
+     * @param name      Bank name
+     * @param dir       Directory of journal and snapshot files, created if missing
+     * @param policy    When journal records are forced to disk
+     * @return          Bank
+     * @throws IOException if the files cannot be read or written
+     */
+    public static Bank open(String name, Path dir, Journal.SyncPolicy policy) throws IOException {
+        return open(new Bank(name), dir, policy);
+    }
+
+    /**
+     * Rebuilds an empty Bank from the files in dir and journals its changes from then on, as open(name, dir, policy)
+     * @param bank      New Bank, with no Users
+     * @param dir       Directory of journal and snapshot files, created if missing
+     * @param policy    When journal records are forced to disk
+     * @return          bank
+     * @throws IOException if the files cannot be read or written
+     */
+    static Bank open(Bank bank, Path dir, Journal.SyncPolicy policy) throws IOException {
+        Files.createDirectories(dir);
+        bank.m_dir = dir;
+
+        //History files are rebuilt from the snapshot and journal, old ones are out of date
+        Path historyDir = dir.resolve("history");
+        Files.createDirectories(historyDir);
+        try (Stream<Path> files = Files.list(historyDir)){
+            for (Path file : (Iterable<Path>) files::iterator){
+                Files.delete(file);
+            }
+        }
+        bank.m_history = new HistoryStore(historyDir);
+
+        long snapshot = Snapshot.latest(dir);
+        if (snapshot >= 0){
+            Snapshot.load(Snapshot.snapshotPath(dir, snapshot), bank);
+        }
+
+        //Replays every segment from the snapshot onwards, oldest first
+        ArrayList<Long> segments = new ArrayList<Long>();
+        try (Stream<Path> files = Files.list(dir)){
+            for (Path file : (Iterable<Path>) files::iterator){
+                long segment = Snapshot.fileNumber(file, "journal-", ".log");
+                if (segment >= 0 && segment >= snapshot){
+                    segments.add(segment);
+                }
+            }
+        }
+        Collections.sort(segments);
+        long next = Math.max(snapshot, 0);
+        long seq = 0;
+        for (long segment : segments){
+            seq = Journal.replay(Journal.segmentPath(dir, segment), bank, seq);
+            next = segment + 1;
+        }
+
+        //Appends to a fresh segment, so that a torn record at the end of the old one is never followed by new ones
+        bank.m_journal = new Journal(dir, next, seq, policy);
+        bank.m_checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bank-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        bank.m_checkpointer.scheduleWithFixedDelay(() -> {
+            if (bank.m_journal.getSegmentRecords() >= bank.m_checkpointRecords){
+                try {
+                    bank.checkpoint();
+                } catch (IOException e) {
+                    System.err.println("Snapshot failed, will retry: " + e.getMessage());
+                }
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+        return bank;
+    }
+
+    /**
+     * Returns the files account histories move to once they outgrow the heap
+     * @return m_history, null to keep all history on the heap
+     */
+    HistoryStore getHistoryStore(){
+        return m_history;
+    }
+
+    /**
+     * Returns m_historyHeapLimit
+     * @return m_historyHeapLimit
+     */
+    public int getHistoryHeapLimit(){
+        return m_historyHeapLimit;
+    }
+
+    /**
+     * Sets how many transactions an account keeps on the heap, for accounts opened afterwards
+     * @param limit Number of transactions
+     */
+    public void setHistoryHeapLimit(int limit){
+        m_historyHeapLimit = limit;
+    }
+
+    /**
+     * Sets how many journal records trigger a background snapshot
+     * @param records Number of records
+     */
+    public void setCheckpointRecords(long records){
+        m_checkpointRecords = records;
     }
 
     /**
      * Acquires a random 5 digit User ID that is unique to the user
      * @return id
+     * @throws IllegalStateException if all User IDs are used
      */
     public int getNewUserID() {
-        int id;
-        Random rand = new Random();
-        boolean unique = true;
-
-        //Generates User ID until no repeats 
-        do {
-            /*
-            nextInt generates a number from 0 to 90000, 90000 exclusive
-            Since I need 5 digits, the min case where 0 is generated, 
-            id will be 0 + 10000 = 10000, max case would be 89999 + 10000 = 99999
-            */
-            id = rand.nextInt(90000) + 10000;
-             unique = true;
-
-            for (User user: m_users) {
-                if (id == user.getUserID()){
-                    unique = false;
-                    break;
-                }
-            }
-        } while (!unique);
+        return m_userIDs.next();
+    }
 
-        return id;
+    /**
+     * Takes a given User ID, such as one kept from another system, so it is never handed out
+     * @param userID    User ID
+     * @return          true if the ID was free
+     * @throws IllegalArgumentException if the ID is out of range
+     */
+    boolean reserveUserID(int userID){
+        return m_userIDs.reserve(userID);
+    }
+
+    /**
+     * Takes a given account number, such as one kept from another system, so it is never handed out
+     * @param accNum    Account number, such as 123-4567
+     * @return          true if the number was free
+     * @throws IllegalArgumentException if the number is out of range
+     */
+    boolean reserveAccNum(String accNum){
+        return m_accNums.reserve(Integer.parseInt(accNum.replace("-", "")));
     }
 
     /**
      * Acquires a random 7 digit account num that is unique to the account
      * @return id
+     * @throws IllegalStateException if all account numbers are used
      */
     public String getNewAccNum() {
-        String accNum;
-        Random rand = new Random();
-        boolean unique = true;
-        StringBuilder accNumStr;
-
-        //Generates account number until no repeats 
-        do {
-            accNum = String.valueOf(rand.nextInt(9000000) + 1000000);
-            accNumStr = new StringBuilder(accNum);
-            accNumStr.insert(3, "-");
-            accNum = accNumStr.toString();
-            unique = true;
-
-            for (Account account: m_accounts) {
-                if (accNum.equals(account.getAccNum())){
-                    unique = false;
-                    break;
-                }
-            }
-        } while (!unique);
-        
-        return accNum;
+        StringBuilder accNumStr = new StringBuilder(String.valueOf(m_accNums.next()));
+        accNumStr.insert(3, "-");
+        return accNumStr.toString();
     }
 
     /**
@@ -92,7 +298,95 @@ public class Bank {
      * @param newAccount
      */
     public void addAccount(Account newAccount){
-        m_accounts.add(newAccount);
+        m_accounts.put(newAccount.getAccNum(), newAccount);
+    }
+
+    /**
+     * Opens a new account for user
+     * @param user  Owner of the account
+     * @param type  Account type, such as Chequing
+     * @return      new Account
+     * @throws IllegalArgumentException if type is not an AccountType
+     * @throws IllegalStateException if all account numbers are used
+     */
+    public Account openAccount(User user, String type){
+        //Checked before an account number is taken for it
+        String name = AccountType.of(type).getName();
+        Account newAccount;
+        long seq = 0;
+        beginUpdate();
+        try {
+            newAccount = new Account(name, this);
+            if (m_journal != null){
+                m_journal.logOpenAccount(user.getUserID(), newAccount.getAccNum(), name);
+                //Interest starts from the time of opening
+                seq = m_journal.logAccrual(newAccount.getAccNum(), newAccount.getAccruedTo(), newAccount.getAccruedTo(), 0, 0);
+            }
+            addAccount(newAccount);
+            user.addAccount(newAccount);
+        } finally {
+            endUpdate();
+        }
+        awaitDurable(seq);
+        return newAccount;
+    }
+
+    /**
+     * Deletes an account from the bank and its owner, only if its balance is 0
+     * @param user      Owner of the account
+     * @param account   Account to delete
+     * @return          true if deleted, false if the balance is not 0
+     * @throws IllegalStateException if the account has already been deleted
+     */
+    public boolean deleteAccount(User user, Account account){
+        long seq = 0;
+        beginUpdate();
+        try {
+            synchronized (account){
+                if (account.isDeleted()){
+                    throw new IllegalStateException("Account " + account.getAccNum() + " has been deleted");
+                }
+                if (account.getAccBalance() != 0){
+                    return false;
+                }
+                if (m_journal != null){
+                    seq = m_journal.logDeleteAccount(user.getUserID(), account.getAccNum());
+                }
+                user.removeAccount(account);
+                m_accounts.remove(account.getAccNum());
+                account.markDeleted();
+                account.deleteHistory();
+            }
+        } finally {
+            endUpdate();
+        }
+        awaitDurable(seq);
+        return true;
+    }
+
+    /**
+     * Finds an account by its account number
+     * @param accNum Account number, such as 123-4567
+     * @return       Account or null if not found
+     */
+    public Account getAccount(String accNum){
+        return m_accounts.get(accNum);
+    }
+
+    /**
+     * Returns number of Users in the bank
+     * @return number of Users
+     */
+    public int getNumOfUsers(){
+        return m_users.size();
+    }
+
+    /**
+     * Returns number of Accounts in the bank
+     * @return number of Accounts
+     */
+    public int getNumOfAccounts(){
+        return m_accounts.size();
     }
 
     /**
@@ -111,31 +405,588 @@ public class Bank {
      * @return      new User
      */
     public User addUser(String fName, String lName, String pin) {
-        //Create new User and add to m_users
-        User newUser = new User(fName, lName, pin, this);
-        m_users.add(newUser);
+        return addUser(getNewUserID(), fName, lName, pin);
+    }
 
-        //Create new Account and add to m_accounts, and the new User
-        Account newAccount = new Account("Chequing", this);
-        m_accounts.add(newAccount);
-        newUser.addAccount(newAccount);
+    /**
+     * Adds a new User to the bank under an ID already taken for it
+     * @param userID    User ID, from getNewUserID()
+     * @param fName     First name
+     * @param lName     Last name
+     * @param pin       User pin
+     * @return          new User
+     */
+    User addUser(int userID, String fName, String lName, String pin) {
+        //Hashed before the update starts, as it is deliberately slow
+        byte hash[] = PinHasher.hash(pin);
+        beginUpdate();
+        try {
+            //Create new User and add to m_users
+            User newUser = new User(fName, lName, userID, hash, this);
+            if (m_journal != null){
+                m_journal.logUser(newUser.getUserID(), fName, lName, newUser.getPinHash());
+            }
+            m_users.put(newUser.getUserID(), newUser);
+
+            //Create new Account and add to m_accounts, and the new User; waits for both records to reach disk
+            openAccount(newUser, "Chequing");
 
-        return newUser;
+            return newUser;
+        } finally {
+            endUpdate();
+        }
     }
 
     /**
-     * 
+     * Looks up the User by ID and checks the PIN
+     * IDs locked out by too many failed logins are rejected without checking the PIN
+     * The attempt is counted as failed before the PIN is checked, so parallel guesses cannot all get past a lockout
      * @param userID User ID
      * @param pin    User PIN
-     * @return       User or null for non-matched
+     * @return       User or null for non-matched or locked out
      */
     public User login(int userID, String pin){
-        for (User user: m_users){
-            if ((user.getUserID() == userID) && user.validatePIN(pin)){
-                return user;
+        //Logins are slow enough to time every one
+        long start = System.nanoTime();
+        //Unknown IDs fail without a PIN to check, and are not throttled so guessing IDs cannot fill the throttle
+        User user = m_users.get(userID);
+        if (user == null){
+            m_metrics.record(Metrics.Op.LOGIN, start, false);
+            return null;
+        }
+        if (m_throttle.tryAttempt(userID) > 0){
+            m_metrics.recordLockedOut();
+            m_metrics.record(Metrics.Op.LOGIN, start, false);
+            return null;
+        }
+        if (!user.validatePIN(pin)){
+            m_metrics.record(Metrics.Op.LOGIN, start, false);
+            return null;
+        }
+        m_throttle.recordSuccess(userID);
+        m_metrics.record(Metrics.Op.LOGIN, start, true);
+
+        //Hashes from before salting, or with fewer iterations than now, are replaced while the PIN is at hand;
+        //a read only copy leaves that to its leader
+        if (!m_readOnly && PinHasher.needsRehash(user.getPinHash())){
+            rehashPIN(user, pin);
+        }
+        return user;
+    }
+
+    /**
+     * Returns how long a User ID is locked out after too many failed logins
+     * @param userID User ID
+     * @return       Milliseconds left, 0 if not locked out
+     */
+    public long getLockout(int userID){
+        return m_throttle.getLockout(userID);
+    }
+
+    /**
+     * Replaces a User's PIN hash with one made by the current PinHasher settings
+     * @param user  User
+     * @param pin   User's PIN, already verified
+     */
+    private void rehashPIN(User user, String pin){
+        byte hash[] = PinHasher.hash(pin);
+        long seq = 0;
+        beginUpdate();
+        try {
+            if (m_journal != null){
+                seq = m_journal.logPin(user.getUserID(), hash);
+            }
+            user.setPinHash(hash);
+        } finally {
+            endUpdate();
+        }
+        awaitDurable(seq);
+    }
+
+    /**
+     * Takes a snapshot and starts a new journal segment, then deletes the files the snapshot replaces
+     * Changes are paused only while balances and ledger sizes are copied, not while the file is written
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void checkpoint() throws IOException {
+        if (m_journal == null){
+            return;
+        }
+        ArrayList<Snapshot.UserState> states;
+        StandingOrders.Captured orders;
+        TransferOutbox.Captured outbox;
+        long segment;
+        m_updateLock.writeLock().lock();
+        try {
+            states = Snapshot.capture(m_users.values());
+            orders = getStandingOrders().capture();
+            outbox = getTransferOutbox().capture();
+            segment = m_journal.rotate();
+        } finally {
+            m_updateLock.writeLock().unlock();
+        }
+
+        Snapshot.write(m_dir, segment, states, orders, outbox);
+
+        //Older snapshots and segments are covered by the new snapshot
+        try (Stream<Path> files = Files.list(m_dir)){
+            for (Path file : (Iterable<Path>) files::iterator){
+                long journalNum = Snapshot.fileNumber(file, "journal-", ".log");
+                long snapshotNum = Snapshot.fileNumber(file, "snapshot-", ".dat");
+                if ((journalNum >= 0 && journalNum < segment) || (snapshotNum >= 0 && snapshotNum < segment)){
+                    Files.deleteIfExists(file);
+                }
             }
         }
+    }
+
+    /**
+     * Writes a snapshot for a replication follower, as snapshot-0.dat in dir, and returns the journal record it covers
+     * Changes are paused only while the Bank is captured, the same as checkpoint()
+     * @param dir   Directory to write the snapshot to
+     * @return      Sequence number of the last journal record included
+     * @throws IOException if the snapshot cannot be written
+     */
+    long writeReplicaSnapshot(Path dir) throws IOException {
+        ArrayList<Snapshot.UserState> states;
+        StandingOrders.Captured orders;
+        TransferOutbox.Captured outbox;
+        long seq;
+        m_updateLock.writeLock().lock();
+        try {
+            states = Snapshot.capture(m_users.values());
+            orders = getStandingOrders().capture();
+            outbox = getTransferOutbox().capture();
+            seq = m_journal.getAppendedSeq();
+        } finally {
+            m_updateLock.writeLock().unlock();
+        }
+        Snapshot.write(dir, 0, states, orders, outbox);
+        return seq;
+    }
 
-        return null;
+    /**
+     * Journals and applies a record copied from a replication leader
+     * The record is only appended, call syncReplicated() once the records at hand are applied
+     * @param payload   Encoded record, kept by the journal
+     * @throws IOException if the record is malformed
+     */
+    void applyReplicated(byte payload[]) throws IOException {
+        beginUpdate();
+        try {
+            m_journal.append(payload);
+            Journal.apply(payload, payload.length, this);
+        } finally {
+            endUpdate();
+        }
+    }
+
+    /**
+     * Forces records copied from a replication leader to disk
+     */
+    void syncReplicated(){
+        m_journal.sync();
+    }
+
+    /**
+     * Takes a final snapshot and closes the journal
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void close() throws IOException {
+        if (m_journal == null){
+            return;
+        }
+        m_checkpointer.shutdownNow();
+        getStandingOrders().stop();
+        checkpoint();
+        m_journal.close();
+        m_journal = null;
+    }
+
+    /**
+     * Returns the cache of rendered account summaries and listings, 16 MB unless its limit is changed
+     * @return m_summaryCache
+     */
+    public SummaryCache getSummaryCache(){
+        return m_summaryCache;
+    }
+
+    /**
+     * Returns the Bank's operation counters and latencies
+     * @return m_metrics
+     */
+    public Metrics getMetrics(){
+        return m_metrics;
+    }
+
+    /**
+     * Returns extra draws the User ID allocator has made to find a free ID
+     * @return count
+     */
+    public long getUserIDRetries(){
+        return m_userIDs.getRetries();
+    }
+
+    /**
+     * Returns extra draws the account number allocator has made to find a free number
+     * @return count
+     */
+    public long getAccNumRetries(){
+        return m_accNums.getRetries();
+    }
+
+    /**
+     * Returns the Bank's standing orders, whose scheduler is started by whoever serves the Bank
+     * @return m_orders
+     */
+    public synchronized StandingOrders getStandingOrders(){
+        if (m_orders == null){
+            m_orders = new StandingOrders(this);
+        }
+        return m_orders;
+    }
+
+    /**
+     * Returns the Bank's transfers to and from other Banks
+     * @return m_outbox
+     */
+    public synchronized TransferOutbox getTransferOutbox(){
+        if (m_outbox == null){
+            m_outbox = new TransferOutbox(this);
+        }
+        return m_outbox;
+    }
+
+    /**
+     * Returns the journal, null for a Bank kept only in memory
+     * @return m_journal
+     */
+    Journal getJournal(){
+        return m_journal;
+    }
+
+    /**
+     * Returns the directory of journal and snapshot files, null for a Bank kept only in memory
+     * @return m_dir
+     */
+    Path getDir(){
+        return m_dir;
+    }
+
+    /**
+     * Returns whether the Bank is a read only copy
+     * @return m_readOnly
+     */
+    public boolean isReadOnly(){
+        return m_readOnly;
+    }
+
+    /**
+     * Marks the Bank as a read only copy, or as writable again once it takes over
+     * A read only copy does not replace old PIN hashes at login, as that would write to its journal
+     * @param readOnly true while read only
+     */
+    public void setReadOnly(boolean readOnly){
+        m_readOnly = readOnly;
+    }
+
+    /**
+     * Finds a User by ID
+     * @param userID    User ID
+     * @return          User or null if not found
+     */
+    User getUser(int userID){
+        return m_users.get(userID);
+    }
+
+    /**
+     * Returns every User, for jobs that go over the whole Bank
+     * @return Live view of the Users
+     */
+    Collection<User> getUsers(){
+        return m_users.values();
+    }
+
+    /**
+     * Returns every account, for jobs that go over the whole Bank
+     * @return Live view of the accounts
+     */
+    Collection<Account> getAccounts(){
+        return m_accounts.values();
+    }
+
+    /**
+     * Runs task while no change to the Bank is in progress, the same pause a checkpoint takes
+     * Changes wait until task returns, so it should only copy what it needs
+     * @param task  Task to run
+     * @return      Result of task
+     */
+    <T> T runPaused(Supplier<T> task){
+        m_updateLock.writeLock().lock();
+        try {
+            return task.get();
+        } finally {
+            m_updateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Called before changing the Bank, so that a checkpoint does not capture half a change
+     * Must be called before taking any account's lock
+     */
+    void beginUpdate(){
+        m_updateLock.readLock().lock();
+    }
+
+    /**
+     * Called after changing the Bank
+     */
+    void endUpdate(){
+        m_updateLock.readLock().unlock();
+    }
+
+    /**
+     * Waits until a change's journal record is on disk, called once the change's locks are released
+     * @param seq Sequence number from the Journal's log method, 0 for none
+     */
+    void awaitDurable(long seq){
+        Journal journal = m_journal;
+        if (journal != null && seq > 0){
+            journal.awaitDurable(seq);
+        }
+    }
+
+    /**
+     * Waits until every journal record appended so far is on disk, for jobs that journal under many locks at once
+     */
+    void awaitJournal(){
+        Journal journal = m_journal;
+        if (journal != null){
+            journal.awaitDurable(journal.getAppendedSeq());
+        }
+    }
+
+    /**
+     * Restores a User from storage
+     * @param userID    User ID
+     * @param fName     First name
+     * @param lName     Last name
+     * @param pin       Hash of the User's PIN
+     */
+    void replayUser(int userID, String fName, String lName, byte pin[]){
+        m_userIDs.reserve(userID);
+        m_users.put(userID, new User(fName, lName, userID, pin, this));
+    }
+
+    /**
+     * Restores a changed PIN hash from storage
+     * @param userID    User ID
+     * @param pin       Hash of the User's PIN
+     * @throws IllegalStateException if the User is unknown
+     */
+    void replayPin(int userID, byte pin[]){
+        storedUser(userID).setPinHash(pin);
+    }
+
+    /**
+     * Restores an account from storage
+     * @param userID    Owner's User ID
+     * @param accNum    Account number
+     * @param type      Account type
+     * @throws IllegalStateException if the User is unknown
+     */
+    void replayOpenAccount(int userID, String accNum, String type){
+        User user = storedUser(userID);
+        m_accNums.reserve(Integer.parseInt(accNum.replace("-", "")));
+        Account account = new Account(type, accNum, this);
+        addAccount(account);
+        user.addAccount(account);
+    }
+
+    /**
+     * Restores an account deletion from storage
+     * @param userID    Owner's User ID
+     * @param accNum    Account number
+     * @throws IllegalStateException if the User or account is unknown
+     */
+    void replayDeleteAccount(int userID, String accNum){
+        User user = storedUser(userID);
+        Account account = storedAccount(accNum);
+        m_accounts.remove(accNum);
+        user.removeAccount(account);
+        synchronized (account){
+            account.markDeleted();
+        }
+        account.deleteHistory();
+    }
+
+    /**
+     * Restores a balance change that is not in the running totals from storage,
+     * such as a snapshot's balance or a credit journaled without its time
+     * @param accNum Account number
+     * @param amount Amount in cents, negative for debits
+     * @throws IllegalStateException if the account is unknown
+     */
+    void replayBalance(String accNum, long amount){
+        Account account = storedAccount(accNum);
+        synchronized (account){
+            account.applyBalance(amount);
+        }
+    }
+
+    /**
+     * Restores an account's running totals from storage, replacing those counted from its Transactions
+     * @param accNum    Account number
+     * @param stats     Running totals
+     * @throws IllegalStateException if the account is unknown
+     */
+    void replayStats(String accNum, AccountStats stats){
+        Account account = storedAccount(accNum);
+        synchronized (account){
+            account.applyStats(stats);
+        }
+    }
+
+    /**
+     * Restores a credit or debit made at a known time from storage, which counts towards the running totals
+     * @param accNum    Account number
+     * @param timestamp Time in milliseconds since epoch
+     * @param amount    Amount in cents, negative for debits
+     * @throws IllegalStateException if the account is unknown
+     */
+    void replayCredit(String accNum, long timestamp, long amount){
+        Account account = storedAccount(accNum);
+        synchronized (account){
+            account.applyCredit(timestamp, amount);
+        }
+    }
+
+    /**
+     * Restores a Transaction from storage
+     * @param accNum    Account number
+     * @param timestamp Time in milliseconds since epoch
+     * @param location  Location of transaction
+     * @param amount    Amount in cents
+     * @param memo      Memo, "" for none
+     * @param post      true if the balance changes by amount as well
+     * @throws IllegalStateException if the account is unknown
+     */
+    void replayTransaction(String accNum, long timestamp, String location, long amount, String memo, boolean post){
+        Account account = storedAccount(accNum);
+        synchronized (account){
+            if (post){
+                account.applyBalance(amount);
+            }
+            account.applyTransaction(timestamp, location, amount, memo);
+        }
+    }
+
+    /**
+     * Restores accrued interest from storage
+     * @param accNum    Account number
+     * @param timestamp Time of the interest Transaction in milliseconds since epoch
+     * @param accruedTo Time interest has been accrued up to
+     * @param amount    Interest in cents, 0 for none
+     * @param remainder Fraction of a cent carried to the next accrual
+     * @throws IllegalStateException if the account is unknown
+     */
+    void replayAccrual(String accNum, long timestamp, long accruedTo, long amount, long remainder){
+        Account account = storedAccount(accNum);
+        synchronized (account){
+            account.applyAccrual(timestamp, accruedTo, amount, remainder);
+        }
+    }
+
+    /**
+     * Restores a transfer sent to another Bank from storage, taking its money and adding its intent
+     * @param intent Intent
+     * @throws IllegalStateException if the source account is unknown
+     */
+    void replayTransferSend(TransferOutbox.Intent intent){
+        Account account = storedAccount(intent.srcAccNum);
+        synchronized (account){
+            account.applyTransferOut(intent);
+        }
+    }
+
+    /**
+     * Restores a transfer received from another Bank from storage, crediting it and recording its intent
+     * @param intent    Intent
+     * @param timestamp Time of the credit in milliseconds since epoch
+     * @throws IllegalStateException if the destination account is unknown
+     */
+    void replayTransferReceive(TransferOutbox.Intent intent, long timestamp){
+        Account account = storedAccount(intent.destAccNum);
+        synchronized (account){
+            account.applyTransferIn(intent, timestamp);
+        }
+    }
+
+    /**
+     * Restores a standing order from storage
+     * @param id            Order ID
+     * @param srcAccNum     Account number paid from
+     * @param destAccNum    Account number paid into
+     * @param amount        Amount in cents
+     * @param frequency     Frequency ordinal
+     * @param dayOfMonth    Day of month of a monthly order
+     * @param due           Epoch day it next runs
+     */
+    void replayOrderAdd(int id, String srcAccNum, String destAccNum, long amount, byte frequency, byte dayOfMonth, int due){
+        Account src = m_accounts.get(srcAccNum);
+        Account dest = m_accounts.get(destAccNum);
+        if (src != null && dest != null){
+            getStandingOrders().replayAdd(id, src, dest, amount, frequency, dayOfMonth, due);
+        }
+    }
+
+    /**
+     * Restores a transfer from storage
+     * @param srcAccNum     Source account number
+     * @param destAccNum    Destination account number
+     * @param timestamp     Time in milliseconds since epoch
+     * @param location      Location of transfer
+     * @param amount        Amount in cents
+     * @throws IllegalStateException if either account is unknown, or both are the same
+     */
+    void replayTransfer(String srcAccNum, String destAccNum, long timestamp, String location, long amount){
+        Account src = storedAccount(srcAccNum);
+        Account dest = storedAccount(destAccNum);
+        if (src == dest){
+            throw new IllegalStateException("Stored transfer from account " + srcAccNum + " to itself");
+        }
+        synchronized (src){
+            synchronized (dest){
+                Account.applyTransfer(src, dest, timestamp, location, amount);
+            }
+        }
+    }
+
+    /**
+     * Finds the User a stored record refers to
+     * @param userID    User ID
+     * @return          User
+     * @throws IllegalStateException if there is no such User, as the stored records do not match the Bank
+     */
+    private User storedUser(int userID){
+        User user = m_users.get(userID);
+        if (user == null){
+            throw new IllegalStateException("Stored record refers to unknown User " + userID);
+        }
+        return user;
+    }
+
+    /**
+     * Finds the account a stored record refers to
+     * @param accNum    Account number
+     * @return          Account
+     * @throws IllegalStateException if there is no such account, as the stored records do not match the Bank
+     */
+    private Account storedAccount(String accNum){
+        Account account = m_accounts.get(accNum);
+        if (account == null){
+            throw new IllegalStateException("Stored record refers to unknown account " + accNum);
+        }
+        return account;
     }
 }
@@ -0,0 +1,973 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks of the Bank, Account and User hot paths
+ * Runs like a JMH throughput benchmark: each benchmark gets warmup iterations that are thrown away,
+ * then measured iterations, each on freshly built state so ledgers and ID spaces do not drift between iterations
+ * Results can be written as JSON in the same layout JMH uses, so they can be compared between releases
+ * The JMH suite in jmh/ runs the same workloads through workload()
+ *
+ * Usage: java Bench [warmup=3] [iterations=5] [time=1000] [pbkdf2=10000] [filter=regex] [json=file]
+ * time is milliseconds per iteration, pbkdf2 sets the PinHasher iterations used by the login benchmark
+ */
+public class Bench {
+    /**
+     * Operations run between clock reads
+     */
+    private static final int BATCH = 64;
+
+    /**
+     * PIN of every benchmark User
+     */
+    private static final String PIN = "1234";
+
+    /**
+     * Results of every operation are added here, so the JIT cannot drop the work
+     */
+    private static volatile long m_sink;
+
+    /**
+     * Users of the codec benchmarks, built once as every iteration only reads them
+     */
+    private static ArrayList<Snapshot.UserState> m_codecStates;
+
+    /**
+     * Encoded size of the codec benchmark Users in bytes, by format
+     */
+    private static LinkedHashMap<String, Integer> m_codecSizes = new LinkedHashMap<String, Integer>();
+
+    /**
+     * Users of the codec benchmarks
+     */
+    private static final int CODEC_USERS = 1000;
+
+    /**
+     * Transactions of each account of the codec benchmarks
+     */
+    private static final int CODEC_TRANSACTIONS = 50;
+
+    /**
+     * A Bank of the login benchmark and the IDs of its Users
+     */
+    private static class LoginBank {
+        Bank bank;
+        int userIDs[];
+    }
+
+    /**
+     * Banks of the login benchmark by number of Users, built once as logging in only reads them
+     */
+    private static HashMap<String, LoginBank> m_loginBanks = new HashMap<String, LoginBank>();
+
+    /**
+     * Account of the statement benchmark, built once as rendering only reads it
+     */
+    private static Account m_statementAccount;
+
+    /**
+     * Postings of the money benchmark, and Transactions of the statement benchmark
+     */
+    private static final int POSTINGS = 1000000;
+
+    /**
+     * One operation under test
+     */
+    private interface Op {
+        long run();
+    }
+
+    /**
+     * Builds fresh state for an iteration and returns the operation to run on it
+     */
+    private interface Setup {
+        Op create(String param);
+    }
+
+    /**
+     * A benchmark and the values of its one parameter
+     * A parameter named threads sets how many threads run the operation at once, the operation must be thread safe
+     */
+    private static class Benchmark {
+        String name;
+        String paramName;
+        String params[];
+        int maxOps;
+        int opsPerCall = 1;
+        Setup setup;
+
+        Benchmark(String name, String paramName, String params[], int maxOps, Setup setup){
+            this.name = name;
+            this.paramName = paramName;
+            this.params = params;
+            this.maxOps = maxOps;
+            this.setup = setup;
+        }
+
+        /**
+         * Sets how many operations one call does, such as transfers in a batch, so scores count operations
+         * @param ops Operations per call
+         * @return    this
+         */
+        Benchmark perCall(int ops){
+            opsPerCall = ops;
+            return this;
+        }
+
+        /**
+         * Returns number of threads to run param with
+         * @param param Parameter value
+         * @return      threads
+         */
+        int threads(String param){
+            return "threads".equals(paramName) ? Integer.parseInt(param) : 1;
+        }
+    }
+
+    /**
+     * Measured throughput of one benchmark and parameter value
+     */
+    private static class Result {
+        String name;
+        String paramName;
+        String param;
+        int threads;
+        double scores[];
+
+        double mean(){
+            double sum = 0;
+            for (double score : scores){
+                sum += score;
+            }
+            return sum / scores.length;
+        }
+
+        double stdDev(){
+            if (scores.length < 2){
+                return 0;
+            }
+            double mean = mean();
+            double sum = 0;
+            for (double score : scores){
+                sum += (score - mean) * (score - mean);
+            }
+            return Math.sqrt(sum / (scores.length - 1));
+        }
+    }
+
+    private int m_warmup = 3;
+    private int m_iterations = 5;
+    private long m_iterationMillis = 1000;
+
+    /**
+     * Returns every benchmark
+     * @return benchmarks
+     */
+    private static List<Benchmark> benchmarks(){
+        ArrayList<Benchmark> list = new ArrayList<Benchmark>();
+
+        //Latency should stay flat from a thousand to a million Users, as login is one lookup and one PIN check
+        list.add(new Benchmark("Bank.login", "users", new String[]{ "1000", "100000", "1000000" }, Integer.MAX_VALUE, param -> {
+            LoginBank login = loginBank(param);
+            Bank bank = login.bank;
+            int userIDs[] = login.userIDs;
+            int next[] = { 0 };
+            return () -> bank.login(userIDs[next[0]++ % userIDs.length], PIN).getUserID();
+        }));
+
+        //The old check looked the digest up on every call, PinHasher keeps one per thread and hashes new PINs with PBKDF2
+        list.add(new Benchmark("PinHasher.verify.getInstance", "threads", new String[]{ "1", "8" }, Integer.MAX_VALUE, param -> {
+            byte stored[] = PinHasher.sha256(PIN);
+            return () -> {
+                try {
+                    return MessageDigest.isEqual(MessageDigest.getInstance("SHA-256").digest(PIN.getBytes()), stored) ? 1 : 0;
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        }));
+
+        list.add(new Benchmark("PinHasher.verify.sha256", "threads", new String[]{ "1", "8" }, Integer.MAX_VALUE, param -> {
+            byte stored[] = PinHasher.sha256(PIN);
+            return () -> PinHasher.verify(PIN, stored) ? 1 : 0;
+        }));
+
+        list.add(new Benchmark("PinHasher.verify.pbkdf2", "threads", new String[]{ "1", "8" }, Integer.MAX_VALUE, param -> {
+            byte stored[] = PinHasher.hash(PIN);
+            return () -> PinHasher.verify(PIN, stored) ? 1 : 0;
+        }));
+
+        //Each iteration is capped so the ID space fills by at most 1% while measured
+        list.add(new Benchmark("Bank.getNewUserID", "fill", new String[]{ "0.0", "0.5", "0.9" }, 9000, param -> {
+            Bank bank = new Bank("Bench", 6, 7);
+            fill(900000, Double.parseDouble(param), bank::getNewUserID);
+            return bank::getNewUserID;
+        }));
+
+        list.add(new Benchmark("Bank.getNewAccNum", "fill", new String[]{ "0.0", "0.5", "0.9" }, 9000, param -> {
+            Bank bank = new Bank("Bench", 5, 6);
+            fill(900000, Double.parseDouble(param), () -> bank.getNewAccNum().length());
+            return () -> bank.getNewAccNum().length();
+        }));
+
+        list.add(new Benchmark("Account.credit", null, new String[]{ "" }, Integer.MAX_VALUE, param -> {
+            Account account = new Account("Chequing", new Bank("Bench"));
+            return () -> {
+                account.credit(1);
+                return 1;
+            };
+        }));
+
+        list.add(new Benchmark("Account.debit", null, new String[]{ "" }, Integer.MAX_VALUE, param -> {
+            Account account = new Account("Chequing", new Bank("Bench"));
+            return () -> {
+                account.debit(1);
+                return 1;
+            };
+        }));
+
+        //A million postings to one balance, scored in postings; long cents against the double and BigDecimal they replaced
+        list.add(new Benchmark("Money.post", "type", new String[]{ "long", "double", "BigDecimal" }, Integer.MAX_VALUE, param -> {
+            //Same amounts every iteration, up to $500 either way
+            Random rand = new Random(42);
+            long cents[] = new long[POSTINGS];
+            for (int i = 0; i < POSTINGS; i++){
+                cents[i] = rand.nextInt(100001) - 50000;
+            }
+            switch (param){
+                case "long":
+                    return () -> {
+                        long balance = 0;
+                        for (long amount : cents){
+                            balance = Money.add(balance, amount);
+                        }
+                        return balance;
+                    };
+                case "double":
+                    double dollars[] = new double[POSTINGS];
+                    for (int i = 0; i < POSTINGS; i++){
+                        dollars[i] = cents[i] / 100.0;
+                    }
+                    return () -> {
+                        double balance = 0;
+                        for (double amount : dollars){
+                            balance += amount;
+                        }
+                        return (long) (balance * 100);
+                    };
+                case "BigDecimal":
+                    BigDecimal decimals[] = new BigDecimal[POSTINGS];
+                    for (int i = 0; i < POSTINGS; i++){
+                        decimals[i] = BigDecimal.valueOf(cents[i], 2);
+                    }
+                    return () -> {
+                        BigDecimal balance = BigDecimal.ZERO;
+                        for (BigDecimal amount : decimals){
+                            balance = balance.add(amount);
+                        }
+                        return balance.unscaledValue().longValue();
+                    };
+                default:
+                    throw new IllegalArgumentException("Unknown type: " + param);
+            }
+        }).perCall(POSTINGS));
+
+        //Credits journaled to a temporary directory, each forced on its own or with whatever other threads appended
+        list.add(new Benchmark("Journal.append.fsyncPerOp", "threads", new String[]{ "1", "8" }, Integer.MAX_VALUE, param -> {
+            Journal journal = tempJournal(Journal.SyncPolicy.FSYNC_PER_OP);
+            return () -> {
+                journal.awaitDurable(journal.logBalance(Journal.CREDIT, "123-4567", System.currentTimeMillis(), 1));
+                return 1;
+            };
+        }));
+
+        list.add(new Benchmark("Journal.append.groupCommit", "threads", new String[]{ "1", "8" }, Integer.MAX_VALUE, param -> {
+            Journal journal = tempJournal(Journal.SyncPolicy.GROUP_COMMIT);
+            return () -> {
+                journal.awaitDurable(journal.logBalance(Journal.CREDIT, "123-4567", System.currentTimeMillis(), 1));
+                return 1;
+            };
+        }));
+
+        //Cost added to each instrumented operation: a counter, and for 1 in 16 two clock reads and a histogram bucket
+        list.add(new Benchmark("Metrics.record", "threads", new String[]{ "1", "8" }, Integer.MAX_VALUE, param -> {
+            Metrics metrics = new Metrics();
+            return () -> {
+                metrics.record(Metrics.Op.DEPOSIT, Metrics.start(), true);
+                return 1;
+            };
+        }));
+
+        //Capped so the ledger of one iteration stays well within the heap
+        list.add(new Benchmark("Account.addTransaction", null, new String[]{ "" }, 2000000, param -> {
+            Account account = new Account("Chequing", new Bank("Bench"));
+            return () -> {
+                account.addTransaction("Bench", 1, "Memo");
+                return 1;
+            };
+        }));
+
+        list.add(new Benchmark("User.transfer", null, new String[]{ "" }, 1000000, param -> {
+            Bank bank = new Bank("Bench");
+            User user = new User("Bench", "User", bank.getNewUserID(), PinHasher.sha256(PIN), bank);
+            bank.openAccount(user, "Chequing");
+            bank.openAccount(user, "Savings");
+            Account chequing = user.getAccount(0);
+            Account savings = user.getAccount(1);
+            user.deposit(chequing, 100000);
+            int next[] = { 0 };
+            //Alternates direction so both balances stay positive
+            return () -> (next[0]++ & 1) == 0 ? (user.transfer(chequing, savings, 100) ? 1 : 0) : (user.transfer(savings, chequing, 100) ? 1 : 0);
+        }));
+
+        list.add(new Benchmark("Account.accSummary", "transactions", new String[]{ "100", "10000" }, Integer.MAX_VALUE, param -> {
+            Account account = new Account("Chequing", new Bank("Bench"));
+            int numOfTrans = Integer.parseInt(param);
+            for (int i = 0; i < numOfTrans; i++){
+                account.addTransaction("Store " + (i % 50), 1234, (i % 3 == 0) ? "Groceries" : "");
+            }
+            //Same renderer and buffer as accSummary, with the console swapped for a sink
+            Writer out = new BufferedWriter(Writer.nullWriter(), 1 << 16);
+            return () -> {
+                try {
+                    StatementRenderer renderer = new StatementRenderer(out, StatementRenderer.Format.TEXT);
+                    renderer.render(account, 0, numOfTrans);
+                    renderer.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return numOfTrans;
+            };
+        }));
+
+        //A million-Transaction statement rendered into a null sink, scored in Transactions; run JMH with -prof gc
+        //to see that allocation stays bounded however long the statement is
+        list.add(new Benchmark("StatementRenderer.render", "format", new String[]{ "TEXT", "CSV", "JSON" }, Integer.MAX_VALUE, param -> {
+            Account account = statementAccount();
+            StatementRenderer.Format format = StatementRenderer.Format.valueOf(param);
+            Writer out = new BufferedWriter(Writer.nullWriter(), 1 << 16);
+            return () -> {
+                try {
+                    StatementRenderer renderer = new StatementRenderer(out, format);
+                    renderer.render(account, 0, POSTINGS);
+                    renderer.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return POSTINGS;
+            };
+        }).perCall(POSTINGS));
+
+        //Batches of 16 two-leg transfers between random accounts of different Users, scored in transfers
+        list.add(new Benchmark("TransferEngine.execute", "threads", new String[]{ "1", "8", "32" }, 200000, param -> {
+            Bank bank = new Bank("Bench");
+            String accNums[] = new String[1024];
+            for (int i = 0; i < accNums.length; i++){
+                User user = new User("Bench", "User" + i, bank.getNewUserID(), PinHasher.sha256(PIN), bank);
+                Account account = bank.openAccount(user, "Chequing");
+                account.credit(1000000000L);
+                accNums[i] = account.getAccNum();
+            }
+            TransferEngine engine = new TransferEngine(bank);
+            return () -> {
+                ThreadLocalRandom rand = ThreadLocalRandom.current();
+                ArrayList<TransferEngine.Transfer> batch = new ArrayList<TransferEngine.Transfer>(16);
+                for (int i = 0; i < 16; i++){
+                    //Three different accounts, a to b to c
+                    int a = rand.nextInt(accNums.length);
+                    int b = (a + 1 + rand.nextInt(accNums.length - 1)) % accNums.length;
+                    int c;
+                    do {
+                        c = rand.nextInt(accNums.length);
+                    } while (c == a || c == b);
+                    batch.add(new TransferEngine.Transfer().leg(accNums[a], accNums[b], 100).leg(accNums[b], accNums[c], 50));
+                }
+                return engine.execute(batch, "Bench").length;
+            };
+        }).perCall(16));
+
+        //Each call encodes every codec User to bytes, scored in Users; java mirrors the objects as Serializable classes
+        list.add(new Benchmark("BinaryCodec.encode", "format", new String[]{ "binary", "java", "json" }, Integer.MAX_VALUE, param -> {
+            ArrayList<Snapshot.UserState> states = codecStates();
+            Op op = () -> encode(states, param).length;
+            m_codecSizes.put(param, (int) op.run());
+            return op;
+        }).perCall(CODEC_USERS));
+
+        //Each call decodes every codec User, scored in Users; the repo has no JSON parser to compare against
+        list.add(new Benchmark("BinaryCodec.decode", "format", new String[]{ "binary", "java" }, Integer.MAX_VALUE, param -> {
+            byte bytes[] = encode(codecStates(), param);
+            return () -> decode(bytes, param);
+        }).perCall(CODEC_USERS));
+
+        //Batches of 64 deposits to random Users, submitted together and scored in deposits
+        list.add(new Benchmark("ShardedBank.deposit", "shards", new String[]{ "1", "2", "4", "8" }, 2000000, param -> {
+            ShardedBank bank = new ShardedBank("Bench", Integer.parseInt(param));
+            byte pin[] = PinHasher.sha256(PIN);
+            int userIDs[] = new int[4096];
+            for (int i = 0; i < userIDs.length; i++){
+                userIDs[i] = bank.getNewUserID();
+                Bank shard = bank.getShard(bank.shardOf(userIDs[i]));
+                shard.replayUser(userIDs[i], "Bench", "User" + i, pin);
+                shard.replayOpenAccount(userIDs[i], shard.getNewAccNum(), "Chequing");
+            }
+            CompletableFuture<?> batch[] = new CompletableFuture<?>[64];
+            return () -> {
+                ThreadLocalRandom rand = ThreadLocalRandom.current();
+                for (int i = 0; i < batch.length; i++){
+                    batch[i] = bank.deposit(userIDs[rand.nextInt(userIDs.length)], 0, 1);
+                }
+                CompletableFuture.allOf(batch).join();
+                return batch.length;
+            };
+        }).perCall(64));
+
+        return list;
+    }
+
+    /**
+     * Builds fresh state for one benchmark and parameter value and returns its operation
+     * This is how the JMH suite in jmh/ reaches the workloads, as JMH benchmarks cannot be in the default package
+     * and classes in other packages cannot name the ones here
+     * @param name  Benchmark name, such as Bank.login
+     * @param param Parameter value, such as 1000
+     * @return      Operation, returning a value that must be consumed
+     * @throws IllegalArgumentException for an unknown name
+     */
+    public static LongSupplier workload(String name, String param){
+        for (Benchmark bench : benchmarks()){
+            if (bench.name.equals(name)){
+                Op op = bench.setup.create(param);
+                return op::run;
+            }
+        }
+        throw new IllegalArgumentException("Unknown benchmark: " + name);
+    }
+
+    /**
+     * Builds the Bank of the login benchmark for a number of Users
+     * @param users Number of Users
+     * @return      Bank and its User IDs
+     */
+    private static synchronized LoginBank loginBank(String users){
+        LoginBank login = m_loginBanks.get(users);
+        if (login == null){
+            login = new LoginBank();
+            //7 digit User IDs, room for a million Users
+            login.bank = new Bank("Bench", 7, 7);
+            login.userIDs = new int[Integer.parseInt(users)];
+            //Every User shares one hash, hashing each PIN separately would take hours
+            byte pin[] = PinHasher.hash(PIN);
+            for (int i = 0; i < login.userIDs.length; i++){
+                login.userIDs[i] = login.bank.getNewUserID();
+                login.bank.replayUser(login.userIDs[i], "Bench", "User" + i, pin.clone());
+            }
+            m_loginBanks.put(users, login);
+        }
+        return login;
+    }
+
+    /**
+     * Builds the account of the statement benchmark
+     * @return Account with POSTINGS Transactions
+     */
+    private static synchronized Account statementAccount(){
+        if (m_statementAccount == null){
+            m_statementAccount = new Account("Chequing", new Bank("Bench"));
+            for (int i = 0; i < POSTINGS; i++){
+                m_statementAccount.addTransaction("Store " + (i % 50), 1234, (i % 3 == 0) ? "Groceries" : "");
+            }
+        }
+        return m_statementAccount;
+    }
+
+    /**
+     * Opens a Journal in a new temporary directory, closed and deleted when the JVM exits
+     * @param policy    When records are forced to disk
+     * @return          Journal
+     */
+    private static Journal tempJournal(Journal.SyncPolicy policy){
+        try {
+            Path dir = Files.createTempDirectory("bench-journal");
+            Journal journal = new Journal(dir, 0, policy);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                journal.close();
+                try {
+                    Files.deleteIfExists(Journal.segmentPath(dir, 0));
+                    Files.deleteIfExists(dir);
+                } catch (IOException e) {
+                    //Left for the OS to clean up
+                }
+            }));
+            return journal;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Builds the Users of the codec benchmarks: two accounts each, with a mix of ATM, branch and transfer Transactions
+     * @return Captured state of the Users
+     */
+    private static synchronized ArrayList<Snapshot.UserState> codecStates(){
+        if (m_codecStates != null){
+            return m_codecStates;
+        }
+        Bank bank = new Bank("Bench");
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        byte pin[] = PinHasher.sha256(PIN);
+        ArrayList<User> users = new ArrayList<User>(CODEC_USERS);
+        for (int u = 0; u < CODEC_USERS; u++){
+            int userID = bank.getNewUserID();
+            bank.replayUser(userID, "Bench", "User" + u, pin.clone());
+            User user = bank.getUser(userID);
+            String chequing = bank.getNewAccNum();
+            String savings = bank.getNewAccNum();
+            bank.replayOpenAccount(userID, chequing, "Chequing");
+            bank.replayOpenAccount(userID, savings, "Savings");
+            long timestamp = System.currentTimeMillis() - 365L * 24 * 60 * 60 * 1000;
+            for (int t = 0; t < CODEC_TRANSACTIONS; t++){
+                timestamp += rand.nextLong(60000, 7L * 24 * 60 * 60 * 1000);
+                long amount = rand.nextLong(1, 50000);
+                switch (rand.nextInt(3)){
+                    case 0:
+                        bank.replayTransaction(chequing, timestamp, "ATM", amount, "Deposit", true);
+                        break;
+                    case 1:
+                        bank.replayTransaction(chequing, timestamp, "Branch", -amount, "Withdrawal", false);
+                        break;
+                    default:
+                        bank.replayTransfer(chequing, savings, timestamp, "Online", amount);
+                }
+            }
+            users.add(user);
+        }
+        m_codecStates = Snapshot.capture(users);
+        return m_codecStates;
+    }
+
+    /**
+     * Encodes Users in a format
+     * @param states    Captured state of the Users
+     * @param format    binary, java or json
+     * @return          Encoded bytes
+     */
+    private static byte[] encode(List<Snapshot.UserState> states, String format){
+        try {
+            switch (format){
+                case "binary":
+                    BinaryCodec.Writer writer = new BinaryCodec.Writer();
+                    writer.writeHeader();
+                    writer.writeVarLong(states.size());
+                    for (Snapshot.UserState state : states){
+                        writer.writeUser(state);
+                    }
+                    return writer.toByteArray();
+                case "java":
+                    ArrayList<SerialUser> users = new ArrayList<SerialUser>(states.size());
+                    for (Snapshot.UserState state : states){
+                        users.add(new SerialUser(state));
+                    }
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (ObjectOutputStream out = new ObjectOutputStream(bytes)){
+                        out.writeObject(users);
+                    }
+                    return bytes.toByteArray();
+                case "json":
+                    return toJson(states).getBytes(StandardCharsets.UTF_8);
+                default:
+                    throw new IllegalArgumentException("Unknown format: " + format);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodes Users encoded by encode(), touching every field
+     * @param bytes     Encoded bytes
+     * @param format    binary or java
+     * @return          Sum of the Transaction amounts, so the work cannot be dropped
+     */
+    private static long decode(byte bytes[], String format){
+        long sum[] = { 0 };
+        try {
+            if ("binary".equals(format)){
+                BinaryCodec.Reader reader = new BinaryCodec.Reader(ByteBuffer.wrap(bytes));
+                reader.readHeader();
+                long numOfUsers = reader.readVarLong();
+                BinaryCodec.Handler handler = new BinaryCodec.Handler(){
+                    @Override
+                    public void user(int userID, String fName, String lName, byte pin[]){
+                        sum[0] += userID + pin.length;
+                    }
+
+                    @Override
+                    public void account(int userID, String accNum, String type, long balance, long accruedTo, long interestRemainder){
+                        sum[0] += balance + accNum.length();
+                    }
+
+                    @Override
+                    public void transaction(String accNum, long timestamp, String location, long amount, String memo){
+                        sum[0] += timestamp + amount;
+                    }
+
+                    @Override
+                    public void stats(String accNum, AccountStats stats){
+                        sum[0] += stats.getAllTime(null).getCount();
+                    }
+                };
+                for (long u = 0; u < numOfUsers; u++){
+                    reader.readUser(handler);
+                }
+                return sum[0];
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))){
+                for (Object obj : (List<?>) in.readObject()){
+                    SerialUser user = (SerialUser) obj;
+                    sum[0] += user.userID + user.pin.length;
+                    for (SerialAccount account : user.accounts){
+                        sum[0] += account.balance + account.accNum.length();
+                        for (SerialTransaction trans : account.transactions){
+                            sum[0] += trans.timestamp + trans.amount;
+                        }
+                    }
+                }
+                return sum[0];
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes Users as a JSON array, the layout a JSON library would give the same fields
+     * @param states    Captured state of the Users
+     * @return          JSON
+     */
+    private static String toJson(List<Snapshot.UserState> states){
+        StringBuilder json = new StringBuilder(1 << 16);
+        json.append('[');
+        for (int u = 0; u < states.size(); u++){
+            User user = states.get(u).user;
+            json.append((u > 0) ? ",{" : "{").append("\"userID\":").append(user.getUserID()).append(",\"firstName\":");
+            StatementRenderer.appendJsonString(json, user.getFirstName());
+            json.append(",\"lastName\":");
+            StatementRenderer.appendJsonString(json, user.getLastName());
+            json.append(",\"pinHash\":\"").append(Base64.getEncoder().encodeToString(user.getPinHash())).append("\",\"accounts\":[");
+            List<Snapshot.AccountState> accounts = states.get(u).accounts;
+            for (int a = 0; a < accounts.size(); a++){
+                Snapshot.AccountState accState = accounts.get(a);
+                json.append((a > 0) ? ",{" : "{").append("\"accNum\":");
+                StatementRenderer.appendJsonString(json, accState.account.getAccNum());
+                json.append(",\"type\":");
+                StatementRenderer.appendJsonString(json, accState.account.getAccType());
+                json.append(",\"balance\":").append(accState.balance).append(",\"accruedTo\":").append(accState.accruedTo)
+                    .append(",\"interestRemainder\":").append(accState.interestRemainder).append(",\"transactions\":[");
+                for (int t = 0; t < accState.numOfTrans; t++){
+                    Transaction trans = accState.account.getTransaction(t);
+                    json.append((t > 0) ? ",{" : "{").append("\"timestamp\":").append(trans.getDate().getTime()).append(",\"location\":");
+                    StatementRenderer.appendJsonString(json, trans.getLocation());
+                    json.append(",\"amount\":").append(trans.getAmount()).append(",\"memo\":");
+                    StatementRenderer.appendJsonString(json, trans.getMemo());
+                    json.append('}');
+                }
+                json.append("]}");
+            }
+            json.append("]}");
+        }
+        return json.append(']').toString();
+    }
+
+    /**
+     * User, Account and Transaction as Serializable classes, for comparing with Java serialization
+     */
+    private static class SerialUser implements Serializable {
+        private static final long serialVersionUID = 1L;
+        int userID;
+        String firstName;
+        String lastName;
+        byte pin[];
+        ArrayList<SerialAccount> accounts = new ArrayList<SerialAccount>();
+
+        SerialUser(Snapshot.UserState state){
+            userID = state.user.getUserID();
+            firstName = state.user.getFirstName();
+            lastName = state.user.getLastName();
+            pin = state.user.getPinHash();
+            for (Snapshot.AccountState accState : state.accounts){
+                accounts.add(new SerialAccount(accState));
+            }
+        }
+    }
+
+    private static class SerialAccount implements Serializable {
+        private static final long serialVersionUID = 1L;
+        String accNum;
+        String type;
+        long balance;
+        long accruedTo;
+        long interestRemainder;
+        ArrayList<SerialTransaction> transactions = new ArrayList<SerialTransaction>();
+
+        SerialAccount(Snapshot.AccountState accState){
+            accNum = accState.account.getAccNum();
+            type = accState.account.getAccType();
+            balance = accState.balance;
+            accruedTo = accState.accruedTo;
+            interestRemainder = accState.interestRemainder;
+            for (int t = 0; t < accState.numOfTrans; t++){
+                transactions.add(new SerialTransaction(accState.account.getTransaction(t)));
+            }
+        }
+    }
+
+    private static class SerialTransaction implements Serializable {
+        private static final long serialVersionUID = 1L;
+        long timestamp;
+        String location;
+        long amount;
+        String memo;
+
+        SerialTransaction(Transaction trans){
+            timestamp = trans.getDate().getTime();
+            location = trans.getLocation();
+            amount = trans.getAmount();
+            memo = trans.getMemo();
+        }
+    }
+
+    /**
+     * Takes IDs until a fraction of the ID space is used
+     * @param size      Size of the ID space
+     * @param fraction  Fraction to fill
+     * @param next      Takes one ID
+     */
+    private static void fill(int size, double fraction, Op next){
+        long count = (long) (size * fraction);
+        for (long i = 0; i < count; i++){
+            next.run();
+        }
+    }
+
+    /**
+     * Runs one benchmark with one parameter value
+     * @param bench Benchmark
+     * @param param Parameter value
+     * @return      Result
+     */
+    private Result run(Benchmark bench, String param){
+        Result result = new Result();
+        result.name = bench.name;
+        result.paramName = bench.paramName;
+        result.param = param;
+        result.threads = bench.threads(param);
+        result.scores = new double[m_iterations];
+
+        for (int i = 0; i < m_warmup + m_iterations; i++){
+            Op op = bench.setup.create(param);
+            double score = measure(op, bench.maxOps, result.threads) * bench.opsPerCall;
+            if (i < m_warmup){
+                System.out.printf(Locale.ROOT, "  warmup %d: %,.1f ops/s%n", i + 1, score);
+            } else {
+                System.out.printf(Locale.ROOT, "  iteration %d: %,.1f ops/s%n", i - m_warmup + 1, score);
+                result.scores[i - m_warmup] = score;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs op on every thread until the iteration time is up or maxOps have run between them
+     * @param op        Operation
+     * @param maxOps    Most operations to run
+     * @param threads   Number of threads
+     * @return          Calls per second, over all threads
+     */
+    private double measure(Op op, int maxOps, int threads){
+        long start = System.nanoTime();
+        long deadline = start + m_iterationMillis * 1000000L;
+        if (threads == 1){
+            long ops = loop(op, maxOps, deadline);
+            return ops * 1e9 / (System.nanoTime() - start);
+        }
+
+        long counts[] = new long[threads];
+        Thread workers[] = new Thread[threads];
+        for (int t = 0; t < threads; t++){
+            final int index = t;
+            workers[t] = new Thread(() -> counts[index] = loop(op, maxOps / threads, deadline));
+            workers[t].start();
+        }
+        long ops = 0;
+        for (int t = 0; t < threads; t++){
+            try {
+                workers[t].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ops += counts[t];
+        }
+        return ops * 1e9 / (System.nanoTime() - start);
+    }
+
+    /**
+     * Runs op until deadline or maxOps have run
+     * @param op        Operation
+     * @param maxOps    Most operations to run
+     * @param deadline  System.nanoTime() to stop at
+     * @return          Operations run
+     */
+    private static long loop(Op op, int maxOps, long deadline){
+        long sink = 0;
+        long ops = 0;
+        do {
+            int batch = (int) Math.min(BATCH, maxOps - ops);
+            for (int i = 0; i < batch; i++){
+                sink += op.run();
+            }
+            ops += batch;
+        } while (System.nanoTime() < deadline && ops < maxOps);
+        m_sink += sink;
+        return ops;
+    }
+
+    /**
+     * Writes results in the JSON layout of JMH
+     * scoreError is the standard deviation of the iterations, not a confidence interval
+     * @param results   Results
+     * @param file      File to write
+     * @throws IOException if the file cannot be written
+     */
+    private void writeJson(List<Result> results, String file) throws IOException {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++){
+            Result result = results.get(i);
+            json.append("    {\n");
+            json.append("        \"benchmark\" : \"").append(result.name).append("\",\n");
+            json.append("        \"mode\" : \"thrpt\",\n");
+            json.append("        \"threads\" : ").append(result.threads).append(",\n");
+            json.append("        \"warmupIterations\" : ").append(m_warmup).append(",\n");
+            json.append("        \"measurementIterations\" : ").append(m_iterations).append(",\n");
+            json.append("        \"measurementTime\" : \"").append(m_iterationMillis).append(" ms\",\n");
+            if (result.paramName != null){
+                json.append("        \"params\" : {\n");
+                json.append("            \"").append(result.paramName).append("\" : \"").append(result.param).append("\"\n");
+                json.append("        },\n");
+            }
+            json.append("        \"primaryMetric\" : {\n");
+            json.append("            \"score\" : ").append(format(result.mean())).append(",\n");
+            json.append("            \"scoreError\" : ").append(format(result.stdDev())).append(",\n");
+            json.append("            \"scoreUnit\" : \"ops/s\",\n");
+            json.append("            \"rawData\" : [\n                [\n");
+            for (int j = 0; j < result.scores.length; j++){
+                json.append("                    ").append(format(result.scores[j]));
+                json.append((j < result.scores.length - 1) ? ",\n" : "\n");
+            }
+            json.append("                ]\n            ]\n        }\n");
+            json.append((i < results.size() - 1) ? "    },\n" : "    }\n");
+        }
+        json.append("]\n");
+        Files.write(Paths.get(file), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Formats a score for JSON
+     * @param value Score
+     * @return      Text
+     */
+    private static String format(double value){
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Bench bench = new Bench();
+        Pattern filter = null;
+        String json = null;
+        for (String arg : args){
+            String pair[] = arg.split("=", 2);
+            switch (pair[0]){
+                case "warmup":
+                    bench.m_warmup = Integer.parseInt(pair[1]);
+                    break;
+                case "iterations":
+                    bench.m_iterations = Integer.parseInt(pair[1]);
+                    break;
+                case "time":
+                    bench.m_iterationMillis = Long.parseLong(pair[1]);
+                    break;
+                case "pbkdf2":
+                    PinHasher.setIterations(Integer.parseInt(pair[1]));
+                    break;
+                case "filter":
+                    filter = Pattern.compile(pair[1]);
+                    break;
+                case "json":
+                    json = pair[1];
+                    break;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    System.exit(1);
+            }
+        }
+
+        ArrayList<Result> results = new ArrayList<Result>();
+        for (Benchmark benchmark : benchmarks()){
+            if (filter != null && !filter.matcher(benchmark.name).find()){
+                continue;
+            }
+            for (String param : benchmark.params){
+                String label = benchmark.name + ((benchmark.paramName != null) ? " " + benchmark.paramName + "=" + param : "");
+                System.out.println(label);
+                results.add(bench.run(benchmark, param));
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-40s %18s %14s%n", "Benchmark", "Score ops/s", "Std dev");
+        for (Result result : results){
+            String label = result.name + ((result.paramName != null) ? " " + result.paramName + "=" + result.param : "");
+            System.out.printf(Locale.ROOT, "%-40s %,18.1f %,14.1f%n", label, result.mean(), result.stdDev());
+        }
+        if (!m_codecSizes.isEmpty()){
+            System.out.println();
+            System.out.printf("Encoded size of %d Users with 2 accounts and %d Transactions each%n", CODEC_USERS, CODEC_TRANSACTIONS);
+            for (Map.Entry<String, Integer> size : m_codecSizes.entrySet()){
+                System.out.printf(Locale.ROOT, "%-40s %,18d bytes%n", size.getKey(), size.getValue());
+            }
+        }
+        if (json != null){
+            bench.writeJson(results, json);
+            System.out.println("Results written to " + json);
+        }
+    }
+}
@@ -0,0 +1,685 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compact binary format for Users, Accounts and Transactions, shared by snapshots and anything else that stores them
+ * Whole numbers are varints, so small amounts and IDs take one or two bytes; signed ones are zigzag encoded first
+ * Transaction timestamps are written as the difference from the account's previous Transaction
+ * Account types, locations and memos are dictionary encoded: written once, then referred to by number
+ * Account numbers such as 123-4567 are packed into an int
+ *
+ * A Writer appends to a buffer, handed to an OutputStream as it fills; a Reader decodes straight from a ByteBuffer,
+ * or from a file mapped a window at a time, and hands fields to a Handler without building a Transaction per record
+ * A Writer and the Reader of what it wrote must see the same Strings in the same order, so each encodes one stream
+ *
+ * Layout, after the version byte; version 1 has no Stats:
+ *   User        [varint ID][string first name][string last name][varint length][PIN hash][varint accounts][Account...]
+ *   Account     [varint packed number][dict type][zigzag balance][varint accrued to][zigzag remainder]
+ *               [varint transactions][Transaction...][Stats]
+ *   Transaction [zigzag timestamp delta][dict location][zigzag amount][dict memo]
+ *   Stats       [Totals all time][varint days]([zigzag epoch day][Totals])...[varint months]([varint month key][Totals])...
+ *   Totals      ([varint count], then if not 0 [zigzag sum][zigzag min][zigzag max]) for each AccountStats.Category
+ *   string      [varint length][UTF-8]
+ *   dict        [varint 0][string] the first time, [varint number + 1] afterwards
+ */
+public class BinaryCodec {
+    /**
+     * Format version, written first by writeHeader
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Receives what a Reader decodes
+     */
+    public interface Handler {
+        /**
+         * A User, before their accounts
+         * @param userID    User ID
+         * @param fName     First name
+         * @param lName     Last name
+         * @param pin       PIN hash
+         */
+        void user(int userID, String fName, String lName, byte pin[]);
+
+        /**
+         * An account, before its Transactions
+         * @param userID            Owner's User ID
+         * @param accNum            Account number
+         * @param type              Account type
+         * @param balance           Balance in cents
+         * @param accruedTo         Time interest has been accrued up to
+         * @param interestRemainder Fraction of a cent carried to the next accrual
+         */
+        void account(int userID, String accNum, String type, long balance, long accruedTo, long interestRemainder);
+
+        /**
+         * A Transaction of the last account
+         * @param accNum    Account number
+         * @param timestamp Time in milliseconds since epoch
+         * @param location  Location
+         * @param amount    Amount in cents
+         * @param memo      Memo, "" for none
+         */
+        void transaction(String accNum, long timestamp, String location, long amount, String memo);
+
+        /**
+         * Running totals of the last account, after its Transactions; not called for version 1
+         * @param accNum    Account number
+         * @param stats     Running totals
+         */
+        void stats(String accNum, AccountStats stats);
+    }
+
+    /**
+     * Private constructor as no instances of BinaryCodec should be created
+     * All methods will be static/class level
+     */
+    private BinaryCodec(){};
+
+    /**
+     * Packs an account number into an int
+     * @param accNum    Account number, digits with a dash after the 3rd, such as 123-4567
+     * @return          The digits as a number
+     * @throws IllegalArgumentException if accNum is not of that form, has more than 9 digits or starts with 0
+     */
+    public static int packAccNum(String accNum){
+        if (accNum.length() < 5 || accNum.length() > 10 || accNum.charAt(3) != '-' || accNum.charAt(0) == '0'){
+            throw new IllegalArgumentException("Cannot pack account number: " + accNum);
+        }
+        int packed = 0;
+        for (int i = 0; i < accNum.length(); i++){
+            char c = accNum.charAt(i);
+            if (i == 3){
+                continue;
+            }
+            if (c < '0' || c > '9'){
+                throw new IllegalArgumentException("Cannot pack account number: " + accNum);
+            }
+            packed = packed * 10 + (c - '0');
+        }
+        return packed;
+    }
+
+    /**
+     * Unpacks an account number packed by packAccNum
+     * @param packed    Packed number
+     * @return          Account number with the dash after the 3rd digit
+     */
+    public static String unpackAccNum(int packed){
+        String digits = Integer.toString(packed);
+        return digits.substring(0, 3) + '-' + digits.substring(3);
+    }
+
+    /**
+     * Encodes into a growing buffer, optionally handed to an OutputStream whenever it fills
+     * Not thread safe
+     */
+    public static class Writer {
+        /**
+         * Bytes held before they are handed to the OutputStream
+         */
+        private static final int BUFFER = 1 << 16;
+
+        /**
+         * Number of Transactions copied out of an account at a time
+         */
+        private static final int BLOCK = 256;
+
+        private byte m_buf[];
+        private int m_size;
+
+        /**
+         * Where full buffers go, null to keep everything in memory
+         */
+        private OutputStream m_out;
+
+        /**
+         * Numbers of dictionary Strings written so far
+         */
+        private HashMap<String, Integer> m_dict;
+
+        /**
+         * Timestamp of the previous Transaction of the account being written
+         */
+        private long m_lastTimestamp;
+
+        /**
+         * Block of Transactions copied out of the account being written, allocated with the first account
+         */
+        private long m_timestamps[];
+        private long m_amounts[];
+        private String m_locations[];
+        private String m_memos[];
+
+        /**
+         * Constructor, keeps everything written in memory until toByteArray()
+         */
+        public Writer(){
+            this(null);
+        }
+
+        /**
+         * Constructor, hands what is written to out whenever the buffer fills, and on flush()
+         * @param out Output, null to keep everything in memory
+         */
+        public Writer(OutputStream out){
+            m_out = out;
+            m_buf = new byte[(out != null) ? BUFFER : 256];
+            m_dict = new HashMap<String, Integer>();
+        }
+
+        /**
+         * Writes the format version, which a Reader checks with readHeader()
+         * @throws IOException if the output fails
+         */
+        public void writeHeader() throws IOException {
+            writeVarLong(VERSION);
+        }
+
+        /**
+         * Writes a User, their accounts and every Transaction as captured
+         * @param userState State from Snapshot.capture
+         * @throws IOException if the output fails
+         */
+        public void writeUser(Snapshot.UserState userState) throws IOException {
+            User user = userState.user;
+            byte pin[] = user.getPinHash();
+            writeVarLong(user.getUserID());
+            writeString(user.getFirstName());
+            writeString(user.getLastName());
+            writeVarLong(pin.length);
+            writeBytes(pin, 0, pin.length);
+            writeVarLong(userState.accounts.size());
+            for (Snapshot.AccountState accState : userState.accounts){
+                writeAccount(accState);
+            }
+        }
+
+        /**
+         * Writes an account and every Transaction as captured
+         * @param accState State from Snapshot.capture
+         * @throws IOException if the output fails
+         */
+        public void writeAccount(Snapshot.AccountState accState) throws IOException {
+            Account account = accState.account;
+            writeVarLong(packAccNum(account.getAccNum()));
+            writeDict(account.getAccType());
+            writeSignedVarLong(accState.balance);
+            writeVarLong(accState.accruedTo);
+            writeSignedVarLong(accState.interestRemainder);
+            writeVarLong(accState.numOfTrans);
+            m_lastTimestamp = 0;
+            if (m_timestamps == null){
+                m_timestamps = new long[BLOCK];
+                m_amounts = new long[BLOCK];
+                m_locations = new String[BLOCK];
+                m_memos = new String[BLOCK];
+            }
+            for (int start = 0; start < accState.numOfTrans; start += BLOCK){
+                int count = Math.min(BLOCK, accState.numOfTrans - start);
+                //Copied under the account's lock, encoded outside of it
+                account.copyTransactions(start, count, m_timestamps, m_amounts, m_locations, m_memos);
+                for (int i = 0; i < count; i++){
+                    writeTransaction(m_timestamps[i], m_locations[i], m_amounts[i], m_memos[i]);
+                }
+            }
+            accState.stats.write(this);
+        }
+
+        /**
+         * Writes a Transaction, its timestamp relative to the previous one written
+         * @param trans Transaction
+         * @throws IOException if the output fails
+         */
+        public void writeTransaction(Transaction trans) throws IOException {
+            writeTransaction(trans.getDate().getTime(), trans.getLocation(), trans.getAmount(), trans.getMemo());
+        }
+
+        /**
+         * Writes a Transaction's fields, its timestamp relative to the previous one written
+         * @param timestamp Time in milliseconds since epoch
+         * @param location  Location
+         * @param amount    Amount in cents
+         * @param memo      Memo, "" for none
+         * @throws IOException if the output fails
+         */
+        public void writeTransaction(long timestamp, String location, long amount, String memo) throws IOException {
+            writeSignedVarLong(timestamp - m_lastTimestamp);
+            m_lastTimestamp = timestamp;
+            writeDict(location);
+            writeSignedVarLong(amount);
+            writeDict(memo);
+        }
+
+        /**
+         * Writes a fixed 4 byte int, big endian, such as a file's magic number
+         * @param value Value
+         * @throws IOException if the output fails
+         */
+        public void writeInt(int value) throws IOException {
+            ensure(4);
+            m_buf[m_size++] = (byte) (value >>> 24);
+            m_buf[m_size++] = (byte) (value >>> 16);
+            m_buf[m_size++] = (byte) (value >>> 8);
+            m_buf[m_size++] = (byte) value;
+        }
+
+        /**
+         * Writes a byte
+         * @param value Value
+         * @throws IOException if the output fails
+         */
+        public void writeByte(int value) throws IOException {
+            ensure(1);
+            m_buf[m_size++] = (byte) value;
+        }
+
+        /**
+         * Writes a number that is never negative, 7 bits per byte, low bits first
+         * Negative values are written as if unsigned and take 10 bytes
+         * @param value Value
+         * @throws IOException if the output fails
+         */
+        public void writeVarLong(long value) throws IOException {
+            ensure(10);
+            while ((value & ~0x7FL) != 0){
+                m_buf[m_size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            m_buf[m_size++] = (byte) value;
+        }
+
+        /**
+         * Writes a number that may be negative, zigzag encoded so small negative values stay short
+         * @param value Value
+         * @throws IOException if the output fails
+         */
+        public void writeSignedVarLong(long value) throws IOException {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * Writes a String as its UTF-8 length and bytes
+         * @param str String
+         * @throws IOException if the output fails
+         */
+        public void writeString(String str) throws IOException {
+            byte utf8[] = str.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf8.length);
+            writeBytes(utf8, 0, utf8.length);
+        }
+
+        /**
+         * Writes a String the first time it is seen, afterwards only its number
+         * @param str String
+         * @throws IOException if the output fails
+         */
+        public void writeDict(String str) throws IOException {
+            Integer id = m_dict.get(str);
+            if (id != null){
+                writeVarLong(id + 1);
+            } else {
+                m_dict.put(str, m_dict.size());
+                writeVarLong(0);
+                writeString(str);
+            }
+        }
+
+        /**
+         * Writes bytes as they are
+         * @param bytes Bytes
+         * @param off   Start in bytes
+         * @param len   Number of bytes
+         * @throws IOException if the output fails
+         */
+        public void writeBytes(byte bytes[], int off, int len) throws IOException {
+            ensure(len);
+            System.arraycopy(bytes, off, m_buf, m_size, len);
+            m_size += len;
+        }
+
+        /**
+         * Hands everything buffered to the OutputStream, if any
+         * @throws IOException if the output fails
+         */
+        public void flush() throws IOException {
+            if (m_out != null){
+                m_out.write(m_buf, 0, m_size);
+                m_size = 0;
+            }
+        }
+
+        /**
+         * Returns what is buffered, everything written if there is no OutputStream
+         * @return Copy of the bytes
+         */
+        public byte[] toByteArray(){
+            byte bytes[] = new byte[m_size];
+            System.arraycopy(m_buf, 0, bytes, 0, m_size);
+            return bytes;
+        }
+
+        /**
+         * Returns number of bytes buffered
+         * @return bytes
+         */
+        public int size(){
+            return m_size;
+        }
+
+        /**
+         * Makes room for len more bytes, handing the buffer to the OutputStream or growing it
+         * @param len Bytes needed
+         * @throws IOException if the output fails
+         */
+        private void ensure(int len) throws IOException {
+            if (m_size + len <= m_buf.length){
+                return;
+            }
+            flush();
+            if (m_size + len > m_buf.length){
+                byte bigger[] = new byte[Math.max(m_buf.length * 2, m_size + len)];
+                System.arraycopy(m_buf, 0, bigger, 0, m_size);
+                m_buf = bigger;
+            }
+        }
+    }
+
+    /**
+     * Decodes from a ByteBuffer, starting at its position and moving it along, or from a file mapped in windows
+     * Numbers are read straight from the buffer, and each dictionary String is decoded once however often it is used
+     * Not thread safe
+     */
+    public static class Reader {
+        /**
+         * Bytes of a file mapped at a time, so files of any size can be read
+         */
+        private static final int WINDOW = 1 << 26;
+
+        private ByteBuffer m_buf;
+
+        /**
+         * File the windows are mapped from, null when reading a given buffer
+         */
+        private FileChannel m_channel;
+
+        /**
+         * Position in the file of the start of m_buf, and size of the file
+         */
+        private long m_base;
+        private long m_end;
+
+        /**
+         * Dictionary Strings by number
+         */
+        private ArrayList<String> m_dict;
+
+        /**
+         * Timestamp of the previous Transaction of the account being read
+         */
+        private long m_lastTimestamp;
+
+        /**
+         * Format version read by readHeader
+         */
+        private int m_version = VERSION;
+
+        /**
+         * Constructor
+         * @param buf Buffer to read from its position on
+         */
+        public Reader(ByteBuffer buf){
+            m_buf = buf;
+            m_dict = new ArrayList<String>();
+        }
+
+        /**
+         * Constructor, maps the file a window at a time as it is read
+         * The channel must stay open while reading; windows are unmapped once no longer referenced
+         * @param channel   File to read
+         * @param position  Position in the file to start reading at
+         * @throws IOException if the file cannot be mapped
+         */
+        public Reader(FileChannel channel, long position) throws IOException {
+            m_channel = channel;
+            m_end = channel.size();
+            m_dict = new ArrayList<String>();
+            map(position, 0);
+        }
+
+        /**
+         * Reads and checks the format version
+         * @throws IOException if the version is not one this Reader understands
+         */
+        public void readHeader() throws IOException {
+            long version = readVarLong();
+            if (version < 1 || version > VERSION){
+                throw new IOException("Not a version 1 to " + VERSION + " encoding: version " + version);
+            }
+            m_version = (int) version;
+        }
+
+        /**
+         * Reads a User written by Writer.writeUser, handing them, their accounts and Transactions to handler
+         * @param handler   Receives what is read
+         * @throws IOException if the data is cut short or malformed
+         */
+        public void readUser(Handler handler) throws IOException {
+            int userID = (int) readVarLong();
+            String fName = readString();
+            String lName = readString();
+            byte pin[] = new byte[readLength()];
+            get(pin);
+            handler.user(userID, fName, lName, pin);
+            int numOfAcc = readLength();
+            for (int a = 0; a < numOfAcc; a++){
+                readAccount(userID, handler);
+            }
+        }
+
+        /**
+         * Reads an account written by Writer.writeAccount, handing it and its Transactions to handler
+         * @param userID    Owner's User ID
+         * @param handler   Receives what is read
+         * @throws IOException if the data is cut short or malformed
+         */
+        public void readAccount(int userID, Handler handler) throws IOException {
+            String accNum = unpackAccNum((int) readVarLong());
+            String type = readDict();
+            long balance = readSignedVarLong();
+            long accruedTo = readVarLong();
+            handler.account(userID, accNum, type, balance, accruedTo, readSignedVarLong());
+            int numOfTrans = readLength();
+            m_lastTimestamp = 0;
+            for (int t = 0; t < numOfTrans; t++){
+                long timestamp = m_lastTimestamp + readSignedVarLong();
+                m_lastTimestamp = timestamp;
+                String location = readDict();
+                long amount = readSignedVarLong();
+                handler.transaction(accNum, timestamp, location, amount, readDict());
+            }
+            if (m_version >= 2){
+                handler.stats(accNum, AccountStats.read(this));
+            }
+        }
+
+        /**
+         * Reads a Transaction written by Writer.writeTransaction
+         * @return Transaction
+         * @throws IOException if the data is cut short or malformed
+         */
+        public Transaction readTransaction() throws IOException {
+            long timestamp = m_lastTimestamp + readSignedVarLong();
+            m_lastTimestamp = timestamp;
+            String location = readDict();
+            long amount = readSignedVarLong();
+            return new Transaction(location, amount, timestamp, readDict());
+        }
+
+        /**
+         * Reads a fixed 4 byte int, big endian
+         * @return Value
+         * @throws IOException if the data is cut short
+         */
+        public int readInt() throws IOException {
+            need(4);
+            return m_buf.getInt();
+        }
+
+        /**
+         * Reads a byte
+         * @return Value
+         * @throws IOException if the data is cut short
+         */
+        public byte readByte() throws IOException {
+            need(1);
+            return m_buf.get();
+        }
+
+        /**
+         * Reads a number written by Writer.writeVarLong
+         * @return Value
+         * @throws IOException if the data is cut short or the number is longer than 10 bytes
+         */
+        public long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7){
+                need(1);
+                byte b = m_buf.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0){
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint at " + position());
+        }
+
+        /**
+         * Reads a number written by Writer.writeSignedVarLong
+         * @return Value
+         * @throws IOException if the data is cut short or malformed
+         */
+        public long readSignedVarLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /**
+         * Reads a String written by Writer.writeString
+         * Decoded in place when the buffer is backed by an array
+         * @return String
+         * @throws IOException if the data is cut short or malformed
+         */
+        public String readString() throws IOException {
+            int len = readLength();
+            need(len);
+            String str;
+            if (m_buf.hasArray()){
+                str = new String(m_buf.array(), m_buf.arrayOffset() + m_buf.position(), len, StandardCharsets.UTF_8);
+                m_buf.position(m_buf.position() + len);
+            } else {
+                byte utf8[] = new byte[len];
+                m_buf.get(utf8);
+                str = new String(utf8, StandardCharsets.UTF_8);
+            }
+            return str;
+        }
+
+        /**
+         * Reads a String written by Writer.writeDict
+         * @return String
+         * @throws IOException if the data is cut short or refers to a String not yet read
+         */
+        public String readDict() throws IOException {
+            long id = readVarLong();
+            if (id == 0){
+                String str = readString();
+                m_dict.add(str);
+                return str;
+            }
+            if (id > m_dict.size()){
+                throw new IOException("Unknown string " + (id - 1) + " at " + position());
+            }
+            return m_dict.get((int) (id - 1));
+        }
+
+        /**
+         * Returns whether anything is left to read
+         * @return true if bytes remain
+         */
+        public boolean hasRemaining(){
+            return remaining() > 0;
+        }
+
+        /**
+         * Returns number of bytes left to read, in the whole file when reading one
+         * @return bytes
+         */
+        private long remaining(){
+            return (m_channel != null) ? m_end - position() : m_buf.remaining();
+        }
+
+        /**
+         * Returns the position read up to, in the file when reading one
+         * @return position
+         */
+        private long position(){
+            return m_base + m_buf.position();
+        }
+
+        /**
+         * Reads a count or length, which must fit what is left to read
+         * @return Value
+         * @throws IOException if the value is negative or larger than what is left
+         */
+        private int readLength() throws IOException {
+            long len = readVarLong();
+            if (len < 0 || len > Math.min(remaining(), Integer.MAX_VALUE)){
+                throw new IOException("Bad length " + len + " at " + position());
+            }
+            return (int) len;
+        }
+
+        /**
+         * Fills bytes from the buffer
+         * @param bytes Destination
+         * @throws IOException if the data is cut short
+         */
+        private void get(byte bytes[]) throws IOException {
+            need(bytes.length);
+            m_buf.get(bytes);
+        }
+
+        /**
+         * Checks len bytes are left
+         * @param len Bytes needed
+         * @throws IOException if fewer are left
+         */
+        private void need(int len) throws IOException {
+            if (m_buf.remaining() >= len){
+                return;
+            }
+            if (remaining() < len){
+                throw new IOException("Data cut short at " + position());
+            }
+            map(position(), len);
+        }
+
+        /**
+         * Maps the window of the file starting at a position
+         * @param position  Position in the file
+         * @param len       Bytes the window must hold, more than WINDOW for a long String
+         * @throws IOException if the file cannot be mapped
+         */
+        private void map(long position, int len) throws IOException {
+            long size = Math.min(Math.max(WINDOW, len), m_end - position);
+            m_buf = m_channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            m_base = position;
+        }
+    }
+}
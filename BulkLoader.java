@@ -0,0 +1,1180 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Bulk import and export of Users, their accounts and Transactions as CSV or NDJSON, for migrating a customer base
+ * An import reads the file into chunks of Users, each parsed and added to the Bank as one batch by a pool of threads,
+ * taking IDs from the Bank's allocators where the file has none; batches are added in any order
+ * Each batch is journaled and added as one update, as any other change is, so ATM sessions carry on during an import,
+ * and a checkpoint afterwards folds the import into a snapshot; the Bank is paused only while that snapshot is captured
+ * An import that fails part way keeps the batches already added, saved like the rest
+ *
+ * CSV has one record per row, each account after its User and each Transaction after its account:
+ *   user,<User ID>,<first name>,<last name>,<PIN>,<PIN hash>
+ *   account,<account number>,<type>,<balance>
+ *   transaction,<date>,<location>,<amount>,<memo>
+ * NDJSON has one User per line, accounts and Transactions named as in JSON statements:
+ *   {"userID":12345,"firstName":"Ann","lastName":"Lee","pin":"1234","accounts":[{"accNum":"123-4567","type":"Chequing",
+ *   "balance":12.34,"transactions":[{"date":"2024-01-31T09:15:00-05:00","location":"ATM","amount":12.34,"memo":""}]}]}
+ *
+ * An empty User ID or account number is taken from the Bank, a given one must be free
+ * Each User has a 4 digit PIN, hashed as it is parsed, or a PIN hash in base64 as exported
+ * Dates are ISO-8601 with an offset, or milliseconds since epoch; amounts are dollars
+ * The balance may be left out, the account then holds the sum of its Transactions; if they add up to something else,
+ * an "Opening balance" Transaction for the difference goes before them, so every account reconciles
+ *
+ * Usage: java BulkLoader import|export file=<path> [dir=bankdata] [format=csv|ndjson] [threads=cores] [pbkdf2=iterations]
+ * The format defaults to the file's extension. PINs imported with fewer PBKDF2 iterations than the Bank uses are
+ * hashed again at full strength on each User's first login
+ * Opens the bank in dir, so no ATM should have it open at the same time
+ */
+public class BulkLoader {
+    /**
+     * File formats
+     */
+    public enum Format {
+        CSV, NDJSON;
+
+        /**
+         * Picks the format from a file's extension
+         * @param file  File
+         * @return      CSV for .csv, NDJSON for .ndjson, .jsonl or .json
+         * @throws IllegalArgumentException for any other extension
+         */
+        public static Format of(Path file){
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".csv")){
+                return CSV;
+            }
+            if (name.endsWith(".ndjson") || name.endsWith(".jsonl") || name.endsWith(".json")){
+                return NDJSON;
+            }
+            throw new IllegalArgumentException("Cannot tell the format of " + file + ", give format=csv or format=ndjson");
+        }
+    }
+
+    /**
+     * Number of records imported or exported
+     */
+    public static class Counts {
+        public long users;
+        public long accounts;
+        public long transactions;
+
+        /**
+         * Returns number of records of every kind
+         * @return records
+         */
+        public long records(){
+            return users + accounts + transactions;
+        }
+
+        /**
+         * Adds other counts to these
+         * @param other Counts
+         */
+        void add(Counts other){
+            users += other.users;
+            accounts += other.accounts;
+            transactions += other.transactions;
+        }
+    }
+
+    /**
+     * Users parsed and added by one task
+     */
+    private static final int CHUNK_USERS = 256;
+
+    /**
+     * Characters buffered before an export hands them to the file
+     */
+    private static final int EXPORT_BUFFER = 1 << 16;
+
+    /**
+     * Transactions an export copies from an account under one hold of its lock
+     */
+    private static final int EXPORT_BLOCK = 256;
+
+    /**
+     * Location and memo of the Transaction that makes up a given opening balance
+     */
+    private static final String IMPORT_LOCATION = "Import";
+    private static final String OPENING_MEMO = "Opening balance";
+
+    /**
+     * A 4 digit PIN
+     */
+    private static final Pattern PIN = Pattern.compile("[0-9]{4}");
+
+    /**
+     * ISO-8601 with offset and milliseconds, so exported dates import unchanged
+     */
+    private static final DateTimeFormatter DATE =
+        DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(ZoneId.systemDefault());
+
+    /**
+     * Records read from the file, waiting to be parsed
+     */
+    private static class Chunk {
+        String records[] = new String[CHUNK_USERS * 4];
+        int lines[] = new int[CHUNK_USERS * 4];
+        int size;
+        int users;
+
+        void add(String record, int line){
+            if (size == records.length){
+                records = Arrays.copyOf(records, size * 2);
+                lines = Arrays.copyOf(lines, size * 2);
+            }
+            records[size] = record;
+            lines[size] = line;
+            size++;
+        }
+    }
+
+    /**
+     * A parsed User, ready to be added
+     */
+    private static class ImportUser {
+        int line;
+        int userID = -1;
+        String fName;
+        String lName;
+        byte pin[];
+        ArrayList<ImportAccount> accounts = new ArrayList<ImportAccount>(2);
+    }
+
+    /**
+     * A parsed account, its Transactions kept as columns and put in time order once all are parsed
+     */
+    private static class ImportAccount {
+        int line;
+        String accNum;
+        String type;
+        boolean hasBalance;
+        long balance;
+
+        /**
+         * Amount the Transactions fall short of the balance by, added as a Transaction before them
+         */
+        long opening;
+        long openingTimestamp;
+
+        long timestamps[] = new long[16];
+        long amounts[] = new long[16];
+        String locations[] = new String[16];
+        String memos[] = new String[16];
+        int size;
+
+        void add(long timestamp, String location, long amount, String memo){
+            if (size == timestamps.length){
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                amounts = Arrays.copyOf(amounts, size * 2);
+                locations = Arrays.copyOf(locations, size * 2);
+                memos = Arrays.copyOf(memos, size * 2);
+            }
+            timestamps[size] = timestamp;
+            amounts[size] = amount;
+            locations[size] = location;
+            memos[size] = memo;
+            size++;
+        }
+    }
+
+    /**
+     * Transactions copied from an account in one block, reused for every account of an export
+     */
+    private static class ExportBlock {
+        final long timestamps[] = new long[EXPORT_BLOCK];
+        final long amounts[] = new long[EXPORT_BLOCK];
+        final String locations[] = new String[EXPORT_BLOCK];
+        final String memos[] = new String[EXPORT_BLOCK];
+
+        /**
+         * Copies the next block of an account's Transactions
+         * @param account   Account
+         * @param start     Index of the first Transaction
+         * @param end       Number of Transactions captured
+         * @return          Number copied
+         */
+        int copy(Account account, int start, int end){
+            int count = Math.min(EXPORT_BLOCK, end - start);
+            account.copyTransactions(start, count, timestamps, amounts, locations, memos);
+            return count;
+        }
+    }
+
+    /**
+     * Private constructor as no instances of BulkLoader should be created
+     * All methods will be static/class level
+     */
+    private BulkLoader(){};
+
+    /**
+     * Imports a file into the Bank, then takes a checkpoint so the journal does not have to replay it
+     * @param bank      Bank to import into
+     * @param file      File to read
+     * @param format    Format of the file
+     * @param threads   Number of threads parsing and adding
+     * @return          Number of records imported
+     * @throws IOException if the file cannot be read or has a bad record, with its line number, or the checkpoint
+     *                     fails; other batches may have been added
+     */
+    public static Counts importFile(Bank bank, Path file, Format format, int threads) throws IOException {
+        Counts counts = importBatches(bank, file, format, threads);
+        bank.checkpoint();
+        return counts;
+    }
+
+    /**
+     * Reads a file in chunks and adds each as a batch on a pool of threads
+     * @param bank      Bank to import into
+     * @param file      File to read
+     * @param format    Format of the file
+     * @param threads   Number of threads parsing and adding
+     * @return          Number of records imported
+     * @throws IOException if the file cannot be read or has a bad record, with its line number
+     */
+    private static Counts importBatches(Bank bank, Path file, Format format, int threads) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "bulk-parse");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<Counts>> batches = new ArrayDeque<Future<Counts>>();
+        Counts counts = new Counts();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)){
+            Chunk chunk = new Chunk();
+            int lineNum = 0;
+            String record;
+            while ((record = in.readLine()) != null){
+                int line = ++lineNum;
+                //A quoted CSV field may hold line breaks, the record goes on until its quotes are closed
+                while (format == Format.CSV && !quotesClosed(record)){
+                    String next = in.readLine();
+                    if (next == null){
+                        throw new IOException("Line " + line + ": Quote is never closed");
+                    }
+                    lineNum++;
+                    record = record + '\n' + next;
+                }
+                if (record.isBlank()){
+                    continue;
+                }
+
+                boolean newUser = (format == Format.NDJSON) || record.startsWith("user,");
+                if (newUser && chunk.users == CHUNK_USERS){
+                    final Chunk full = chunk;
+                    batches.add(pool.submit(() -> add(bank, parse(full, format))));
+                    chunk = new Chunk();
+                    //Reads only a few chunks ahead of the threads, so the file is never all in memory
+                    if (batches.size() > threads * 2){
+                        counts.add(take(batches.poll()));
+                    }
+                }
+                if (newUser){
+                    chunk.users++;
+                }
+                chunk.add(record, line);
+            }
+            final Chunk last = chunk;
+            batches.add(pool.submit(() -> add(bank, parse(last, format))));
+            while (!batches.isEmpty()){
+                counts.add(take(batches.poll()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return counts;
+    }
+
+    /**
+     * Exports every User, account and Transaction of the Bank
+     * Balances and ledger sizes are copied in one pause, as a checkpoint does; the file is written while the Bank is in use
+     * @param bank      Bank to export
+     * @param file      File to write, replaced if it exists
+     * @param format    Format of the file
+     * @return          Number of records exported
+     * @throws IOException if the file cannot be written
+     */
+    public static Counts exportFile(Bank bank, Path file, Format format) throws IOException {
+        ArrayList<Snapshot.UserState> states = bank.runPaused(() -> Snapshot.capture(bank.getUsers()));
+        Counts counts = new Counts();
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)){
+            StringBuilder buf = new StringBuilder(EXPORT_BUFFER + 1024);
+            ExportBlock block = new ExportBlock();
+            for (Snapshot.UserState state : states){
+                if (format == Format.CSV){
+                    appendCsv(out, buf, block, state, counts);
+                } else {
+                    appendJson(out, buf, block, state, counts);
+                }
+            }
+            out.append(buf);
+        }
+        return counts;
+    }
+
+    /**
+     * Waits for a batch to be added
+     * @param future    Task parsing and adding the batch
+     * @return          Number of records added
+     * @throws IOException if a record is bad
+     */
+    private static Counts take(Future<Counts> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalArgumentException){
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Adds a batch of parsed Users to the Bank as one update, taking IDs for those the file left empty,
+     * and waits once for the batch's journal records to reach disk
+     * @param bank      Bank
+     * @param users     Parsed Users
+     * @return          Number of records added
+     * @throws IllegalArgumentException if a given User ID or account number is taken or out of range, with its line number
+     */
+    private static Counts add(Bank bank, List<ImportUser> users){
+        Counts counts = new Counts();
+        long seq = 0;
+        bank.beginUpdate();
+        try {
+            for (ImportUser user : users){
+                seq = add(bank, user, counts, seq);
+            }
+        } finally {
+            bank.endUpdate();
+        }
+        bank.awaitDurable(seq);
+        return counts;
+    }
+
+    /**
+     * Journals and adds one parsed User to the Bank, each record journaled before it is applied
+     * Caller must be within beginUpdate
+     * @param bank      Bank
+     * @param user      Parsed User
+     * @param counts    Counts to add to
+     * @param seq       Sequence number of the batch's last journal record so far
+     * @return          Sequence number of the last journal record, seq if none was written
+     * @throws IllegalArgumentException if a given User ID or account number is taken or out of range, with its line number
+     */
+    private static long add(Bank bank, ImportUser user, Counts counts, long seq){
+        Journal journal = bank.getJournal();
+        int line = user.line;
+        try {
+            int userID = user.userID;
+            if (userID < 0){
+                userID = bank.getNewUserID();
+            } else if (!bank.reserveUserID(userID)){
+                throw new IllegalArgumentException("User ID " + userID + " is taken");
+            }
+            if (journal != null){
+                seq = journal.logUser(userID, user.fName, user.lName, user.pin);
+            }
+            bank.replayUser(userID, user.fName, user.lName, user.pin);
+            counts.users++;
+
+            for (ImportAccount account : user.accounts){
+                line = account.line;
+                String accNum = account.accNum;
+                if (accNum == null){
+                    accNum = bank.getNewAccNum();
+                } else if (!bank.reserveAccNum(accNum)){
+                    throw new IllegalArgumentException("Account number " + accNum + " is taken");
+                }
+                if (journal != null){
+                    seq = journal.logOpenAccount(userID, accNum, account.type);
+                }
+                bank.replayOpenAccount(userID, accNum, account.type);
+                if (account.opening != 0){
+                    seq = post(bank, journal, accNum, account.openingTimestamp, IMPORT_LOCATION, account.opening, OPENING_MEMO, seq);
+                }
+                for (int i = 0; i < account.size; i++){
+                    seq = post(bank, journal, accNum, account.timestamps[i], account.locations[i], account.amounts[i], account.memos[i], seq);
+                }
+                counts.accounts++;
+                counts.transactions += account.size;
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new IllegalArgumentException("Line " + line + ": " + e.getMessage(), e);
+        }
+        return seq;
+    }
+
+    /**
+     * Journals and adds one imported Transaction, changing the balance too
+     * Caller must be within beginUpdate
+     * @param bank      Bank
+     * @param journal   Bank's journal, null for a Bank kept only in memory
+     * @param accNum    Account number
+     * @param timestamp Time in milliseconds since epoch
+     * @param location  Location
+     * @param amount    Amount in cents
+     * @param memo      Memo, "" for none
+     * @param seq       Sequence number of the batch's last journal record so far
+     * @return          Sequence number of the journal record, seq if none was written
+     */
+    private static long post(Bank bank, Journal journal, String accNum, long timestamp, String location, long amount, String memo, long seq){
+        if (journal != null){
+            seq = journal.logTransaction(Journal.POST, accNum, timestamp, location, amount, memo);
+        }
+        bank.replayTransaction(accNum, timestamp, location, amount, memo, true);
+        return seq;
+    }
+
+    /**
+     * Parses a chunk of records, run on the parsing threads
+     * @param chunk     Records
+     * @param format    Format of the records
+     * @return          Parsed Users
+     * @throws IllegalArgumentException for a bad record, with its line number
+     */
+    private static ArrayList<ImportUser> parse(Chunk chunk, Format format){
+        ArrayList<ImportUser> users = new ArrayList<ImportUser>(chunk.users);
+        ImportUser user = null;
+        ImportAccount account = null;
+        String fields[] = new String[8];
+        for (int i = 0; i < chunk.size; i++){
+            int line = chunk.lines[i];
+            try {
+                if (format == Format.NDJSON){
+                    users.add(parseJsonUser(chunk.records[i], line));
+                    continue;
+                }
+                splitCsv(chunk.records[i], fields);
+                switch (fields[0]){
+                    case "user":
+                        user = newUser(line, fields[1], fields[2], fields[3], fields[4], fields[5]);
+                        users.add(user);
+                        account = null;
+                        break;
+                    case "account":
+                        if (user == null){
+                            throw new IllegalArgumentException("Account before any user");
+                        }
+                        account = newAccount(line, fields[1], fields[2], fields[3]);
+                        user.accounts.add(account);
+                        break;
+                    case "transaction":
+                        if (account == null){
+                            throw new IllegalArgumentException("Transaction before any account");
+                        }
+                        account.add(parseDate(fields[1]), fields[2], Money.parse(fields[3]), fields[4]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown record: " + fields[0]);
+                }
+            } catch (IllegalArgumentException | DateTimeException e) {
+                throw new IllegalArgumentException("Line " + line + ": " + e.getMessage(), e);
+            }
+        }
+        for (ImportUser parsed : users){
+            for (ImportAccount parsedAccount : parsed.accounts){
+                finish(parsedAccount);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Parses one NDJSON line
+     * @param record    Line
+     * @param line      Line number
+     * @return          Parsed User
+     */
+    private static ImportUser parseJsonUser(String record, int line){
+        Map<?, ?> obj = object(new JsonParser(record).parse(), "User");
+        ImportUser user = newUser(line, text(obj, "userID"), text(obj, "firstName"), text(obj, "lastName"), text(obj, "pin"), text(obj, "pinHash"));
+        for (Object accValue : list(obj, "accounts")){
+            Map<?, ?> accObj = object(accValue, "Account");
+            ImportAccount account = newAccount(line, text(accObj, "accNum"), text(accObj, "type"), text(accObj, "balance"));
+            for (Object transValue : list(accObj, "transactions")){
+                Map<?, ?> transObj = object(transValue, "Transaction");
+                account.add(parseDate(text(transObj, "date")), text(transObj, "location"), Money.parse(text(transObj, "amount")),
+                    text(transObj, "memo"));
+            }
+            user.accounts.add(account);
+        }
+        return user;
+    }
+
+    /**
+     * Checks and converts the fields of a User
+     * @param line      Line number
+     * @param userID    User ID, "" to take one
+     * @param fName     First name
+     * @param lName     Last name
+     * @param pin       4 digit PIN, "" if pinHash is given
+     * @param pinHash   Stored PIN hash in base64, "" if pin is given
+     * @return          Parsed User, without accounts
+     * @throws IllegalArgumentException if a field is missing or malformed, or the PIN hash is not a layout PinHasher can verify
+     */
+    private static ImportUser newUser(int line, String userID, String fName, String lName, String pin, String pinHash){
+        ImportUser user = new ImportUser();
+        user.line = line;
+        if (!userID.isEmpty()){
+            user.userID = Integer.parseInt(userID);
+        }
+        if (fName.isEmpty() || lName.isEmpty()){
+            throw new IllegalArgumentException("User needs a first and last name");
+        }
+        user.fName = fName;
+        user.lName = lName;
+        if (!pinHash.isEmpty()){
+            user.pin = Base64.getDecoder().decode(pinHash);
+            if (!PinHasher.isValid(user.pin)){
+                throw new IllegalArgumentException("User's PIN hash is not valid");
+            }
+        } else if (PIN.matcher(pin).matches()){
+            user.pin = PinHasher.hash(pin);
+        } else {
+            throw new IllegalArgumentException("User needs a 4 digit PIN or a PIN hash");
+        }
+        return user;
+    }
+
+    /**
+     * Checks and converts the fields of an account
+     * @param line      Line number
+     * @param accNum    Account number, "" to take one
+     * @param type      Account type
+     * @param balance   Balance in dollars, "" for the sum of its Transactions
+     * @return          Parsed account, without Transactions
+     */
+    private static ImportAccount newAccount(int line, String accNum, String type, String balance){
+        ImportAccount account = new ImportAccount();
+        account.line = line;
+        if (!accNum.isEmpty()){
+            //Snapshots store account numbers packed, so only numbers that pack are accepted
+            BinaryCodec.packAccNum(accNum);
+            account.accNum = accNum;
+        }
+        account.type = AccountType.of(type).getName();
+        if (!balance.isEmpty()){
+            account.hasBalance = true;
+            account.balance = Money.parse(balance);
+        }
+        return account;
+    }
+
+    /**
+     * Parses a date, reading the layout export writes by hand as it is much quicker than a DateTimeFormatter
+     * @param date  2024-01-31T09:15:00.123-05:00, with any fraction and Z or any offset, other ISO-8601 with an offset,
+     *              or milliseconds since epoch
+     * @return      Time in milliseconds since epoch
+     */
+    private static long parseDate(String date){
+        if (date.indexOf('T') < 0){
+            return Long.parseLong(date);
+        }
+        int len = date.length();
+        if (len >= 20 && date.charAt(4) == '-' && date.charAt(7) == '-' && date.charAt(10) == 'T'
+            && date.charAt(13) == ':' && date.charAt(16) == ':'){
+            int pos = 19;
+            int millis = 0;
+            if (date.charAt(pos) == '.'){
+                int digits = 0;
+                pos++;
+                while (pos < len && Character.isDigit(date.charAt(pos))){
+                    if (digits++ < 3){
+                        millis = millis * 10 + (date.charAt(pos) - '0');
+                    }
+                    pos++;
+                }
+                for (; digits < 3; digits++){
+                    millis *= 10;
+                }
+            }
+            boolean zoned = false;
+            int offset = 0;
+            if (pos == len - 1 && date.charAt(pos) == 'Z'){
+                zoned = true;
+            } else if (pos == len - 6 && (date.charAt(pos) == '+' || date.charAt(pos) == '-') && date.charAt(pos + 3) == ':'){
+                int offsetHours = digits(date, pos + 1, 2);
+                int offsetMinutes = digits(date, pos + 4, 2);
+                zoned = offsetHours >= 0 && offsetHours <= 18 && offsetMinutes >= 0 && offsetMinutes < 60;
+                offset = (offsetHours * 3600 + offsetMinutes * 60) * ((date.charAt(pos) == '-') ? -1 : 1);
+            }
+            int hour = digits(date, 11, 2);
+            int minute = digits(date, 14, 2);
+            int second = digits(date, 17, 2);
+            if (zoned && hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60){
+                long day = LocalDate.of(digits(date, 0, 4), digits(date, 5, 2), digits(date, 8, 2)).toEpochDay();
+                return (day * 86400 + hour * 3600 + minute * 60 + second - offset) * 1000 + millis;
+            }
+        }
+        return OffsetDateTime.parse(date).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Reads a fixed number of digits
+     * @param str   Text
+     * @param start Index of the first digit
+     * @param count Number of digits
+     * @return      Value, -1 if any is not a digit
+     */
+    private static int digits(String str, int start, int count){
+        int value = 0;
+        for (int i = start; i < start + count; i++){
+            char c = str.charAt(i);
+            if (c < '0' || c > '9'){
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Puts an account's Transactions in time order, and works out any opening balance they do not add up to
+     * @param account Parsed account
+     */
+    private static void finish(ImportAccount account){
+        boolean sorted = true;
+        for (int i = 1; i < account.size && sorted; i++){
+            sorted = account.timestamps[i - 1] <= account.timestamps[i];
+        }
+        if (!sorted){
+            Integer order[] = new Integer[account.size];
+            for (int i = 0; i < order.length; i++){
+                order[i] = i;
+            }
+            //Stable, so Transactions at the same time keep their file order
+            Arrays.sort(order, Comparator.comparingLong(i -> account.timestamps[i]));
+            long timestamps[] = new long[account.size];
+            long amounts[] = new long[account.size];
+            String locations[] = new String[account.size];
+            String memos[] = new String[account.size];
+            for (int i = 0; i < order.length; i++){
+                timestamps[i] = account.timestamps[order[i]];
+                amounts[i] = account.amounts[order[i]];
+                locations[i] = account.locations[order[i]];
+                memos[i] = account.memos[order[i]];
+            }
+            account.timestamps = timestamps;
+            account.amounts = amounts;
+            account.locations = locations;
+            account.memos = memos;
+        }
+        if (!account.hasBalance){
+            return;
+        }
+
+        long sum = 0;
+        for (int i = 0; i < account.size; i++){
+            sum = Money.add(sum, account.amounts[i]);
+        }
+        long opening = Money.subtract(account.balance, sum);
+        if (opening != 0){
+            account.opening = opening;
+            account.openingTimestamp = (account.size > 0) ? account.timestamps[0] : System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Appends a User's CSV records, handing the buffer to out as it fills
+     * @param out       File
+     * @param buf       Buffer
+     * @param block     Block to copy Transactions into
+     * @param state     Captured User
+     * @param counts    Counts to add to
+     * @throws IOException if the file cannot be written
+     */
+    private static void appendCsv(Writer out, StringBuilder buf, ExportBlock block, Snapshot.UserState state, Counts counts)
+            throws IOException {
+        User user = state.user;
+        buf.append("user,").append(user.getUserID()).append(',');
+        StatementRenderer.appendCsvField(buf, user.getFirstName());
+        buf.append(',');
+        StatementRenderer.appendCsvField(buf, user.getLastName());
+        buf.append(",,").append(Base64.getEncoder().encodeToString(user.getPinHash())).append('\n');
+        counts.users++;
+        for (Snapshot.AccountState accState : state.accounts){
+            Account account = accState.account;
+            buf.append("account,").append(account.getAccNum()).append(',');
+            StatementRenderer.appendCsvField(buf, account.getAccType());
+            buf.append(',');
+            Money.appendTo(buf, accState.balance);
+            buf.append('\n');
+            counts.accounts++;
+            for (int start = 0; start < accState.numOfTrans; start += EXPORT_BLOCK){
+                int count = block.copy(account, start, accState.numOfTrans);
+                for (int i = 0; i < count; i++){
+                    buf.append("transaction,");
+                    DATE.formatTo(Instant.ofEpochMilli(block.timestamps[i]), buf);
+                    buf.append(',');
+                    StatementRenderer.appendCsvField(buf, block.locations[i]);
+                    buf.append(',');
+                    Money.appendTo(buf, block.amounts[i]);
+                    buf.append(',');
+                    StatementRenderer.appendCsvField(buf, block.memos[i]);
+                    buf.append('\n');
+                    drain(out, buf);
+                }
+            }
+            counts.transactions += accState.numOfTrans;
+        }
+        drain(out, buf);
+    }
+
+    /**
+     * Appends a User's NDJSON line, handing the buffer to out as it fills
+     * @param out       File
+     * @param buf       Buffer
+     * @param block     Block to copy Transactions into
+     * @param state     Captured User
+     * @param counts    Counts to add to
+     * @throws IOException if the file cannot be written
+     */
+    private static void appendJson(Writer out, StringBuilder buf, ExportBlock block, Snapshot.UserState state, Counts counts)
+            throws IOException {
+        User user = state.user;
+        buf.append("{\"userID\":").append(user.getUserID()).append(",\"firstName\":");
+        StatementRenderer.appendJsonString(buf, user.getFirstName());
+        buf.append(",\"lastName\":");
+        StatementRenderer.appendJsonString(buf, user.getLastName());
+        buf.append(",\"pinHash\":\"").append(Base64.getEncoder().encodeToString(user.getPinHash())).append("\",\"accounts\":[");
+        counts.users++;
+        for (int a = 0; a < state.accounts.size(); a++){
+            Snapshot.AccountState accState = state.accounts.get(a);
+            Account account = accState.account;
+            buf.append((a > 0) ? ",{" : "{").append("\"accNum\":");
+            StatementRenderer.appendJsonString(buf, account.getAccNum());
+            buf.append(",\"type\":");
+            StatementRenderer.appendJsonString(buf, account.getAccType());
+            buf.append(",\"balance\":");
+            Money.appendTo(buf, accState.balance);
+            buf.append(",\"transactions\":[");
+            counts.accounts++;
+            for (int start = 0; start < accState.numOfTrans; start += EXPORT_BLOCK){
+                int count = block.copy(account, start, accState.numOfTrans);
+                for (int i = 0; i < count; i++){
+                    buf.append((start + i > 0) ? ",{" : "{").append("\"date\":\"");
+                    DATE.formatTo(Instant.ofEpochMilli(block.timestamps[i]), buf);
+                    buf.append("\",\"location\":");
+                    StatementRenderer.appendJsonString(buf, block.locations[i]);
+                    buf.append(",\"amount\":");
+                    Money.appendTo(buf, block.amounts[i]);
+                    buf.append(",\"memo\":");
+                    StatementRenderer.appendJsonString(buf, block.memos[i]);
+                    buf.append('}');
+                    drain(out, buf);
+                }
+            }
+            buf.append("]}");
+            counts.transactions += accState.numOfTrans;
+        }
+        buf.append("]}\n");
+        drain(out, buf);
+    }
+
+    /**
+     * Hands the buffer to out once it holds EXPORT_BUFFER characters
+     * @param out   File
+     * @param buf   Buffer, emptied if handed over
+     * @throws IOException if the file cannot be written
+     */
+    private static void drain(Writer out, StringBuilder buf) throws IOException {
+        if (buf.length() >= EXPORT_BUFFER){
+            out.append(buf);
+            buf.setLength(0);
+        }
+    }
+
+    /**
+     * Checks if every quote of a CSV record is closed
+     * @param record Record so far
+     * @return       true if the number of quotes is even
+     */
+    private static boolean quotesClosed(String record){
+        boolean closed = true;
+        for (int i = record.indexOf('"'); i >= 0; i = record.indexOf('"', i + 1)){
+            closed = !closed;
+        }
+        return closed;
+    }
+
+    /**
+     * Splits a CSV record into fields, unquoting quoted fields
+     * @param record    Record
+     * @param fields    Filled with the fields, "" for those the record is short of; extra fields are dropped
+     */
+    private static void splitCsv(String record, String fields[]){
+        int count = 0;
+        int i = 0;
+        while (true){
+            String field;
+            if (i < record.length() && record.charAt(i) == '"'){
+                StringBuilder quoted = new StringBuilder();
+                i++;
+                while (true){
+                    int quote = record.indexOf('"', i);
+                    if (quote < 0){
+                        throw new IllegalArgumentException("Quote is never closed");
+                    }
+                    quoted.append(record, i, quote);
+                    i = quote + 1;
+                    if (i < record.length() && record.charAt(i) == '"'){
+                        quoted.append('"');
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                if (i < record.length() && record.charAt(i) != ','){
+                    throw new IllegalArgumentException("Text after a quoted field");
+                }
+                field = quoted.toString();
+            } else {
+                int comma = record.indexOf(',', i);
+                int end = (comma < 0) ? record.length() : comma;
+                field = record.substring(i, end);
+                i = end;
+            }
+            if (count < fields.length){
+                fields[count] = field;
+            }
+            count++;
+            if (i >= record.length()){
+                Arrays.fill(fields, Math.min(count, fields.length), fields.length, "");
+                return;
+            }
+            //Past the comma
+            i++;
+        }
+    }
+
+    /**
+     * Returns a JSON value as an object
+     * @param value Value
+     * @param what  What the value should be, for the error
+     * @return      Object
+     */
+    private static Map<?, ?> object(Object value, String what){
+        if (!(value instanceof Map)){
+            throw new IllegalArgumentException(what + " must be a JSON object");
+        }
+        return (Map<?, ?>) value;
+    }
+
+    /**
+     * Returns a member of a JSON object as text
+     * @param obj   Object
+     * @param key   Member name
+     * @return      String or number text, "" if missing or null
+     */
+    private static String text(Map<?, ?> obj, String key){
+        Object value = obj.get(key);
+        if (value == null){
+            return "";
+        }
+        if (!(value instanceof String)){
+            throw new IllegalArgumentException(key + " must be a string or number");
+        }
+        return (String) value;
+    }
+
+    /**
+     * Returns a member of a JSON object as an array
+     * @param obj   Object
+     * @param key   Member name
+     * @return      Elements, none if missing or null
+     */
+    private static List<?> list(Map<?, ?> obj, String key){
+        Object value = obj.get(key);
+        if (value == null){
+            return List.of();
+        }
+        if (!(value instanceof List)){
+            throw new IllegalArgumentException(key + " must be an array");
+        }
+        return (List<?>) value;
+    }
+
+    /**
+     * Parses one JSON value
+     * Objects become Maps and arrays Lists; numbers are kept as their text, so amounts go through Money.parse exactly
+     */
+    private static class JsonParser {
+        private String m_text;
+        private int m_pos;
+
+        JsonParser(String text){
+            m_text = text;
+        }
+
+        /**
+         * Parses the whole text as one value
+         * @return Value
+         */
+        Object parse(){
+            Object value = value();
+            skipSpace();
+            if (m_pos != m_text.length()){
+                throw error("Unexpected text");
+            }
+            return value;
+        }
+
+        private Object value(){
+            skipSpace();
+            if (m_pos >= m_text.length()){
+                throw error("Unexpected end");
+            }
+            switch (m_text.charAt(m_pos)){
+                case '{':
+                    return object();
+                case '[':
+                    return array();
+                case '"':
+                    return string();
+                case 't':
+                    literal("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    literal("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    literal("null");
+                    return null;
+                default:
+                    return number();
+            }
+        }
+
+        private Map<String, Object> object(){
+            LinkedHashMap<String, Object> obj = new LinkedHashMap<String, Object>();
+            m_pos++;
+            skipSpace();
+            if (peek() == '}'){
+                m_pos++;
+                return obj;
+            }
+            while (true){
+                skipSpace();
+                if (peek() != '"'){
+                    throw error("Expected a member name");
+                }
+                String key = string();
+                skipSpace();
+                expect(':');
+                obj.put(key, value());
+                skipSpace();
+                if (peek() == ','){
+                    m_pos++;
+                    continue;
+                }
+                expect('}');
+                return obj;
+            }
+        }
+
+        private List<Object> array(){
+            ArrayList<Object> array = new ArrayList<Object>();
+            m_pos++;
+            skipSpace();
+            if (peek() == ']'){
+                m_pos++;
+                return array;
+            }
+            while (true){
+                array.add(value());
+                skipSpace();
+                if (peek() == ','){
+                    m_pos++;
+                    continue;
+                }
+                expect(']');
+                return array;
+            }
+        }
+
+        private String string(){
+            m_pos++;
+            int start = m_pos;
+            //Most strings have no escapes and are copied in one go
+            while (m_pos < m_text.length() && m_text.charAt(m_pos) != '"' && m_text.charAt(m_pos) != '\\'){
+                m_pos++;
+            }
+            if (peek() == '"'){
+                return m_text.substring(start, m_pos++);
+            }
+            StringBuilder str = new StringBuilder().append(m_text, start, m_pos);
+            while (true){
+                if (m_pos >= m_text.length()){
+                    throw error("String is never closed");
+                }
+                char c = m_text.charAt(m_pos++);
+                if (c == '"'){
+                    return str.toString();
+                }
+                if (c != '\\'){
+                    str.append(c);
+                    continue;
+                }
+                if (m_pos >= m_text.length()){
+                    throw error("String is never closed");
+                }
+                char escaped = m_text.charAt(m_pos++);
+                switch (escaped){
+                    case 'b':
+                        str.append('\b');
+                        break;
+                    case 'f':
+                        str.append('\f');
+                        break;
+                    case 'n':
+                        str.append('\n');
+                        break;
+                    case 'r':
+                        str.append('\r');
+                        break;
+                    case 't':
+                        str.append('\t');
+                        break;
+                    case 'u':
+                        if (m_pos + 4 > m_text.length()){
+                            throw error("Bad escape");
+                        }
+                        str.append((char) Integer.parseInt(m_text.substring(m_pos, m_pos + 4), 16));
+                        m_pos += 4;
+                        break;
+                    default:
+                        str.append(escaped);
+                }
+            }
+        }
+
+        private String number(){
+            int start = m_pos;
+            while (m_pos < m_text.length() && "+-.0123456789eE".indexOf(m_text.charAt(m_pos)) >= 0){
+                m_pos++;
+            }
+            if (m_pos == start){
+                throw error("Unexpected character");
+            }
+            return m_text.substring(start, m_pos);
+        }
+
+        private void literal(String word){
+            if (!m_text.startsWith(word, m_pos)){
+                throw error("Unexpected character");
+            }
+            m_pos += word.length();
+        }
+
+        private void expect(char c){
+            if (peek() != c){
+                throw error("Expected " + c);
+            }
+            m_pos++;
+        }
+
+        private char peek(){
+            return (m_pos < m_text.length()) ? m_text.charAt(m_pos) : 0;
+        }
+
+        private void skipSpace(){
+            while (m_pos < m_text.length() && Character.isWhitespace(m_text.charAt(m_pos))){
+                m_pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message){
+            return new IllegalArgumentException(message + " at column " + (m_pos + 1));
+        }
+    }
+
+    public static void main(String[] args){
+        if (args.length == 0 || !(args[0].equals("import") || args[0].equals("export"))){
+            System.err.println("Usage: java BulkLoader import|export file=<path> [dir=bankdata] [format=csv|ndjson] [threads=n] [pbkdf2=n]");
+            System.exit(1);
+        }
+        boolean importing = args[0].equals("import");
+        String dir = "bankdata";
+        Path file = null;
+        Format format = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i < args.length; i++){
+            String pair[] = args[i].split("=", 2);
+            switch (pair[0]){
+                case "dir":
+                    dir = pair[1];
+                    break;
+                case "file":
+                    file = Paths.get(pair[1]);
+                    break;
+                case "format":
+                    format = Format.valueOf(pair[1].toUpperCase(Locale.ROOT));
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(pair[1]);
+                    break;
+                case "pbkdf2":
+                    PinHasher.setIterations(Integer.parseInt(pair[1]));
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if (file == null){
+            System.err.println("Give the file to " + args[0] + " with file=<path>");
+            System.exit(1);
+        }
+        if (format == null){
+            format = Format.of(file);
+        }
+
+        try {
+            Bank bank = Bank.open("Bank of Money", Paths.get(dir), Journal.SyncPolicy.GROUP_COMMIT);
+            long start = System.nanoTime();
+            Counts counts = importing ? importFile(bank, file, format, threads) : exportFile(bank, file, format);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf(Locale.ROOT, "%s %,d Users, %,d accounts, %,d Transactions in %.2f s, %,.0f records/s%n",
+                importing ? "Imported" : "Exported", counts.users, counts.accounts, counts.transactions, seconds, counts.records() / seconds);
+            //The import is already saved by its checkpoint
+            bank.close();
+        } catch (IOException e) {
+            //Batches already imported are journaled, so they are kept when the Bank is opened again
+            System.err.println("Unable to " + args[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
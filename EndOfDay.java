@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * End of day report and reconciliation of a whole Bank
+ * Totals the money held, per account type, lists overdrawn accounts and the day's movement,
+ * and checks every account's balance against the sum of its ledger
+ *
+ * Runs against a consistent cut: changes are paused only while each account's balance, ledger size
+ * and ledger total are copied, in parallel; everything else reads ledger entries below the copied size,
+ * which never change, while ATM sessions carry on
+ * Both passes are parallel streams over the accounts, run on the common fork-join pool
+ *
+ * Usage: java EndOfDay [dir=bankdata] [date=yyyy-mm-dd]
+ * Opens the bank in dir, so no ATM should have it open at the same time
+ */
+public class EndOfDay {
+    /**
+     * Time zone days are counted in, the same as statements
+     */
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    /**
+     * Most overdrawn or unreconciled accounts kept for the report
+     */
+    private static final int MAX_LISTED = 100;
+
+    /**
+     * State of one account at the cut
+     */
+    private static class Cut {
+        Account account;
+        long balance;
+        int numOfTrans;
+        long ledgerSum;
+        long accrued;
+    }
+
+    /**
+     * Day reported
+     */
+    private LocalDate m_date;
+
+    private long m_numOfAccounts;
+    private long m_totalHeld;
+    private long m_ledgerTotal;
+
+    /**
+     * Interest for whole days so far that accounts have not posted yet, as it is only posted when they are touched
+     */
+    private long m_interestAccrued;
+
+    /**
+     * Number of accounts and total balance by account type
+     */
+    private TreeMap<String, long[]> m_byType;
+
+    /**
+     * Overdrawn accounts, as account number and balance
+     */
+    private ArrayList<String> m_overdrawn;
+    private long m_numOfOverdrawn;
+
+    /**
+     * Accounts whose balance differs from their ledger total, as account number and difference
+     */
+    private ArrayList<String> m_unreconciled;
+    private long m_numOfUnreconciled;
+
+    //Movement during m_date
+    private long m_dayIn;
+    private long m_dayOut;
+    private long m_dayTrans;
+
+    private long m_pauseNanos;
+    private long m_elapsedNanos;
+
+    /**
+     * Constructor, starts empty totals for date
+     * @param date Day reported
+     */
+    private EndOfDay(LocalDate date){
+        m_date = date;
+        m_byType = new TreeMap<String, long[]>();
+        m_overdrawn = new ArrayList<String>();
+        m_unreconciled = new ArrayList<String>();
+    }
+
+    /**
+     * Runs the report for a day
+     * @param bank  Bank to report on
+     * @param date  Day whose movement is reported, in the system time zone
+     * @return      Report
+     */
+    public static EndOfDay run(Bank bank, LocalDate date){
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        Cut cuts[] = bank.runPaused(() -> bank.getAccounts().parallelStream().map(account -> cut(account, now)).toArray(Cut[]::new));
+        long paused = System.nanoTime() - start;
+
+        long dayStart = date.atStartOfDay(ZONE).toInstant().toEpochMilli();
+        long dayEnd = date.plusDays(1).atStartOfDay(ZONE).toInstant().toEpochMilli();
+        EndOfDay report = Arrays.stream(cuts).parallel().collect(() -> new EndOfDay(date),
+            (totals, cut) -> totals.add(cut, dayStart, dayEnd), EndOfDay::merge);
+        report.m_overdrawn.sort(null);
+        report.m_unreconciled.sort(null);
+        report.m_pauseNanos = paused;
+        report.m_elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    /**
+     * Copies the state of an account, called while changes are paused
+     * The ledger total comes from the account's running totals, so no entries are read here
+     * @param account Account
+     * @param now     Time interest is worked out to, in milliseconds since epoch
+     * @return        Cut
+     */
+    private static Cut cut(Account account, long now){
+        Cut cut = new Cut();
+        cut.account = account;
+        cut.balance = account.getAccBalance();
+        cut.numOfTrans = account.getNumOfTransaction();
+        cut.ledgerSum = account.getAllTimeTotals(null).getSum();
+        cut.accrued = account.getAccruedInterest(now);
+        return cut;
+    }
+
+    /**
+     * Adds one account to the totals
+     * @param cut       State of the account
+     * @param dayStart  Start of the day in milliseconds since epoch
+     * @param dayEnd    Start of the next day
+     */
+    private void add(Cut cut, long dayStart, long dayEnd){
+        Account account = cut.account;
+        m_numOfAccounts++;
+        m_totalHeld = Money.add(m_totalHeld, cut.balance);
+        m_ledgerTotal = Money.add(m_ledgerTotal, cut.ledgerSum);
+        m_interestAccrued = Money.add(m_interestAccrued, cut.accrued);
+        long type[] = m_byType.computeIfAbsent(account.getAccType(), key -> new long[2]);
+        type[0]++;
+        type[1] = Money.add(type[1], cut.balance);
+
+        //A line of credit below 0 is borrowing as intended, it is only overdrawn past its credit line
+        AccountType accType = account.getType();
+        if (cut.balance < 0 && (accType != AccountType.LINE_OF_CREDIT || cut.balance < -accType.getLimit())){
+            m_numOfOverdrawn++;
+            if (m_overdrawn.size() < MAX_LISTED){
+                m_overdrawn.add(account.getAccNum() + " " + Money.format(cut.balance));
+            }
+        }
+        if (cut.balance != cut.ledgerSum){
+            m_numOfUnreconciled++;
+            if (m_unreconciled.size() < MAX_LISTED){
+                m_unreconciled.add(account.getAccNum() + " " + Money.format(Money.subtract(cut.balance, cut.ledgerSum)));
+            }
+        }
+
+        //The day's entries are found by binary search, and only entries from before the cut are read
+        int from = Math.min(account.findTransaction(dayStart), cut.numOfTrans);
+        int to = Math.min(account.findTransaction(dayEnd), cut.numOfTrans);
+        if (from < to){
+            int block = Math.min(256, to - from);
+            long timestamps[] = new long[block];
+            long amounts[] = new long[block];
+            String locations[] = new String[block];
+            String memos[] = new String[block];
+            for (int start = from; start < to; start += block){
+                int count = Math.min(block, to - start);
+                account.copyTransactions(start, count, timestamps, amounts, locations, memos);
+                for (int i = 0; i < count; i++){
+                    if (amounts[i] >= 0){
+                        m_dayIn = Money.add(m_dayIn, amounts[i]);
+                    } else {
+                        m_dayOut = Money.add(m_dayOut, amounts[i]);
+                    }
+                }
+            }
+            m_dayTrans += to - from;
+        }
+    }
+
+    /**
+     * Adds totals from another part of the parallel pass
+     * @param other Totals of other accounts
+     */
+    private void merge(EndOfDay other){
+        m_numOfAccounts += other.m_numOfAccounts;
+        m_totalHeld = Money.add(m_totalHeld, other.m_totalHeld);
+        m_ledgerTotal = Money.add(m_ledgerTotal, other.m_ledgerTotal);
+        m_interestAccrued = Money.add(m_interestAccrued, other.m_interestAccrued);
+        for (Map.Entry<String, long[]> entry : other.m_byType.entrySet()){
+            long type[] = m_byType.computeIfAbsent(entry.getKey(), key -> new long[2]);
+            type[0] += entry.getValue()[0];
+            type[1] = Money.add(type[1], entry.getValue()[1]);
+        }
+        m_numOfOverdrawn += other.m_numOfOverdrawn;
+        m_overdrawn.addAll(other.m_overdrawn.subList(0, Math.min(other.m_overdrawn.size(), Math.max(0, MAX_LISTED - m_overdrawn.size()))));
+        m_numOfUnreconciled += other.m_numOfUnreconciled;
+        m_unreconciled.addAll(other.m_unreconciled.subList(0, Math.min(other.m_unreconciled.size(), Math.max(0, MAX_LISTED - m_unreconciled.size()))));
+        m_dayIn = Money.add(m_dayIn, other.m_dayIn);
+        m_dayOut = Money.add(m_dayOut, other.m_dayOut);
+        m_dayTrans += other.m_dayTrans;
+    }
+
+    /**
+     * Checks that every balance matches its ledger, and so the bank's total matches the ledgers' total
+     * @return true if reconciled
+     */
+    public boolean isReconciled(){
+        return m_numOfUnreconciled == 0 && m_totalHeld == m_ledgerTotal;
+    }
+
+    /**
+     * Returns total balance of every account
+     * @return amount in cents
+     */
+    public long getTotalHeld(){
+        return m_totalHeld;
+    }
+
+    /**
+     * Returns total of every ledger entry
+     * @return amount in cents
+     */
+    public long getLedgerTotal(){
+        return m_ledgerTotal;
+    }
+
+    /**
+     * Returns interest accrued but not yet posted to accounts
+     * @return amount in cents, negative if charges outweigh interest paid
+     */
+    public long getInterestAccrued(){
+        return m_interestAccrued;
+    }
+
+    /**
+     * Returns total balance of one account type
+     * @param type  Account type, such as Chequing
+     * @return      amount in cents
+     */
+    public long getTotalHeld(String type){
+        long totals[] = m_byType.get(type);
+        return (totals != null) ? totals[1] : 0;
+    }
+
+    /**
+     * Returns number of overdrawn accounts
+     * @return count
+     */
+    public long getNumOfOverdrawn(){
+        return m_numOfOverdrawn;
+    }
+
+    /**
+     * Returns money that came in during the day
+     * @return amount in cents
+     */
+    public long getDayIn(){
+        return m_dayIn;
+    }
+
+    /**
+     * Returns money that went out during the day
+     * @return amount in cents, negative
+     */
+    public long getDayOut(){
+        return m_dayOut;
+    }
+
+    /**
+     * Prints the report
+     */
+    public void print(){
+        StringBuilder str = new StringBuilder(1024);
+        str.append("End of day ").append(m_date).append('\n');
+        str.append("------------------------\n");
+        str.append("Accounts: ").append(m_numOfAccounts).append('\n');
+        str.append("Total held: $").append(Money.format(m_totalHeld)).append('\n');
+        for (Map.Entry<String, long[]> entry : m_byType.entrySet()){
+            str.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()[0]).append(" accounts, $")
+                .append(Money.format(entry.getValue()[1])).append('\n');
+        }
+        str.append("Overdrawn accounts: ").append(m_numOfOverdrawn).append('\n');
+        for (String line : m_overdrawn){
+            str.append("  ").append(line).append('\n');
+        }
+        str.append("Movement: $").append(Money.format(m_dayIn)).append(" in, $").append(Money.format(m_dayOut))
+            .append(" out, over ").append(m_dayTrans).append(" transactions\n");
+        str.append("Interest accrued, not yet posted: $").append(Money.format(m_interestAccrued)).append('\n');
+        str.append("Ledger total: $").append(Money.format(m_ledgerTotal)).append('\n');
+        if (isReconciled()){
+            str.append("Reconciled\n");
+        } else {
+            str.append("NOT reconciled, ").append(m_numOfUnreconciled).append(" accounts differ from their ledger\n");
+            for (String line : m_unreconciled){
+                str.append("  ").append(line).append('\n');
+            }
+        }
+        str.append(String.format("Updates paused for %.1f ms, finished in %.1f ms%n", m_pauseNanos / 1e6, m_elapsedNanos / 1e6));
+        System.out.print(str);
+    }
+
+    public static void main(String[] args) {
+        String dir = "bankdata";
+        LocalDate date = LocalDate.now(ZONE);
+        for (String arg : args){
+            String pair[] = arg.split("=", 2);
+            switch (pair[0]){
+                case "dir":
+                    dir = pair[1];
+                    break;
+                case "date":
+                    date = LocalDate.parse(pair[1]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    System.exit(1);
+            }
+        }
+
+        try {
+            Bank bank = Bank.open("Bank of Money", Paths.get(dir), Journal.SyncPolicy.GROUP_COMMIT);
+            EndOfDay.run(bank, date).print();
+            bank.close();
+        } catch (IOException e) {
+            System.err.println("Unable to open bank data: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Transaction history of one account kept in memory-mapped files instead of on the heap
+ * Every record is 28 bytes: long timestamp, long amount in cents, int location ID, int memo ID, int counterparty
+ * Records are stored in blocks of the Bank's HistoryStore, shared with other accounts, and reads go straight to
+ * the mapped pages; only the list of blocks stays on the heap, 4 bytes per HistoryStore.BLOCK_RECORDS records,
+ * though the Ledger's LedgerIndex still keeps 8 bytes or more per record on the heap for search
+ * Not thread safe, the owning Account's lock guards it
+ */
+public class HistoryFile {
+    /**
+     * Size of one record in bytes
+     */
+    public static final int RECORD_BYTES = 28;
+
+    /**
+     * Store holding the records
+     */
+    private HistoryStore m_store;
+
+    /**
+     * Blocks holding the records, in order
+     */
+    private int m_blocks[];
+
+    /**
+     * Number of blocks in m_blocks
+     */
+    private int m_numOfBlocks;
+
+    /**
+     * Number of records
+     */
+    private int m_size;
+
+    /**
+     * Constructor, creates an empty history
+     * @param store Store holding the records
+     */
+    public HistoryFile(HistoryStore store){
+        m_store = store;
+        m_blocks = new int[4];
+        m_numOfBlocks = 0;
+        m_size = 0;
+    }
+
+    /**
+     * Appends a record
+     * @param timestamp     Time in milliseconds since epoch
+     * @param amount        Amount in cents
+     * @param locationID    Location ID in the Ledger's StringTable
+     * @param memoID        Memo ID in the Ledger's StringTable
+     * @param counterparty  Other account's packed number, 0 for none
+     */
+    public void append(long timestamp, long amount, int locationID, int memoID, int counterparty){
+        if (m_size == m_numOfBlocks * HistoryStore.BLOCK_RECORDS){
+            if (m_numOfBlocks == m_blocks.length){
+                m_blocks = Arrays.copyOf(m_blocks, m_numOfBlocks * 2);
+            }
+            m_blocks[m_numOfBlocks++] = m_store.allocate();
+        }
+        int block = m_blocks[m_size / HistoryStore.BLOCK_RECORDS];
+        MappedByteBuffer buf = m_store.window(block);
+        int offset = HistoryStore.offsetOf(block, m_size % HistoryStore.BLOCK_RECORDS);
+        buf.putLong(offset, timestamp);
+        buf.putLong(offset + 8, amount);
+        buf.putInt(offset + 16, locationID);
+        buf.putInt(offset + 20, memoID);
+        buf.putInt(offset + 24, counterparty);
+        m_size++;
+    }
+
+    /**
+     * Returns number of records
+     * @return m_size
+     */
+    public int size(){
+        return m_size;
+    }
+
+    /**
+     * Returns timestamp of a record
+     * @param index Record index
+     * @return      Time in milliseconds since epoch
+     */
+    public long getTimestamp(int index){
+        return windowOf(index).getLong(offsetOf(index));
+    }
+
+    /**
+     * Returns amount of a record
+     * @param index Record index
+     * @return      Amount in cents
+     */
+    public long getAmount(int index){
+        return windowOf(index).getLong(offsetOf(index) + 8);
+    }
+
+    /**
+     * Returns location ID of a record
+     * @param index Record index
+     * @return      Location ID
+     */
+    public int getLocationID(int index){
+        return windowOf(index).getInt(offsetOf(index) + 16);
+    }
+
+    /**
+     * Returns memo ID of a record
+     * @param index Record index
+     * @return      Memo ID
+     */
+    public int getMemoID(int index){
+        return windowOf(index).getInt(offsetOf(index) + 20);
+    }
+
+    /**
+     * Returns counterparty of a record
+     * @param index Record index
+     * @return      Other account's packed number, 0 for none
+     */
+    public int getCounterparty(int index){
+        return windowOf(index).getInt(offsetOf(index) + 24);
+    }
+
+    /**
+     * Gives the blocks back to the store, such as when the account is deleted
+     */
+    public void delete(){
+        m_store.free(m_blocks, m_numOfBlocks);
+        m_numOfBlocks = 0;
+        m_size = 0;
+    }
+
+    /**
+     * Returns the mapped window holding a record
+     * @param index Record index
+     * @return      Window
+     */
+    private MappedByteBuffer windowOf(int index){
+        if (index < 0 || index >= m_size){
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for history size " + m_size);
+        }
+        return m_store.window(m_blocks[index / HistoryStore.BLOCK_RECORDS]);
+    }
+
+    /**
+     * Returns byte offset of a record within its window
+     * @param index Record index
+     * @return      Offset in bytes
+     */
+    private int offsetOf(int index){
+        return HistoryStore.offsetOf(m_blocks[index / HistoryStore.BLOCK_RECORDS], index % HistoryStore.BLOCK_RECORDS);
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared files holding the transaction history of every account that outgrew the heap, for one Bank
+ * History is stored in blocks of BLOCK_RECORDS records, and an account's HistoryFile lists the blocks it owns,
+ * so many accounts share a few large files instead of each keeping a file open
+ * Files are mapped a window at a time, and only the MAX_WINDOWS most recently used windows stay mapped;
+ * a file's channel is closed as soon as a window of it is mapped
+ * Thread safe, each HistoryFile is still guarded by its Account's lock
+ */
+public class HistoryStore {
+    /**
+     * Number of records in one block
+     */
+    public static final int BLOCK_RECORDS = 1024;
+
+    /**
+     * Size of one block in bytes
+     */
+    private static final int BLOCK_BYTES = BLOCK_RECORDS * HistoryFile.RECORD_BYTES;
+
+    /**
+     * Number of blocks in one mapped window
+     */
+    private static final int WINDOW_BLOCKS = 64;
+
+    /**
+     * Number of windows in one file
+     */
+    private static final int FILE_WINDOWS = 32;
+
+    /**
+     * Most windows kept mapped, about 450 MB
+     */
+    private static final int MAX_WINDOWS = 256;
+
+    /**
+     * A mapped window and when it was last used
+     */
+    private static class Window {
+        MappedByteBuffer buf;
+        volatile long used;
+    }
+
+    /**
+     * Directory of the files
+     */
+    private Path m_dir;
+
+    /**
+     * Mapped windows by window number
+     */
+    private ConcurrentHashMap<Integer, Window> m_windows;
+
+    /**
+     * Blocks freed by deleted accounts, reused before new ones
+     * Guarded by this
+     */
+    private int m_free[];
+    private int m_numOfFree;
+
+    /**
+     * Next block never handed out
+     * Guarded by this
+     */
+    private int m_nextBlock;
+
+    /**
+     * Constructor, files are created in dir as blocks are needed
+     * @param dir Directory of the files, which should hold no old ones
+     */
+    public HistoryStore(Path dir){
+        m_dir = dir;
+        m_windows = new ConcurrentHashMap<Integer, Window>();
+        m_free = new int[16];
+    }
+
+    /**
+     * Takes a free block
+     * @return Block number
+     */
+    public synchronized int allocate(){
+        if (m_numOfFree > 0){
+            return m_free[--m_numOfFree];
+        }
+        return m_nextBlock++;
+    }
+
+    /**
+     * Returns blocks for reuse, such as when their account is deleted
+     * @param blocks    Block numbers
+     * @param count     Number of blocks
+     */
+    public synchronized void free(int blocks[], int count){
+        if (m_numOfFree + count > m_free.length){
+            m_free = Arrays.copyOf(m_free, Math.max(m_free.length * 2, m_numOfFree + count));
+        }
+        System.arraycopy(blocks, 0, m_free, m_numOfFree, count);
+        m_numOfFree += count;
+    }
+
+    /**
+     * Returns the mapped window holding a record, mapping it if needed
+     * @param block Block number
+     * @return      Window, read and written at offsetOf(block, record)
+     */
+    public MappedByteBuffer window(int block){
+        int windowNum = block / WINDOW_BLOCKS;
+        Window window = m_windows.get(windowNum);
+        if (window == null){
+            window = map(windowNum);
+        }
+        window.used = System.nanoTime();
+        return window.buf;
+    }
+
+    /**
+     * Returns byte offset of a record within its block's window
+     * @param block     Block number
+     * @param record    Record number within the block
+     * @return          Offset in bytes
+     */
+    public static int offsetOf(int block, int record){
+        return (block % WINDOW_BLOCKS) * BLOCK_BYTES + record * HistoryFile.RECORD_BYTES;
+    }
+
+    /**
+     * Returns number of windows mapped
+     * @return count
+     */
+    public int getMappedWindows(){
+        return m_windows.size();
+    }
+
+    /**
+     * Maps a window, first dropping the least recently used one if MAX_WINDOWS are mapped
+     * A dropped window is unmapped once no reader holds it any more
+     * @param windowNum Window number
+     * @return          Window
+     */
+    private synchronized Window map(int windowNum){
+        Window window = m_windows.get(windowNum);
+        if (window != null){
+            return window;
+        }
+        if (m_windows.size() >= MAX_WINDOWS){
+            Map.Entry<Integer, Window> oldest = null;
+            for (Map.Entry<Integer, Window> entry : m_windows.entrySet()){
+                if (oldest == null || entry.getValue().used < oldest.getValue().used){
+                    oldest = entry;
+                }
+            }
+            m_windows.remove(oldest.getKey());
+        }
+
+        Path path = m_dir.resolve("history-" + windowNum / FILE_WINDOWS + ".dat");
+        long start = (long) (windowNum % FILE_WINDOWS) * WINDOW_BLOCKS * BLOCK_BYTES;
+        //The mapping stays valid once the channel is closed; mapping past the end of the file grows it
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            window = new Window();
+            window.buf = channel.map(FileChannel.MapMode.READ_WRITE, start, (long) WINDOW_BLOCKS * BLOCK_BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        m_windows.put(windowNum, window);
+        return window;
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Hands out unique IDs from a fixed range in constant time
+ * IDs are picked by walking a keyed random permutation of the range, so consecutive IDs do not look sequential
+ * and no ID is ever drawn twice, unlike generating random numbers and retrying on repeats
+ * The permutation is a small Feistel network over the next even power of 2, and results outside the range
+ * are fed back in until they land inside it, which takes less than 4 rounds on average
+ */
+public class IdAllocator {
+    /**
+     * Smallest ID in the range
+     */
+    private int m_min;
+
+    /**
+     * Number of IDs in the range
+     */
+    private int m_size;
+
+    /**
+     * Number of bits in each half of the Feistel network
+     */
+    private int m_halfBits;
+
+    /**
+     * Random keys, one per Feistel round
+     */
+    private int m_keys[];
+
+    /**
+     * How many positions of the permutation have been used
+     */
+    private long m_position;
+
+    /**
+     * IDs that are taken, either handed out or reserved
+     */
+    private BitSet m_taken;
+
+    /**
+     * Number of IDs taken
+     */
+    private int m_numTaken;
+
+    /**
+     * Extra draws made by next(): positions skipped because their ID was reserved, and Feistel passes
+     * fed back in because they landed outside the range
+     */
+    private long m_retries;
+
+    /**
+     * Constructor, sets up a random permutation over min ~ min + size - 1
+     * @param min  Smallest ID
+     * @param size Number of IDs
+     */
+    public IdAllocator(int min, int size){
+        if (size <= 0){
+            throw new IllegalArgumentException("ID range must not be empty");
+        }
+        m_min = min;
+        m_size = size;
+        m_taken = new BitSet(size);
+
+        //Smallest even number of bits that covers the range
+        int bits = 2;
+        while ((1L << bits) < size){
+            bits += 2;
+        }
+        m_halfBits = bits / 2;
+
+        Random rand = new Random();
+        m_keys = new int[4];
+        for (int i = 0; i < m_keys.length; i++){
+            m_keys[i] = rand.nextInt();
+        }
+    }
+
+    /**
+     * Creates an allocator for all IDs with the given number of digits, e.g. 5 digits is 10000 ~ 99999
+     * @param digits Number of digits, 1 ~ 9
+     * @return       new IdAllocator
+     */
+    public static IdAllocator ofDigits(int digits){
+        if (digits < 1 || digits > 9){
+            throw new IllegalArgumentException("Digits must be 1 ~ 9");
+        }
+        int min = (int) Math.pow(10, digits - 1);
+        return new IdAllocator(min, min * 9);
+    }
+
+    /**
+     * Returns the next unused ID
+     * @return id
+     * @throws IllegalStateException if every ID in the range is taken
+     */
+    public synchronized int next(){
+        if (m_numTaken == m_size){
+            throw new IllegalStateException("ID space exhausted (" + m_size + " IDs)");
+        }
+
+        //Positions whose ID was reserved are skipped, each position is only visited once
+        int index = permute(m_position++);
+        while (m_taken.get(index)){
+            m_retries++;
+            index = permute(m_position++);
+        }
+
+        m_taken.set(index);
+        m_numTaken++;
+        return m_min + index;
+    }
+
+    /**
+     * Marks an existing ID as taken, such as one restored from storage
+     * @param id ID to reserve
+     * @return   true if the ID was free
+     */
+    public synchronized boolean reserve(int id){
+        int index = id - m_min;
+        if (index < 0 || index >= m_size){
+            throw new IllegalArgumentException("ID " + id + " is out of range");
+        }
+        if (m_taken.get(index)){
+            return false;
+        }
+        m_taken.set(index);
+        m_numTaken++;
+        return true;
+    }
+
+    /**
+     * Checks if id is taken
+     * @param id ID to check
+     * @return   true for taken
+     */
+    public synchronized boolean isTaken(int id){
+        int index = id - m_min;
+        return index >= 0 && index < m_size && m_taken.get(index);
+    }
+
+    /**
+     * Returns the number of IDs that can still be handed out
+     * @return remaining IDs
+     */
+    public synchronized int getRemaining(){
+        return m_size - m_numTaken;
+    }
+
+    /**
+     * Returns the number of extra draws next() has made, for metrics
+     * @return retries
+     */
+    public synchronized long getRetries(){
+        return m_retries;
+    }
+
+    /**
+     * Maps a position in 0 ~ m_size - 1 to a unique index in the same range
+     * @param position Position in the permutation
+     * @return         index
+     */
+    private int permute(long position){
+        long value = feistel(position);
+        while (value >= m_size){
+            m_retries++;
+            value = feistel(value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * One pass of the Feistel network, a bijection on 0 ~ 2^(2 * m_halfBits) - 1
+     * @param value Input value
+     * @return      Scrambled value
+     */
+    private long feistel(long value){
+        long mask = (1L << m_halfBits) - 1;
+        long left = value >>> m_halfBits;
+        long right = value & mask;
+        for (int key : m_keys){
+            long mixed = (right * 0x9E3779B1L + key) & 0xFFFFFFFFL;
+            mixed ^= mixed >>> 15;
+            long next = left ^ (mixed & mask);
+            left = right;
+            right = next;
+        }
+        return (left << m_halfBits) | right;
+    }
+}
@@ -0,0 +1,885 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of every change made to a Bank
+ * A change is appended here before it is reported to the user, so that the Bank can be rebuilt after a restart
+ * The log is split into numbered segment files, journal-<n>.log; a snapshot numbered n covers all segments before n
+ * Each record is framed as [int length][payload][int CRC32], a torn record at the end of a segment is ignored
+ * A change is logged before it is applied, while its locks are held, and its session then waits with awaitDurable
+ * once they are released; a log method only appends to memory, so it cannot fail part way through a change
+ * Records are numbered in order, and each segment starts with a SEQ header giving the number of the record before it,
+ * so the numbers carry on across restarts; the header is not a change and is not numbered itself
+ */
+public class Journal {
+    /**
+     * When appended records are forced to disk
+     */
+    public enum SyncPolicy {
+        /**
+         * Each record is written and forced on its own
+         */
+        FSYNC_PER_OP,
+
+        /**
+         * Records from concurrent sessions are collected and forced together with one fsync
+         */
+        GROUP_COMMIT
+    }
+
+    //Record types
+    public static final byte USER = 1;
+    public static final byte OPEN_ACCOUNT = 2;
+    public static final byte DELETE_ACCOUNT = 3;
+    public static final byte CREDIT = 4;
+    public static final byte DEBIT = 5;
+    public static final byte TRANSACTION = 6;
+    public static final byte POST = 7;
+    public static final byte TRANSFER = 8;
+    public static final byte PIN = 9;
+    public static final byte TRANSFER_BATCH = 10;
+    public static final byte ACCRUE = 11;
+    public static final byte ORDER_ADD = 12;
+    public static final byte ORDER_CANCEL = 13;
+    public static final byte ORDERS_RUN = 14;
+    public static final byte SEQ = 15;
+    public static final byte TRANSFER_SEND = 16;
+    public static final byte TRANSFER_RECEIVE = 17;
+    public static final byte TRANSFER_DONE = 18;
+
+    /**
+     * Directory holding the segment files
+     */
+    private Path m_dir;
+
+    /**
+     * When records are forced to disk
+     */
+    private SyncPolicy m_policy;
+
+    /**
+     * Number of the segment being appended to
+     */
+    private long m_segment;
+
+    /**
+     * Channel of the segment being appended to
+     */
+    private FileChannel m_channel;
+
+    /**
+     * Framed records waiting to be written, used by GROUP_COMMIT
+     */
+    private ByteArrayOutputStream m_pending;
+
+    /**
+     * Sequence number of the last appended record
+     */
+    private long m_appendedSeq;
+
+    /**
+     * Sequence number of the last record forced to disk
+     */
+    private volatile long m_durableSeq;
+
+    /**
+     * Set once records could not be written or forced, after which no more are accepted
+     */
+    private volatile boolean m_failed;
+
+    /**
+     * Number of records appended to the current segment
+     */
+    private long m_segmentRecords;
+
+    /**
+     * Held by the session currently forcing records to disk
+     */
+    private Object m_syncLock;
+
+    /**
+     * Ships every appended record to followers, null if the Bank is not replicated
+     */
+    private ReplicationLeader m_leader;
+
+    /**
+     * Constructor, opens a new segment for appending, with records numbered from 1
+     * @param dir       Directory of segment files
+     * @param segment   Number of the new segment
+     * @param policy    When records are forced to disk
+     * @throws IOException if the segment cannot be created
+     */
+    public Journal(Path dir, long segment, SyncPolicy policy) throws IOException {
+        this(dir, segment, 0, policy);
+    }
+
+    /**
+     * Constructor, opens a new segment for appending
+     * @param dir       Directory of segment files
+     * @param segment   Number of the new segment
+     * @param seq       Sequence number of the last record before the new segment, as returned by replay
+     * @param policy    When records are forced to disk
+     * @throws IOException if the segment cannot be created
+     */
+    public Journal(Path dir, long segment, long seq, SyncPolicy policy) throws IOException {
+        m_dir = dir;
+        m_policy = policy;
+        m_appendedSeq = seq;
+        m_durableSeq = seq;
+        m_pending = new ByteArrayOutputStream(64 * 1024);
+        m_syncLock = new Object();
+        openSegment(segment);
+    }
+
+    /**
+     * Returns path of a segment file
+     * @param dir     Directory of segment files
+     * @param segment Segment number
+     * @return        Path of journal-<segment>.log
+     */
+    public static Path segmentPath(Path dir, long segment){
+        return dir.resolve("journal-" + segment + ".log");
+    }
+
+    /**
+     * Returns the number of the segment being appended to
+     * @return m_segment
+     */
+    public synchronized long getSegment(){
+        return m_segment;
+    }
+
+    /**
+     * Returns number of records appended to the current segment
+     * @return m_segmentRecords
+     */
+    public synchronized long getSegmentRecords(){
+        return m_segmentRecords;
+    }
+
+    /**
+     * Returns the sequence number of the last appended record, counted from 1 in the Bank's first segment
+     * @return m_appendedSeq
+     */
+    public synchronized long getAppendedSeq(){
+        return m_appendedSeq;
+    }
+
+    /**
+     * Starts or stops shipping appended records to a replication leader
+     * @param leader Leader, told the sequence number records start after; null to stop
+     */
+    synchronized void setReplicationLeader(ReplicationLeader leader){
+        m_leader = leader;
+        if (leader != null){
+            leader.attach(m_appendedSeq);
+        }
+    }
+
+    /**
+     * Logs a new User
+     * @param userID    User ID
+     * @param fName     First name
+     * @param lName     Last name
+     * @param pin       Hash of the User's PIN
+     * @return          Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logUser(int userID, String fName, String lName, byte pin[]){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(USER);
+            out.writeInt(userID);
+            out.writeUTF(fName);
+            out.writeUTF(lName);
+            out.writeShort(pin.length);
+            out.write(pin);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs a User's new PIN hash
+     * @param userID    User ID
+     * @param pin       Hash of the User's PIN
+     * @return          Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logPin(int userID, byte pin[]){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(PIN);
+            out.writeInt(userID);
+            out.writeShort(pin.length);
+            out.write(pin);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs a new account opened for a User
+     * @param userID    Owner's User ID
+     * @param accNum    Account number
+     * @param type      Account type
+     * @return          Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logOpenAccount(int userID, String accNum, String type){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(OPEN_ACCOUNT);
+            out.writeInt(userID);
+            out.writeUTF(accNum);
+            out.writeUTF(type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs a deleted account
+     * @param userID    Owner's User ID
+     * @param accNum    Account number
+     * @return          Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logDeleteAccount(int userID, String accNum){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(DELETE_ACCOUNT);
+            out.writeInt(userID);
+            out.writeUTF(accNum);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs a credit or debit without a Transaction
+     * The timestamp goes last, as records written before it was added end after the amount
+     * @param type      CREDIT or DEBIT
+     * @param accNum    Account number
+     * @param timestamp Time in milliseconds since epoch, for the account's running totals
+     * @param amount    Amount in cents
+     * @return          Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logBalance(byte type, String accNum, long timestamp, long amount){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeUTF(accNum);
+            out.writeLong(amount);
+            out.writeLong(timestamp);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs a Transaction, which changes the balance as well if type is POST
+     * @param type      TRANSACTION or POST
+     * @param accNum    Account number
+     * @param timestamp Time in milliseconds since epoch
+     * @param location  Location of transaction
+     * @param amount    Amount in cents
+     * @param memo      Memo, "" for none
+     * @return          Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logTransaction(byte type, String accNum, long timestamp, String location, long amount, String memo){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeUTF(accNum);
+            out.writeLong(timestamp);
+            out.writeUTF(location);
+            out.writeLong(amount);
+            out.writeUTF(memo);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs a transfer between two accounts
+     * @param srcAccNum     Source account number
+     * @param destAccNum    Destination account number
+     * @param timestamp     Time in milliseconds since epoch
+     * @param location      Location of transfer
+     * @param amount        Amount in cents
+     * @return              Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logTransfer(String srcAccNum, String destAccNum, long timestamp, String location, long amount){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(48);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(TRANSFER);
+            out.writeUTF(srcAccNum);
+            out.writeUTF(destAccNum);
+            out.writeLong(timestamp);
+            out.writeUTF(location);
+            out.writeLong(amount);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs interest accrued to an account, also written when an account starts accruing with no interest
+     * @param accNum    Account number
+     * @param timestamp Time of the interest Transaction in milliseconds since epoch
+     * @param accruedTo Time interest has been accrued up to
+     * @param amount    Interest in cents, 0 for none
+     * @param remainder Fraction of a cent carried to the next accrual
+     * @return          Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logAccrual(String accNum, long timestamp, long accruedTo, long amount, long remainder){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(48);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(ACCRUE);
+            out.writeUTF(accNum);
+            out.writeLong(timestamp);
+            out.writeLong(accruedTo);
+            out.writeLong(amount);
+            out.writeLong(remainder);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs a new standing order
+     * @param id            Order ID
+     * @param srcAccNum     Account number paid from
+     * @param destAccNum    Account number paid into
+     * @param amount        Amount in cents
+     * @param frequency     Frequency ordinal
+     * @param dayOfMonth    Day of month of a monthly order
+     * @param due           Epoch day of the first run
+     * @return              Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logOrderAdd(int id, String srcAccNum, String destAccNum, long amount, byte frequency, byte dayOfMonth, int due){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(48);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(ORDER_ADD);
+            out.writeInt(id);
+            out.writeUTF(srcAccNum);
+            out.writeUTF(destAccNum);
+            out.writeLong(amount);
+            out.writeByte(frequency);
+            out.writeByte(dayOfMonth);
+            out.writeInt(due);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs a cancelled standing order
+     * @param id Order ID
+     * @return   Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logOrderCancel(int id){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(ORDER_CANCEL);
+            out.writeInt(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs one side of a transfer between Banks with its TransferOutbox intent:
+     * money taken with the intent for TRANSFER_SEND, or credited with its ID for TRANSFER_RECEIVE
+     * @param type      Journal.TRANSFER_SEND or Journal.TRANSFER_RECEIVE
+     * @param intent    Intent
+     * @param timestamp Time of this side in milliseconds since epoch
+     * @return          Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logTransferIntent(byte type, TransferOutbox.Intent intent, long timestamp){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeLong(intent.id);
+            out.writeUTF(intent.srcAccNum);
+            out.writeUTF(intent.destAccNum);
+            out.writeLong(timestamp);
+            out.writeUTF(intent.location);
+            out.writeLong(intent.amount);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs a TransferOutbox intent marked done: a sent one credited or refunded, or a credited one forgotten
+     * @param id        Intent ID
+     * @param refund    true if the money goes back to the source account
+     * @param timestamp Time in milliseconds since epoch
+     * @return          Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logTransferDone(long id, boolean refund, long timestamp){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(TRANSFER_DONE);
+            out.writeLong(id);
+            out.writeBoolean(refund);
+            out.writeLong(timestamp);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs a group of standing order runs, whose transfers are made again from the orders on replay
+     * @param timestamp Time in milliseconds since epoch, shared by every run
+     * @param ids       Order ID of each run
+     * @param statuses  Outcome of each run
+     * @param count     Number of runs
+     * @return          Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logOrdersRun(long timestamp, int ids[], byte statuses[], int count){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + count * 5);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(ORDERS_RUN);
+            out.writeLong(timestamp);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++){
+                out.writeInt(ids[i]);
+                out.writeByte(statuses[i]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Logs the legs of a batch of multi-leg transfers as one record, so that on replay either all of them apply or none
+     * @param timestamp     Time in milliseconds since epoch, shared by every leg
+     * @param location      Location of the transfers
+     * @param srcAccNums    Source account number of each leg
+     * @param destAccNums   Destination account number of each leg
+     * @param amounts       Amount of each leg in cents
+     * @param count         Number of legs
+     * @return              Sequence number of the record, to wait for with awaitDurable
+     */
+    public long logTransferBatch(long timestamp, String location, String srcAccNums[], String destAccNums[], long amounts[], int count){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + count * 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(TRANSFER_BATCH);
+            out.writeLong(timestamp);
+            out.writeUTF(location);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++){
+                out.writeUTF(srcAccNums[i]);
+                out.writeUTF(destAccNums[i]);
+                out.writeLong(amounts[i]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return write(bytes.toByteArray());
+    }
+
+    /**
+     * Returns once a record is on disk
+     * Called after the locks taken for the change are released, so the fsync never holds up other sessions' accounts
+     * With GROUP_COMMIT, the first waiting session forces everything appended so far,
+     * and sessions whose records were included return without an fsync of their own
+     * @param seq Sequence number from a log method
+     * @throws UncheckedIOException if the records cannot be forced, after which the journal refuses new records
+     */
+    public void awaitDurable(long seq){
+        synchronized (m_syncLock){
+            if (m_policy == SyncPolicy.GROUP_COMMIT && m_durableSeq >= seq){
+                return;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Appends a record to the records waiting to be written, without waiting for it to reach disk
+     * @param payload Encoded record
+     * @return        Sequence number of the record
+     * @throws IllegalStateException if an earlier write failed, so the Bank is not changed past what is on disk
+     */
+    private synchronized long write(byte payload[]){
+        checkWritable();
+        ByteBuffer frame = frame(payload);
+        m_pending.write(frame.array(), 0, frame.capacity());
+        return m_appendedSeq;
+    }
+
+    /**
+     * Throws if an earlier write failed, for jobs that work out a change by applying it and log it afterwards
+     * @throws IllegalStateException if no more changes are accepted
+     */
+    public void checkWritable(){
+        if (m_failed){
+            throw new IllegalStateException("Journal failed to write, no more changes are accepted");
+        }
+    }
+
+    /**
+     * Appends a record copied from a replication leader without waiting for it to reach disk
+     * A follower appends every record that has arrived, then calls sync() once for all of them
+     * @param payload Encoded record
+     */
+    void append(byte payload[]){
+        write(payload);
+    }
+
+    /**
+     * Writes and forces every record appended so far
+     */
+    void sync(){
+        flush();
+    }
+
+    /**
+     * Frames a record and gives it the next sequence number, caller must hold this journal's lock
+     * @param payload   Encoded record
+     * @return          [int length][payload][int CRC32], positioned at its end
+     */
+    private ByteBuffer frame(byte payload[]){
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(payload.length + 8);
+        frame.putInt(payload.length).put(payload).putInt((int) crc.getValue());
+        m_segmentRecords++;
+        m_appendedSeq++;
+        if (m_leader != null){
+            m_leader.append(m_appendedSeq, payload);
+        }
+        return frame;
+    }
+
+    /**
+     * Writes and forces all pending records
+     */
+    private void flush(){
+        synchronized (m_syncLock){
+            byte batch[];
+            long upTo;
+            FileChannel channel;
+            synchronized (this){
+                batch = m_pending.toByteArray();
+                m_pending.reset();
+                upTo = m_appendedSeq;
+                channel = m_channel;
+            }
+            //Written outside of this lock, so other sessions keep appending to the next batch meanwhile
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(batch);
+                while (buf.hasRemaining()){
+                    channel.write(buf);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                //The batch's changes are in memory already; refusing more keeps the Bank from building on them
+                m_failed = true;
+                throw new UncheckedIOException(e);
+            }
+            m_durableSeq = upTo;
+        }
+    }
+
+    /**
+     * Closes the current segment and starts segment + 1
+     * Records appended before this call are in the old segment, records after it in the new one
+     * @return Number of the new segment
+     */
+    public long rotate(){
+        synchronized (m_syncLock){
+            flush();
+            synchronized (this){
+                try {
+                    m_channel.close();
+                    openSegment(m_segment + 1);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return m_segment;
+            }
+        }
+    }
+
+    /**
+     * Forces pending records and closes the journal
+     */
+    public void close(){
+        synchronized (m_syncLock){
+            flush();
+            synchronized (this){
+                try {
+                    m_channel.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a segment file for appending
+     * @param segment Segment number
+     */
+    private void openSegment(long segment) throws IOException {
+        m_segment = segment;
+        m_segmentRecords = 0;
+        m_channel = FileChannel.open(segmentPath(m_dir, segment),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        //Forced along with the first record after it
+        byte header[] = ByteBuffer.allocate(9).put(SEQ).putLong(m_appendedSeq).array();
+        CRC32 crc = new CRC32();
+        crc.update(header);
+        ByteBuffer frame = ByteBuffer.allocate(header.length + 8);
+        frame.putInt(header.length).put(header).putInt((int) crc.getValue()).flip();
+        writeFully(frame);
+    }
+
+    /**
+     * Writes all of buf to the current segment
+     * @param buf Bytes to write
+     */
+    private void writeFully(ByteBuffer buf){
+        try {
+            while (buf.hasRemaining()){
+                m_channel.write(buf);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Applies every record of a segment file to bank
+     * Stops at the first incomplete or corrupt record, which is what a crash mid-write leaves behind
+     * @param file  Segment file
+     * @param bank  Bank to apply records to
+     * @param seq   Sequence number of the last record before the segment, used if it has no SEQ header
+     * @return      Sequence number of the last record applied
+     * @throws IOException if the file cannot be read
+     */
+    public static long replay(Path file, Bank bank, long seq) throws IOException {
+        try (InputStream fileIn = Files.newInputStream(file)){
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn, 1 << 16));
+            byte payload[] = new byte[256];
+            CRC32 crc = new CRC32();
+            while (true){
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > (1 << 20)){
+                        break;
+                    }
+                    if (payload.length < length){
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+                    int check = in.readInt();
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if (check != (int) crc.getValue()){
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                if (payload[0] == SEQ){
+                    seq = ByteBuffer.wrap(payload, 1, 8).getLong();
+                    continue;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload, 0, length)), bank);
+                seq++;
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * Decodes one record and applies it to bank, such as one copied from a replication leader
+     * @param payload   Encoded record
+     * @param length    Length of the record in payload
+     * @param bank      Bank to apply record to
+     * @throws IOException if the record is malformed
+     */
+    static void apply(byte payload[], int length, Bank bank) throws IOException {
+        apply(new DataInputStream(new ByteArrayInputStream(payload, 0, length)), bank);
+    }
+
+    /**
+     * Decodes one record and applies it to bank
+     * @param in    Record payload
+     * @param bank  Bank to apply record to
+     */
+    private static void apply(DataInputStream in, Bank bank) throws IOException {
+        byte type = in.readByte();
+        switch (type){
+            case USER: {
+                int userID = in.readInt();
+                String fName = in.readUTF();
+                String lName = in.readUTF();
+                byte pin[] = new byte[in.readShort()];
+                in.readFully(pin);
+                bank.replayUser(userID, fName, lName, pin);
+                break;
+            }
+            case PIN: {
+                int userID = in.readInt();
+                byte pin[] = new byte[in.readShort()];
+                in.readFully(pin);
+                bank.replayPin(userID, pin);
+                break;
+            }
+            case OPEN_ACCOUNT: {
+                int userID = in.readInt();
+                String accNum = in.readUTF();
+                bank.replayOpenAccount(userID, accNum, in.readUTF());
+                break;
+            }
+            case DELETE_ACCOUNT: {
+                int userID = in.readInt();
+                bank.replayDeleteAccount(userID, in.readUTF());
+                break;
+            }
+            case CREDIT:
+            case DEBIT: {
+                String accNum = in.readUTF();
+                long amount = in.readLong();
+                amount = (type == CREDIT) ? amount : Money.negate(amount);
+                if (in.available() >= 8){
+                    bank.replayCredit(accNum, in.readLong(), amount);
+                } else {
+                    //Written without a timestamp, so it cannot be placed in the running totals
+                    bank.replayBalance(accNum, amount);
+                }
+                break;
+            }
+            case TRANSACTION:
+            case POST: {
+                String accNum = in.readUTF();
+                long timestamp = in.readLong();
+                String location = in.readUTF();
+                long amount = in.readLong();
+                String memo = in.readUTF();
+                bank.replayTransaction(accNum, timestamp, location, amount, memo, type == POST);
+                break;
+            }
+            case TRANSFER: {
+                String srcAccNum = in.readUTF();
+                String destAccNum = in.readUTF();
+                long timestamp = in.readLong();
+                String location = in.readUTF();
+                bank.replayTransfer(srcAccNum, destAccNum, timestamp, location, in.readLong());
+                break;
+            }
+            case TRANSFER_BATCH: {
+                long timestamp = in.readLong();
+                String location = in.readUTF();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++){
+                    String srcAccNum = in.readUTF();
+                    String destAccNum = in.readUTF();
+                    bank.replayTransfer(srcAccNum, destAccNum, timestamp, location, in.readLong());
+                }
+                break;
+            }
+            case ACCRUE: {
+                String accNum = in.readUTF();
+                long timestamp = in.readLong();
+                long accruedTo = in.readLong();
+                long amount = in.readLong();
+                bank.replayAccrual(accNum, timestamp, accruedTo, amount, in.readLong());
+                break;
+            }
+            case ORDER_ADD: {
+                int id = in.readInt();
+                String srcAccNum = in.readUTF();
+                String destAccNum = in.readUTF();
+                long amount = in.readLong();
+                byte frequency = in.readByte();
+                byte dayOfMonth = in.readByte();
+                bank.replayOrderAdd(id, srcAccNum, destAccNum, amount, frequency, dayOfMonth, in.readInt());
+                break;
+            }
+            case ORDER_CANCEL:
+                bank.getStandingOrders().replayCancel(in.readInt());
+                break;
+            case ORDERS_RUN: {
+                long timestamp = in.readLong();
+                int count = in.readInt();
+                int ids[] = new int[count];
+                byte statuses[] = new byte[count];
+                for (int i = 0; i < count; i++){
+                    ids[i] = in.readInt();
+                    statuses[i] = in.readByte();
+                }
+                bank.getStandingOrders().replayRun(timestamp, ids, statuses, count);
+                break;
+            }
+            case TRANSFER_SEND:
+            case TRANSFER_RECEIVE: {
+                long id = in.readLong();
+                String srcAccNum = in.readUTF();
+                String destAccNum = in.readUTF();
+                long timestamp = in.readLong();
+                String location = in.readUTF();
+                TransferOutbox.Intent intent = new TransferOutbox.Intent(id, srcAccNum, destAccNum, timestamp, location, in.readLong());
+                if (type == TRANSFER_SEND){
+                    bank.replayTransferSend(intent);
+                } else {
+                    bank.replayTransferReceive(intent, timestamp);
+                }
+                break;
+            }
+            case TRANSFER_DONE: {
+                long id = in.readLong();
+                boolean refund = in.readBoolean();
+                bank.getTransferOutbox().replayDone(id, refund, in.readLong());
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, with fixed memory and about 1.5% precision
+ * Values are counted in log-linear buckets: each power of 2 is split into 64 equal sub-buckets,
+ * which is how HDR histograms keep relative error constant from nanoseconds to minutes
+ * Safe to record from many threads at once
+ */
+public class LatencyHistogram {
+    /**
+     * Sub-buckets per power of 2, as a power of 2
+     */
+    private static final int SUB_BITS = 6;
+
+    /**
+     * Sub-buckets per power of 2
+     */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * Counts per bucket
+     */
+    private AtomicLongArray m_counts;
+
+    /**
+     * Constructor, creates an empty histogram covering 0 ~ Long.MAX_VALUE
+     */
+    public LatencyHistogram(){
+        m_counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_COUNT);
+    }
+
+    /**
+     * Records one value
+     * @param nanos Latency in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos){
+        m_counts.incrementAndGet(bucketOf(Math.max(0, nanos)));
+    }
+
+    /**
+     * Adds every count of other into this histogram
+     * @param other Histogram to add
+     */
+    public void add(LatencyHistogram other){
+        for (int i = 0; i < m_counts.length(); i++){
+            long count = other.m_counts.get(i);
+            if (count != 0){
+                m_counts.addAndGet(i, count);
+            }
+        }
+    }
+
+    /**
+     * Returns number of recorded values
+     * @return count
+     */
+    public long getCount(){
+        long total = 0;
+        for (int i = 0; i < m_counts.length(); i++){
+            total += m_counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the value below which a fraction of recorded values fall
+     * @param fraction Fraction such as 0.5 for the median or 0.999
+     * @return         Latency in nanoseconds, the upper end of its bucket, 0 if empty
+     */
+    public long getPercentile(double fraction){
+        long total = getCount();
+        if (total == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < m_counts.length(); i++){
+            seen += m_counts.get(i);
+            if (seen >= rank){
+                return upperOf(i);
+            }
+        }
+        return upperOf(m_counts.length() - 1);
+    }
+
+    /**
+     * Returns the largest recorded value, to bucket precision
+     * @return Latency in nanoseconds, 0 if empty
+     */
+    public long getMax(){
+        for (int i = m_counts.length() - 1; i >= 0; i--){
+            if (m_counts.get(i) != 0){
+                return upperOf(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the bucket of a value
+     * Values below SUB_COUNT get a bucket each, larger values share a bucket with their neighbours
+     * @param value Non negative value
+     * @return      Bucket index
+     */
+    private static int bucketOf(long value){
+        if (value < SUB_COUNT){
+            return (int) value;
+        }
+        //Keeps the top SUB_BITS + 1 bits, so value >>> shift is in SUB_COUNT ~ 2 * SUB_COUNT - 1
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_COUNT + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the largest value of a bucket
+     * @param bucket Bucket index
+     * @return       Value
+     */
+    private static long upperOf(int bucket){
+        if (bucket < SUB_COUNT){
+            return bucket;
+        }
+        int shift = bucket / SUB_COUNT - 1;
+        long top = bucket % SUB_COUNT + SUB_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+}
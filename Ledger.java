@@ -0,0 +1,409 @@
+import java.lang.ref.Cleaner;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Append only list of an account's transactions, stored column by column in primitive arrays
+ * Each entry takes 28 bytes: timestamp, amount, location ID, memo ID and counterparty,
+ * instead of a Transaction object with its own Date and Strings
+ * Locations and memos are IDs in the ledger's own StringTable; a transfer's memo is stored as "Transfer to"
+ * and the other account's number, so transfers to many accounts do not each add a String
+ * Given a HistoryStore, a ledger that grows past its heap limit moves its entries into a memory-mapped
+ * HistoryFile, so long histories do not stay on the heap
+ * Entries are also indexed by location and by memo for search; the indexes stay on the heap after the entries
+ * move to a HistoryFile, 8 bytes per entry or more as LedgerIndex grows its lists
+ * Not thread safe, the owning Account's lock guards it
+ */
+public class Ledger {
+    /**
+     * Frees the history blocks of deleted ledgers once nothing can read them
+     */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * Memos of transfers, completed by the other account's number
+     */
+    static final String TRANSFER_TO = "Transfer to";
+    static final String TRANSFER_FROM = "Transfer from";
+
+    /**
+     * Locations and memos of this ledger
+     */
+    private StringTable m_strings;
+
+    /**
+     * IDs in m_strings used as a location, and as a memo; a search by one looks only at those Strings
+     */
+    private BitSet m_locationIDs;
+    private BitSet m_memoIDs;
+
+    /**
+     * Memo IDs used with a counterparty, whose memos read back longer than the String in m_strings
+     */
+    private BitSet m_transferMemos;
+
+    /**
+     * Transaction times in milliseconds since epoch
+     */
+    private long m_timestamps[];
+
+    /**
+     * Transaction amounts in cents
+     */
+    private long m_amounts[];
+
+    /**
+     * Location IDs in m_strings
+     */
+    private int m_locations[];
+
+    /**
+     * Memo IDs in m_strings
+     */
+    private int m_memos[];
+
+    /**
+     * Other accounts of transfers, packed by BinaryCodec.packAccNum, 0 for none
+     */
+    private int m_counterparties[];
+
+    /**
+     * Number of entries kept on the heap
+     */
+    private int m_size;
+
+    /**
+     * Where entries move to past m_heapLimit, null to always keep them on the heap
+     */
+    private HistoryStore m_store;
+
+    /**
+     * Number of entries kept on the heap before moving them to m_store
+     */
+    private int m_heapLimit;
+
+    /**
+     * Entries moved off the heap, null until the heap limit is reached
+     */
+    private HistoryFile m_history;
+
+    /**
+     * Frees m_history once this ledger is unreachable, null until delete() is called
+     */
+    private Cleaner.Cleanable m_freeHistory;
+
+    /**
+     * Entries by location ID
+     */
+    private LedgerIndex m_byLocation;
+
+    /**
+     * Entries by memo ID
+     */
+    private LedgerIndex m_byMemo;
+
+    /**
+     * Constructor, creates an empty ledger kept on the heap
+     */
+    public Ledger(){
+        this(null, 0);
+    }
+
+    /**
+     * Constructor, creates an empty ledger that moves to history files once it grows
+     * @param store         Store of history files, null to always keep entries on the heap
+     * @param heapLimit     Number of entries kept on the heap before moving them
+     */
+    public Ledger(HistoryStore store, int heapLimit){
+        m_store = store;
+        m_heapLimit = heapLimit;
+        int capacity = 4;
+        m_timestamps = new long[capacity];
+        m_amounts = new long[capacity];
+        m_locations = new int[capacity];
+        m_memos = new int[capacity];
+        m_counterparties = new int[capacity];
+        m_size = 0;
+        m_strings = new StringTable();
+        m_locationIDs = new BitSet();
+        m_memoIDs = new BitSet();
+        m_transferMemos = new BitSet();
+        m_byLocation = new LedgerIndex();
+        m_byMemo = new LedgerIndex();
+    }
+
+    /**
+     * Appends an entry
+     * A memo such as "Transfer to 123-4567", read back from storage, is split as append(..., counterparty) does
+     * @param timestamp Time in milliseconds since epoch
+     * @param location  Location of transaction
+     * @param amount    Amount in cents
+     * @param memo      Memo, "" for none
+     */
+    public void append(long timestamp, String location, long amount, String memo){
+        int space = memo.lastIndexOf(' ');
+        if (space > 0 && (memo.startsWith(TRANSFER_TO + ' ') || memo.startsWith(TRANSFER_FROM + ' '))){
+            append(timestamp, location, amount, memo.substring(0, space), memo.substring(space + 1));
+        } else {
+            append(timestamp, location, amount, memo, null);
+        }
+    }
+
+    /**
+     * Appends an entry naming another account, such as one side of a transfer
+     * The account number is stored as a number, and read back after the memo
+     * @param timestamp     Time in milliseconds since epoch
+     * @param location      Location of transaction
+     * @param amount        Amount in cents
+     * @param memo          Memo before the account number, such as TRANSFER_TO
+     * @param counterparty  Other account's number, null for none
+     */
+    public void append(long timestamp, String location, long amount, String memo, String counterparty){
+        int packed = 0;
+        if (counterparty != null){
+            try {
+                packed = BinaryCodec.packAccNum(counterparty);
+            } catch (IllegalArgumentException e) {
+                //Not an account number this bank hands out, kept as part of the memo
+                memo = memo + ' ' + counterparty;
+            }
+        }
+        int locationID = m_strings.intern(location);
+        int memoID = m_strings.intern(memo);
+        m_locationIDs.set(locationID);
+        m_memoIDs.set(memoID);
+        if (packed != 0){
+            m_transferMemos.set(memoID);
+        }
+        m_byLocation.add(locationID, size());
+        m_byMemo.add(memoID, size());
+
+        if (m_history == null && m_store != null && m_size >= m_heapLimit){
+            moveToHistory();
+        }
+        if (m_history != null){
+            m_history.append(timestamp, amount, locationID, memoID, packed);
+            return;
+        }
+
+        if (m_size == m_timestamps.length){
+            //Grows by half each time, so appending stays constant time on average
+            int capacity = m_size + (m_size >> 1);
+            m_timestamps = Arrays.copyOf(m_timestamps, capacity);
+            m_amounts = Arrays.copyOf(m_amounts, capacity);
+            m_locations = Arrays.copyOf(m_locations, capacity);
+            m_memos = Arrays.copyOf(m_memos, capacity);
+            m_counterparties = Arrays.copyOf(m_counterparties, capacity);
+        }
+        m_timestamps[m_size] = timestamp;
+        m_amounts[m_size] = amount;
+        m_locations[m_size] = locationID;
+        m_memos[m_size] = memoID;
+        m_counterparties[m_size] = packed;
+        m_size++;
+    }
+
+    /**
+     * Returns number of entries
+     * @return number of entries
+     */
+    public int size(){
+        return (m_history != null) ? m_history.size() : m_size;
+    }
+
+    /**
+     * Finds the first entry at or after timestamp
+     * Entries are appended in time order, so this is a binary search
+     * @param timestamp Time in milliseconds since epoch
+     * @return          Index of the entry, or size() if every entry is earlier
+     */
+    public int lowerBound(long timestamp){
+        int low = 0;
+        int high = size();
+        while (low < high){
+            int mid = (low + high) >>> 1;
+            if (getTimestamp(mid) < timestamp){
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds a page of entries matching query, in time order
+     * The date range is found by binary search, then entries are walked through the location or memo index,
+     * whichever has fewer entries in range, so only entries that may match are looked at
+     * With neither location nor memo criteria, every entry in the date range is looked at
+     * Memo text may also match the account number of a transfer, so those memos are candidates whose
+     * entries are checked one by one
+     * @param query Criteria and page
+     * @return      Indexes of matching entries
+     */
+    public int[] search(TransactionQuery query){
+        int from = lowerBound(query.getFrom());
+        int to = lowerBound(query.getTo());
+        BitSet locations = (query.getLocationPrefix() != null) ? m_strings.findPrefix(query.getLocationPrefix(), m_locationIDs) : null;
+        BitSet memos = null;
+        BitSet maybeMemos = null;
+        if (query.getMemoText() != null){
+            memos = m_strings.findContaining(query.getMemoText(), m_memoIDs);
+            maybeMemos = (BitSet) m_transferMemos.clone();
+            maybeMemos.andNot(memos);
+            memos.or(maybeMemos);
+        }
+
+        LedgerIndex.Cursor cursor = null;
+        if (locations != null && memos != null){
+            boolean byLocation = m_byLocation.count(locations, from, to) <= m_byMemo.count(memos, from, to);
+            cursor = byLocation ? m_byLocation.cursor(locations, from, to) : m_byMemo.cursor(memos, from, to);
+        } else if (locations != null){
+            cursor = m_byLocation.cursor(locations, from, to);
+        } else if (memos != null){
+            cursor = m_byMemo.cursor(memos, from, to);
+        }
+
+        int page[] = new int[Math.min(query.getLimit(), Math.max(0, to - from))];
+        int found = 0;
+        int skipped = 0;
+        //When the index alone decides the matches, the page is found without looking at the skipped entries
+        boolean indexOnly = (locations == null || memos == null) && (maybeMemos == null || maybeMemos.isEmpty())
+            && query.getMinAmount() == Long.MIN_VALUE && query.getMaxAmount() == Long.MAX_VALUE;
+        if (cursor != null && indexOnly){
+            cursor.skip(query.getOffset());
+            skipped = query.getOffset();
+        }
+        int index = (cursor != null) ? cursor.next() : from;
+        while (index >= 0 && index < to && found < page.length){
+            if ((locations == null || locations.get(getLocationID(index)))
+                && (memos == null || memos.get(getMemoID(index)))
+                && (maybeMemos == null || !maybeMemos.get(getMemoID(index)) || StringTable.containsIgnoreCase(getMemo(index), query.getMemoText()))
+                && getAmount(index) >= query.getMinAmount() && getAmount(index) <= query.getMaxAmount()){
+                if (skipped < query.getOffset()){
+                    skipped++;
+                } else {
+                    page[found++] = index;
+                }
+            }
+            index = (cursor != null) ? cursor.next() : index + 1;
+        }
+        return Arrays.copyOf(page, found);
+    }
+
+    /**
+     * Gives the history blocks back, if any, such as when the account is deleted
+     * The blocks are freed only once this ledger is unreachable, a snapshot being written or a session still
+     * holding the account keeps reading the entries until then
+     */
+    public void delete(){
+        if (m_history != null && m_freeHistory == null){
+            HistoryFile history = m_history;
+            m_freeHistory = CLEANER.register(this, history::delete);
+        }
+    }
+
+    /**
+     * Returns timestamp of an entry
+     * @param index Entry index
+     * @return      Time in milliseconds since epoch
+     */
+    public long getTimestamp(int index){
+        checkIndex(index);
+        if (m_history != null){
+            return m_history.getTimestamp(index);
+        }
+        return m_timestamps[index];
+    }
+
+    /**
+     * Returns amount of an entry
+     * @param index Entry index
+     * @return      Amount in cents
+     */
+    public long getAmount(int index){
+        checkIndex(index);
+        if (m_history != null){
+            return m_history.getAmount(index);
+        }
+        return m_amounts[index];
+    }
+
+    /**
+     * Returns location of an entry
+     * @param index Entry index
+     * @return      Location
+     */
+    public String getLocation(int index){
+        checkIndex(index);
+        if (m_history != null){
+            return m_strings.get(m_history.getLocationID(index));
+        }
+        return m_strings.get(m_locations[index]);
+    }
+
+    /**
+     * Returns memo of an entry
+     * @param index Entry index
+     * @return      Memo, "" for none
+     */
+    public String getMemo(int index){
+        checkIndex(index);
+        String memo = m_strings.get(getMemoID(index));
+        int counterparty = (m_history != null) ? m_history.getCounterparty(index) : m_counterparties[index];
+        return (counterparty != 0) ? memo + ' ' + BinaryCodec.unpackAccNum(counterparty) : memo;
+    }
+
+    /**
+     * Returns location ID of an entry
+     * @param index Entry index
+     * @return      ID in m_strings
+     */
+    private int getLocationID(int index){
+        return (m_history != null) ? m_history.getLocationID(index) : m_locations[index];
+    }
+
+    /**
+     * Returns memo ID of an entry
+     * @param index Entry index
+     * @return      ID in m_strings
+     */
+    private int getMemoID(int index){
+        return (m_history != null) ? m_history.getMemoID(index) : m_memos[index];
+    }
+
+    /**
+     * Creates a Transaction from an entry
+     * @param index Entry index
+     * @return      Transaction
+     */
+    public Transaction get(int index){
+        return new Transaction(getLocation(index), getAmount(index), getTimestamp(index), getMemo(index));
+    }
+
+    /**
+     * Copies the heap entries into a new history file and frees the arrays
+     */
+    private void moveToHistory(){
+        m_history = new HistoryFile(m_store);
+        for (int i = 0; i < m_size; i++){
+            m_history.append(m_timestamps[i], m_amounts[i], m_locations[i], m_memos[i], m_counterparties[i]);
+        }
+        m_timestamps = null;
+        m_amounts = null;
+        m_locations = null;
+        m_memos = null;
+        m_counterparties = null;
+        m_size = 0;
+    }
+
+    /**
+     * Checks index is within m_size, the arrays may be longer
+     * @param index Entry index
+     */
+    private void checkIndex(int index){
+        if (index < 0 || index >= size()){
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for ledger size " + size());
+        }
+    }
+}
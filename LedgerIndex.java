@@ -0,0 +1,164 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Secondary index of a Ledger, from a StringTable ID such as a location to the entries that use it
+ * Each ID keeps its entry indexes in append order, which is time order, so a date range within
+ * one ID is found by binary search
+ * Postings stay on the heap even for entries moved to a HistoryFile: an int per entry, plus up to half again
+ * of spare capacity, so a ledger's two indexes cost 8 to 12 bytes of heap per entry wherever the entries are kept
+ * Not thread safe, the owning Account's lock guards it
+ */
+public class LedgerIndex {
+    /**
+     * Entry indexes of one ID, in increasing order
+     */
+    private static class Postings {
+        int entries[] = new int[4];
+        int size;
+
+        void add(int entry){
+            if (size == entries.length){
+                entries = Arrays.copyOf(entries, size + (size >> 1));
+            }
+            entries[size++] = entry;
+        }
+
+        /**
+         * Returns position of the first entry at or after entry
+         */
+        int lowerBound(int entry){
+            int low = 0;
+            int high = size;
+            while (low < high){
+                int mid = (low + high) >>> 1;
+                if (entries[mid] < entry){
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Walks the entries of several IDs together in increasing order
+     */
+    public static class Cursor {
+        private PriorityQueue<int[]> m_heads;
+        private Postings m_postings[];
+
+        private Cursor(){
+            //Each head is { next entry, position, postings number, end position }
+            m_heads = new PriorityQueue<int[]>((a, b) -> Integer.compare(a[0], b[0]));
+        }
+
+        /**
+         * Returns the next entry
+         * @return Entry index, -1 when there are no more
+         */
+        public int next(){
+            int head[] = m_heads.poll();
+            if (head == null){
+                return -1;
+            }
+            int entry = head[0];
+            Postings postings = m_postings[head[2]];
+            if (++head[1] < head[3]){
+                head[0] = postings.entries[head[1]];
+                m_heads.add(head);
+            }
+            return entry;
+        }
+
+        /**
+         * Skips entries
+         * With a single ID this jumps straight to the entry after them, otherwise it walks past them
+         * @param count Number of entries to skip
+         */
+        public void skip(int count){
+            if (m_heads.size() == 1){
+                int head[] = m_heads.poll();
+                head[1] += count;
+                if (head[1] < head[3]){
+                    head[0] = m_postings[head[2]].entries[head[1]];
+                    m_heads.add(head);
+                }
+                return;
+            }
+            int skipped = 0;
+            while (skipped < count && next() >= 0){
+                skipped++;
+            }
+        }
+    }
+
+    /**
+     * Postings by ID
+     */
+    private HashMap<Integer, Postings> m_postings;
+
+    /**
+     * Constructor, creates an empty index
+     */
+    public LedgerIndex(){
+        m_postings = new HashMap<Integer, Postings>();
+    }
+
+    /**
+     * Adds an entry, which must come after every entry added before
+     * @param id    ID the entry uses
+     * @param entry Entry index
+     */
+    public void add(int id, int entry){
+        m_postings.computeIfAbsent(id, key -> new Postings()).add(entry);
+    }
+
+    /**
+     * Counts entries of the given IDs within a range of entries
+     * @param ids   IDs
+     * @param from  First entry index
+     * @param to    Entry index after the last
+     * @return      Number of entries
+     */
+    public long count(BitSet ids, int from, int to){
+        long count = 0;
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)){
+            Postings postings = m_postings.get(id);
+            if (postings != null){
+                count += postings.lowerBound(to) - postings.lowerBound(from);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a cursor over the entries of the given IDs within a range of entries, in increasing order
+     * @param ids   IDs
+     * @param from  First entry index
+     * @param to    Entry index after the last
+     * @return      Cursor
+     */
+    public Cursor cursor(BitSet ids, int from, int to){
+        Cursor cursor = new Cursor();
+        cursor.m_postings = new Postings[ids.cardinality()];
+        int n = 0;
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)){
+            Postings postings = m_postings.get(id);
+            if (postings == null){
+                continue;
+            }
+            int start = postings.lowerBound(from);
+            int end = postings.lowerBound(to);
+            if (start < end){
+                cursor.m_postings[n] = postings;
+                cursor.m_heads.add(new int[]{ postings.entries[start], start, n, end });
+                n++;
+            }
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs ATM sessions without a console, to load test the Bank
+ * Each virtual session logs in as one of the prepared Users and runs operations through the same
+ * User and Bank methods the ATM menu uses, either from a script or picked at random from a mix
+ *
+ * Usage: java LoadDriver [sessions=64] [users=1000] [seconds=10] [iterations=1000] [script=file]
+ * iterations sets the PinHasher iterations for the run, since PIN hashing is deliberately slow
+ *
+ * A script has one operation per line, which every session repeats in order until time is up:
+ *   login | balance | deposit <amount> | withdraw <amount> | transfer <amount> | create
+ * Lines starting with # are ignored
+ */
+public class LoadDriver {
+    /**
+     * Operations a session can run
+     */
+    public enum Op {
+        LOGIN, BALANCE, DEPOSIT, WITHDRAW, TRANSFER, CREATE
+    }
+
+    /**
+     * Chance of each Op out of 100 when no script is given, in Op order
+     */
+    private static final int MIX[] = { 4, 15, 30, 30, 20, 1 };
+
+    /**
+     * PIN of every prepared User
+     */
+    private static final String PIN = "1234";
+
+    /**
+     * One line of a script
+     */
+    private static class Step {
+        Op op;
+        long amount;
+    }
+
+    /**
+     * Bank under load
+     */
+    private Bank m_bank;
+
+    /**
+     * User IDs of the prepared Users
+     */
+    private int m_userIDs[];
+
+    /**
+     * Script every session follows, null for the random mix
+     */
+    private List<Step> m_script;
+
+    /**
+     * Latencies per Op, in Op order
+     */
+    private LatencyHistogram m_latencies[];
+
+    /**
+     * Constructor, prepares Users with a Chequing and a Savings account each
+     * @param bank      Bank to load
+     * @param numOfUsers Number of Users to create
+     * @param script    Steps every session follows, null for the random mix
+     */
+    public LoadDriver(Bank bank, int numOfUsers, List<Step> script){
+        m_bank = bank;
+        m_script = script;
+        m_userIDs = new int[numOfUsers];
+        for (int i = 0; i < numOfUsers; i++){
+            User user = bank.addUser("Load", "User" + i, PIN);
+            bank.openAccount(user, "Savings");
+            user.deposit(user.getAccount(0), 100000);
+            m_userIDs[i] = user.getUserID();
+        }
+        m_latencies = new LatencyHistogram[Op.values().length];
+        for (int i = 0; i < m_latencies.length; i++){
+            m_latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Runs sessions until time is up, each on its own virtual thread
+     * @param numOfSessions Number of concurrent sessions
+     * @param seconds       How long to run
+     * @return              Elapsed time in nanoseconds
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public long run(int numOfSessions, int seconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < numOfSessions; i++){
+            final int sessionNum = i;
+            sessions.submit(() -> runSession(sessionNum, end));
+        }
+        sessions.shutdown();
+        sessions.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Runs one session until end
+     * @param sessionNum    Number of the session, picks its User
+     * @param end           System.nanoTime() to stop at
+     */
+    private void runSession(int sessionNum, long end){
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        Session session = new Session(m_bank);
+        int userID = m_userIDs[sessionNum % m_userIDs.length];
+        session.login(userID, PIN);
+        int stepNum = 0;
+        Step random = new Step();
+
+        while (System.nanoTime() < end){
+            Step step;
+            if (m_script != null){
+                step = m_script.get(stepNum++ % m_script.size());
+            } else {
+                random.op = pickOp(rand.nextInt(100));
+                random.amount = 1 + rand.nextInt(5000);
+                step = random;
+            }
+
+            long opStart = System.nanoTime();
+            User user = session.getUser();
+            Account chequing = user.getAccount(0);
+            switch (step.op){
+                case LOGIN:
+                    session.login(userID, PIN);
+                    break;
+                case BALANCE:
+                    chequing.getAccBalance();
+                    break;
+                case DEPOSIT:
+                    user.deposit(chequing, step.amount);
+                    break;
+                case WITHDRAW:
+                    user.withdraw(chequing, step.amount);
+                    break;
+                case TRANSFER:
+                    //Alternates direction so money keeps moving both ways
+                    if (rand.nextBoolean()){
+                        user.transfer(chequing, user.getAccount(1), step.amount);
+                    } else {
+                        user.transfer(user.getAccount(1), chequing, step.amount);
+                    }
+                    break;
+                case CREATE:
+                    try {
+                        m_bank.addUser("Load", "Created", PIN);
+                    } catch (IllegalStateException e) {
+                        //User IDs ran out, the attempt still counts as an operation
+                    }
+                    break;
+            }
+            m_latencies[step.op.ordinal()].record(System.nanoTime() - opStart);
+        }
+    }
+
+    /**
+     * Picks an Op from MIX
+     * @param roll Number 0 ~ 99
+     * @return     Op
+     */
+    private static Op pickOp(int roll){
+        Op ops[] = Op.values();
+        for (int i = 0; i < ops.length; i++){
+            roll -= MIX[i];
+            if (roll < 0){
+                return ops[i];
+            }
+        }
+        return Op.BALANCE;
+    }
+
+    /**
+     * Prints throughput and latency percentiles per Op
+     * @param elapsedNanos Time the run took
+     */
+    public void report(long elapsedNanos){
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        System.out.printf("%-10s %12s %12s %10s %10s %10s %10s%n", "op", "count", "ops/s", "p50 us", "p99 us", "p999 us", "max us");
+        for (Op op : Op.values()){
+            LatencyHistogram hist = m_latencies[op.ordinal()];
+            long count = hist.getCount();
+            total += count;
+            System.out.printf("%-10s %12d %12.0f %10.1f %10.1f %10.1f %10.1f%n", op, count, count / seconds,
+                hist.getPercentile(0.5) / 1e3, hist.getPercentile(0.99) / 1e3, hist.getPercentile(0.999) / 1e3, hist.getMax() / 1e3);
+        }
+        System.out.printf("%-10s %12d %12.0f%n", "total", total, total / seconds);
+    }
+
+    /**
+     * Reads a script file
+     * @param file Script path
+     * @return     Steps
+     * @throws IOException if the file cannot be read
+     */
+    public static List<Step> readScript(String file) throws IOException {
+        ArrayList<Step> steps = new ArrayList<Step>();
+        for (String line : Files.readAllLines(Paths.get(file))){
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")){
+                continue;
+            }
+            String parts[] = line.split("\\s+");
+            Step step = new Step();
+            step.op = Op.valueOf(parts[0].toUpperCase());
+            if (parts.length > 1){
+                step.amount = Money.parse(parts[1]);
+                if (step.amount <= 0){
+                    throw new IOException("Amount must be more than 0: " + line);
+                }
+            }
+            steps.add(step);
+        }
+        if (steps.isEmpty()){
+            throw new IOException("Script has no steps: " + file);
+        }
+        return steps;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = 64;
+        int users = 1000;
+        int seconds = 10;
+        int iterations = 1000;
+        List<Step> script = null;
+        for (String arg : args){
+            String pair[] = arg.split("=", 2);
+            switch (pair[0]){
+                case "sessions":
+                    sessions = Integer.parseInt(pair[1]);
+                    break;
+                case "users":
+                    users = Integer.parseInt(pair[1]);
+                    break;
+                case "seconds":
+                    seconds = Integer.parseInt(pair[1]);
+                    break;
+                case "iterations":
+                    iterations = Integer.parseInt(pair[1]);
+                    break;
+                case "script":
+                    script = readScript(pair[1]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    System.exit(1);
+            }
+        }
+        PinHasher.setIterations(iterations);
+
+        System.out.println("Preparing " + users + " users");
+        LoadDriver driver = new LoadDriver(new Bank("Load Test Bank"), users, script);
+        System.out.println("Running " + sessions + " sessions for " + seconds + " seconds");
+        driver.report(driver.run(sessions, seconds));
+    }
+}
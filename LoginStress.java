@@ -0,0 +1,244 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency stress test of login throttling, with thousands of attacker and legitimate threads at once
+ * Exits with status 1 if any check fails
+ *
+ * Usage: java LoginStress [attackers=2000] [users=1000] [targets=10] [seconds=5] [iterations=10000]
+ * iterations sets the PinHasher iterations for the run; the slower a PIN check, the more guesses overlap
+ *
+ * Through Bank.login, attackers guess the PINs of a few target IDs while legitimate Users log in to their own:
+ *   every legitimate login succeeds, and only as many guesses reach the PIN check as one attacker at a time
+ *   would be allowed, however many guess in parallel
+ * Against a LoginThrottle with a 5 ms window, so idle records are swept out all the time:
+ *   a locked out ID stays locked while sweeps run, legitimate IDs are never locked, and the records are swept
+ */
+public class LoginStress {
+    private static final String PIN = "1234";
+
+    /**
+     * Platform threads, so the scheduler can switch between attempts in the middle of hashing a PIN
+     * as it would on many cores; virtual threads each run a PIN check through without a break
+     */
+    private static final ThreadFactory THREADS = Thread.ofPlatform().name("stress-", 0).factory();
+
+    /**
+     * Number of checks failed
+     */
+    private static int m_failed;
+
+    /**
+     * Runs attackers and legitimate Users through Bank.login, all starting at once
+     * @param attackers Number of attacker threads
+     * @param users     Number of legitimate Users, each with its own thread
+     * @param targets   Number of User IDs attacked
+     * @param seconds   How long to run
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void stressBank(int attackers, int users, int targets, int seconds) throws InterruptedException {
+        Bank bank = new Bank("Login Stress Bank");
+        int userIDs[] = new int[users];
+        for (int i = 0; i < users; i++){
+            userIDs[i] = bank.addUser("Stress", "User" + i, PIN).getUserID();
+        }
+        int targetIDs[] = new int[targets];
+        for (int i = 0; i < targets; i++){
+            targetIDs[i] = bank.addUser("Stress", "Target" + i, PIN).getUserID();
+        }
+
+        AtomicLong guesses = new AtomicLong();
+        AtomicLong breaches = new AtomicLong();
+        AtomicLong logins = new AtomicLong();
+        AtomicLong refused = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        //Set once every thread is created, which takes a while
+        AtomicLong end = new AtomicLong();
+        ExecutorService threads = Executors.newThreadPerTaskExecutor(THREADS);
+        //Attackers and Users are created in turn, as the start gate wakes threads in the order they arrive
+        for (int i = 0; i < Math.max(attackers, users); i++){
+            if (i < attackers){
+                int targetID = targetIDs[i % targets];
+                threads.submit(() -> {
+                    start.await();
+                    ThreadLocalRandom rand = ThreadLocalRandom.current();
+                    while (System.nanoTime() < end.get()){
+                        //Any PIN but the right one
+                        String guess = String.format("%04d", (1235 + rand.nextInt(9999)) % 10000);
+                        guesses.incrementAndGet();
+                        if (bank.login(targetID, guess) != null){
+                            breaches.incrementAndGet();
+                        }
+                        Thread.yield();
+                    }
+                    return null;
+                });
+            }
+            if (i < users){
+                int userID = userIDs[i];
+                threads.submit(() -> {
+                    start.await();
+                    while (System.nanoTime() < end.get()){
+                        logins.incrementAndGet();
+                        if (bank.login(userID, PIN) == null){
+                            refused.incrementAndGet();
+                        }
+                        Thread.yield();
+                    }
+                    return null;
+                });
+            }
+        }
+        end.set(System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds));
+        start.countDown();
+        threads.shutdown();
+        threads.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+
+        //Only logins that were not locked out hash a PIN, and every failure is a guess
+        long checked = bank.getMetrics().getCount(Metrics.Op.LOGIN, false) - bank.getMetrics().getLockedOut();
+        //Three free failures, the one that locks the ID, then one each time a doubling lockout runs out
+        int expiries = 64 - Long.numberOfLeadingZeros(seconds + 1L);
+        long allowed = (long) targets * (LoginThrottle.FREE_FAILURES + 1 + expiries);
+        System.out.println("Bank: " + guesses.get() + " guesses, " + checked + " reached the PIN check (at most " + allowed
+            + " allowed), " + logins.get() + " legitimate logins, " + refused.get() + " refused");
+        check(breaches.get() == 0, "a wrong PIN logged in");
+        check(checked <= allowed, "parallel guesses got past the lockout");
+        check(refused.get() == 0, "legitimate logins were refused");
+        check(logins.get() > 0, "no legitimate logins ran");
+    }
+
+    /**
+     * Runs attackers and legitimate IDs against a LoginThrottle that sweeps constantly
+     * @param attackers Number of attacker threads
+     * @param users     Number of legitimate IDs, each with its own thread
+     * @param seconds   How long to run
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void stressSweep(int attackers, int users, int seconds) throws InterruptedException {
+        //Records go idle after 5 ms, but a lockout lasts longer than the run
+        LoginThrottle throttle = new LoginThrottle(5, 60000, 60000);
+        int targetID = -1;
+        AtomicLong targetLocked = new AtomicLong();
+        AtomicLong allowedAfterLock = new AtomicLong();
+        AtomicLong sprayed = new AtomicLong();
+        AtomicLong refused = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        //Set once every thread is created, which takes a while
+        AtomicLong end = new AtomicLong();
+        ExecutorService threads = Executors.newThreadPerTaskExecutor(THREADS);
+        for (int i = 0; i < attackers; i++){
+            boolean spray = (i % 2 == 0);
+            threads.submit(() -> {
+                start.await();
+                ThreadLocalRandom rand = ThreadLocalRandom.current();
+                while (System.nanoTime() < end.get()){
+                    if (spray){
+                        //Fills the table with records that go idle, for the sweeps of later attempts to remove
+                        throttle.tryAttempt(rand.nextInt(1 << 20));
+                        sprayed.incrementAndGet();
+                    } else {
+                        boolean locked = targetLocked.get() > 0;
+                        if (throttle.tryAttempt(targetID) > 0){
+                            targetLocked.incrementAndGet();
+                        } else if (locked){
+                            allowedAfterLock.incrementAndGet();
+                        }
+                    }
+                    Thread.yield();
+                }
+                return null;
+            });
+        }
+        for (int i = 0; i < users; i++){
+            int userID = (1 << 21) + i;
+            threads.submit(() -> {
+                start.await();
+                while (System.nanoTime() < end.get()){
+                    if (throttle.tryAttempt(userID) > 0){
+                        refused.incrementAndGet();
+                    }
+                    throttle.recordSuccess(userID);
+                    Thread.yield();
+                }
+                return null;
+            });
+        }
+        end.set(System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds));
+        start.countDown();
+        threads.shutdown();
+        threads.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+        int sizeAfterRun = throttle.size();
+
+        //Once idle, later attempts sweep out all but the locked out target; attempts that are refused do not sweep
+        Thread.sleep(10);
+        for (int i = 0; i < 1024; i++){
+            throttle.tryAttempt((1 << 22) + i);
+            throttle.recordSuccess((1 << 22) + i);
+        }
+        System.out.println("Sweep: " + sprayed.get() + " sprayed attempts, " + sizeAfterRun + " records after the run, "
+            + throttle.size() + " once idle, " + allowedAfterLock.get() + " target attempts allowed while locked, "
+            + refused.get() + " legitimate refused");
+        check(targetLocked.get() > 0, "the target was never locked out");
+        check(allowedAfterLock.get() == 0, "a lockout was lost while records were swept");
+        check(throttle.getLockout(targetID) > 0, "the target's lockout was swept out");
+        check(refused.get() == 0, "legitimate IDs were locked out");
+        check(throttle.size() <= 1, "idle records were not swept");
+    }
+
+    /**
+     * Prints and counts a failed check
+     * @param ok        Result of the check
+     * @param message   What went wrong if not ok
+     */
+    private static void check(boolean ok, String message){
+        if (!ok){
+            System.out.println("FAILED: " + message);
+            m_failed++;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int attackers = 2000;
+        int users = 1000;
+        int targets = 10;
+        int seconds = 5;
+        int iterations = 10000;
+        for (String arg : args){
+            String pair[] = arg.split("=", 2);
+            switch (pair[0]){
+                case "attackers":
+                    attackers = Integer.parseInt(pair[1]);
+                    break;
+                case "users":
+                    users = Integer.parseInt(pair[1]);
+                    break;
+                case "targets":
+                    targets = Integer.parseInt(pair[1]);
+                    break;
+                case "seconds":
+                    seconds = Integer.parseInt(pair[1]);
+                    break;
+                case "iterations":
+                    iterations = Integer.parseInt(pair[1]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    System.exit(1);
+            }
+        }
+        PinHasher.setIterations(iterations);
+
+        System.out.println("Running " + attackers + " attackers and " + users + " users for " + seconds + " seconds, twice");
+        stressBank(attackers, users, targets, seconds);
+        stressSweep(attackers, users, seconds);
+        if (m_failed > 0){
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks failed logins per User ID and locks an ID out for a while after too many
+ * After FREE_FAILURES failures within the window, each further failure doubles the lockout, up to a maximum
+ * A locked out ID is rejected before its PIN is hashed, so guessing costs the attacker time but not the bank
+ * Each attempt is counted as a failure before its PIN is checked, in the same step that checks the lockout,
+ * so many attempts in parallel cannot all get past it; a successful login then forgets the failures
+ *
+ * Updates use compare-and-set on immutable records, with no locks
+ * A successful login costs adding and removing one map entry
+ * Idle records are swept out a couple at a time by each failure, oldest first, so no attempt waits on a sweep of
+ * the whole map and memory is bounded by the IDs that failed recently; the Bank only throttles IDs of its Users
+ * A record being removed is first set to REMOVED, so an attempt updating it meanwhile starts over instead of being lost
+ */
+public class LoginThrottle {
+    /**
+     * Failures allowed within the window before lockouts start
+     */
+    static final int FREE_FAILURES = 3;
+
+    /**
+     * Failures are counted within this many milliseconds of the first one
+     */
+    private long m_windowMillis;
+
+    /**
+     * Lockout after the first failure past FREE_FAILURES, in milliseconds
+     */
+    private long m_baseLockMillis;
+
+    /**
+     * Longest lockout, in milliseconds
+     */
+    private long m_maxLockMillis;
+
+    /**
+     * Failure records by User ID
+     */
+    private ConcurrentHashMap<Integer, AtomicReference<Record>> m_records;
+
+    /**
+     * Records in the order they were made or last checked by a sweep, with records already removed among them
+     */
+    private ConcurrentLinkedQueue<Entry> m_sweepQueue;
+
+    /**
+     * Records each failure checks in m_sweepQueue, more than one so the queue shrinks as it is swept
+     */
+    private static final int SWEEP_STEPS = 2;
+
+    /**
+     * Failures of one User ID, never changed once made
+     */
+    private static class Record {
+        final long windowStart;
+        final int failures;
+        final long lockedUntil;
+
+        Record(long windowStart, int failures, long lockedUntil){
+            this.windowStart = windowStart;
+            this.failures = failures;
+            this.lockedUntil = lockedUntil;
+        }
+    }
+
+    /**
+     * Record of a User ID, as queued for sweeping
+     */
+    private static class Entry {
+        final int userID;
+        final AtomicReference<Record> ref;
+
+        Entry(int userID, AtomicReference<Record> ref){
+            this.userID = userID;
+            this.ref = ref;
+        }
+    }
+
+    /**
+     * Value of a record that has been taken out of m_records, or is about to be
+     */
+    private static final Record REMOVED = new Record(0, 0, 0);
+
+    /**
+     * Constructor, counts failures over 15 minutes, with lockouts from 1 second doubling up to 15 minutes
+     */
+    public LoginThrottle(){
+        this(15 * 60 * 1000L, 1000L, 15 * 60 * 1000L);
+    }
+
+    /**
+     * Constructor
+     * @param windowMillis      Failures are counted within this many milliseconds of the first one
+     * @param baseLockMillis    First lockout in milliseconds
+     * @param maxLockMillis     Longest lockout in milliseconds
+     */
+    public LoginThrottle(long windowMillis, long baseLockMillis, long maxLockMillis){
+        m_windowMillis = windowMillis;
+        m_baseLockMillis = baseLockMillis;
+        m_maxLockMillis = maxLockMillis;
+        m_records = new ConcurrentHashMap<Integer, AtomicReference<Record>>();
+        m_sweepQueue = new ConcurrentLinkedQueue<Entry>();
+    }
+
+    /**
+     * Returns how long userID is still locked out
+     * @param userID User ID
+     * @return       Milliseconds left, 0 if not locked out
+     */
+    public long getLockout(int userID){
+        AtomicReference<Record> ref = m_records.get(userID);
+        if (ref == null){
+            return 0;
+        }
+        return Math.max(0, ref.get().lockedUntil - System.currentTimeMillis());
+    }
+
+    /**
+     * Starts a login attempt, counting it as failed unless recordSuccess is called once its PIN matches
+     * Checking the lockout and counting the attempt are one compare-and-set, so however many attempts run
+     * in parallel, only those a single attempt at a time would be allowed get past
+     * @param userID User ID
+     * @return       Milliseconds the ID is still locked out, 0 if the attempt may check its PIN
+     */
+    public long tryAttempt(int userID){
+        long now = System.currentTimeMillis();
+        while (true){
+            AtomicReference<Record> ref = m_records.get(userID);
+            if (ref == null){
+                ref = m_records.computeIfAbsent(userID, id -> {
+                    AtomicReference<Record> added = new AtomicReference<Record>(new Record(now, 0, 0));
+                    m_sweepQueue.add(new Entry(id, added));
+                    return added;
+                });
+            }
+            Record old = ref.get();
+            if (old == REMOVED){
+                //Finishes the removal, then starts over with a new record
+                m_records.remove(userID, ref);
+                continue;
+            }
+            if (old.lockedUntil > now){
+                return old.lockedUntil - now;
+            }
+            if (ref.compareAndSet(old, failed(old, now))){
+                break;
+            }
+        }
+
+        sweep(now);
+        return 0;
+    }
+
+    /**
+     * Records a successful login, forgetting earlier failures
+     * @param userID User ID
+     */
+    public void recordSuccess(int userID){
+        AtomicReference<Record> ref = m_records.get(userID);
+        if (ref != null){
+            ref.set(REMOVED);
+            m_records.remove(userID, ref);
+        }
+    }
+
+    /**
+     * Returns number of User IDs with recent failures
+     * @return number of records
+     */
+    public int size(){
+        return m_records.size();
+    }
+
+    /**
+     * Returns a record with one more failure, locked out once past FREE_FAILURES
+     * @param old   Record before the failure
+     * @param now   Current time in milliseconds
+     * @return      New record
+     */
+    private Record failed(Record old, long now){
+        //A window that has run out starts over
+        boolean expired = now - old.windowStart > m_windowMillis;
+        long windowStart = expired ? now : old.windowStart;
+        int failures = expired ? 1 : old.failures + 1;
+        long lockedUntil = old.lockedUntil;
+        if (failures > FREE_FAILURES){
+            int doublings = Math.min(failures - FREE_FAILURES - 1, 30);
+            long lock = Math.min(m_maxLockMillis, m_baseLockMillis << doublings);
+            lockedUntil = Math.max(lockedUntil, now + lock);
+        }
+        return new Record(windowStart, failures, lockedUntil);
+    }
+
+    /**
+     * Checks the oldest SWEEP_STEPS records of m_sweepQueue, removing those whose window and lockout have both
+     * run out and queueing the others again
+     * Each record is checked again as it is marked REMOVED, so one updated since it was read stays
+     * @param now Current time in milliseconds
+     */
+    private void sweep(long now){
+        for (int i = 0; i < SWEEP_STEPS; i++){
+            Entry entry = m_sweepQueue.poll();
+            if (entry == null){
+                return;
+            }
+            Record record = entry.ref.get();
+            if (record == REMOVED){
+                //Already taken out, by a successful login or an attempt that started over
+                continue;
+            }
+            if (now - record.windowStart > m_windowMillis && record.lockedUntil <= now
+                && entry.ref.compareAndSet(record, REMOVED)){
+                m_records.remove(entry.userID, entry.ref);
+            } else {
+                m_sweepQueue.add(entry);
+            }
+        }
+    }
+}
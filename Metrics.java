@@ -0,0 +1,334 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and latency histograms of a Bank's operations, exported in the Prometheus text format
+ * Counters are LongAdders and each operation's histogram is split into stripes picked by thread,
+ * so sessions recording at once rarely write the same cache line
+ * Gauges such as ledger sizes are read from the Bank when exported, so they cost nothing on the hot path
+ *
+ * Every operation is counted, but fast ones are timed 1 in SAMPLE: a clock read costs about as much as the rest
+ * of recording, so timing every one would double the overhead; the quantiles, sum and count of the duration
+ * summary cover the timed operations only
+ */
+public class Metrics {
+    /**
+     * Operations timed
+     */
+    public enum Op {
+        LOGIN, DEPOSIT, WITHDRAW, TRANSFER, ADD_TRANSACTION, CREDIT, DEBIT
+    }
+
+    /**
+     * 1 in this many operations is timed, a power of 2
+     */
+    private static final int SAMPLE = 16;
+
+    /**
+     * Returned by start() for an operation that is not timed
+     */
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    /**
+     * Quantiles exported for each operation
+     */
+    private static final double QUANTILES[] = { 0.5, 0.9, 0.99, 0.999 };
+
+    /**
+     * Counters and histogram of one operation
+     */
+    private static class OpMetrics {
+        LongAdder ok = new LongAdder();
+        LongAdder failed = new LongAdder();
+        LongAdder nanos = new LongAdder();
+        LongAdder timed = new LongAdder();
+        LatencyHistogram latency[];
+    }
+
+    /**
+     * Gauge read when exported, registered by parts that come and go such as replication
+     */
+    private static class Gauge {
+        String name;
+        String help;
+        LongSupplier value;
+    }
+
+    private OpMetrics m_ops[];
+
+    /**
+     * Gauges added by addGauge()
+     */
+    private CopyOnWriteArrayList<Gauge> m_gauges;
+
+    /**
+     * Logins refused without checking the PIN, as the User ID is locked out
+     */
+    private LongAdder m_lockedOut;
+
+    /**
+     * Histogram stripes per operation minus 1, a power of 2 minus 1
+     */
+    private int m_stripeMask;
+
+    /**
+     * Constructor, starts with every count at 0
+     */
+    public Metrics(){
+        int stripes = Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        m_stripeMask = stripes - 1;
+        m_ops = new OpMetrics[Op.values().length];
+        for (int i = 0; i < m_ops.length; i++){
+            m_ops[i] = new OpMetrics();
+            m_ops[i].latency = new LatencyHistogram[stripes];
+            for (int s = 0; s < stripes; s++){
+                m_ops[i].latency[s] = new LatencyHistogram();
+            }
+        }
+        m_lockedOut = new LongAdder();
+        m_gauges = new CopyOnWriteArrayList<Gauge>();
+    }
+
+    /**
+     * Adds a gauge to the export, replacing any gauge of the same name
+     * @param name  Metric name
+     * @param help  Description
+     * @param value Reads the value when exported
+     */
+    public void addGauge(String name, String help, LongSupplier value){
+        Gauge gauge = new Gauge();
+        gauge.name = name;
+        gauge.help = help;
+        gauge.value = value;
+        m_gauges.removeIf(old -> old.name.equals(name));
+        m_gauges.add(gauge);
+    }
+
+    /**
+     * Call as an operation starts, and pass the result to record() when it ends
+     * @return System.nanoTime() if this operation is one of those timed, otherwise a value record() skips
+     */
+    public static long start(){
+        return ((ThreadLocalRandom.current().nextInt() & (SAMPLE - 1)) == 0) ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Records one operation
+     * @param op    Operation
+     * @param start What start() returned when it started, or System.nanoTime() to time it regardless
+     * @param ok    false if it was refused, such as for insufficient balance
+     */
+    public void record(Op op, long start, boolean ok){
+        OpMetrics metrics = m_ops[op.ordinal()];
+        (ok ? metrics.ok : metrics.failed).increment();
+        if (start != NOT_TIMED){
+            long nanos = System.nanoTime() - start;
+            metrics.timed.increment();
+            metrics.nanos.add(nanos);
+            metrics.latency[(int) Thread.currentThread().threadId() & m_stripeMask].record(nanos);
+        }
+    }
+
+    /**
+     * Counts a login refused because the User ID is locked out
+     */
+    public void recordLockedOut(){
+        m_lockedOut.increment();
+    }
+
+    /**
+     * Returns number of logins refused because the User ID was locked out
+     * @return count
+     */
+    public long getLockedOut(){
+        return m_lockedOut.sum();
+    }
+
+    /**
+     * Returns number of operations recorded
+     * @param op    Operation
+     * @param ok    true for successful ones, false for refused ones
+     * @return      count
+     */
+    public long getCount(Op op, boolean ok){
+        OpMetrics metrics = m_ops[op.ordinal()];
+        return (ok ? metrics.ok : metrics.failed).sum();
+    }
+
+    /**
+     * Returns latencies of the timed operations of a kind, every stripe added together
+     * @param op    Operation
+     * @return      new LatencyHistogram
+     */
+    public LatencyHistogram getLatency(Op op){
+        LatencyHistogram total = new LatencyHistogram();
+        for (LatencyHistogram stripe : m_ops[op.ordinal()].latency){
+            total.add(stripe);
+        }
+        return total;
+    }
+
+    /**
+     * Writes every metric of bank in the Prometheus text format
+     * @param bank  Bank, whose gauges are read now
+     * @param out   Where to append
+     */
+    public void writePrometheus(Bank bank, StringBuilder out){
+        out.append("# HELP atm_operations_total Operations by result\n");
+        out.append("# TYPE atm_operations_total counter\n");
+        for (Op op : Op.values()){
+            String name = op.name().toLowerCase(Locale.ROOT);
+            OpMetrics metrics = m_ops[op.ordinal()];
+            out.append("atm_operations_total{op=\"").append(name).append("\",result=\"ok\"} ").append(metrics.ok.sum()).append('\n');
+            out.append("atm_operations_total{op=\"").append(name).append("\",result=\"failed\"} ").append(metrics.failed.sum()).append('\n');
+        }
+
+        out.append("# HELP atm_operation_duration_seconds Time taken by a sample of operations\n");
+        out.append("# TYPE atm_operation_duration_seconds summary\n");
+        for (Op op : Op.values()){
+            String name = op.name().toLowerCase(Locale.ROOT);
+            OpMetrics metrics = m_ops[op.ordinal()];
+            LatencyHistogram latency = getLatency(op);
+            for (double quantile : QUANTILES){
+                out.append("atm_operation_duration_seconds{op=\"").append(name).append("\",quantile=\"").append(quantile).append("\"} ");
+                appendSeconds(out, latency.getPercentile(quantile));
+            }
+            out.append("atm_operation_duration_seconds_sum{op=\"").append(name).append("\"} ");
+            appendSeconds(out, metrics.nanos.sum());
+            out.append("atm_operation_duration_seconds_count{op=\"").append(name).append("\"} ").append(metrics.timed.sum()).append('\n');
+        }
+
+        out.append("# HELP atm_logins_locked_out_total Logins refused as the User ID is locked out\n");
+        out.append("# TYPE atm_logins_locked_out_total counter\n");
+        out.append("atm_logins_locked_out_total ").append(m_lockedOut.sum()).append('\n');
+
+        out.append("# HELP atm_id_allocation_retries_total Extra draws made to find a free ID\n");
+        out.append("# TYPE atm_id_allocation_retries_total counter\n");
+        out.append("atm_id_allocation_retries_total{id=\"user\"} ").append(bank.getUserIDRetries()).append('\n');
+        out.append("atm_id_allocation_retries_total{id=\"account\"} ").append(bank.getAccNumRetries()).append('\n');
+
+        long numOfTrans = 0;
+        long maxTrans = 0;
+        for (Account account : bank.getAccounts()){
+            int size = account.getNumOfTransaction();
+            numOfTrans += size;
+            maxTrans = Math.max(maxTrans, size);
+        }
+        appendGauge(out, "atm_users", "Users", bank.getNumOfUsers());
+        appendGauge(out, "atm_accounts", "Accounts", bank.getNumOfAccounts());
+        appendGauge(out, "atm_ledger_transactions", "Transactions in every ledger", numOfTrans);
+        appendGauge(out, "atm_ledger_transactions_max", "Transactions in the largest ledger", maxTrans);
+        appendGauge(out, "atm_standing_orders", "Standing orders", bank.getStandingOrders().size());
+
+        SummaryCache cache = bank.getSummaryCache();
+        out.append("# HELP atm_summary_cache_lookups_total Statement cache lookups by result\n");
+        out.append("# TYPE atm_summary_cache_lookups_total counter\n");
+        out.append("atm_summary_cache_lookups_total{result=\"hit\"} ").append(cache.getHits()).append('\n');
+        out.append("atm_summary_cache_lookups_total{result=\"miss\"} ").append(cache.getMisses()).append('\n');
+        out.append("# HELP atm_summary_cache_evictions_total Statement cache entries evicted to stay within its limit\n");
+        out.append("# TYPE atm_summary_cache_evictions_total counter\n");
+        out.append("atm_summary_cache_evictions_total ").append(cache.getEvictions()).append('\n');
+        appendGauge(out, "atm_summary_cache_bytes", "Estimated bytes held by the statement cache", cache.getBytes());
+
+        for (Gauge gauge : m_gauges){
+            appendGauge(out, gauge.name, gauge.help, gauge.value.getAsLong());
+        }
+    }
+
+    /**
+     * Writes every metric of bank to a file, such as for the node exporter's textfile collector
+     * The file is written under a temporary name and renamed, so readers never see half of it
+     * @param bank  Bank
+     * @param file  File to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeFile(Bank bank, Path file) throws IOException {
+        StringBuilder out = new StringBuilder(8192);
+        writePrometheus(bank, out);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(tmp, out, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes every metric of bank to a file now and every so often from then on, on a daemon thread
+     * @param bank      Bank
+     * @param file      File to write
+     * @param seconds   Seconds between writes
+     * @return          Writer thread, shut it down when done
+     */
+    public ScheduledExecutorService writeEvery(Bank bank, Path file, long seconds){
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-file");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(() -> {
+            try {
+                writeFile(bank, file);
+            } catch (IOException e) {
+                System.err.println("Unable to write metrics, will retry: " + e.getMessage());
+            }
+        }, 0, seconds, TimeUnit.SECONDS);
+        return writer;
+    }
+
+    /**
+     * Serves every metric of bank at http://host:port/metrics
+     * @param bank  Bank
+     * @param port  TCP port, 0 for any free port
+     * @return      Server, stop it when done
+     * @throws IOException if the port cannot be bound
+     */
+    public HttpServer serve(Bank bank, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            StringBuilder out = new StringBuilder(8192);
+            writePrometheus(bank, out);
+            byte body[] = out.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream stream = exchange.getResponseBody()){
+                stream.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Appends a gauge with its help and type lines
+     * @param out   Where to append
+     * @param name  Metric name
+     * @param help  Description
+     * @param value Value
+     */
+    private static void appendGauge(StringBuilder out, String name, String help, long value){
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends nanoseconds as seconds and ends the line
+     * @param out   Where to append
+     * @param nanos Nanoseconds
+     */
+    private static void appendSeconds(StringBuilder out, long nanos){
+        out.append(nanos / 1e9).append('\n');
+    }
+}
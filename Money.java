@@ -0,0 +1,147 @@
+/**
+ * Class that contains money methods
+ * Amounts are kept as a long number of cents, so $12.34 is 1234
+ * This avoids the rounding drift of double, and needs no objects for arithmetic
+ */
+public class Money {
+    /**
+     * Private constructor as no instances of Money should be created
+     * All methods will be static/class level
+     */
+    private Money(){};
+
+    /**
+     * Parses an amount such as 12, 12.3, $12.34 or -5.00 into cents
+     * @param text Amount text
+     * @return     Amount in cents
+     * @throws NumberFormatException for invalid amounts, more than 2 decimals or amounts too large
+     */
+    public static long parse(String text){
+        String str = text.trim();
+        boolean negative = false;
+        if (str.startsWith("-")){
+            negative = true;
+            str = str.substring(1);
+        }
+        if (str.startsWith("$")){
+            str = str.substring(1);
+        }
+
+        //Digits with up to 2 decimals, with at least one digit somewhere; checked by hand as bulk imports parse millions
+        int dot = str.indexOf('.');
+        String dollarStr = (dot < 0) ? str : str.substring(0, dot);
+        String centStr = (dot < 0) ? "" : str.substring(dot + 1);
+        if (!isDigits(dollarStr) || !isDigits(centStr) || centStr.length() > 2 || str.equals(".") || str.isEmpty()){
+            throw new NumberFormatException("Invalid amount: " + text);
+        }
+
+        long cents = 0;
+        try {
+            for (int i = 0; i < dollarStr.length(); i++){
+                cents = Math.addExact(Math.multiplyExact(cents, 10), dollarStr.charAt(i) - '0');
+            }
+            cents = Math.multiplyExact(cents, 100);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount too large: " + text);
+        }
+        if (centStr.length() >= 1){
+            cents += (centStr.charAt(0) - '0') * 10;
+        }
+        if (centStr.length() == 2){
+            cents += centStr.charAt(1) - '0';
+        }
+        if (cents < 0){
+            throw new NumberFormatException("Amount too large: " + text);
+        }
+
+        return negative ? -cents : cents;
+    }
+
+    /**
+     * Checks a String is only the digits 0 ~ 9
+     * @param str   String
+     * @return      true if every character is a digit, including for ""
+     */
+    private static boolean isDigits(String str){
+        for (int i = 0; i < str.length(); i++){
+            char c = str.charAt(i);
+            if (c < '0' || c > '9'){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Formats cents as dollars with 2 decimals, such as 1234 to 12.34
+     * @param cents Amount in cents
+     * @return      Formatted amount
+     */
+    public static String format(long cents){
+        StringBuilder str = new StringBuilder(24);
+        appendTo(str, cents);
+        return str.toString();
+    }
+
+    /**
+     * Appends cents as dollars with 2 decimals, without creating a String
+     * @param str   Where to append
+     * @param cents Amount in cents
+     */
+    public static void appendTo(StringBuilder str, long cents){
+        if (cents < 0){
+            str.append('-');
+        }
+        //Long.MIN_VALUE has no positive counterpart, so the digits are taken from the negative side
+        long dollars = Math.abs(cents / 100);
+        int rest = (int) Math.abs(cents % 100);
+        str.append(dollars).append('.');
+        if (rest < 10){
+            str.append('0');
+        }
+        str.append(rest);
+    }
+
+    /**
+     * Adds two amounts
+     * @param a Amount in cents
+     * @param b Amount in cents
+     * @return  a + b
+     * @throws ArithmeticException on overflow
+     */
+    public static long add(long a, long b){
+        return Math.addExact(a, b);
+    }
+
+    /**
+     * Subtracts two amounts
+     * @param a Amount in cents
+     * @param b Amount in cents
+     * @return  a - b
+     * @throws ArithmeticException on overflow
+     */
+    public static long subtract(long a, long b){
+        return Math.subtractExact(a, b);
+    }
+
+    /**
+     * Negates an amount, such as for a withdrawal Transaction
+     * @param a Amount in cents
+     * @return  -a
+     * @throws ArithmeticException on overflow
+     */
+    public static long negate(long a){
+        return Math.negateExact(a);
+    }
+
+    /**
+     * Checks an amount is more than 0, for operations whose direction is fixed such as a deposit
+     * @param amount Amount in cents
+     * @throws IllegalArgumentException if amount is 0 or negative
+     */
+    public static void checkPositive(long amount){
+        if (amount <= 0){
+            throw new IllegalArgumentException("Amount must be more than 0: " + format(amount));
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.ArrayBlockingQueue;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Class that contains PIN hashing and verification methods
+ * PINs are hashed with PBKDF2-HMAC-SHA256, a random salt and a tunable number of iterations
+ * Algorithm instances are kept in small pools and reused, since looking one up costs far more than hashing a PIN;
+ * sessions run on virtual threads, so an instance per thread would be looked up on almost every login
+ *
+ * A stored hash is laid out as [version 1][int iterations][salt length][salt][hash]
+ * Hashes from before salting are a plain 32 byte SHA-256 of the PIN, they still verify and are replaced on next login
+ */
+public class PinHasher {
+    /**
+     * Version byte of the stored hash layout
+     */
+    private static final byte VERSION = 1;
+
+    /**
+     * Length of salt in bytes
+     */
+    private static final int SALT_BYTES = 16;
+
+    /**
+     * Length of hash in bytes
+     */
+    private static final int HASH_BYTES = 32;
+
+    /**
+     * Length of a plain SHA-256 hash from before salting
+     */
+    private static final int LEGACY_BYTES = 32;
+
+    /**
+     * Shortest salt accepted in a stored hash from elsewhere, such as an import
+     */
+    private static final int MIN_SALT_BYTES = 8;
+
+    /**
+     * Most PBKDF2 iterations accepted in a stored hash from elsewhere, as each login pays for all of them
+     */
+    private static final int MAX_ITERATIONS = 10000000;
+
+    /**
+     * PBKDF2 iterations for new hashes, more is slower to brute force and slower to log in
+     */
+    private static volatile int m_iterations = 10000;
+
+    /**
+     * Source of salts, SecureRandom is safe to share between threads
+     */
+    private static final SecureRandom m_random = new SecureRandom();
+
+    /**
+     * Most instances kept in each pool, hashing is CPU bound so more than the cores would sit idle
+     */
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Idle SHA-256 instances, for hashes from before salting
+     */
+    private static final ArrayBlockingQueue<MessageDigest> m_sha256 = new ArrayBlockingQueue<MessageDigest>(POOL_SIZE);
+
+    /**
+     * Idle PBKDF2 instances
+     */
+    private static final ArrayBlockingQueue<SecretKeyFactory> m_pbkdf2 = new ArrayBlockingQueue<SecretKeyFactory>(POOL_SIZE);
+
+    /**
+     * Private constructor as no instances of PinHasher should be created
+     * All methods will be static/class level
+     */
+    private PinHasher(){};
+
+    /**
+     * Sets the PBKDF2 iterations used for new hashes
+     * Existing hashes keep their own count, and are rehashed on next login if it is lower
+     * @param iterations Number of iterations, at least 1
+     */
+    public static void setIterations(int iterations){
+        if (iterations < 1){
+            throw new IllegalArgumentException("Iterations must be at least 1");
+        }
+        m_iterations = iterations;
+    }
+
+    /**
+     * Returns the PBKDF2 iterations used for new hashes
+     * @return m_iterations
+     */
+    public static int getIterations(){
+        return m_iterations;
+    }
+
+    /**
+     * Hashes a PIN with a new random salt
+     * @param pin PIN
+     * @return    Stored hash
+     */
+    public static byte[] hash(String pin){
+        byte salt[] = new byte[SALT_BYTES];
+        m_random.nextBytes(salt);
+        int iterations = m_iterations;
+        byte hash[] = pbkdf2(pin, salt, iterations);
+
+        ByteBuffer stored = ByteBuffer.allocate(1 + 4 + 1 + salt.length + hash.length);
+        stored.put(VERSION).putInt(iterations).put((byte) salt.length).put(salt).put(hash);
+        return stored.array();
+    }
+
+    /**
+     * Checks a PIN against a stored hash
+     * The comparison takes the same time however many bytes match
+     * @param pin       PIN entered
+     * @param stored    Stored hash
+     * @return          true for matched PIN
+     */
+    public static boolean verify(String pin, byte stored[]){
+        if (stored.length == LEGACY_BYTES){
+            return MessageDigest.isEqual(sha256(pin), stored);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(stored);
+        if (buf.get() != VERSION){
+            return false;
+        }
+        int iterations = buf.getInt();
+        byte salt[] = new byte[buf.get()];
+        buf.get(salt);
+        byte hash[] = new byte[buf.remaining()];
+        buf.get(hash);
+        return MessageDigest.isEqual(pbkdf2(pin, salt, iterations), hash);
+    }
+
+    /**
+     * Checks if a stored hash from elsewhere, such as an import, has a layout verify() can use:
+     * a plain SHA-256, or the current version with a salt of a usable length, a bounded iteration count and a full hash
+     * @param stored Stored hash
+     * @return       true for a valid layout
+     */
+    public static boolean isValid(byte stored[]){
+        if (stored.length == LEGACY_BYTES){
+            return true;
+        }
+        if (stored.length < 1 + 4 + 1 || stored[0] != VERSION){
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(stored, 1, stored.length - 1);
+        int iterations = buf.getInt();
+        int saltBytes = buf.get() & 0xFF;
+        return iterations >= 1 && iterations <= MAX_ITERATIONS && saltBytes >= MIN_SALT_BYTES
+                && buf.remaining() == saltBytes + HASH_BYTES;
+    }
+
+    /**
+     * Checks if a stored hash is weaker than what hash() makes now
+     * @param stored Stored hash
+     * @return       true if it should be replaced after the next successful login
+     */
+    public static boolean needsRehash(byte stored[]){
+        if (stored.length == LEGACY_BYTES){
+            return true;
+        }
+        return ByteBuffer.wrap(stored, 1, 4).getInt() < m_iterations;
+    }
+
+    /**
+     * Plain SHA-256 of a PIN, as stored before salting
+     * @param pin PIN
+     * @return    SHA-256 hash
+     */
+    public static byte[] sha256(String pin){
+        MessageDigest md = m_sha256.poll();
+        if (md == null){
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+        try {
+            md.reset();
+            return md.digest(pin.getBytes());
+        } finally {
+            m_sha256.offer(md);
+        }
+    }
+
+    /**
+     * PBKDF2-HMAC-SHA256 of a PIN
+     * @param pin           PIN
+     * @param salt          Salt
+     * @param iterations    Number of iterations
+     * @return              Hash
+     */
+    private static byte[] pbkdf2(String pin, byte salt[], int iterations){
+        SecretKeyFactory factory = m_pbkdf2.poll();
+        if (factory == null){
+            try {
+                factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e);
+            }
+        }
+        PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, HASH_BYTES * 8);
+        try {
+            return factory.generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalArgumentException("Unable to hash PIN", e);
+        } finally {
+            spec.clearPassword();
+            m_pbkdf2.offer(factory);
+        }
+    }
+}
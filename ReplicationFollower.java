@@ -0,0 +1,398 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a copy of a leader's Bank, applying the journal records a ReplicationLeader ships
+ * The copy is a Bank opened from its own directory: it starts from the leader's snapshot, and every record is
+ * written to its own journal before it is applied, so the copy can take over as leader with nothing to rebuild
+ * Serve only reads from the copy while following, anything changed locally would differ from the leader;
+ * the copy is marked read only until it fails over, so logins leave old PIN hashes for the leader to replace
+ *
+ * If every leader address is silent for the failover time, the follower stops and runs its failover action,
+ * which is expected to promote the copy; only one follower should be given a failover time, or two could take over
+ * A leader that cannot resume this follower, as it restarted or took over from another, runs the diverged action;
+ * the copy cannot be rebuilt under sessions reading it, so the follower is meant to be restarted
+ */
+public class ReplicationFollower {
+    /**
+     * Milliseconds without any message before the leader is taken to be gone
+     */
+    private static final int READ_TIMEOUT_MILLIS = 5 * ReplicationLeader.HEARTBEAT_MILLIS;
+
+    /**
+     * Milliseconds between attempts to reach a leader
+     */
+    private static final int RETRY_MILLIS = 500;
+
+    private String m_name;
+    private Path m_dir;
+    private Journal.SyncPolicy m_policy;
+
+    /**
+     * Addresses of the leader and of followers that may take over from it, tried in turn
+     */
+    private List<InetSocketAddress> m_leaders;
+
+    /**
+     * Milliseconds every leader may be silent before failing over, 0 to never fail over
+     */
+    private long m_failoverMillis;
+
+    private Runnable m_onFailover;
+    private Runnable m_onDiverged;
+
+    /**
+     * Copy of the Bank, null until start()
+     */
+    private Bank m_bank;
+
+    /**
+     * Term of the leader followed, and last record applied from it
+     */
+    private long m_term;
+    private volatile long m_applied;
+
+    /**
+     * Leader's last record, from its latest heartbeat
+     */
+    private volatile long m_leaderSeq;
+
+    /**
+     * Microseconds between the leader appending the last applied record and this follower applying it
+     */
+    private volatile long m_lagMicros;
+
+    /**
+     * Same for every record applied
+     */
+    private LatencyHistogram m_lag;
+
+    private Socket m_socket;
+    private Thread m_thread;
+    private volatile boolean m_stopped;
+
+    /**
+     * Constructor
+     * @param name              Bank name
+     * @param dir               Directory of the copy, replaced by the leader's snapshot on start()
+     * @param leaders           Addresses to look for a leader at
+     * @param policy            When the copy's journal records are forced to disk
+     * @param failoverMillis    Milliseconds every leader may be silent before failing over, 0 to never fail over
+     */
+    public ReplicationFollower(String name, Path dir, List<InetSocketAddress> leaders, Journal.SyncPolicy policy, long failoverMillis){
+        m_name = name;
+        m_dir = dir;
+        m_leaders = leaders;
+        m_policy = policy;
+        m_failoverMillis = failoverMillis;
+        m_lag = new LatencyHistogram();
+        m_onFailover = () -> {};
+        m_onDiverged = () -> {};
+    }
+
+    /**
+     * Sets what to run once every leader has been silent for the failover time
+     * @param action Runs on the follower's thread, which stops afterwards
+     */
+    public void onFailover(Runnable action){
+        m_onFailover = action;
+    }
+
+    /**
+     * Sets what to run when the leader can no longer resume this follower
+     * @param action Runs on the follower's thread, which stops afterwards
+     */
+    public void onDiverged(Runnable action){
+        m_onDiverged = action;
+    }
+
+    /**
+     * Copies the leader's snapshot into the directory and opens the copy, then keeps it up to date in the background
+     * Waits for a leader as long as it takes
+     * @return Copy of the Bank
+     * @throws IOException if the copy cannot be written or opened
+     */
+    public Bank start() throws IOException {
+        DataInputStream in = null;
+        while (in == null){
+            in = connect();
+            if (in == null){
+                sleep(RETRY_MILLIS);
+            }
+        }
+        //The leader writes the snapshot before sending it, which may take longer than a heartbeat
+        m_socket.setSoTimeout(0);
+        if (in.readByte() != ReplicationLeader.SNAPSHOT){
+            throw new IOException("Leader offered to resume a follower that has nothing");
+        }
+        m_term = in.readLong();
+        m_applied = in.readLong();
+        m_leaderSeq = m_applied;
+        long length = in.readLong();
+
+        //Whatever the directory held before is replaced by the leader's snapshot, and a term it once led with is stale
+        Files.createDirectories(m_dir);
+        Files.deleteIfExists(m_dir.resolve(ReplicationLeader.TERM_FILE));
+        try (Stream<Path> files = Files.list(m_dir)){
+            for (Path file : (Iterable<Path>) files::iterator){
+                if (Snapshot.fileNumber(file, "journal-", ".log") >= 0 || Snapshot.fileNumber(file, "snapshot-", ".dat") >= 0){
+                    Files.delete(file);
+                }
+            }
+        }
+        Path tmp = m_dir.resolve("snapshot-0.tmp");
+        Files.copy(new BoundedInputStream(in, length), tmp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmp, Snapshot.snapshotPath(m_dir, 0), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        m_socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        m_bank = Bank.open(m_name, m_dir, m_policy);
+        m_bank.setReadOnly(true);
+
+        m_bank.getMetrics().addGauge("atm_replication_applied", "Last leader journal record applied", () -> m_applied);
+        m_bank.getMetrics().addGauge("atm_replication_lag_records", "Leader journal records not yet applied", this::getLagRecords);
+        m_bank.getMetrics().addGauge("atm_replication_lag_microseconds", "Time from the leader appending the last applied record to applying it", () -> m_lagMicros);
+
+        final DataInputStream first = in;
+        m_thread = Thread.ofPlatform().name("replication-follow").daemon().start(() -> follow(first));
+        return m_bank;
+    }
+
+    /**
+     * Stops following and waits for the record being applied
+     * Does not wait if following already stopped, such as when a failover or diverged action exits the JVM
+     */
+    public void stop(){
+        boolean following = !m_stopped;
+        m_stopped = true;
+        closeSocket();
+        if (following && m_thread != null && m_thread != Thread.currentThread()){
+            try {
+                m_thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the last leader journal record applied
+     * @return seq
+     */
+    public long getApplied(){
+        return m_applied;
+    }
+
+    /**
+     * Returns how many records the leader had appended that are not applied yet, as of its latest heartbeat
+     * @return records
+     */
+    public long getLagRecords(){
+        return Math.max(0, m_leaderSeq - m_applied);
+    }
+
+    /**
+     * Returns the time from the leader appending each record to this follower applying it
+     * Leader and follower clocks are compared, so this is only exact on one machine
+     * @return histogram in nanoseconds
+     */
+    public LatencyHistogram getLag(){
+        return m_lag;
+    }
+
+    /**
+     * Applies records until stopped, reconnecting when the leader goes away
+     * @param in Connection to the leader, just past the snapshot
+     */
+    private void follow(DataInputStream in){
+        long lastHeard = System.nanoTime();
+        while (!m_stopped){
+            if (in != null){
+                try {
+                    receive(in);
+                } catch (IOException e) {
+                    if (m_stopped){
+                        return;
+                    }
+                    System.err.println("Lost leader: " + e);
+                }
+                closeSocket();
+                in = null;
+                lastHeard = System.nanoTime();
+            }
+
+            try {
+                in = connect();
+                if (in != null){
+                    if (in.readByte() != ReplicationLeader.RESUME){
+                        System.err.println("Leader cannot resume from record " + m_applied + ", this copy has diverged");
+                        closeSocket();
+                        m_stopped = true;
+                        m_onDiverged.run();
+                        return;
+                    }
+                    //A leader that restarted resumes followers of its previous term under its new one
+                    m_term = in.readLong();
+                }
+            } catch (IOException e) {
+                closeSocket();
+                in = null;
+            }
+            if (in == null){
+                if (m_failoverMillis > 0 && System.nanoTime() - lastHeard > m_failoverMillis * 1000000L){
+                    System.err.println("No leader for " + m_failoverMillis + " ms, failing over");
+                    m_stopped = true;
+                    m_bank.setReadOnly(false);
+                    m_onFailover.run();
+                    return;
+                }
+                sleep(RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Applies records from the leader until the connection fails
+     * Records are appended to the copy's journal as they arrive and forced to disk once no more are waiting
+     * @param in Connection to the leader
+     * @throws IOException if the connection fails or sends something unexpected
+     */
+    private void receive(DataInputStream in) throws IOException {
+        boolean unsynced = false;
+        while (!m_stopped){
+            if (unsynced && in.available() == 0){
+                m_bank.syncReplicated();
+                unsynced = false;
+            }
+            byte type = in.readByte();
+            if (type == ReplicationLeader.HEARTBEAT){
+                m_leaderSeq = in.readLong();
+                continue;
+            }
+            if (type != ReplicationLeader.RECORD){
+                throw new IOException("Unexpected message " + type);
+            }
+            long seq = in.readLong();
+            long appendedMicros = in.readLong();
+            byte payload[] = new byte[in.readInt()];
+            in.readFully(payload);
+            if (seq != m_applied + 1){
+                throw new IOException("Expected record " + (m_applied + 1) + ", got " + seq);
+            }
+            m_bank.applyReplicated(payload);
+            unsynced = true;
+            m_applied = seq;
+
+            Instant now = Instant.now();
+            long lag = Math.max(0, now.getEpochSecond() * 1000000 + now.getNano() / 1000 - appendedMicros);
+            m_lagMicros = lag;
+            m_lag.record(lag * 1000);
+        }
+    }
+
+    /**
+     * Tries each leader address in turn and says hello to the first that answers
+     * @return Connection, null if none answered
+     */
+    private DataInputStream connect(){
+        for (InetSocketAddress address : m_leaders){
+            Socket socket = new Socket();
+            try {
+                socket.connect(address, READ_TIMEOUT_MILLIS);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64));
+                out.writeLong(m_term);
+                out.writeLong(m_applied);
+                out.flush();
+                synchronized (this){
+                    m_socket = socket;
+                }
+                return new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException closeError) {
+                    //Already failed
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes the connection to the leader, if any
+     */
+    private synchronized void closeSocket(){
+        if (m_socket != null){
+            try {
+                m_socket.close();
+            } catch (IOException e) {
+                //Closing anyway
+            }
+            m_socket = null;
+        }
+    }
+
+    /**
+     * Sleeps without being interrupted early
+     * @param millis Milliseconds
+     */
+    private static void sleep(long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads at most a given number of bytes from another stream, leaving the rest there
+     */
+    private static class BoundedInputStream extends InputStream {
+        private InputStream m_in;
+        private long m_left;
+
+        BoundedInputStream(InputStream in, long length){
+            m_in = in;
+            m_left = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (m_left <= 0){
+                return -1;
+            }
+            int b = m_in.read();
+            if (b < 0){
+                throw new EOFException();
+            }
+            m_left--;
+            return b;
+        }
+
+        @Override
+        public int read(byte buf[], int off, int len) throws IOException {
+            if (m_left <= 0){
+                return -1;
+            }
+            int n = m_in.read(buf, off, (int) Math.min(len, m_left));
+            if (n < 0){
+                throw new EOFException();
+            }
+            m_left -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Ships a Bank's journal records to follower processes over TCP, so they hold a copy of the Bank
+ * Every record the Journal appends is kept in a ring of the most recent RETAINED records, and each connected follower
+ * has a thread sending records from the ring as they arrive, with a heartbeat after each batch and when idle
+ *
+ * A follower says which leader term and record it has applied up to; if that is this leader's term and the ring
+ * still holds the records after it, sending resumes from there, otherwise it first gets a full snapshot
+ * Records are shipped once appended, before they are forced to disk, so a follower may be slightly ahead of
+ * a leader that crashes; the follower that takes over is then the more up to date copy
+ *
+ * Each start of a leader is a new term, kept in TERM_FILE in the Bank's directory along with the term before it;
+ * journal sequence numbers carry on across restarts, so a follower of the previous term that applied exactly the
+ * records this leader restarted with resumes, and one that got records the leader lost in a crash is sent a snapshot
+ *
+ * Wire format, big endian:
+ *   follower hello   [long term][long applied seq]
+ *   RESUME           [byte][long term]
+ *   SNAPSHOT         [byte][long term][long seq][long length][snapshot file]
+ *   RECORD           [byte][long seq][long leader time in microseconds][int length][journal payload]
+ *   HEARTBEAT        [byte][long leader's last seq]
+ */
+public class ReplicationLeader {
+    //Message types
+    static final byte RECORD = 1;
+    static final byte HEARTBEAT = 2;
+    static final byte RESUME = 3;
+    static final byte SNAPSHOT = 4;
+
+    /**
+     * File in the Bank's directory holding the latest leader term
+     */
+    static final String TERM_FILE = "replication-term";
+
+    /**
+     * Records kept for followers that reconnect or fall behind, a power of 2
+     */
+    private static final int RETAINED = 1 << 18;
+
+    /**
+     * Most records sent between heartbeats
+     */
+    private static final int BATCH = 1024;
+
+    /**
+     * Milliseconds between heartbeats of an idle leader
+     */
+    static final int HEARTBEAT_MILLIS = 1000;
+
+    /**
+     * Bank replicated
+     */
+    private Bank m_bank;
+
+    /**
+     * Identifies this start of the leader
+     */
+    private long m_term;
+
+    /**
+     * Term of the leader's previous start, from TERM_FILE, 0 for none
+     */
+    private long m_prevTerm;
+
+    /**
+     * Sequence number of the last record appended before this leader attached, followers of m_prevTerm resume from it
+     */
+    private long m_startSeq;
+
+    /**
+     * Encoded RECORD messages, seq at index seq & (RETAINED - 1)
+     */
+    private byte m_ring[][];
+
+    /**
+     * Oldest sequence number still in the ring
+     */
+    private long m_firstSeq;
+
+    /**
+     * Newest sequence number in the ring
+     */
+    private long m_lastSeq;
+
+    /**
+     * Listening socket
+     */
+    private ServerSocket m_server;
+
+    /**
+     * Number of connected followers
+     */
+    private AtomicInteger m_followers;
+
+    private volatile boolean m_closed;
+
+    /**
+     * Constructor, binds the port followers connect to; call start() to begin
+     * @param bank  Bank opened from a directory, so it has a journal
+     * @param port  TCP port, 0 for any free port
+     * @throws IOException if the term cannot be saved or the port cannot be bound
+     */
+    public ReplicationLeader(Bank bank, int port) throws IOException {
+        m_bank = bank;
+        m_term = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        Path termFile = bank.getDir().resolve(TERM_FILE);
+        if (Files.exists(termFile)){
+            m_prevTerm = ByteBuffer.wrap(Files.readAllBytes(termFile)).getLong();
+        }
+        Path tmp = bank.getDir().resolve(TERM_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            channel.write(ByteBuffer.allocate(8).putLong(m_term).flip());
+            channel.force(false);
+        }
+        Files.move(tmp, termFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        m_ring = new byte[RETAINED][];
+        m_followers = new AtomicInteger();
+        m_server = new ServerSocket();
+        m_server.setReuseAddress(true);
+        m_server.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Starts shipping the journal and accepting followers
+     * Kept out of the constructor, as the Journal calls back into this leader
+     * @return this
+     */
+    public ReplicationLeader start(){
+        m_bank.getJournal().setReplicationLeader(this);
+        m_bank.getMetrics().addGauge("atm_replication_followers", "Followers connected", m_followers::get);
+        m_bank.getMetrics().addGauge("atm_replication_seq", "Last journal record shipped to followers", this::getLastSeq);
+        Thread.ofPlatform().name("replication-accept").daemon().start(this::acceptLoop);
+        return this;
+    }
+
+    /**
+     * Returns the port the leader listens on
+     * @return port
+     */
+    public int getPort(){
+        return m_server.getLocalPort();
+    }
+
+    /**
+     * Returns number of connected followers
+     * @return count
+     */
+    public int getFollowers(){
+        return m_followers.get();
+    }
+
+    /**
+     * Returns the sequence number of the newest record
+     * @return seq
+     */
+    public synchronized long getLastSeq(){
+        return m_lastSeq;
+    }
+
+    /**
+     * Stops shipping the journal and disconnects every follower
+     * @throws IOException if the socket cannot be closed
+     */
+    public void close() throws IOException {
+        m_closed = true;
+        Journal journal = m_bank.getJournal();
+        if (journal != null){
+            journal.setReplicationLeader(null);
+        }
+        m_server.close();
+        synchronized (this){
+            notifyAll();
+        }
+    }
+
+    /**
+     * Called by the Journal as this leader is attached, under the Journal's lock
+     * @param seq Sequence number of the last record appended before now
+     */
+    synchronized void attach(long seq){
+        m_startSeq = seq;
+        m_firstSeq = seq + 1;
+        m_lastSeq = seq;
+    }
+
+    /**
+     * Called by the Journal for every record appended, in sequence order, under the Journal's lock
+     * @param seq       Sequence number
+     * @param payload   Encoded record, not changed afterwards
+     */
+    void append(long seq, byte payload[]){
+        Instant now = Instant.now();
+        byte message[] = new byte[21 + payload.length];
+        ByteBuffer.wrap(message).put(RECORD).putLong(seq).putLong(now.getEpochSecond() * 1000000 + now.getNano() / 1000)
+            .putInt(payload.length).put(payload);
+        synchronized (this){
+            m_ring[(int) seq & (RETAINED - 1)] = message;
+            m_lastSeq = seq;
+            if (m_lastSeq - m_firstSeq >= RETAINED){
+                m_firstSeq++;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Accepts followers until closed, each served by its own thread
+     */
+    private void acceptLoop(){
+        while (!m_server.isClosed()){
+            try {
+                Socket socket = m_server.accept();
+                Thread.ofPlatform().name("replication-send").daemon().start(() -> serve(socket));
+            } catch (IOException e) {
+                if (!m_server.isClosed()){
+                    System.err.println("Unable to accept follower: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings one follower up to date and keeps sending it records until it disconnects or falls too far behind
+     * @param socket Connection
+     */
+    private void serve(Socket socket){
+        m_followers.incrementAndGet();
+        try (socket){
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            long term = in.readLong();
+            long applied = in.readLong();
+
+            long cursor;
+            synchronized (this){
+                boolean current = (term == m_term && applied >= m_firstSeq - 1 && applied <= m_lastSeq);
+                boolean previous = (m_prevTerm != 0 && term == m_prevTerm && applied == m_startSeq && m_firstSeq == m_startSeq + 1);
+                cursor = (current || previous) ? applied : -1;
+            }
+            if (cursor >= 0){
+                out.writeByte(RESUME);
+                out.writeLong(m_term);
+            } else {
+                cursor = sendSnapshot(out);
+            }
+            out.flush();
+
+            byte batch[][] = new byte[BATCH][];
+            while (!m_closed){
+                int count;
+                long last;
+                synchronized (this){
+                    if (cursor == m_lastSeq){
+                        wait(HEARTBEAT_MILLIS);
+                    }
+                    if (cursor + 1 < m_firstSeq){
+                        System.err.println("Follower " + socket.getRemoteSocketAddress() + " fell more than " + RETAINED + " records behind");
+                        return;
+                    }
+                    count = (int) Math.min(BATCH, m_lastSeq - cursor);
+                    for (int i = 0; i < count; i++){
+                        batch[i] = m_ring[(int) (cursor + 1 + i) & (RETAINED - 1)];
+                    }
+                    last = m_lastSeq;
+                }
+                for (int i = 0; i < count; i++){
+                    out.write(batch[i]);
+                    batch[i] = null;
+                }
+                out.writeByte(HEARTBEAT);
+                out.writeLong(last);
+                out.flush();
+                cursor += count;
+            }
+        } catch (IOException e) {
+            //Follower went away, it reconnects and resumes
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            m_followers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the Bank to a follower
+     * Retried if the ring moves past the snapshot while it is written, so the records after it can still be sent
+     * @param out   Connection to the follower
+     * @return      Sequence number the snapshot covers
+     * @throws IOException if the snapshot cannot be written or sent
+     */
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        Path dir = Files.createTempDirectory("replica-snapshot");
+        try {
+            while (true){
+                long seq = m_bank.writeReplicaSnapshot(dir);
+                Path file = Snapshot.snapshotPath(dir, 0);
+                synchronized (this){
+                    if (seq + 1 < m_firstSeq){
+                        continue;
+                    }
+                }
+                out.writeByte(SNAPSHOT);
+                out.writeLong(m_term);
+                out.writeLong(seq);
+                out.writeLong(Files.size(file));
+                Files.copy(file, out);
+                return seq;
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(dir)){
+                for (Path file : (Iterable<Path>) files::iterator){
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+}
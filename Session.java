@@ -0,0 +1,66 @@
+/**
+ * One ATM session, holding the User logged in at that terminal
+ * Each terminal has its own Session, while all of them share the same Bank
+ */
+public class Session {
+    /**
+     * Bank the session is connected to
+     */
+    private Bank m_bank;
+
+    /**
+     * The current active User, null when logged out
+     */
+    private User m_activeUser;
+
+    /**
+     * Constructor, starts a logged out session
+     * @param bank Bank the session is connected to
+     */
+    public Session(Bank bank){
+        m_bank = bank;
+        m_activeUser = null;
+    }
+
+    /**
+     * Returns m_bank
+     * @return m_bank
+     */
+    public Bank getBank(){
+        return m_bank;
+    }
+
+    /**
+     * Returns m_activeUser
+     * @return m_activeUser or null when logged out
+     */
+    public User getUser(){
+        return m_activeUser;
+    }
+
+    /**
+     * Checks if a User is logged in
+     * @return true for logged in
+     */
+    public boolean isLoggedIn(){
+        return m_activeUser != null;
+    }
+
+    /**
+     * Logs in with ID and PIN, replacing any User already logged in
+     * @param userID User ID
+     * @param pin    User PIN
+     * @return       true for successful login
+     */
+    public boolean login(int userID, String pin){
+        m_activeUser = m_bank.login(userID, pin);
+        return m_activeUser != null;
+    }
+
+    /**
+     * Logs the User out
+     */
+    public void logout(){
+        m_activeUser = null;
+    }
+}
@@ -0,0 +1,370 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Bank split into shards by User ID, each shard a Bank of its own served by one thread
+ * A User and their accounts live on one shard, and every request for them runs as a task on that shard's thread,
+ * so shards share no Users, accounts or locks and add throughput as they are added, up to the number of cores
+ * User IDs and account numbers come from allocators shared by every shard, so they stay unique across the Bank
+ *
+ * Requests return CompletableFutures, completed on the shard's thread
+ * Transfers between shards are messages: the destination shard checks the account, the source shard takes the money
+ * with a TransferOutbox intent in one journal record, then the destination shard credits the intent, and the source
+ * marks it done; if the destination account was deleted meanwhile the source refunds it instead
+ * The destination journals the IDs of the intents it credits, so after a crash open() delivers every pending intent
+ * again, and one credited before the crash is only marked done
+ */
+public class ShardedBank {
+    /**
+     * Location of transfer transactions
+     */
+    private static final String TRANSFER = "Transfer";
+
+    /**
+     * Bank name
+     */
+    private String m_name;
+
+    /**
+     * Shards, the Users of each are those whose ID shardOf() maps to it
+     */
+    private Bank m_shards[];
+
+    /**
+     * Thread of each shard, in m_shards order
+     */
+    private ExecutorService m_loops[];
+
+    /**
+     * Allocators shared by every shard
+     */
+    private IdAllocator m_userIDs;
+    private IdAllocator m_accNums;
+
+    /**
+     * Constructor, creates shards kept only in memory
+     * Uses 5 digit User IDs and 7 digit ###-#### account numbers
+     * @param name          Bank name
+     * @param numOfShards   Number of shards, about the number of cores
+     */
+    public ShardedBank(String name, int numOfShards){
+        if (numOfShards < 1){
+            throw new IllegalArgumentException("Need at least 1 shard");
+        }
+        m_name = name;
+        m_userIDs = IdAllocator.ofDigits(5);
+        m_accNums = IdAllocator.ofDigits(7);
+        m_shards = new Bank[numOfShards];
+        m_loops = new ExecutorService[numOfShards];
+        for (int i = 0; i < numOfShards; i++){
+            m_shards[i] = new Bank(name, m_userIDs, m_accNums);
+            m_shards[i].getTransferOutbox().setIDs(i, numOfShards);
+            final String threadName = "bank-shard-" + i;
+            m_loops[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Opens a ShardedBank stored in dir, each shard in its own subdirectory with its own journal and snapshots
+     * The number of shards is kept in dir, as Users cannot move between shards once stored
+     * @param name          Bank name
+     * @param dir           Directory of the shards, created if missing
+     * @param numOfShards   Number of shards for a new Bank, must match the stored one for an existing Bank
+     * @param policy        When journal records are forced to disk
+     * @return              ShardedBank
+     * @throws IOException if the files cannot be read or written, or the number of shards does not match
+     */
+    public static ShardedBank open(String name, Path dir, int numOfShards, Journal.SyncPolicy policy) throws IOException {
+        Files.createDirectories(dir);
+        Path countFile = dir.resolve("shards");
+        if (Files.exists(countFile)){
+            int stored = Integer.parseInt(Files.readString(countFile, StandardCharsets.UTF_8).trim());
+            if (stored != numOfShards){
+                throw new IOException("Bank in " + dir + " has " + stored + " shards, not " + numOfShards);
+            }
+        } else {
+            Files.writeString(countFile, numOfShards + "\n", StandardCharsets.UTF_8);
+        }
+
+        ShardedBank bank = new ShardedBank(name, numOfShards);
+        for (int i = 0; i < numOfShards; i++){
+            Bank.open(bank.m_shards[i], dir.resolve("shard-" + i), policy);
+        }
+        bank.resumeTransfers();
+        return bank;
+    }
+
+    /**
+     * Returns m_name
+     * @return m_name
+     */
+    public String getName(){
+        return m_name;
+    }
+
+    /**
+     * Returns number of shards
+     * @return count
+     */
+    public int getNumOfShards(){
+        return m_shards.length;
+    }
+
+    /**
+     * Returns the shard a User lives on
+     * User IDs are handed out in a random order, so they spread evenly without hashing
+     * @param userID    User ID
+     * @return          Shard index
+     */
+    public int shardOf(int userID){
+        return Math.floorMod(userID, m_shards.length);
+    }
+
+    /**
+     * Returns a shard, for setup and reports that run while no requests do
+     * @param shard Shard index
+     * @return      Bank of the shard
+     */
+    Bank getShard(int shard){
+        return m_shards[shard];
+    }
+
+    /**
+     * Acquires a User ID unique across every shard
+     * @return id
+     * @throws IllegalStateException if all User IDs are used
+     */
+    public int getNewUserID(){
+        return m_userIDs.next();
+    }
+
+    /**
+     * Adds a new User, with a Chequing account, to the shard of a newly taken ID
+     * @param fName First name
+     * @param lName Last name
+     * @param pin   User pin
+     * @return      User ID
+     * @throws IllegalStateException if all User IDs are used
+     */
+    public CompletableFuture<Integer> addUser(String fName, String lName, String pin){
+        int userID = getNewUserID();
+        return submit(shardOf(userID), bank -> bank.addUser(userID, fName, lName, pin).getUserID());
+    }
+
+    /**
+     * Checks a User's PIN
+     * Runs on the common pool rather than the shard's thread, as PIN hashing is deliberately slow
+     * and would hold up every other request of the shard; the login throttle is safe to share
+     * @param userID    User ID
+     * @param pin       User PIN
+     * @return          true if matched, false for non-matched or locked out
+     */
+    public CompletableFuture<Boolean> login(int userID, String pin){
+        Bank shard = m_shards[shardOf(userID)];
+        return CompletableFuture.supplyAsync(() -> shard.login(userID, pin) != null);
+    }
+
+    /**
+     * Opens a new account for a User
+     * @param userID    Owner's User ID
+     * @param type      Account type, such as Chequing
+     * @return          Account number
+     */
+    public CompletableFuture<String> openAccount(int userID, String type){
+        return submit(shardOf(userID), bank -> bank.openAccount(userOf(bank, userID), type).getAccNum());
+    }
+
+    /**
+     * Returns the balance of one of a User's accounts
+     * @param userID    User ID
+     * @param accIndex  Account index in the User's accounts
+     * @return          Balance in cents
+     */
+    public CompletableFuture<Long> getBalance(int userID, int accIndex){
+        return submit(shardOf(userID), bank -> userOf(bank, userID).getAccount(accIndex).getAccBalance());
+    }
+
+    /**
+     * Deposits amount into one of a User's accounts
+     * @param userID    User ID
+     * @param accIndex  Account index in the User's accounts
+     * @param amount    Amount in cents
+     * @return          Balance after the deposit
+     */
+    public CompletableFuture<Long> deposit(int userID, int accIndex, long amount){
+        return submit(shardOf(userID), bank -> {
+            User user = userOf(bank, userID);
+            Account account = user.getAccount(accIndex);
+            user.deposit(account, amount);
+            return account.getAccBalance();
+        });
+    }
+
+    /**
+     * Withdraws amount from one of a User's accounts if the balance covers it
+     * @param userID    User ID
+     * @param accIndex  Account index in the User's accounts
+     * @param amount    Amount in cents
+     * @return          true if withdrawn, false for insufficient balance
+     */
+    public CompletableFuture<Boolean> withdraw(int userID, int accIndex, long amount){
+        return submit(shardOf(userID), bank -> {
+            User user = userOf(bank, userID);
+            return user.withdraw(user.getAccount(accIndex), amount);
+        });
+    }
+
+    /**
+     * Transfers amount from one User's account to another's, which may live on another shard
+     * @param srcUserID     Source User ID
+     * @param srcIndex      Source account index
+     * @param destUserID    Destination User ID
+     * @param destIndex     Destination account index
+     * @param amount        Amount in cents
+     * @return              true if transferred, false for insufficient balance; completes exceptionally,
+     *                      with the money back in the source account, if the destination cannot take it
+     */
+    public CompletableFuture<Boolean> transfer(int srcUserID, int srcIndex, int destUserID, int destIndex, long amount){
+        int src = shardOf(srcUserID);
+        int dest = shardOf(destUserID);
+        if (src == dest){
+            return submit(src, bank -> Account.transfer(userOf(bank, srcUserID).getAccount(srcIndex),
+                userOf(bank, destUserID).getAccount(destIndex), amount, TRANSFER));
+        }
+
+        //Looks the destination up first, so a wrong account fails before any money moves
+        return submit(dest, bank -> userOf(bank, destUserID).getAccount(destIndex).getAccNum())
+            .thenCompose(destAccNum -> submit(src, bank ->
+                userOf(bank, srcUserID).getAccount(srcIndex).transferOut(destAccNum, amount, TRANSFER)))
+            .thenCompose(intent -> (intent == null) ? CompletableFuture.completedFuture(false) : deliver(src, dest, intent));
+    }
+
+    /**
+     * Credits a pending intent on the destination shard, then marks it done on the source shard,
+     * refunding it if the destination account has been deleted, and has the destination forget it
+     * If a step fails otherwise, the intent stays pending until the next open()
+     * @param src       Source shard
+     * @param dest      Destination shard
+     * @param intent    Intent of the source shard
+     * @return          true once credited; completes exceptionally, with the money back in the source account,
+     *                  if the destination account has been deleted
+     */
+    private CompletableFuture<Boolean> deliver(int src, int dest, TransferOutbox.Intent intent){
+        return submit(dest, bank -> {
+                //Already credited before a crash
+                if (bank.getTransferOutbox().isReceived(intent.getID())){
+                    return true;
+                }
+                Account account = bank.getAccount(intent.getDestAccNum());
+                if (account == null || account.isDeleted()){
+                    return false;
+                }
+                account.transferIn(intent);
+                return true;
+            })
+            .thenCompose(credited -> submit(src, bank -> {
+                bank.getTransferOutbox().done(intent.getID(), !credited);
+                return credited;
+            }))
+            .thenCompose(credited -> {
+                if (!credited){
+                    return CompletableFuture.failedFuture(new IllegalStateException("Account " + intent.getDestAccNum()
+                        + " has been deleted, the transfer was refunded"));
+                }
+                return submit(dest, bank -> {
+                    bank.getTransferOutbox().forget(intent.getID());
+                    return true;
+                });
+            });
+    }
+
+    /**
+     * Delivers again the intents left pending by a crash or a failed step, before any request runs
+     * Each goes to the shard that has credited it or holds its destination account, and is refunded if there is none
+     * An intent that still cannot be delivered or refunded stays pending for the next open()
+     */
+    private void resumeTransfers(){
+        for (int src = 0; src < m_shards.length; src++){
+            for (TransferOutbox.Intent intent : m_shards[src].getTransferOutbox().getPending()){
+                int dest = -1;
+                for (int i = 0; i < m_shards.length && dest < 0; i++){
+                    if (m_shards[i].getTransferOutbox().isReceived(intent.getID()) || m_shards[i].getAccount(intent.getDestAccNum()) != null){
+                        dest = i;
+                    }
+                }
+                CompletableFuture<Boolean> resumed;
+                if (dest >= 0){
+                    resumed = deliver(src, dest, intent);
+                } else {
+                    resumed = submit(src, bank -> {
+                        bank.getTransferOutbox().done(intent.getID(), true);
+                        return false;
+                    });
+                }
+                try {
+                    resumed.join();
+                } catch (CompletionException e) {
+                    System.err.println("Transfer " + intent.getID() + ": " + e.getCause().getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the requests already submitted, then closes every shard
+     * @throws IOException if a shard cannot be saved
+     */
+    public void close() throws IOException {
+        for (ExecutorService loop : m_loops){
+            loop.shutdown();
+        }
+        for (ExecutorService loop : m_loops){
+            try {
+                loop.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Bank shard : m_shards){
+            shard.close();
+        }
+    }
+
+    /**
+     * Runs a request on a shard's thread
+     * @param shard Shard index
+     * @param task  Request, given the shard's Bank
+     * @return      Result of task
+     */
+    private <T> CompletableFuture<T> submit(int shard, Function<Bank, T> task){
+        Bank bank = m_shards[shard];
+        return CompletableFuture.supplyAsync(() -> task.apply(bank), m_loops[shard]);
+    }
+
+    /**
+     * Finds a User on their shard
+     * @param bank      Shard
+     * @param userID    User ID
+     * @return          User
+     * @throws IllegalArgumentException if no such User exists
+     */
+    private static User userOf(Bank bank, int userID){
+        User user = bank.getUser(userID);
+        if (user == null){
+            throw new IllegalArgumentException("Unknown user: " + userID);
+        }
+        return user;
+    }
+}
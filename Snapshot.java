@@ -0,0 +1,339 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Compact copy of a whole Bank, so that recovery only has to replay the Journal written after it
+ * snapshot-<n>.dat holds the state at the start of journal segment n
+ * Users, accounts and Transactions are written in the BinaryCodec format, as are standing orders;
+ * version 4 and later snapshots are mapped a window at a time and decoded in place when loaded, older versions are still read
+ * Version 5 adds the running totals of each account, version 6 the TransferOutbox
+ */
+public class Snapshot {
+    /**
+     * Marks the start of a snapshot file
+     */
+    private static final int MAGIC = 0x41544D53;
+
+    /**
+     * Format version
+     */
+    private static final int VERSION = 6;
+
+    /**
+     * State of one account at the time of capture
+     */
+    public static class AccountState {
+        public Account account;
+        public long balance;
+        public int numOfTrans;
+        public long accruedTo;
+        public long interestRemainder;
+        public AccountStats stats;
+    }
+
+    /**
+     * State of one User at the time of capture
+     */
+    public static class UserState {
+        public User user;
+        public ArrayList<AccountState> accounts = new ArrayList<AccountState>();
+    }
+
+    /**
+     * Private constructor as no instances of Snapshot should be created
+     * All methods will be static/class level
+     */
+    private Snapshot(){};
+
+    /**
+     * Returns path of a snapshot file
+     * @param dir     Directory of snapshot files
+     * @param segment Journal segment the snapshot leads into
+     * @return        Path of snapshot-<segment>.dat
+     */
+    public static Path snapshotPath(Path dir, long segment){
+        return dir.resolve("snapshot-" + segment + ".dat");
+    }
+
+    /**
+     * Records balances, ledger sizes and running totals of every account
+     * Only numbers are copied, so this is quick; the caller must stop changes to the Bank meanwhile
+     * Ledgers are append only, so entries below the recorded size can be read later while the Bank is in use
+     * @param users All Users of the Bank
+     * @return      Captured state
+     */
+    public static ArrayList<UserState> capture(Collection<User> users){
+        ArrayList<UserState> states = new ArrayList<UserState>(users.size());
+        for (User user : users){
+            UserState userState = new UserState();
+            userState.user = user;
+            for (Account account : user.getAccounts()){
+                AccountState accState = new AccountState();
+                accState.account = account;
+                accState.balance = account.getAccBalance();
+                accState.numOfTrans = account.getNumOfTransaction();
+                accState.accruedTo = account.getAccruedTo();
+                accState.interestRemainder = account.getInterestRemainder();
+                accState.stats = account.copyStats();
+                userState.accounts.add(accState);
+            }
+            states.add(userState);
+        }
+        return states;
+    }
+
+    /**
+     * Writes captured state as snapshot-<segment>.dat
+     * The file is written under a temporary name and renamed once forced to disk, so a crash never leaves half a snapshot
+     * @param dir       Directory of snapshot files
+     * @param segment   Journal segment the snapshot leads into
+     * @param states    State from capture
+     * @param orders    Standing orders, captured at the same time
+     * @param outbox    Transfers to and from other Banks, captured at the same time
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path dir, long segment, List<UserState> states, StandingOrders.Captured orders,
+            TransferOutbox.Captured outbox) throws IOException {
+        Path tmp = dir.resolve("snapshot-" + segment + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp.toFile())){
+            BinaryCodec.Writer out = new BinaryCodec.Writer(fileOut);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeHeader();
+            out.writeVarLong(states.size());
+            for (UserState userState : states){
+                out.writeUser(userState);
+            }
+            out.writeVarLong(orders.ids.length);
+            for (int i = 0; i < orders.ids.length; i++){
+                out.writeVarLong(orders.ids[i]);
+                out.writeVarLong(BinaryCodec.packAccNum(orders.src[i]));
+                out.writeVarLong(BinaryCodec.packAccNum(orders.dest[i]));
+                out.writeSignedVarLong(orders.amount[i]);
+                out.writeByte(orders.frequency[i]);
+                out.writeByte(orders.dayOfMonth[i]);
+                out.writeSignedVarLong(orders.due[i]);
+            }
+            out.writeVarLong(outbox.nextID);
+            out.writeVarLong(outbox.pending.length);
+            for (TransferOutbox.Intent intent : outbox.pending){
+                out.writeVarLong(intent.id);
+                out.writeVarLong(BinaryCodec.packAccNum(intent.srcAccNum));
+                out.writeVarLong(BinaryCodec.packAccNum(intent.destAccNum));
+                out.writeSignedVarLong(intent.timestamp);
+                out.writeString(intent.location);
+                out.writeSignedVarLong(intent.amount);
+            }
+            out.writeVarLong(outbox.received.length);
+            for (long id : outbox.received){
+                out.writeVarLong(id);
+            }
+            out.flush();
+            fileOut.getChannel().force(true);
+        }
+        Files.move(tmp, snapshotPath(dir, segment), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Loads a snapshot file into an empty bank
+     * @param file  Snapshot file
+     * @param bank  Bank to load into
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static void load(Path file, Bank bank) throws IOException {
+        //Versions from 4 on are decoded from the file mapped in windows, so they may be any size; older versions are streamed
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            if (channel.size() >= 8){
+                BinaryCodec.Reader in = new BinaryCodec.Reader(channel, 0);
+                int magic = in.readInt();
+                int version = in.readInt();
+                if (magic == MAGIC && version >= 4 && version <= VERSION){
+                    load(in, version, bank);
+                    return;
+                }
+            }
+        }
+
+        try (InputStream fileIn = Files.newInputStream(file)){
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn, 1 << 16));
+            ArrayList<String> strings = new ArrayList<String>();
+            if (in.readInt() != MAGIC){
+                throw new IOException("Not a snapshot: " + file);
+            }
+            //Version 1 has no interest state, its accounts start accruing when next touched; versions before 3 have no standing orders
+            int version = in.readInt();
+            if (version < 1 || version > VERSION){
+                throw new IOException("Not a version 1 to " + VERSION + " snapshot: " + file);
+            }
+            int numOfUsers = in.readInt();
+            for (int u = 0; u < numOfUsers; u++){
+                int userID = in.readInt();
+                String fName = in.readUTF();
+                String lName = in.readUTF();
+                byte pin[] = new byte[in.readShort()];
+                in.readFully(pin);
+                bank.replayUser(userID, fName, lName, pin);
+
+                int numOfAcc = in.readInt();
+                for (int a = 0; a < numOfAcc; a++){
+                    String accNum = in.readUTF();
+                    bank.replayOpenAccount(userID, accNum, readString(in, strings));
+                    bank.replayBalance(accNum, in.readLong());
+                    if (version >= 2){
+                        long accruedTo = in.readLong();
+                        bank.replayAccrual(accNum, 0, accruedTo, 0, in.readLong());
+                    }
+                    int numOfTrans = in.readInt();
+                    for (int t = 0; t < numOfTrans; t++){
+                        long timestamp = in.readLong();
+                        String location = readString(in, strings);
+                        long amount = in.readLong();
+                        bank.replayTransaction(accNum, timestamp, location, amount, readString(in, strings), false);
+                    }
+                }
+            }
+
+            int numOfOrders = (version >= 3) ? in.readInt() : 0;
+            for (int o = 0; o < numOfOrders; o++){
+                int id = in.readInt();
+                String srcAccNum = in.readUTF();
+                String destAccNum = in.readUTF();
+                long amount = in.readLong();
+                byte frequency = in.readByte();
+                byte dayOfMonth = in.readByte();
+                bank.replayOrderAdd(id, srcAccNum, destAccNum, amount, frequency, dayOfMonth, in.readInt());
+            }
+        }
+    }
+
+    /**
+     * Loads the body of a version 4 or later snapshot, decoded straight from the mapped windows of the file
+     * @param in        Reader positioned after the version
+     * @param version   Snapshot version
+     * @param bank      Bank to load into
+     * @throws IOException if the snapshot is cut short or malformed
+     */
+    private static void load(BinaryCodec.Reader in, int version, Bank bank) throws IOException {
+        in.readHeader();
+        BinaryCodec.Handler handler = new BinaryCodec.Handler(){
+            @Override
+            public void user(int userID, String fName, String lName, byte pin[]){
+                bank.replayUser(userID, fName, lName, pin);
+            }
+
+            @Override
+            public void account(int userID, String accNum, String type, long balance, long accruedTo, long interestRemainder){
+                bank.replayOpenAccount(userID, accNum, type);
+                bank.replayBalance(accNum, balance);
+                bank.replayAccrual(accNum, 0, accruedTo, 0, interestRemainder);
+            }
+
+            @Override
+            public void transaction(String accNum, long timestamp, String location, long amount, String memo){
+                bank.replayTransaction(accNum, timestamp, location, amount, memo, false);
+            }
+
+            @Override
+            public void stats(String accNum, AccountStats stats){
+                bank.replayStats(accNum, stats);
+            }
+        };
+        long numOfUsers = in.readVarLong();
+        for (long u = 0; u < numOfUsers; u++){
+            in.readUser(handler);
+        }
+
+        long numOfOrders = in.readVarLong();
+        for (long o = 0; o < numOfOrders; o++){
+            int id = (int) in.readVarLong();
+            String srcAccNum = BinaryCodec.unpackAccNum((int) in.readVarLong());
+            String destAccNum = BinaryCodec.unpackAccNum((int) in.readVarLong());
+            long amount = in.readSignedVarLong();
+            byte frequency = in.readByte();
+            byte dayOfMonth = in.readByte();
+            bank.replayOrderAdd(id, srcAccNum, destAccNum, amount, frequency, dayOfMonth, (int) in.readSignedVarLong());
+        }
+
+        if (version >= 6){
+            TransferOutbox outbox = bank.getTransferOutbox();
+            outbox.replayNextID(in.readVarLong());
+            long numOfPending = in.readVarLong();
+            for (long p = 0; p < numOfPending; p++){
+                long id = in.readVarLong();
+                String srcAccNum = BinaryCodec.unpackAccNum((int) in.readVarLong());
+                String destAccNum = BinaryCodec.unpackAccNum((int) in.readVarLong());
+                long timestamp = in.readSignedVarLong();
+                String location = in.readString();
+                outbox.replayAdd(new TransferOutbox.Intent(id, srcAccNum, destAccNum, timestamp, location, in.readSignedVarLong()));
+            }
+            long numOfReceived = in.readVarLong();
+            for (long r = 0; r < numOfReceived; r++){
+                outbox.replayReceived(in.readVarLong());
+            }
+        }
+    }
+
+    /**
+     * Finds the newest snapshot in dir
+     * @param dir Directory of snapshot files
+     * @return    Segment number of the newest snapshot, or -1 if there is none
+     * @throws IOException if dir cannot be listed
+     */
+    public static long latest(Path dir) throws IOException {
+        long latest = -1;
+        try (Stream<Path> files = Files.list(dir)){
+            for (Path file : (Iterable<Path>) files::iterator){
+                long segment = fileNumber(file, "snapshot-", ".dat");
+                latest = Math.max(latest, segment);
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Reads the number out of a file name such as snapshot-12.dat
+     * @param file      File path
+     * @param prefix    Expected prefix
+     * @param suffix    Expected suffix
+     * @return          The number, or -1 if the name does not match
+     */
+    public static long fileNumber(Path file, String prefix, String suffix){
+        String name = file.getFileName().toString();
+        if (!name.startsWith(prefix) || !name.endsWith(suffix)){
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a String of a snapshot before version 4, written the first time it was used and numbered afterwards
+     * @param in        Input
+     * @param strings   Strings read so far
+     * @return          String
+     */
+    private static String readString(DataInputStream in, ArrayList<String> strings) throws IOException {
+        int id = in.readInt();
+        if (id >= 0){
+            return strings.get(id);
+        }
+        String str = in.readUTF();
+        strings.add(str);
+        return str;
+    }
+}
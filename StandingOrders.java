@@ -0,0 +1,699 @@
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Standing orders of a Bank: recurring transfers between two accounts, run on the days they fall due
+ *
+ * Orders are kept column by column in primitive arrays indexed by order ID, about 30 bytes each, and a binary
+ * heap of IDs ordered by due day finds the next ones to run; nothing is allocated per order
+ * Due orders run in batches: a batch is split into groups of at most MAX_LOCKED accounts, locked once each in
+ * account number order, and each group's outcome is one journal record, which replays the transfers itself
+ *
+ * An order missed while the Bank was down runs once for every day it was due, oldest first, in batches with a
+ * pause between them, so catching up never holds off ATM sessions for long
+ * Lock order is the Bank's update lock, then this, then accounts
+ */
+public class StandingOrders {
+    /**
+     * How often an order runs
+     */
+    public enum Frequency {
+        DAILY, WEEKLY, MONTHLY
+    }
+
+    /**
+     * Copy of every order for a snapshot, column by column
+     */
+    static class Captured {
+        int ids[];
+        String src[];
+        String dest[];
+        long amount[];
+        int due[];
+        byte frequency[];
+        byte dayOfMonth[];
+    }
+
+    //Outcome of one run of an order, as journaled
+    public static final byte DONE = 0;
+    public static final byte INSUFFICIENT_BALANCE = 1;
+    public static final byte ACCOUNT_CLOSED = 2;
+
+    /**
+     * Frequencies by ordinal, values() copies its array on every call
+     */
+    private static final Frequency FREQUENCIES[] = Frequency.values();
+
+    /**
+     * Location written on the Transactions of standing orders
+     */
+    public static final String LOCATION = "Standing order";
+
+    /**
+     * Most accounts locked at once, as in TransferEngine
+     */
+    private static final int MAX_LOCKED = 64;
+
+    /**
+     * Most runs in one batch of the scheduler
+     */
+    private static final int BATCH_SIZE = 4096;
+
+    /**
+     * Pause between batches while catching up, in milliseconds
+     */
+    private static final long BATCH_PAUSE_MILLIS = 20;
+
+    /**
+     * Time zone days are counted in, the same as statements
+     */
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    /**
+     * Bank whose accounts orders transfer between
+     */
+    private Bank m_bank;
+
+    //Orders by ID; m_frequency is 0 for a free ID, otherwise Frequency ordinal + 1
+    private Account m_src[];
+    private Account m_dest[];
+    private long m_amount[];
+    private int m_due[];
+    private byte m_frequency[];
+    private byte m_dayOfMonth[];
+
+    /**
+     * Position of each order in m_heap, -1 if not in it
+     */
+    private int m_heapPos[];
+
+    /**
+     * Min heap of order IDs by due day then ID
+     */
+    private int m_heap[];
+    private int m_heapSize;
+
+    /**
+     * Number of IDs in use, IDs from here up have never been used
+     */
+    private int m_limit;
+
+    /**
+     * Free IDs below m_limit
+     */
+    private int m_free[];
+    private int m_numOfFree;
+
+    /**
+     * Set when orders are restored from storage, which does not keep m_free; it is rebuilt on the next add
+     */
+    private boolean m_freeStale;
+
+    private int m_numOfOrders;
+
+    /**
+     * Thread running due orders, null when not started
+     */
+    private ScheduledExecutorService m_scheduler;
+
+    /**
+     * Constructor, starts with no orders
+     * @param bank Bank whose accounts orders transfer between
+     */
+    public StandingOrders(Bank bank){
+        m_bank = bank;
+        int capacity = 16;
+        m_src = new Account[capacity];
+        m_dest = new Account[capacity];
+        m_amount = new long[capacity];
+        m_due = new int[capacity];
+        m_frequency = new byte[capacity];
+        m_dayOfMonth = new byte[capacity];
+        m_heapPos = new int[capacity];
+        Arrays.fill(m_heapPos, -1);
+        m_heap = new int[capacity];
+        m_free = new int[16];
+    }
+
+    /**
+     * Adds a standing order
+     * @param src       Account paid from
+     * @param dest      Account paid into
+     * @param amount    Amount of each transfer in cents
+     * @param frequency How often it runs
+     * @param first     Day of the first transfer; monthly orders run on the same day of each month,
+     *                  or the month's last day if it is shorter
+     * @return          Order ID
+     * @throws IllegalArgumentException if the accounts are the same or amount is not positive
+     */
+    public int add(Account src, Account dest, long amount, Frequency frequency, LocalDate first){
+        if (src == dest){
+            throw new IllegalArgumentException("Cannot transfer to the same account");
+        }
+        if (amount <= 0){
+            throw new IllegalArgumentException("Amount must be positive");
+        }
+        int id;
+        long seq = 0;
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                if (m_freeStale){
+                    rebuildFree();
+                }
+                //Taken off the free list only once journaled
+                boolean reuse = (m_numOfFree > 0);
+                id = reuse ? m_free[m_numOfFree - 1] : m_limit;
+                if (m_bank.getJournal() != null){
+                    seq = m_bank.getJournal().logOrderAdd(id, src.getAccNum(), dest.getAccNum(), amount,
+                        (byte) frequency.ordinal(), (byte) first.getDayOfMonth(), (int) first.toEpochDay());
+                }
+                if (reuse){
+                    m_numOfFree--;
+                }
+                put(id, src, dest, amount, frequency, first.getDayOfMonth(), (int) first.toEpochDay());
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitDurable(seq);
+        return id;
+    }
+
+    /**
+     * Cancels a standing order
+     * @param id    Order ID
+     * @return      true if cancelled, false if there is no such order
+     */
+    public boolean cancel(int id){
+        long seq = 0;
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                if (!exists(id)){
+                    return false;
+                }
+                if (m_bank.getJournal() != null){
+                    seq = m_bank.getJournal().logOrderCancel(id);
+                }
+                remove(id);
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitDurable(seq);
+        return true;
+    }
+
+    /**
+     * Returns the account an order pays from, such as to check who owns it
+     * @param id    Order ID
+     * @return      Account, null if there is no such order
+     */
+    public synchronized Account getSource(int id){
+        return exists(id) ? m_src[id] : null;
+    }
+
+    /**
+     * Returns the day an order next runs
+     * @param id    Order ID
+     * @return      Day, null if there is no such order
+     */
+    public synchronized LocalDate getNextDue(int id){
+        return exists(id) ? LocalDate.ofEpochDay(m_due[id]) : null;
+    }
+
+    /**
+     * Returns number of standing orders
+     * @return count
+     */
+    public synchronized int size(){
+        return m_numOfOrders;
+    }
+
+    /**
+     * Runs orders due on or before a day, oldest first, until none are due or max have run
+     * An order due several times runs once for each, so it can make up to max runs
+     * @param today Day to run up to
+     * @param max   Most runs
+     * @return      Number of runs, successful or not
+     */
+    public int runDue(LocalDate today, int max){
+        int todayDay = (int) today.toEpochDay();
+        int ran = 0;
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                int ids[] = new int[Math.min(max, Math.max(m_heapSize, 1))];
+                IdentityHashMap<Account, Integer> group = new IdentityHashMap<Account, Integer>();
+                int n = 0;
+                while (ran < max && m_heapSize > 0 && m_due[m_heap[0]] <= todayDay){
+                    int id = m_heap[0];
+                    int added = (group.containsKey(m_src[id]) ? 0 : 1) + (group.containsKey(m_dest[id]) ? 0 : 1);
+                    if (group.size() + added > MAX_LOCKED){
+                        runGroup(ids, n, group);
+                        group.clear();
+                        n = 0;
+                        //The group's orders are back in the heap, rescheduled
+                        continue;
+                    }
+                    //Out of the heap until it has run, so an order only appears once in a group
+                    removeFromHeap(id);
+                    group.putIfAbsent(m_src[id], group.size());
+                    group.putIfAbsent(m_dest[id], group.size());
+                    if (n == ids.length){
+                        ids = Arrays.copyOf(ids, n * 2);
+                    }
+                    ids[n++] = id;
+                    ran++;
+                }
+                if (n > 0){
+                    runGroup(ids, n, group);
+                }
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitJournal();
+        return ran;
+    }
+
+    /**
+     * Starts a thread that runs due orders every minute
+     */
+    public synchronized void start(){
+        if (m_scheduler != null){
+            return;
+        }
+        m_scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "standing-orders");
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_scheduler.scheduleWithFixedDelay(this::catchUp, 0, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the thread started by start, letting a batch in progress finish
+     */
+    public void stop(){
+        ScheduledExecutorService scheduler;
+        synchronized (this){
+            scheduler = m_scheduler;
+            m_scheduler = null;
+        }
+        if (scheduler != null){
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Runs every due order in batches, pausing between full batches so sessions get the accounts in between
+     */
+    private void catchUp(){
+        try {
+            while (runDue(LocalDate.now(ZONE), BATCH_SIZE) == BATCH_SIZE){
+                Thread.sleep(BATCH_PAUSE_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            //Thrown out of a scheduled task it would stop every later run
+            System.err.println("Standing orders failed, will retry: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Locks every account of a group in account number order and runs its orders
+     * Caller must be within beginUpdate and hold this
+     * @param ids   Orders of the group, out of the heap
+     * @param n     Number of orders
+     * @param group Accounts of the group
+     */
+    private void runGroup(int ids[], int n, IdentityHashMap<Account, Integer> group){
+        Account locked[] = group.keySet().toArray(new Account[0]);
+        Arrays.sort(locked, Comparator.comparing(Account::getAccNum));
+        TransferEngine.lockAll(locked, 0, () -> applyGroup(ids, n, locked));
+    }
+
+    /**
+     * Runs the orders of a group, journals their outcome and reschedules them
+     * Caller must hold every account's lock
+     * @param ids       Orders of the group
+     * @param n         Number of orders
+     * @param accounts  Accounts of the group
+     */
+    private void applyGroup(int ids[], int n, Account accounts[]){
+        //The outcome is journaled once applied, as applying decides it; refused up front if that would fail
+        if (m_bank.getJournal() != null){
+            m_bank.getJournal().checkWritable();
+        }
+        long timestamp = System.currentTimeMillis();
+        for (Account account : accounts){
+            account.accrue(timestamp);
+        }
+        byte statuses[] = new byte[n];
+        for (int i = 0; i < n; i++){
+            int id = ids[i];
+            Account src = m_src[id];
+            Account dest = m_dest[id];
+            if (!isOpen(src) || !isOpen(dest)){
+                statuses[i] = ACCOUNT_CLOSED;
+            } else if (m_amount[id] > src.getAvailable()){
+                statuses[i] = INSUFFICIENT_BALANCE;
+            } else {
+                Account.applyTransfer(src, dest, timestamp, LOCATION, m_amount[id]);
+                statuses[i] = DONE;
+            }
+        }
+        if (m_bank.getJournal() != null){
+            m_bank.getJournal().logOrdersRun(timestamp, ids, statuses, n);
+        }
+        for (int i = 0; i < n; i++){
+            reschedule(ids[i], statuses[i]);
+        }
+    }
+
+    /**
+     * Moves an order that has run to its next due day, or removes it if one of its accounts is closed
+     * @param id        Order ID
+     * @param status    Outcome of the run
+     */
+    private void reschedule(int id, byte status){
+        if (status == ACCOUNT_CLOSED){
+            remove(id);
+            return;
+        }
+        if (m_heapPos[id] >= 0){
+            removeFromHeap(id);
+        }
+        m_due[id] = nextDue(m_due[id], FREQUENCIES[m_frequency[id] - 1], m_dayOfMonth[id]);
+        addToHeap(id);
+    }
+
+    /**
+     * Returns the day after due that an order runs next
+     * @param due           Epoch day it last ran for
+     * @param frequency     How often it runs
+     * @param dayOfMonth    Day of month of a monthly order
+     * @return              Epoch day
+     */
+    private static int nextDue(int due, Frequency frequency, int dayOfMonth){
+        switch (frequency){
+            case DAILY:
+                return due + 1;
+            case WEEKLY:
+                return due + 7;
+            default:
+                LocalDate next = LocalDate.ofEpochDay(due).plusMonths(1);
+                return (int) next.withDayOfMonth(Math.min(dayOfMonth, next.lengthOfMonth())).toEpochDay();
+        }
+    }
+
+    /**
+     * Copies every order, called while changes are paused for a snapshot
+     * Orders of closed accounts are left out, their runs in the journal after the snapshot are skipped on replay
+     * @return Orders in ID order
+     */
+    synchronized Captured capture(){
+        Captured captured = new Captured();
+        captured.ids = new int[m_numOfOrders];
+        captured.src = new String[m_numOfOrders];
+        captured.dest = new String[m_numOfOrders];
+        captured.amount = new long[m_numOfOrders];
+        captured.due = new int[m_numOfOrders];
+        captured.frequency = new byte[m_numOfOrders];
+        captured.dayOfMonth = new byte[m_numOfOrders];
+        int n = 0;
+        for (int id = 0; id < m_limit; id++){
+            if (m_frequency[id] != 0 && isOpen(m_src[id]) && isOpen(m_dest[id])){
+                captured.ids[n] = id;
+                captured.src[n] = m_src[id].getAccNum();
+                captured.dest[n] = m_dest[id].getAccNum();
+                captured.amount[n] = m_amount[id];
+                captured.due[n] = m_due[id];
+                captured.frequency[n] = (byte) (m_frequency[id] - 1);
+                captured.dayOfMonth[n] = m_dayOfMonth[id];
+                n++;
+            }
+        }
+        if (n < m_numOfOrders){
+            captured.ids = Arrays.copyOf(captured.ids, n);
+            captured.src = Arrays.copyOf(captured.src, n);
+            captured.dest = Arrays.copyOf(captured.dest, n);
+            captured.amount = Arrays.copyOf(captured.amount, n);
+            captured.due = Arrays.copyOf(captured.due, n);
+            captured.frequency = Arrays.copyOf(captured.frequency, n);
+            captured.dayOfMonth = Arrays.copyOf(captured.dayOfMonth, n);
+        }
+        return captured;
+    }
+
+    /**
+     * Restores an order from storage
+     * @param id            Order ID
+     * @param src           Account paid from
+     * @param dest          Account paid into
+     * @param amount        Amount in cents
+     * @param frequency     Frequency ordinal
+     * @param dayOfMonth    Day of month of a monthly order
+     * @param due           Epoch day it next runs
+     */
+    synchronized void replayAdd(int id, Account src, Account dest, long amount, byte frequency, byte dayOfMonth, int due){
+        m_freeStale = true;
+        put(id, src, dest, amount, FREQUENCIES[frequency], dayOfMonth, due);
+    }
+
+    /**
+     * Restores a cancelled order from storage
+     * @param id Order ID
+     */
+    synchronized void replayCancel(int id){
+        m_freeStale = true;
+        if (exists(id)){
+            remove(id);
+        }
+    }
+
+    /**
+     * Restores runs of orders from storage, making the transfers that were made
+     * @param timestamp Time of the runs in milliseconds since epoch
+     * @param ids       Order IDs
+     * @param statuses  Outcome of each run
+     * @param n         Number of runs
+     */
+    synchronized void replayRun(long timestamp, int ids[], byte statuses[], int n){
+        m_freeStale = true;
+        for (int i = 0; i < n; i++){
+            int id = ids[i];
+            if (!exists(id)){
+                //An order of a closed account, left out of the snapshot
+                continue;
+            }
+            if (statuses[i] == DONE){
+                Account src = m_src[id];
+                Account dest = m_dest[id];
+                synchronized (src){
+                    synchronized (dest){
+                        Account.applyTransfer(src, dest, timestamp, LOCATION, m_amount[id]);
+                    }
+                }
+            }
+            reschedule(id, statuses[i]);
+        }
+    }
+
+    /**
+     * Checks whether an account is still open, rather than deleted since an order was made
+     * @param account   Account
+     * @return          true if open
+     */
+    private boolean isOpen(Account account){
+        return m_bank.getAccount(account.getAccNum()) == account;
+    }
+
+    /**
+     * Checks whether an order ID is in use
+     * @param id    Order ID
+     * @return      true if it is
+     */
+    private boolean exists(int id){
+        return id >= 0 && id < m_limit && m_frequency[id] != 0;
+    }
+
+    /**
+     * Stores an order and adds it to the heap
+     * @param id            Order ID, free
+     * @param src           Account paid from
+     * @param dest          Account paid into
+     * @param amount        Amount in cents
+     * @param frequency     How often it runs
+     * @param dayOfMonth    Day of month of a monthly order
+     * @param due           Epoch day it next runs
+     */
+    private void put(int id, Account src, Account dest, long amount, Frequency frequency, int dayOfMonth, int due){
+        if (id >= m_src.length){
+            grow(Math.max(id + 1, m_src.length + (m_src.length >> 1)));
+        }
+        m_src[id] = src;
+        m_dest[id] = dest;
+        m_amount[id] = amount;
+        m_due[id] = due;
+        m_frequency[id] = (byte) (frequency.ordinal() + 1);
+        m_dayOfMonth[id] = (byte) dayOfMonth;
+        m_limit = Math.max(m_limit, id + 1);
+        m_numOfOrders++;
+        addToHeap(id);
+    }
+
+    /**
+     * Removes an order and frees its ID
+     * @param id Order ID
+     */
+    private void remove(int id){
+        if (m_heapPos[id] >= 0){
+            removeFromHeap(id);
+        }
+        m_src[id] = null;
+        m_dest[id] = null;
+        m_frequency[id] = 0;
+        m_numOfOrders--;
+        if (!m_freeStale){
+            pushFree(id);
+        }
+    }
+
+    /**
+     * Rebuilds the free IDs from the orders, after orders were restored from storage
+     */
+    private void rebuildFree(){
+        m_numOfFree = 0;
+        //Highest first, so the lowest free ID is handed out first
+        for (int id = m_limit - 1; id >= 0; id--){
+            if (m_frequency[id] == 0){
+                pushFree(id);
+            }
+        }
+        m_freeStale = false;
+    }
+
+    /**
+     * Adds a free ID
+     * @param id Order ID
+     */
+    private void pushFree(int id){
+        if (m_numOfFree == m_free.length){
+            m_free = Arrays.copyOf(m_free, m_numOfFree * 2);
+        }
+        m_free[m_numOfFree++] = id;
+    }
+
+    /**
+     * Grows every per-order array
+     * @param capacity New number of IDs
+     */
+    private void grow(int capacity){
+        int old = m_src.length;
+        m_src = Arrays.copyOf(m_src, capacity);
+        m_dest = Arrays.copyOf(m_dest, capacity);
+        m_amount = Arrays.copyOf(m_amount, capacity);
+        m_due = Arrays.copyOf(m_due, capacity);
+        m_frequency = Arrays.copyOf(m_frequency, capacity);
+        m_dayOfMonth = Arrays.copyOf(m_dayOfMonth, capacity);
+        m_heapPos = Arrays.copyOf(m_heapPos, capacity);
+        Arrays.fill(m_heapPos, old, capacity, -1);
+        m_heap = Arrays.copyOf(m_heap, capacity);
+    }
+
+    /**
+     * Compares two orders by due day, then ID
+     * @param a Order ID
+     * @param b Order ID
+     * @return  true if order a runs before order b
+     */
+    private boolean before(int a, int b){
+        return m_due[a] < m_due[b] || (m_due[a] == m_due[b] && a < b);
+    }
+
+    /**
+     * Adds an order to the heap
+     * @param id Order ID
+     */
+    private void addToHeap(int id){
+        m_heap[m_heapSize] = id;
+        m_heapPos[id] = m_heapSize;
+        siftUp(m_heapSize++);
+    }
+
+    /**
+     * Takes an order out of the heap
+     * @param id Order ID, in the heap
+     */
+    private void removeFromHeap(int id){
+        int pos = m_heapPos[id];
+        m_heapPos[id] = -1;
+        int last = m_heap[--m_heapSize];
+        if (pos == m_heapSize){
+            return;
+        }
+        m_heap[pos] = last;
+        m_heapPos[last] = pos;
+        siftDown(pos);
+        siftUp(m_heapPos[last]);
+    }
+
+    /**
+     * Moves the order at pos up until its parent runs before it
+     * @param pos Heap position
+     */
+    private void siftUp(int pos){
+        int id = m_heap[pos];
+        while (pos > 0){
+            int parent = (pos - 1) >>> 1;
+            if (!before(id, m_heap[parent])){
+                break;
+            }
+            m_heap[pos] = m_heap[parent];
+            m_heapPos[m_heap[pos]] = pos;
+            pos = parent;
+        }
+        m_heap[pos] = id;
+        m_heapPos[id] = pos;
+    }
+
+    /**
+     * Moves the order at pos down until it runs before its children
+     * @param pos Heap position
+     */
+    private void siftDown(int pos){
+        int id = m_heap[pos];
+        while (true){
+            int child = pos * 2 + 1;
+            if (child >= m_heapSize){
+                break;
+            }
+            if (child + 1 < m_heapSize && before(m_heap[child + 1], m_heap[child])){
+                child++;
+            }
+            if (!before(m_heap[child], id)){
+                break;
+            }
+            m_heap[pos] = m_heap[child];
+            m_heapPos[m_heap[pos]] = pos;
+            pos = child;
+        }
+        m_heap[pos] = id;
+        m_heapPos[id] = pos;
+    }
+}
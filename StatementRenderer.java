@@ -0,0 +1,370 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Writes account statements as plain text, CSV or JSON
+ * Transactions are copied out of the account a block at a time into reused arrays and formatted into one reused buffer,
+ * so rendering a long history allocates about the same as rendering a short one
+ * Dates are formatted once per distinct second and reused for following transactions in the same second
+ */
+public class StatementRenderer {
+    /**
+     * Output formats
+     */
+    public enum Format {
+        TEXT, CSV, JSON
+    }
+
+    /**
+     * Number of transactions copied out of an account at a time
+     */
+    private static final int BLOCK = 256;
+
+    /**
+     * Separator between transactions in TEXT
+     */
+    private static final String LINE = "------------------------";
+
+    /**
+     * Same layout as Date.toString(), used for TEXT
+     */
+    private static final DateTimeFormatter TEXT_DATE =
+        DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US).withZone(ZoneId.systemDefault());
+
+    /**
+     * ISO-8601 with offset, used for CSV and JSON
+     */
+    private static final DateTimeFormatter ISO_DATE =
+        DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(ZoneId.systemDefault());
+
+    /**
+     * Where the statement is written
+     */
+    private Writer m_out;
+
+    /**
+     * Output format
+     */
+    private Format m_format;
+
+    /**
+     * Text of the transaction being formatted
+     */
+    private StringBuilder m_buf;
+
+    /**
+     * Characters of m_buf handed to m_out
+     */
+    private char m_chars[];
+
+    /**
+     * Second of the last formatted date
+     */
+    private long m_lastSecond;
+
+    /**
+     * Last formatted date
+     */
+    private String m_lastDate;
+
+    //Block of transactions copied out of the account
+    private long m_timestamps[];
+    private long m_amounts[];
+    private String m_locations[];
+    private String m_memos[];
+
+    /**
+     * Constructor, writes to out in format
+     * @param out       Where the statement is written, buffered by the caller if needed
+     * @param format    Output format
+     */
+    public StatementRenderer(Writer out, Format format){
+        m_out = out;
+        m_format = format;
+        m_buf = new StringBuilder(256);
+        m_chars = new char[256];
+        m_lastSecond = Long.MIN_VALUE;
+        m_timestamps = new long[BLOCK];
+        m_amounts = new long[BLOCK];
+        m_locations = new String[BLOCK];
+        m_memos = new String[BLOCK];
+    }
+
+    /**
+     * Creates a renderer writing TEXT to the console through a buffer
+     * Call flush() when done, the console itself is never closed
+     * @return new StatementRenderer
+     */
+    public static StatementRenderer toConsole(){
+        return new StatementRenderer(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16), Format.TEXT);
+    }
+
+    /**
+     * Writes an account's whole statement to a file
+     * @param account   Account
+     * @param file      File to write, replaced if it exists
+     * @param format    Output format
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeFile(Account account, Path file, Format format) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            Writer out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), 1 << 16)){
+            StatementRenderer renderer = new StatementRenderer(out, format);
+            renderer.render(account, 0, account.getNumOfTransaction());
+            renderer.flush();
+        }
+    }
+
+    /**
+     * Writes the statement header, a range of transactions and the footer
+     * @param account   Account
+     * @param from      Index of first transaction, 0 is the oldest
+     * @param to        Index after the last transaction
+     * @throws IOException if writing fails
+     */
+    public void render(Account account, int from, int to) throws IOException {
+        renderHeader(account);
+        renderTransactions(account, from, to);
+        renderFooter();
+    }
+
+    /**
+     * Writes the statement header
+     * @param account Account
+     * @throws IOException if writing fails
+     */
+    public void renderHeader(Account account) throws IOException {
+        m_buf.setLength(0);
+        switch (m_format){
+            case TEXT:
+                m_buf.append("Account Type: ").append(account.getAccType()).append('\n');
+                m_buf.append("Account Number: ").append(account.getAccNum()).append('\n');
+                m_buf.append("Balance: $");
+                Money.appendTo(m_buf, account.getAccBalance());
+                m_buf.append('\n').append(LINE).append('\n');
+                break;
+            case CSV:
+                m_buf.append("date,location,amount,memo\n");
+                break;
+            case JSON:
+                m_buf.append("{\"type\":");
+                appendJsonString(m_buf, account.getAccType());
+                m_buf.append(",\"accNum\":");
+                appendJsonString(m_buf, account.getAccNum());
+                m_buf.append(",\"balance\":");
+                Money.appendTo(m_buf, account.getAccBalance());
+                m_buf.append(",\"transactions\":[");
+                break;
+        }
+        writeBuf();
+    }
+
+    /**
+     * Writes a range of transactions
+     * @param account   Account
+     * @param from      Index of first transaction, 0 is the oldest
+     * @param to        Index after the last transaction
+     * @throws IOException if writing fails
+     */
+    public void renderTransactions(Account account, int from, int to) throws IOException {
+        for (int start = from; start < to; start += BLOCK){
+            int count = Math.min(BLOCK, to - start);
+            //Copied under the account's lock, formatted and written outside of it
+            account.copyTransactions(start, count, m_timestamps, m_amounts, m_locations, m_memos);
+            for (int i = 0; i < count; i++){
+                m_buf.setLength(0);
+                if (m_format == Format.JSON && start + i > from){
+                    m_buf.append(',');
+                }
+                appendTransaction(m_timestamps[i], m_locations[i], m_amounts[i], m_memos[i]);
+                writeBuf();
+            }
+        }
+    }
+
+    /**
+     * Writes the end of the statement
+     * @throws IOException if writing fails
+     */
+    public void renderFooter() throws IOException {
+        m_buf.setLength(0);
+        if (m_format == Format.TEXT){
+            m_buf.append('\n');
+        } else if (m_format == Format.JSON){
+            m_buf.append("]}\n");
+        }
+        writeBuf();
+    }
+
+    /**
+     * Flushes the writer
+     * @throws IOException if writing fails
+     */
+    public void flush() throws IOException {
+        m_out.flush();
+    }
+
+    /**
+     * Formats one transaction in TEXT into str, as Transaction.showTrans() prints it
+     * @param str       Where to append
+     * @param timestamp Time in milliseconds since epoch
+     * @param location  Location of transaction
+     * @param amount    Amount in cents
+     * @param memo      Memo, "" for none
+     */
+    public static void appendText(StringBuilder str, long timestamp, String location, long amount, String memo){
+        str.append("Date: ");
+        TEXT_DATE.formatTo(Instant.ofEpochMilli(timestamp), str);
+        str.append("\nLocation: ").append(location);
+        str.append("\nAmount: $");
+        Money.appendTo(str, amount);
+        if (!memo.isEmpty()){
+            str.append("\nMemo: ").append(memo).append('\n');
+        } else {
+            str.append("\nNo memo\n");
+        }
+    }
+
+    /**
+     * Formats one transaction into m_buf in m_format
+     * @param timestamp Time in milliseconds since epoch
+     * @param location  Location of transaction
+     * @param amount    Amount in cents
+     * @param memo      Memo, "" for none
+     */
+    private void appendTransaction(long timestamp, String location, long amount, String memo){
+        switch (m_format){
+            case TEXT:
+                m_buf.append("Date: ").append(formatDate(timestamp));
+                m_buf.append("\nLocation: ").append(location);
+                m_buf.append("\nAmount: $");
+                Money.appendTo(m_buf, amount);
+                if (!memo.isEmpty()){
+                    m_buf.append("\nMemo: ").append(memo).append('\n');
+                } else {
+                    m_buf.append("\nNo memo\n");
+                }
+                m_buf.append(LINE).append('\n');
+                break;
+            case CSV:
+                m_buf.append(formatDate(timestamp)).append(',');
+                appendCsvField(m_buf, location);
+                m_buf.append(',');
+                Money.appendTo(m_buf, amount);
+                m_buf.append(',');
+                appendCsvField(m_buf, memo);
+                m_buf.append('\n');
+                break;
+            case JSON:
+                m_buf.append("{\"date\":\"").append(formatDate(timestamp)).append("\",\"location\":");
+                appendJsonString(m_buf, location);
+                m_buf.append(",\"amount\":");
+                Money.appendTo(m_buf, amount);
+                m_buf.append(",\"memo\":");
+                appendJsonString(m_buf, memo);
+                m_buf.append('}');
+                break;
+        }
+    }
+
+    /**
+     * Formats a date, reusing the last result when the second is the same
+     * @param timestamp Time in milliseconds since epoch
+     * @return          Formatted date
+     */
+    private String formatDate(long timestamp){
+        long second = Math.floorDiv(timestamp, 1000);
+        if (second != m_lastSecond){
+            Instant instant = Instant.ofEpochSecond(second);
+            m_lastDate = (m_format == Format.TEXT) ? TEXT_DATE.format(instant) : ISO_DATE.format(instant);
+            m_lastSecond = second;
+        }
+        return m_lastDate;
+    }
+
+    /**
+     * Appends a CSV field, quoted if it contains a comma, quote or line break
+     * @param buf   Buffer to append to
+     * @param field Field text
+     */
+    static void appendCsvField(StringBuilder buf, String field){
+        boolean quote = false;
+        for (int i = 0; i < field.length() && !quote; i++){
+            char c = field.charAt(i);
+            quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+        }
+        if (!quote){
+            buf.append(field);
+            return;
+        }
+        buf.append('"');
+        for (int i = 0; i < field.length(); i++){
+            char c = field.charAt(i);
+            if (c == '"'){
+                buf.append('"');
+            }
+            buf.append(c);
+        }
+        buf.append('"');
+    }
+
+    /**
+     * Appends a quoted JSON string
+     * @param buf Buffer to append to
+     * @param str String
+     */
+    static void appendJsonString(StringBuilder buf, String str){
+        buf.append('"');
+        for (int i = 0; i < str.length(); i++){
+            char c = str.charAt(i);
+            switch (c){
+                case '"':
+                    buf.append("\\\"");
+                    break;
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                case '\r':
+                    buf.append("\\r");
+                    break;
+                case '\t':
+                    buf.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20){
+                        buf.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        buf.append(c);
+                    }
+            }
+        }
+        buf.append('"');
+    }
+
+    /**
+     * Hands m_buf to m_out without creating a String
+     */
+    private void writeBuf() throws IOException {
+        int length = m_buf.length();
+        if (m_chars.length < length){
+            m_chars = new char[Math.max(length, m_chars.length * 2)];
+        }
+        m_buf.getChars(0, length, m_chars, 0);
+        m_out.write(m_chars, 0, length);
+    }
+}
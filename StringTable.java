@@ -0,0 +1,143 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Table of Strings where each distinct String is stored once and given an int ID
+ * Each Ledger has its own, so that repeated locations and memos such as "ATM" and "Deposit" cost 4 bytes per use,
+ * the table is freed with its account, and searching it only looks at Strings the account uses in the role searched
+ * Not thread safe, the owning Account's lock guards it
+ */
+public class StringTable {
+    /**
+     * IDs by String, null until a ninth String is added, as most tables hold a handful and are searched directly
+     */
+    private HashMap<String, Integer> m_ids;
+
+    /**
+     * Strings by ID
+     */
+    private String m_strings[];
+
+    /**
+     * Number of Strings
+     */
+    private int m_size;
+
+    /**
+     * Constructor, creates an empty table
+     */
+    public StringTable(){
+        m_strings = new String[4];
+    }
+
+    /**
+     * Returns the ID of str, adding it to the table if new
+     * @param str String to look up
+     * @return    ID of str
+     */
+    public int intern(String str){
+        //A short table is searched directly, which beats hashing for the few Strings most accounts use
+        if (m_ids == null){
+            for (int id = 0; id < m_size; id++){
+                if (m_strings[id].equals(str)){
+                    return id;
+                }
+            }
+            if (m_size < 8){
+                return add(str);
+            }
+            m_ids = new HashMap<String, Integer>();
+            for (int id = 0; id < m_size; id++){
+                m_ids.put(m_strings[id], id);
+            }
+        }
+        Integer id = m_ids.get(str);
+        if (id == null){
+            id = add(str);
+            m_ids.put(str, id);
+        }
+        return id;
+    }
+
+    /**
+     * Finds every String starting with prefix, ignoring case, among some of the table's Strings
+     * @param prefix    Start of the Strings
+     * @param among     IDs to look at, such as those used as locations
+     * @return          IDs of the Strings
+     */
+    public BitSet findPrefix(String prefix, BitSet among){
+        BitSet ids = new BitSet(m_size);
+        for (int id = among.nextSetBit(0); id >= 0 && id < m_size; id = among.nextSetBit(id + 1)){
+            if (m_strings[id].regionMatches(true, 0, prefix, 0, prefix.length())){
+                ids.set(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Finds every String containing text, ignoring case, among some of the table's Strings
+     * Looks at each distinct String once, however many times it is used
+     * @param text  Text to find
+     * @param among IDs to look at, such as those used as memos
+     * @return      IDs of the Strings
+     */
+    public BitSet findContaining(String text, BitSet among){
+        BitSet ids = new BitSet(m_size);
+        for (int id = among.nextSetBit(0); id >= 0 && id < m_size; id = among.nextSetBit(id + 1)){
+            if (containsIgnoreCase(m_strings[id], text)){
+                ids.set(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the String with the given ID
+     * @param id ID from intern
+     * @return   String
+     */
+    public String get(int id){
+        if (id < 0 || id >= m_size){
+            throw new IndexOutOfBoundsException("String ID " + id + " out of bounds for table size " + m_size);
+        }
+        return m_strings[id];
+    }
+
+    /**
+     * Returns number of distinct Strings
+     * @return number of Strings
+     */
+    public int size(){
+        return m_size;
+    }
+
+    /**
+     * Checks whether str contains text, ignoring case
+     * @param str   String to look in
+     * @param text  Text to find
+     * @return      true if found
+     */
+    static boolean containsIgnoreCase(String str, String text){
+        for (int i = 0; i + text.length() <= str.length(); i++){
+            if (str.regionMatches(true, i, text, 0, text.length())){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a String known to be new
+     * @param str   String
+     * @return      ID of str
+     */
+    private int add(String str){
+        if (m_size == m_strings.length){
+            m_strings = Arrays.copyOf(m_strings, m_size * 2);
+        }
+        m_strings[m_size] = str;
+        return m_size++;
+    }
+}
@@ -0,0 +1,285 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded cache of rendered text, such as statement pages and account listings
+ * Each entry carries the version of what it was rendered from, such as Account.getVersion(); a lookup with a
+ * newer version is a miss and drops the entry, so a write to an account invalidates its entries without the
+ * write path touching the cache
+ *
+ * Split into segments by key, each its own least recently used list with an equal share of the byte limit,
+ * so sessions looking up different keys rarely wait on each other
+ */
+public class SummaryCache {
+    /**
+     * Number of segments, a power of 2
+     */
+    private static final int SEGMENTS = 16;
+
+    /**
+     * Estimated bytes of an entry besides its key and text: map node, entry, and two String headers
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * Cached text and the version it was rendered from
+     */
+    private static class Entry {
+        String text;
+        long version;
+        int bytes;
+    }
+
+    /**
+     * One least recently used list
+     */
+    private static class Segment {
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        long bytes;
+        long limit;
+        long hits;
+        long misses;
+        long stale;
+        long evictions;
+    }
+
+    private Segment m_segments[];
+
+    /**
+     * Constructor
+     * @param limit Most bytes of keys and text kept, estimated
+     */
+    public SummaryCache(long limit){
+        if (limit < 0){
+            throw new IllegalArgumentException("Limit cannot be negative");
+        }
+        m_segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++){
+            m_segments[i] = new Segment();
+            m_segments[i].limit = limit / SEGMENTS;
+        }
+    }
+
+    /**
+     * Changes the byte limit, evicting entries if the cache is now over it
+     * @param limit Most bytes of keys and text kept, estimated
+     */
+    public void setLimit(long limit){
+        if (limit < 0){
+            throw new IllegalArgumentException("Limit cannot be negative");
+        }
+        for (Segment segment : m_segments){
+            synchronized (segment){
+                segment.limit = limit / SEGMENTS;
+                evict(segment);
+            }
+        }
+    }
+
+    /**
+     * Returns text cached for key, if it was rendered from version
+     * @param key       Key
+     * @param version   Current version of what the text is rendered from
+     * @return          Text, null if not cached or rendered from another version
+     */
+    public String get(String key, long version){
+        Segment segment = segmentOf(key);
+        synchronized (segment){
+            Entry entry = segment.entries.get(key);
+            if (entry == null){
+                segment.misses++;
+                return null;
+            }
+            if (entry.version != version){
+                segment.entries.remove(key);
+                segment.bytes -= entry.bytes;
+                segment.stale++;
+                segment.misses++;
+                return null;
+            }
+            segment.hits++;
+            return entry.text;
+        }
+    }
+
+    /**
+     * Caches text for key, evicting the least recently used entries of its segment to stay within the limit
+     * Text larger than a segment's share of the limit is not cached
+     * @param key       Key
+     * @param version   Version of what the text was rendered from
+     * @param text      Rendered text
+     */
+    public void put(String key, long version, String text){
+        Segment segment = segmentOf(key);
+        Entry entry = new Entry();
+        entry.text = text;
+        entry.version = version;
+        entry.bytes = ENTRY_OVERHEAD + 2 * (key.length() + text.length());
+        synchronized (segment){
+            if (entry.bytes > segment.limit){
+                return;
+            }
+            Entry old = segment.entries.put(key, entry);
+            if (old != null){
+                segment.bytes -= old.bytes;
+            }
+            segment.bytes += entry.bytes;
+            evict(segment);
+        }
+    }
+
+    /**
+     * Removes the entry of key, if any
+     * @param key Key
+     */
+    public void invalidate(String key){
+        Segment segment = segmentOf(key);
+        synchronized (segment){
+            Entry old = segment.entries.remove(key);
+            if (old != null){
+                segment.bytes -= old.bytes;
+            }
+        }
+    }
+
+    /**
+     * Removes every entry
+     */
+    public void clear(){
+        for (Segment segment : m_segments){
+            synchronized (segment){
+                segment.entries.clear();
+                segment.bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns number of lookups that found current text
+     * @return hits
+     */
+    public long getHits(){
+        long hits = 0;
+        for (Segment segment : m_segments){
+            synchronized (segment){
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Returns number of lookups that found nothing or out of date text
+     * @return misses
+     */
+    public long getMisses(){
+        long misses = 0;
+        for (Segment segment : m_segments){
+            synchronized (segment){
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * Returns number of entries dropped because what they were rendered from had changed
+     * @return count
+     */
+    public long getStale(){
+        long stale = 0;
+        for (Segment segment : m_segments){
+            synchronized (segment){
+                stale += segment.stale;
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * Returns number of entries evicted to stay within the limit
+     * @return evictions
+     */
+    public long getEvictions(){
+        long evictions = 0;
+        for (Segment segment : m_segments){
+            synchronized (segment){
+                evictions += segment.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    /**
+     * Returns the share of lookups that were hits
+     * @return 0 to 1, 0 before any lookup
+     */
+    public double getHitRate(){
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return (lookups > 0) ? (double) hits / lookups : 0;
+    }
+
+    /**
+     * Returns estimated bytes held
+     * @return bytes
+     */
+    public long getBytes(){
+        long bytes = 0;
+        for (Segment segment : m_segments){
+            synchronized (segment){
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns number of entries
+     * @return count
+     */
+    public int size(){
+        int size = 0;
+        for (Segment segment : m_segments){
+            synchronized (segment){
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the statistics on one line
+     * @return Hit rate, evictions and size
+     */
+    @Override
+    public String toString(){
+        return String.format("hit rate %.1f%% (%d hits, %d misses, %d stale), %d evictions, %d entries, %d bytes",
+            getHitRate() * 100, getHits(), getMisses(), getStale(), getEvictions(), size(), getBytes());
+    }
+
+    /**
+     * Returns the segment of a key
+     * @param key   Key
+     * @return      Segment
+     */
+    private Segment segmentOf(String key){
+        int hash = key.hashCode();
+        return m_segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Evicts least recently used entries until the segment is within its limit
+     * Caller must hold the segment's lock
+     * @param segment Segment
+     */
+    private static void evict(Segment segment){
+        Iterator<Map.Entry<String, Entry>> it = segment.entries.entrySet().iterator();
+        while (segment.bytes > segment.limit && it.hasNext()){
+            segment.bytes -= it.next().getValue().bytes;
+            it.remove();
+            segment.evictions++;
+        }
+    }
+}
@@ -7,9 +7,9 @@ public class Transaction {
     private String m_location;
 
     /**
-     * Amount of transaction
+     * Amount of transaction in cents
      */
-    private double m_amount;
+    private long m_amount;
 
     /**
      * Timestamp of transaction
@@ -27,7 +27,7 @@ public class Transaction {
      * @param m_amount      Amount of transaction
      * @param m_srcAccount  Account where transaction happens
      */
-    public Transaction(String location, double amount){
+    public Transaction(String location, long amount){
         m_location = location;
         m_amount = amount;
         m_date = new Date();
@@ -41,23 +41,65 @@ public class Transaction {
      * @param m_srcAccount  Account where transaction happens
      * @param memo          Additional memo for transaction
      */
-    public Transaction(String location, double amount, String memo){
+    public Transaction(String location, long amount, String memo){
         //Calls and uses the 3 arg constructor to set other members
         this(location, amount);
         m_memo = memo;
     }
 
+    /**
+     * Constructor for an existing transaction, such as one read back from a Ledger
+     * @param location      Location of transaction
+     * @param amount        Amount of transaction in cents
+     * @param timestamp     Time of transaction in milliseconds since epoch
+     * @param memo          Additional memo for transaction, "" for none
+     */
+    public Transaction(String location, long amount, long timestamp, String memo){
+        m_location = location;
+        m_amount = amount;
+        m_date = new Date(timestamp);
+        m_memo = memo;
+    }
+
+    /**
+     * Returns m_location
+     * @return m_location
+     */
+    public String getLocation(){
+        return m_location;
+    }
+
+    /**
+     * Returns m_amount
+     * @return m_amount in cents
+     */
+    public long getAmount(){
+        return m_amount;
+    }
+
+    /**
+     * Returns m_date
+     * @return m_date
+     */
+    public Date getDate(){
+        return m_date;
+    }
+
+    /**
+     * Returns m_memo
+     * @return m_memo, "" for none
+     */
+    public String getMemo(){
+        return m_memo;
+    }
+
     /**
      * Display details of transaction
      */
     public void showTrans(){
-        System.out.println("Date: " + m_date);
-        System.out.println("Location: " + m_location);
-        System.out.println("Amount: $" + m_amount);
-        if (m_memo != ""){
-            System.out.println("Memo: " + m_memo);
-        } else {
-            System.out.println("No memo");
-        }
+        //Formatted into one String, so the console is written once
+        StringBuilder str = new StringBuilder(128);
+        StatementRenderer.appendText(str, m_date.getTime(), m_location, m_amount, m_memo);
+        System.out.print(str);
     }
 }
@@ -0,0 +1,170 @@
+/**
+ * Criteria and page of a transaction search, see Account.search
+ * Every criterion is optional, a query with none matches every transaction
+ * Setters return the query so criteria can be chained
+ */
+public class TransactionQuery {
+    /**
+     * Earliest time matched, in milliseconds since epoch
+     */
+    private long m_from = Long.MIN_VALUE;
+
+    /**
+     * Time after the latest matched, in milliseconds since epoch
+     */
+    private long m_to = Long.MAX_VALUE;
+
+    /**
+     * Start of matched locations ignoring case, null for any
+     */
+    private String m_locationPrefix;
+
+    /**
+     * Text matched memos contain ignoring case, null for any
+     */
+    private String m_memoText;
+
+    /**
+     * Smallest matched amount in cents
+     */
+    private long m_minAmount = Long.MIN_VALUE;
+
+    /**
+     * Largest matched amount in cents
+     */
+    private long m_maxAmount = Long.MAX_VALUE;
+
+    /**
+     * Number of matches skipped before the page
+     */
+    private int m_offset = 0;
+
+    /**
+     * Most matches returned
+     */
+    private int m_limit = 20;
+
+    /**
+     * Matches transactions from from, up to but not including to
+     * @param from  Time in milliseconds since epoch
+     * @param to    Time in milliseconds since epoch
+     * @return      this
+     */
+    public TransactionQuery between(long from, long to){
+        m_from = from;
+        m_to = to;
+        return this;
+    }
+
+    /**
+     * Matches transactions whose location starts with prefix, ignoring case
+     * @param prefix Start of location, null or "" for any
+     * @return       this
+     */
+    public TransactionQuery locationStartsWith(String prefix){
+        m_locationPrefix = (prefix == null || prefix.isEmpty()) ? null : prefix;
+        return this;
+    }
+
+    /**
+     * Matches transactions whose memo contains text, ignoring case
+     * @param text Text, null or "" for any
+     * @return     this
+     */
+    public TransactionQuery memoContains(String text){
+        m_memoText = (text == null || text.isEmpty()) ? null : text;
+        return this;
+    }
+
+    /**
+     * Matches transactions with an amount from min to max, both included
+     * Withdrawals are negative, so min = -5000, max = -1 matches withdrawals up to 50.00
+     * @param min   Smallest amount in cents
+     * @param max   Largest amount in cents
+     * @return      this
+     */
+    public TransactionQuery amountBetween(long min, long max){
+        m_minAmount = min;
+        m_maxAmount = max;
+        return this;
+    }
+
+    /**
+     * Sets the page of matches to return, in time order
+     * @param offset    Number of matches to skip
+     * @param limit     Most matches to return
+     * @return          this
+     */
+    public TransactionQuery page(int offset, int limit){
+        if (offset < 0 || limit < 0){
+            throw new IllegalArgumentException("Offset and limit cannot be negative");
+        }
+        m_offset = offset;
+        m_limit = limit;
+        return this;
+    }
+
+    /**
+     * Returns m_from
+     * @return m_from
+     */
+    public long getFrom(){
+        return m_from;
+    }
+
+    /**
+     * Returns m_to
+     * @return m_to
+     */
+    public long getTo(){
+        return m_to;
+    }
+
+    /**
+     * Returns m_locationPrefix
+     * @return m_locationPrefix
+     */
+    public String getLocationPrefix(){
+        return m_locationPrefix;
+    }
+
+    /**
+     * Returns m_memoText
+     * @return m_memoText
+     */
+    public String getMemoText(){
+        return m_memoText;
+    }
+
+    /**
+     * Returns m_minAmount
+     * @return m_minAmount
+     */
+    public long getMinAmount(){
+        return m_minAmount;
+    }
+
+    /**
+     * Returns m_maxAmount
+     * @return m_maxAmount
+     */
+    public long getMaxAmount(){
+        return m_maxAmount;
+    }
+
+    /**
+     * Returns m_offset
+     * @return m_offset
+     */
+    public int getOffset(){
+        return m_offset;
+    }
+
+    /**
+     * Returns m_limit
+     * @return m_limit
+     */
+    public int getLimit(){
+        return m_limit;
+    }
+}
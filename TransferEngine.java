@@ -0,0 +1,301 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Runs batches of multi-leg transfers between any accounts of a Bank, found by account number
+ * Each transfer applies all of its legs or none: the net change of every account it touches is checked
+ * against the balance, with any overdraft or credit line, before any leg is applied, and every leg writes a paired Transaction on both sides
+ *
+ * A batch is split into groups, and each distinct account of a group is locked once, in account number order,
+ * instead of once per leg; one journal record covers the whole group, so it costs one append and one fsync wait
+ */
+public class TransferEngine {
+    /**
+     * Most accounts locked at once, a group is closed before it would lock more
+     */
+    private static final int MAX_LOCKED = 64;
+
+    /**
+     * Result of one transfer
+     */
+    public enum Status {
+        DONE, INSUFFICIENT_BALANCE, NO_SUCH_ACCOUNT, INVALID
+    }
+
+    /**
+     * One transfer made of legs that apply together
+     */
+    public static class Transfer {
+        private ArrayList<String> m_srcAccNums = new ArrayList<String>(2);
+        private ArrayList<String> m_destAccNums = new ArrayList<String>(2);
+        private long m_amounts[] = new long[2];
+
+        /**
+         * Adds a leg
+         * @param srcAccNum     Source account number
+         * @param destAccNum    Destination account number
+         * @param amount        Amount in cents
+         * @return              this, to add more legs
+         */
+        public Transfer leg(String srcAccNum, String destAccNum, long amount){
+            int n = m_srcAccNums.size();
+            if (n == m_amounts.length){
+                m_amounts = Arrays.copyOf(m_amounts, n * 2);
+            }
+            m_srcAccNums.add(srcAccNum);
+            m_destAccNums.add(destAccNum);
+            m_amounts[n] = amount;
+            return this;
+        }
+
+        /**
+         * Returns number of legs
+         * @return legs
+         */
+        public int getNumOfLegs(){
+            return m_srcAccNums.size();
+        }
+    }
+
+    /**
+     * Bank whose accounts are transferred between
+     */
+    private Bank m_bank;
+
+    /**
+     * Constructor
+     * @param bank Bank whose accounts are transferred between
+     */
+    public TransferEngine(Bank bank){
+        m_bank = bank;
+    }
+
+    /**
+     * Runs one transfer
+     * @param transfer  Transfer
+     * @param location  Location of transfer
+     * @return          Status
+     */
+    public Status execute(Transfer transfer, String location){
+        return execute(List.of(transfer), location)[0];
+    }
+
+    /**
+     * Runs a batch of transfers, each one applying all of its legs or none
+     * Transfers are applied in order, so a later transfer can spend money an earlier one moved
+     * @param batch     Transfers
+     * @param location  Location of transfers
+     * @return          Status of each transfer, in batch order
+     */
+    public Status[] execute(List<Transfer> batch, String location){
+        Status statuses[] = new Status[batch.size()];
+        Account legAccounts[][] = new Account[batch.size()][];
+
+        m_bank.beginUpdate();
+        try {
+            //Resolves every account, and groups transfers so no group locks more than MAX_LOCKED accounts
+            IdentityHashMap<Account, Integer> group = new IdentityHashMap<Account, Integer>();
+            int groupStart = 0;
+            for (int i = 0; i < batch.size(); i++){
+                Transfer transfer = batch.get(i);
+                legAccounts[i] = resolve(transfer);
+                statuses[i] = validate(transfer, legAccounts[i]);
+                if (statuses[i] != null){
+                    continue;
+                }
+                int added = 0;
+                for (Account account : legAccounts[i]){
+                    if (!group.containsKey(account)){
+                        added++;
+                    }
+                }
+                if (group.size() + added > MAX_LOCKED){
+                    if (group.isEmpty()){
+                        //A single transfer touching too many accounts
+                        statuses[i] = Status.INVALID;
+                        continue;
+                    }
+                    runGroup(batch, legAccounts, statuses, groupStart, i, group, location);
+                    group.clear();
+                    groupStart = i;
+                }
+                for (Account account : legAccounts[i]){
+                    group.putIfAbsent(account, group.size());
+                }
+            }
+            if (!group.isEmpty()){
+                runGroup(batch, legAccounts, statuses, groupStart, batch.size(), group, location);
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        //Every group's record is forced at once, with no account locked
+        m_bank.awaitJournal();
+        return statuses;
+    }
+
+    /**
+     * Looks up the accounts of every leg, source then destination
+     * @param transfer Transfer
+     * @return         Accounts, null entries for unknown account numbers
+     */
+    private Account[] resolve(Transfer transfer){
+        int legs = transfer.getNumOfLegs();
+        Account accounts[] = new Account[legs * 2];
+        for (int i = 0; i < legs; i++){
+            accounts[i * 2] = m_bank.getAccount(transfer.m_srcAccNums.get(i));
+            accounts[i * 2 + 1] = m_bank.getAccount(transfer.m_destAccNums.get(i));
+        }
+        return accounts;
+    }
+
+    /**
+     * Checks a transfer's legs before any lock is taken
+     * @param transfer  Transfer
+     * @param accounts  Accounts of its legs
+     * @return          Status if the transfer cannot run, null if it can
+     */
+    private static Status validate(Transfer transfer, Account accounts[]){
+        if (transfer.getNumOfLegs() == 0){
+            return Status.INVALID;
+        }
+        for (int i = 0; i < transfer.getNumOfLegs(); i++){
+            if (accounts[i * 2] == null || accounts[i * 2 + 1] == null){
+                return Status.NO_SUCH_ACCOUNT;
+            }
+            if (accounts[i * 2] == accounts[i * 2 + 1] || transfer.m_amounts[i] <= 0){
+                return Status.INVALID;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Locks every account of a group in account number order and runs its transfers
+     * @param batch         Transfers
+     * @param legAccounts   Accounts of each transfer's legs
+     * @param statuses      Status of each transfer, filled in for the group
+     * @param from          Index of the group's first transfer
+     * @param to            Index after the group's last transfer
+     * @param group         Accounts of the group, mapped to their position in the net change array
+     * @param location      Location of transfers
+     */
+    private void runGroup(List<Transfer> batch, Account legAccounts[][], Status statuses[], int from, int to,
+            IdentityHashMap<Account, Integer> group, String location){
+        Account locked[] = group.keySet().toArray(new Account[0]);
+        Arrays.sort(locked, Comparator.comparing(Account::getAccNum));
+        lockAll(locked, 0, () -> applyGroup(batch, legAccounts, statuses, from, to, group, location));
+    }
+
+    /**
+     * Takes the monitor of accounts[i] and the rest after it, then runs body
+     * @param accounts  Accounts in account number order
+     * @param i         Index of the next account to lock
+     * @param body      Run with every account locked
+     */
+    static void lockAll(Account accounts[], int i, Runnable body){
+        if (i == accounts.length){
+            body.run();
+            return;
+        }
+        synchronized (accounts[i]){
+            lockAll(accounts, i + 1, body);
+        }
+    }
+
+    /**
+     * Checks and applies the transfers of a group, then journals the legs applied
+     * Caller must hold every account's lock
+     */
+    private void applyGroup(List<Transfer> batch, Account legAccounts[][], Status statuses[], int from, int to,
+            IdentityHashMap<Account, Integer> group, String location){
+        //The legs are journaled once applied, as applying them decides which run; refused up front if that would fail
+        if (m_bank.getJournal() != null){
+            m_bank.getJournal().checkWritable();
+        }
+        //Accounts were looked up before they were locked, so one may have been deleted in between
+        for (int i = from; i < to; i++){
+            if (statuses[i] == null){
+                for (Account account : legAccounts[i]){
+                    if (!isOpen(account)){
+                        statuses[i] = Status.NO_SUCH_ACCOUNT;
+                    }
+                }
+            }
+        }
+        long net[] = new long[group.size()];
+        long timestamp = System.currentTimeMillis();
+        for (Account account : group.keySet()){
+            if (isOpen(account)){
+                account.accrue(timestamp);
+            }
+        }
+        int numOfLegs = 0;
+        for (int i = from; i < to; i++){
+            if (statuses[i] == null){
+                numOfLegs += batch.get(i).getNumOfLegs();
+            }
+        }
+        String srcAccNums[] = new String[numOfLegs];
+        String destAccNums[] = new String[numOfLegs];
+        long amounts[] = new long[numOfLegs];
+        int applied = 0;
+
+        for (int i = from; i < to; i++){
+            if (statuses[i] != null){
+                continue;
+            }
+            Transfer transfer = batch.get(i);
+            Account accounts[] = legAccounts[i];
+            int legs = transfer.getNumOfLegs();
+
+            //Net change of each account over all legs, so a leg can pass on money an earlier leg brought in
+            for (int leg = 0; leg < legs; leg++){
+                int src = group.get(accounts[leg * 2]);
+                int dest = group.get(accounts[leg * 2 + 1]);
+                net[src] = Money.subtract(net[src], transfer.m_amounts[leg]);
+                net[dest] = Money.add(net[dest], transfer.m_amounts[leg]);
+            }
+            boolean covered = true;
+            for (Account account : accounts){
+                int index = group.get(account);
+                if (net[index] < 0 && Money.add(account.getAvailable(), net[index]) < 0){
+                    covered = false;
+                }
+            }
+            for (Account account : accounts){
+                net[group.get(account)] = 0;
+            }
+            if (!covered){
+                statuses[i] = Status.INSUFFICIENT_BALANCE;
+                continue;
+            }
+
+            for (int leg = 0; leg < legs; leg++){
+                Account.applyTransfer(accounts[leg * 2], accounts[leg * 2 + 1], timestamp, location, transfer.m_amounts[leg]);
+                srcAccNums[applied] = transfer.m_srcAccNums.get(leg);
+                destAccNums[applied] = transfer.m_destAccNums.get(leg);
+                amounts[applied] = transfer.m_amounts[leg];
+                applied++;
+            }
+            statuses[i] = Status.DONE;
+        }
+
+        if (applied > 0 && m_bank.getJournal() != null){
+            m_bank.getJournal().logTransferBatch(timestamp, location, srcAccNums, destAccNums, amounts, applied);
+        }
+    }
+
+    /**
+     * Checks whether an account is still in the Bank, as it may have been deleted since it was looked up
+     * Caller must hold the account's lock, which deletion takes too
+     * @param account   Account
+     * @return          true if open
+     */
+    private boolean isOpen(Account account){
+        return m_bank.getAccount(account.getAccNum()) == account;
+    }
+}
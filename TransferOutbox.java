@@ -0,0 +1,296 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * Transfers between Banks that do not share a journal, such as the shards of a ShardedBank
+ *
+ * The source Bank takes the money and records an intent in one journal record, so a transfer is never half started;
+ * the intent stays pending until the destination Bank has credited it, or it is refunded, and is then marked done
+ * The destination Bank journals each intent ID it credits along with the credit, so an intent delivered again
+ * after a restart is not credited twice; the ID is forgotten once the source has marked it done
+ * Intent IDs are unique across Banks that share an ID stride, each starting at a different first ID
+ *
+ * Pending intents and credited IDs are kept in snapshots, and restored from the journal like any other change
+ * Lock order is the Bank's update lock, then accounts, then this
+ */
+public class TransferOutbox {
+    /**
+     * Money taken from an account of this Bank on its way to an account of another, never changed once made
+     */
+    public static class Intent {
+        final long id;
+        final String srcAccNum;
+        final String destAccNum;
+        final long timestamp;
+        final String location;
+        final long amount;
+
+        Intent(long id, String srcAccNum, String destAccNum, long timestamp, String location, long amount){
+            this.id = id;
+            this.srcAccNum = srcAccNum;
+            this.destAccNum = destAccNum;
+            this.timestamp = timestamp;
+            this.location = location;
+            this.amount = amount;
+        }
+
+        /**
+         * Returns the ID of the intent
+         * @return id
+         */
+        public long getID(){
+            return id;
+        }
+
+        /**
+         * Returns the destination account number
+         * @return destAccNum
+         */
+        public String getDestAccNum(){
+            return destAccNum;
+        }
+    }
+
+    /**
+     * Copy of the outbox for a snapshot
+     */
+    static class Captured {
+        long nextID;
+        Intent pending[];
+        long received[];
+    }
+
+    /**
+     * Bank whose accounts transfers are sent from and received into
+     */
+    private Bank m_bank;
+
+    /**
+     * Intents sent from this Bank and not yet done, in ID order
+     */
+    private LinkedHashMap<Long, Intent> m_pending;
+
+    /**
+     * IDs of intents credited to this Bank whose source has not yet marked them done
+     */
+    private HashSet<Long> m_received;
+
+    /**
+     * ID of the next intent, and the step between IDs
+     */
+    private long m_nextID;
+    private long m_idStride;
+
+    /**
+     * Constructor, starts empty, with IDs 0, 1, 2...
+     * @param bank Bank whose accounts transfers are sent from and received into
+     */
+    public TransferOutbox(Bank bank){
+        m_bank = bank;
+        m_pending = new LinkedHashMap<Long, Intent>();
+        m_received = new HashSet<Long>();
+        m_nextID = 0;
+        m_idStride = 1;
+    }
+
+    /**
+     * Sets the IDs this outbox hands out, called before anything is restored from storage
+     * @param first     First ID
+     * @param stride    Step between IDs, the number of Banks sending to each other
+     */
+    public synchronized void setIDs(long first, long stride){
+        if (first < 0 || stride < 1 || first >= stride){
+            throw new IllegalArgumentException("First ID must be between 0 and the stride");
+        }
+        m_nextID = first;
+        m_idStride = stride;
+    }
+
+    /**
+     * Returns the intents not yet done, such as to deliver again after a restart
+     * @return Copy of the pending intents in ID order
+     */
+    public synchronized ArrayList<Intent> getPending(){
+        return new ArrayList<Intent>(m_pending.values());
+    }
+
+    /**
+     * Checks if an intent has been credited to this Bank and not yet forgotten
+     * @param id Intent ID
+     * @return   true if credited
+     */
+    public synchronized boolean isReceived(long id){
+        return m_received.contains(id);
+    }
+
+    /**
+     * Marks a pending intent done once the destination has credited it, or refunds it to its source account
+     * @param id        Intent ID
+     * @param refund    true to give the money back, such as when the destination account was deleted
+     * @throws IllegalStateException if the intent is not pending, or the source account of a refund is closed
+     */
+    public void done(long id, boolean refund){
+        Intent intent;
+        synchronized (this){
+            intent = m_pending.get(id);
+        }
+        if (intent == null){
+            throw new IllegalStateException("Transfer " + id + " is not pending");
+        }
+        Account src = refund ? m_bank.getAccount(intent.srcAccNum) : null;
+        if (refund && src == null){
+            throw new IllegalStateException("Account " + intent.srcAccNum + " has been deleted, transfer " + id + " stays pending");
+        }
+
+        long seq = 0;
+        m_bank.beginUpdate();
+        try {
+            if (refund){
+                synchronized (src){
+                    if (src.isDeleted()){
+                        throw new IllegalStateException("Account " + intent.srcAccNum + " has been deleted, transfer " + id + " stays pending");
+                    }
+                    seq = logDone(id, true, src);
+                }
+            } else {
+                seq = logDone(id, false, null);
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+        m_bank.awaitDurable(seq);
+    }
+
+    /**
+     * Forgets a credited intent once its source has marked it done
+     * The forgetting is journaled but not waited for; if it is lost in a crash, the ID is only kept a while longer
+     * @param id Intent ID
+     */
+    public void forget(long id){
+        m_bank.beginUpdate();
+        try {
+            synchronized (this){
+                if (m_received.contains(id)){
+                    if (m_bank.getJournal() != null){
+                        m_bank.getJournal().logTransferDone(id, false, System.currentTimeMillis());
+                    }
+                    m_received.remove(id);
+                }
+            }
+        } finally {
+            m_bank.endUpdate();
+        }
+    }
+
+    /**
+     * Takes a new intent ID
+     * Caller must hold the source account's lock, and journal the intent before adding it
+     * @return ID
+     */
+    synchronized long nextID(){
+        long id = m_nextID;
+        m_nextID += m_idStride;
+        return id;
+    }
+
+    /**
+     * Adds an intent whose money has been taken, sent or restored from storage
+     * Caller must hold the source account's lock
+     * @param intent Intent
+     */
+    synchronized void replayAdd(Intent intent){
+        m_pending.put(intent.id, intent);
+        replayNextID(intent.id + m_idStride);
+    }
+
+    /**
+     * Records an intent as credited, received or restored from storage
+     * Caller must hold the destination account's lock
+     * @param id Intent ID
+     */
+    synchronized void replayReceived(long id){
+        m_received.add(id);
+    }
+
+    /**
+     * Restores the next ID from storage, never moving it back
+     * @param nextID ID of the next intent
+     */
+    synchronized void replayNextID(long nextID){
+        if (nextID > m_nextID){
+            m_nextID = nextID;
+        }
+    }
+
+    /**
+     * Restores an intent marked done from storage: removes a pending intent, refunding it if asked,
+     * or forgets a credited one
+     * @param id        Intent ID
+     * @param refund    true if the money went back to the source account
+     * @param timestamp Time of the refund in milliseconds since epoch
+     */
+    void replayDone(long id, boolean refund, long timestamp){
+        Intent intent;
+        synchronized (this){
+            intent = m_pending.remove(id);
+            if (intent == null){
+                m_received.remove(id);
+                return;
+            }
+        }
+        if (refund){
+            Account src = m_bank.getAccount(intent.srcAccNum);
+            if (src == null){
+                throw new IllegalStateException("Account " + intent.srcAccNum + " of transfer " + id + " is unknown");
+            }
+            synchronized (src){
+                src.applyRefund(intent, timestamp);
+            }
+        }
+    }
+
+    /**
+     * Copies the outbox, called while changes are paused for a snapshot
+     * @return Copy
+     */
+    synchronized Captured capture(){
+        Captured captured = new Captured();
+        captured.nextID = m_nextID;
+        captured.pending = m_pending.values().toArray(new Intent[0]);
+        captured.received = new long[m_received.size()];
+        int n = 0;
+        for (long id : m_received){
+            captured.received[n++] = id;
+        }
+        return captured;
+    }
+
+    /**
+     * Journals an intent marked done, then applies it
+     * Caller must be within beginUpdate, and hold the source account's lock for a refund
+     * @param id        Intent ID
+     * @param refund    true to give the money back
+     * @param src       Source account, held locked, for a refund
+     * @return          Sequence number of the journal record, 0 for a Bank kept only in memory
+     */
+    private long logDone(long id, boolean refund, Account src){
+        long timestamp = System.currentTimeMillis();
+        long seq = 0;
+        Intent intent;
+        synchronized (this){
+            intent = m_pending.get(id);
+            if (intent == null){
+                throw new IllegalStateException("Transfer " + id + " is not pending");
+            }
+            if (m_bank.getJournal() != null){
+                seq = m_bank.getJournal().logTransferDone(id, refund, timestamp);
+            }
+            m_pending.remove(id);
+        }
+        if (refund){
+            src.applyRefund(intent, timestamp);
+        }
+        return seq;
+    }
+}
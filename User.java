@@ -1,10 +1,17 @@
+import java.time.LocalDate;
+import java.time.YearMonth;
 import java.util.Scanner;
-import java.util.ArrayList;
-//MessageDigest provides functions for hashing
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class User {
+    /**
+     * Number of transactions shown per page of account info
+     */
+    private static final int PAGE_SIZE = 20;
+
     /**
      * User's first name
      */
@@ -21,15 +28,26 @@ public class User {
     private int m_userID;
 
     /**
-     * SHA-256 hash of user's PIN
+     * Salted hash of user's PIN, made by PinHasher
      * Hashing is one way, hence unable to reverse engineer the original PIN
      */
-    private byte m_pin[];
+    private volatile byte m_pin[];
 
     /**
      * List of user's accounts
+     * Copy on write, as the same User may be logged in at more than one ATM
+     */
+    private List<Account> m_accounts;
+
+    /**
+     * Number of accounts added and removed, so a cached account listing can tell it is out of date
      */
-    private ArrayList<Account> m_accounts;
+    private AtomicLong m_accountsVersion = new AtomicLong();
+
+    /**
+     * Bank which the User is customer of
+     */
+    private Bank m_bank;
 
     /**
      * Constructor, creates new user
@@ -41,35 +59,34 @@ public class User {
     public User(String fName, String lName, String pin, Bank bank){
         m_fName = fName;
         m_lName = lName;
+        m_bank = bank;
 
-        // Stores PIN's SHA-256 hash
-        try{
-            //This acquires a SHA-256 algorithm instance as md
-            //getInstance could throw NoSuchAlgorithmException if not supported
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-
-            //digest returns a byte array by operating on PIN in bytes
-            m_pin = md.digest(pin.getBytes());
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("No Such Algorithm Exception");
-            //Prints stack trace for debugging
-            e.printStackTrace();
-            //Exits program with status 1
-            System.exit(1);
-        }
+        // Stores PIN's salted hash
+        m_pin = PinHasher.hash(pin);
 
         //Generates uuid for a new user
         m_userID = bank.getNewUserID();
 
         //Creates instance storing Accounts for m_accounts 
-        m_accounts = new ArrayList<Account>();
+        m_accounts = new CopyOnWriteArrayList<Account>();
+    }
 
-        System.out.println("New user created");
-        System.out.println("\nWelcome to " + bank.getName());
-        System.out.println("-------------------------------");
-        System.out.println("User: " + m_fName + " " + m_lName);
-        System.out.println("ID: " + m_userID);
-        System.out.println();
+    /**
+     * Constructor for an existing user, such as one rebuilt from the Journal
+     * Nothing is printed
+     * @param fName     User's first name
+     * @param lName     User's last name
+     * @param userID    User ID
+     * @param pin       Hash of the User's PIN, made by PinHasher
+     * @param bank      Bank which the User is customer of
+     */
+    public User(String fName, String lName, int userID, byte pin[], Bank bank){
+        m_fName = fName;
+        m_lName = lName;
+        m_userID = userID;
+        m_pin = pin.clone();
+        m_bank = bank;
+        m_accounts = new CopyOnWriteArrayList<Account>();
     }
 
     /**
@@ -77,7 +94,62 @@ public class User {
      * @param newAccount new Account that was created
      */
     public void addAccount(Account newAccount){
-        m_accounts.add(newAccount);
+        //Changed together with the version, so chooseAccount copies a list that matches it
+        synchronized (m_accounts){
+            m_accounts.add(newAccount);
+            m_accountsVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes account from m_accounts
+     * @param account Account to remove
+     */
+    public void removeAccount(Account account){
+        synchronized (m_accounts){
+            m_accounts.remove(account);
+            m_accountsVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the User's accounts
+     * @return Read only list of accounts
+     */
+    public List<Account> getAccounts(){
+        return Collections.unmodifiableList(m_accounts);
+    }
+
+    /**
+     * Returns first name
+     * @return m_fName
+     */
+    public String getFirstName(){
+        return m_fName;
+    }
+
+    /**
+     * Returns last name
+     * @return m_lName
+     */
+    public String getLastName(){
+        return m_lName;
+    }
+
+    /**
+     * Returns a copy of the PIN hash, for storing the User
+     * @return Hash of PIN
+     */
+    public byte[] getPinHash(){
+        return m_pin.clone();
+    }
+
+    /**
+     * Replaces the PIN hash, such as with a stronger hash of the same PIN
+     * @param pin Hash of PIN, made by PinHasher
+     */
+    public void setPinHash(byte pin[]){
+        m_pin = pin.clone();
     }
 
     /**
@@ -105,51 +177,53 @@ public class User {
     }
 
     /**
-     * Returns chosen account number
-     * @param accIndex  Account index in m_accounts
-     * @return          Account number
+     * Returns totals of every Transaction in all of the User's accounts
+     * Transfers between the User's own accounts show on both sides, so their sum cancels out
+     * @param category  Category, null for all categories
+     * @return          Totals
      */
-    public String getAccNum(int accIndex){
-        return m_accounts.get(accIndex).getAccNum();
+    public AccountStats.Totals getAllTimeTotals(AccountStats.Category category){
+        AccountStats.Totals totals = new AccountStats.Totals();
+        for (Account account : m_accounts){
+            totals.add(account.getAllTimeTotals(category));
+        }
+        return totals;
     }
 
     /**
-     * Returns chosen account type
-     * @param accIndex  Account index in m_accounts
-     * @return          Account type
+     * Returns totals of one day's Transactions in all of the User's accounts
+     * @param date      Day, in the system time zone
+     * @param category  Category, null for all categories
+     * @return          Totals
      */
-    public String getAccType(int accIndex){
-        return m_accounts.get(accIndex).getAccType();
+    public AccountStats.Totals getDailyTotals(LocalDate date, AccountStats.Category category){
+        AccountStats.Totals totals = new AccountStats.Totals();
+        for (Account account : m_accounts){
+            totals.add(account.getDailyTotals(date, category));
+        }
+        return totals;
     }
 
     /**
-     * Get account balance
-     * @param account   Account index
-     * @return
+     * Returns totals of one month's Transactions in all of the User's accounts, such as the month's spending
+     * @param month     Month, in the system time zone
+     * @param category  Category, null for all categories
+     * @return          Totals
      */
-    public double getAccBalance(int accIndex){
-        return m_accounts.get(accIndex).getAccBalance();
+    public AccountStats.Totals getMonthlyTotals(YearMonth month, AccountStats.Category category){
+        AccountStats.Totals totals = new AccountStats.Totals();
+        for (Account account : m_accounts){
+            totals.add(account.getMonthlyTotals(month, category));
+        }
+        return totals;
     }
 
     /**
-     * Validates PIN with MessageDigest
+     * Validates PIN with PinHasher
      * @return true for matched pin
      */
     public boolean validatePIN(String pin){
-        try{
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-
-            //Returns a bool to equate two hashed values, which uses the isEqual method in MessageDigest
-            return MessageDigest.isEqual(md.digest(pin.getBytes()), m_pin);
-        } catch (NoSuchAlgorithmException e){
-            System.err.println("No Such Algorithm Exception");
-            //Debug purposes
-            e.printStackTrace();
-            //Exits system if exception occurs
-            System.exit(1);
-        }
-
-        return false;
+        return PinHasher.verify(pin, m_pin);
     }
 
      /**
@@ -157,27 +231,158 @@ public class User {
      * @param sc Scanner
      */
     public void showAccountInfo(Scanner sc){
-        int accIndex = chooseAccount(sc);
-        if (accIndex >= 0){
-            if (transactionExist(accIndex)){
-                m_accounts.get(accIndex).accSummary();
+        Account acc = chooseAccount(sc);
+        if (acc != null){
+            if (acc.getNumOfTransaction() != 0){
+                //Shows the newest page first, then older pages on request
+                int end = acc.getNumOfTransaction();
+                int start = Math.max(0, end - PAGE_SIZE);
+                acc.accSummary(start, end);
+                while (start > 0){
+                    System.out.print("Show " + Math.min(start, PAGE_SIZE) + " older transactions (Y/N): ");
+                    if (!Validate.validateYesNo(sc)){
+                        break;
+                    }
+                    end = start;
+                    start = Math.max(0, end - PAGE_SIZE);
+                    System.out.println("------------------------");
+                    acc.showTransactions(start, end);
+                }
+                System.out.println("");
             } else {
                 System.out.println("\nNo transactions\n");
             }
-        } else if (accIndex == -2){
-            System.out.println("No accounts exist\n");
-        } else {
-            System.out.println("Operation cancelled");
         }
     }
 
     /**
-     * Checks if at least one transaction exists
-     * @param accIndex
-     * @return
+     * Searches an account's transactions by location and memo, showing a page at a time
+     * @param sc Scanner
+     */
+    public void searchTransactions(Scanner sc){
+        Account acc = chooseAccount(sc);
+        if (acc != null){
+            System.out.print("Location starts with (Click enter for any): ");
+            String location = sc.nextLine();
+            System.out.print("Memo contains (Click enter for any): ");
+            String memo = sc.nextLine();
+            TransactionQuery query = new TransactionQuery().locationStartsWith(location).memoContains(memo);
+
+            int offset = 0;
+            while (true){
+                //Asks for one more than a page to know if there is another page
+                List<Transaction> page = acc.search(query.page(offset, PAGE_SIZE + 1));
+                if (page.isEmpty() && offset == 0){
+                    System.out.println("\nNo matching transactions\n");
+                    break;
+                }
+                System.out.println("------------------------");
+                for (int i = 0; i < Math.min(PAGE_SIZE, page.size()); i++){
+                    page.get(i).showTrans();
+                }
+                if (page.size() <= PAGE_SIZE){
+                    System.out.println("");
+                    break;
+                }
+                System.out.print("Show more matching transactions (Y/N): ");
+                if (!Validate.validateYesNo(sc)){
+                    System.out.println("");
+                    break;
+                }
+                offset += PAGE_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Returns chosen account
+     * The Account should be kept for the rest of the operation, as the index of an account changes
+     * when another session adds or deletes one
+     * @param accIndex  Account index in m_accounts
+     * @return          Account
+     */
+    public Account getAccount(int accIndex){
+        return m_accounts.get(accIndex);
+    }
+
+    /**
+     * Deposits amount into an account, without prompting
+     * @param account   One of the User's accounts
+     * @param amount    Amount in cents
+     * @throws IllegalArgumentException if account is not the User's, or amount is 0 or negative
+     * @throws IllegalStateException if account has been deleted
+     */
+    public void deposit(Account account, long amount){
+        checkOwned(account);
+        Money.checkPositive(amount);
+        long start = Metrics.start();
+        account.post(amount, "ATM", "Deposit");
+        m_bank.getMetrics().record(Metrics.Op.DEPOSIT, start, true);
+    }
+
+    /**
+     * Withdraws amount from an account if the balance covers it, without prompting
+     * @param account   One of the User's accounts
+     * @param amount    Amount in cents
+     * @return          true if withdrawn, false for insufficient balance
+     * @throws IllegalArgumentException if account is not the User's, or amount is 0 or negative
+     * @throws IllegalStateException if account has been deleted
+     */
+    public boolean withdraw(Account account, long amount){
+        checkOwned(account);
+        Money.checkPositive(amount);
+        long start = Metrics.start();
+        boolean withdrawn = account.withdraw(amount, "ATM", "Withdraw");
+        m_bank.getMetrics().record(Metrics.Op.WITHDRAW, start, withdrawn);
+        return withdrawn;
+    }
+
+    /**
+     * Transfers amount between two of the User's accounts if the balance covers it, without prompting
+     * @param src       Source account
+     * @param dest      Destination account
+     * @param amount    Amount in cents
+     * @return          true if transferred, false for insufficient balance
+     * @throws IllegalArgumentException if either account is not the User's, both are the same, or amount is 0 or negative
+     * @throws IllegalStateException if either account has been deleted
+     */
+    public boolean transfer(Account src, Account dest, long amount){
+        checkOwned(src);
+        checkOwned(dest);
+        Money.checkPositive(amount);
+        long start = Metrics.start();
+        boolean transferred = Account.transfer(src, dest, amount, "ATM");
+        m_bank.getMetrics().record(Metrics.Op.TRANSFER, start, transferred);
+        return transferred;
+    }
+
+    /**
+     * Adds a spending transaction to an account, without prompting
+     * @param account   One of the User's accounts
+     * @param location  Location of transaction
+     * @param amount    Amount spent in cents
+     * @param memo      Memo, "" for none
+     * @throws IllegalArgumentException if account is not the User's, or amount is 0 or negative
+     * @throws IllegalStateException if account has been deleted
+     */
+    public void addTransaction(Account account, String location, long amount, String memo){
+        checkOwned(account);
+        Money.checkPositive(amount);
+        long start = Metrics.start();
+        account.charge(amount, location, memo);
+        m_bank.getMetrics().record(Metrics.Op.ADD_TRANSACTION, start, true);
+    }
+
+    /**
+     * Deletes an account if its balance is 0, without prompting
+     * @param account   One of the User's accounts
+     * @return          true if deleted, false if the balance is not 0
+     * @throws IllegalArgumentException if account is not the User's
+     * @throws IllegalStateException if account has already been deleted
      */
-    public boolean transactionExist(int accIndex){
-        return (m_accounts.get(accIndex).getNumOfTransaction() != 0);
+    public boolean deleteAccount(Account account){
+        checkOwned(account);
+        return m_bank.deleteAccount(this, account);
     }
 
     /**
@@ -185,21 +390,22 @@ public class User {
      * @param sc Scanner
      */
     public void deposit(Scanner sc){
-        int accIndex = chooseAccount(sc);
-        Account acc =  m_accounts.get(accIndex);
-        double balance = getAccBalance(accIndex);
-        double amount = 0;
-        if (accIndex >= 0){
-            System.out.println("Account: " + getAccNum(accIndex));
-            System.out.println("Account balance: " + balance);
-            System.out.print("Enter deposit amount: ");
-            amount = Validate.validateAmount(sc);
-            acc.credit(amount);
-            acc.addTransaction("ATM", amount, "Deposit");
-        } else if (accIndex == -2){
-            System.out.println("No accounts exist\n");
-        } else {
-            System.out.println("Operation cancelled");
+        Account account = chooseAccount(sc);
+        if (account != null){
+            System.out.println("Account: " + account.getAccNum());
+            System.out.println("Account balance: " + Money.format(account.getAccBalance()));
+            System.out.print("Enter deposit amount (enter 0 amount to cancel): ");
+            long amount = Validate.validateAmount(sc);
+            if (amount == 0){
+                System.out.println("Operation cancelled\n");
+                return;
+            }
+            try {
+                deposit(account, amount);
+                showNewBalance(account);
+            } catch (IllegalStateException e) {
+                System.out.println(e.getMessage() + "\n");
+            }
         }
     }
     
@@ -208,83 +414,91 @@ public class User {
      * @param sc Scanner
      */
     public void withdraw(Scanner sc){
-        int accIndex = chooseAccount(sc);
-        Account acc = m_accounts.get(accIndex);
-        double balance = getAccBalance(accIndex);
-        double amount = 0;
-        if (balance != 0){
-            if (accIndex >= 0){
-                System.out.println("Account: " + getAccNum(accIndex));
-                System.out.println("Account balance: " + balance);
-                System.out.print("Enter withdrawal amount: ");
-                do {
-                    amount = Validate.validateAmount(sc);
-                    if (amount > balance){
-                        System.out.print("Transfer amount exceeds source account balance! Please re-enter: ");
-                    }
-                } while (amount > balance);
-                acc.debit(amount);
-                acc.addTransaction("ATM", (amount - amount * 2), "Withdraw");
-            } else if (accIndex == -2){
-                System.out.println("No accounts exist\n");
-            } else {
-                System.out.println("Operation cancelled");
+        Account account = chooseAccount(sc);
+        if (account == null){
+            return;
+        }
+        long available = getAvailable(account);
+        if (available > 0){
+            long amount = 0;
+            System.out.println("Account: " + account.getAccNum());
+            showBalance("Account", account);
+            System.out.print("Enter withdrawal amount (enter 0 amount to cancel): ");
+            do {
+                amount = Validate.validateAmount(sc);
+                if (amount > available){
+                    System.out.print("Withdrawal amount exceeds available balance! Please re-enter: ");
+                }
+            } while (amount > available);
+            if (amount == 0){
+                System.out.println("Operation cancelled\n");
+                return;
+            }
+            //Balance may have changed in another session since it was shown
+            try {
+                if (withdraw(account, amount)){
+                    showNewBalance(account);
+                } else {
+                    System.out.println("Account balance has changed, please try again.\n");
+                }
+            } catch (IllegalStateException e) {
+                System.out.println(e.getMessage() + "\n");
             }
         } else {
-            System.out.println("Account balance is 0, please try another account.\n");
+            System.out.println("Account has no money available, please try another account.\n");
         }
     }
     
     /**
-     * Transfer amount from srcAccIndex to destAccIndex
-     * @param srcAccIndex   Source account index
-     * @param destAccIndex  Destination account index
-     * @param amount        Amount to transfer
+     * Transfer amount entered by user between two accounts chosen
+     * @param sc Scanner
      */
     public void transfer(Scanner sc){
         System.out.println("\nSource account");
-        int srcAccIndex = chooseAccount(sc);
-        int destAccIndex = 0;
-        double amount = 0;
-        if (srcAccIndex >= 0){
+        Account src = chooseAccount(sc);
+        Account dest = null;
+        if (src != null){
             do {
                 System.out.println("\nDestination account");
-                destAccIndex = chooseAccount(sc);
-                if (destAccIndex == -1){
-                    System.out.println("Operation cancelled");
-                    break;
-                }else if (srcAccIndex == destAccIndex){
-                    System.out.print("You cannot pick the same accounts! Please choose an account that is not # " + srcAccIndex + 1 + ": ");
+                dest = chooseAccount(sc);
+                if (dest == src){
+                    System.out.println("You cannot pick the same accounts! Please choose an account that is not " + src.getAccNum());
                 }
-            } while (srcAccIndex == destAccIndex);
-        } else if (srcAccIndex == -2){
-            System.out.println("No accounts exist\n");
-        } else {
-            System.out.println("Operation cancelled");
+            } while (dest == src);
         }
 
-        if (srcAccIndex >= 0 && destAccIndex >= 0) {
-            Account srcAcc = m_accounts.get(srcAccIndex);
-            Account destAcc = m_accounts.get(destAccIndex);
-            double srcAccBalance = getAccBalance(srcAccIndex);
-            double destAccBalance = getAccBalance(destAccIndex);
-            System.out.println("Source account balance: " + srcAccBalance);
-            System.out.println("Destination account balance: " + destAccBalance);
+        if (src != null && dest != null) {
+            long srcAvailable = getAvailable(src);
+            long destAccBalance = dest.getAccBalance();
+            showBalance("Source account", src);
+            System.out.println("Destination account balance: " + Money.format(destAccBalance));
 
-            if (srcAccBalance >= 0){
+            if (srcAvailable > 0){
+                long amount = 0;
                 System.out.print("Enter the amount to transfer (enter 0 amount to cancel): ");
                 do {
                     amount = Validate.validateAmount(sc);
-                    if ((amount > srcAccBalance)){
-                        System.out.print("Transfer amount exceeds source account balance! Please re-enter: ");
+                    if ((amount > srcAvailable)){
+                        System.out.print("Transfer amount exceeds source account available balance! Please re-enter: ");
+                    }
+                } while (amount > srcAvailable);
+                if (amount == 0){
+                    System.out.println("Operation cancelled\n");
+                    return;
+                }
+                //Balance may have changed in another session since it was shown
+                try {
+                    if (transfer(src, dest, amount)){
+                        showNewBalance(src);
+                        showNewBalance(dest);
+                    } else {
+                        System.out.println("Source account balance has changed, please try again.\n");
                     }
-                } while (amount > srcAccBalance);
-                srcAcc.debit(amount);
-                srcAcc.addTransaction("ATM", (amount - (amount * 2)), "Transfer to " + srcAcc.getAccNum());
-                destAcc.credit(amount);
-                destAcc.addTransaction("ATM", amount, "Transfer from " + srcAcc.getAccNum());
+                } catch (IllegalStateException e) {
+                    System.out.println(e.getMessage() + "\n");
+                }
             } else {
-                System.out.println("Source account balance is 0, please try another account.");
+                System.out.println("Source account has no money available, please try another account.");
             }
         }
     }
@@ -294,27 +508,24 @@ public class User {
      * @param sc
      */
     public void addTransaction(Scanner sc){
-        int accIndex = chooseAccount(sc);
-        Account chosenAcc = m_accounts.get(accIndex);
-        if (accIndex >= 0) {
+        Account account = chooseAccount(sc);
+        if (account != null) {
             System.out.print("Enter location of transaction: ");
             String location = sc.nextLine();
-            System.out.print("Enter amount of transaction: ");
-            double amount = Validate.validateAmount(sc);
+            System.out.print("Enter amount of transaction (enter 0 amount to cancel): ");
+            long amount = Validate.validateAmount(sc);
+            if (amount == 0){
+                System.out.println("Operation cancelled\n");
+                return;
+            }
             System.out.print("(Optional) Enter additional memo (Click enter for no memo): ");
             String memo = sc.nextLine();
-            chosenAcc.debit(amount);
-            amount -= amount * 2;
-            if (memo == ""){
-                chosenAcc.addTransaction(location, amount);
-            } else {
-                chosenAcc.addTransaction(location, amount, memo);
+            try {
+                addTransaction(account, location, amount, memo);
+                showNewBalance(account);
+            } catch (IllegalStateException e) {
+                System.out.println(e.getMessage());
             }
-            
-        } else if (accIndex == -2){
-            System.out.println("No accounts exist\n");
-        } else {
-            System.out.println("Operation cancelled");
         }
         System.out.println("");
     }
@@ -325,9 +536,8 @@ public class User {
      */
     public void deleteAccount(Scanner sc)
     {
-        int accIndex = chooseAccount(sc);
-        if (accIndex >= 0){
-            Account chosenAcc = m_accounts.get(accIndex);
+        Account chosenAcc = chooseAccount(sc);
+        if (chosenAcc != null){
             chosenAcc.accSummary();
             if (chosenAcc.getAccBalance() != 0)
             {
@@ -335,40 +545,115 @@ public class User {
             } else {
                 System.out.print("Are you sure you want to delete this account (Y/N): ");
                 if (Validate.validateYesNo(sc)){
-                    System.out.println("\nAccount " + chosenAcc.getAccNum() + " deleted\n");
-                    m_accounts.remove(accIndex);
+                    try {
+                        if (deleteAccount(chosenAcc)){
+                            System.out.println("\nAccount " + chosenAcc.getAccNum() + " deleted\n");
+                        } else {
+                            System.out.println("\nAccount balance has changed, please withdraw first\n");
+                        }
+                    } catch (IllegalStateException e) {
+                        System.out.println("\n" + e.getMessage() + "\n");
+                    }
                 } else {
                     System.out.println("\nOperation cancelled\n");
                 }
             }
-        } else if (accIndex == -2){
-            System.out.println("No accounts exist\n");
-        } else {
-            System.out.println("Operation cancelled");
         }
         
     }
 
+    /**
+     * Throws unless account is one of the User's
+     * @param account Account
+     * @throws IllegalArgumentException if not the User's
+     */
+    private void checkOwned(Account account){
+        if (!m_accounts.contains(account)){
+            throw new IllegalArgumentException("Account " + account.getAccNum() + " does not belong to User " + m_userID);
+        }
+    }
+
+    /**
+     * Brings an account's interest up to date and returns how much can be taken out of it
+     * @param account   Account
+     * @return          Balance plus any overdraft or credit line, in cents
+     */
+    private long getAvailable(Account account){
+        account.accrueInterest();
+        return account.getAvailable();
+    }
+
+    /**
+     * Prints an account's balance, and what is available if it has an overdraft or credit line
+     * @param label     Which account, such as Source account
+     * @param account   Account
+     */
+    private void showBalance(String label, Account account){
+        System.out.print(label + " balance: " + Money.format(account.getAccBalance()));
+        if (account.getType().getLimit() > 0){
+            System.out.print(" (available: " + Money.format(account.getAvailable()) + ")");
+        }
+        System.out.println();
+    }
+
+    /**
+     * Prints an account's balance after a change
+     * @param account Account
+     */
+    private void showNewBalance(Account account){
+        System.out.println(account.getAccNum() + " New balance: " + Money.format(account.getAccBalance()) + "\n");
+    }
+
+    /**
+     * Returns the numbered list of accounts chooseAccount shows, from the Bank's SummaryCache if it is up to date
+     * Account numbers and types never change, so only adding or removing an account makes it out of date
+     * @param accounts  Accounts to list
+     * @param version   m_accountsVersion when accounts were copied
+     * @return          One line per account
+     */
+    private String getAccountListing(Account accounts[], long version){
+        SummaryCache cache = m_bank.getSummaryCache();
+        String key = "accounts " + m_userID;
+        String listing = cache.get(key, version);
+        if (listing == null){
+            StringBuilder str = new StringBuilder(32 * accounts.length);
+            for (int i = 0; i < accounts.length; i++){
+                str.append(i + 1).append(": ").append(accounts[i].getAccNum()).append(' ').append(accounts[i].getAccType()).append('\n');
+            }
+            listing = str.toString();
+            cache.put(key, version, listing);
+        }
+        return listing;
+    }
+
     /**
      * Choose account for some methods
+     * The choice is taken from the accounts as listed, so an account another session adds or deletes
+     * meanwhile cannot shift it onto a different account
      * @param sc Scanner
-     * @return Account index choice
+     * @return Account chosen, null if cancelled or there are no accounts
      */
-    private int chooseAccount(Scanner sc){
-        int choice = 0, numOfAcc = getNumOfAcc();
-        if (numOfAcc != 0){
-            for (int i = 0; i < getNumOfAcc(); i++){
-                System.out.println((i + 1) + ": " + getAccNum(i) + " " + getAccType(i));
-            }
-            if (numOfAcc > 1){
-                System.out.print("Please choose an account " + "(1 ~ " + getNumOfAcc() + ", 0 to cancel): ");
-                choice = Validate.validateIntRange(0, getNumOfAcc(), sc);
-            } else if (numOfAcc == 1){
-                choice = 1;
-            }
-            return choice - 1;
-        } else {
-            return -2;
-        }    
+    private Account chooseAccount(Scanner sc){
+        Account accounts[];
+        long version;
+        synchronized (m_accounts){
+            accounts = m_accounts.toArray(new Account[0]);
+            version = m_accountsVersion.get();
+        }
+        if (accounts.length == 0){
+            System.out.println("No accounts exist\n");
+            return null;
+        }
+        System.out.print(getAccountListing(accounts, version));
+        int choice = 1;
+        if (accounts.length > 1){
+            System.out.print("Please choose an account " + "(1 ~ " + accounts.length + ", 0 to cancel): ");
+            choice = Validate.validateIntRange(0, accounts.length, sc);
+        }
+        if (choice == 0){
+            System.out.println("Operation cancelled");
+            return null;
+        }
+        return accounts[choice - 1];
     }
 }
\ No newline at end of file
@@ -55,19 +55,27 @@ public class Validate {
     }
 
     /**
-     * Validates user input double 
+     * Validates user input amount with up to 2 decimals, which cannot be negative
      * @param sc Scanner
-     * @return
+     * @return   Amount in cents, 0 or more
      */
-    public static double validateAmount(Scanner sc){
-        double amount;
+    public static long validateAmount(Scanner sc){
+        long amount = 0;
+        boolean valid = false;
 
-        while (!sc.hasNextDouble()) {
-            System.out.print("Invalid input. Please enter a number: ");
+        while (!valid) {
+            try {
+                amount = Money.parse(sc.next());
+                if (amount < 0){
+                    System.out.print("Amount cannot be negative. Please enter an amount such as 12.34: ");
+                } else {
+                    valid = true;
+                }
+            } catch (NumberFormatException e) {
+                System.out.print("Invalid input. Please enter an amount such as 12.34: ");
+            }
             sc.nextLine();
         }
-        amount = sc.nextDouble();
-        sc.nextLine();
 
         return amount;
     }
@@ -0,0 +1,107 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Account.credit, debit and addTransaction on a fresh account, and accSummary rendering by number of Transactions
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AccountBenchmarks {
+    @State(Scope.Benchmark)
+    public static class Credit {
+        LongSupplier op;
+
+        @Setup(Level.Iteration)
+        public void setup(){
+            op = Workloads.create("Account.credit", "");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Debit {
+        LongSupplier op;
+
+        @Setup(Level.Iteration)
+        public void setup(){
+            op = Workloads.create("Account.debit", "");
+        }
+    }
+
+    /**
+     * A fresh account every iteration, so the ledger of one iteration stays well within the heap
+     */
+    @State(Scope.Benchmark)
+    public static class AddTransaction {
+        LongSupplier op;
+
+        @Setup(Level.Iteration)
+        public void setup(){
+            op = Workloads.create("Account.addTransaction", "");
+        }
+    }
+
+    /**
+     * An account with a number of Transactions, rendered into a null sink
+     */
+    @State(Scope.Benchmark)
+    public static class Summary {
+        @Param({ "100", "10000" })
+        public String transactions;
+
+        LongSupplier op;
+
+        @Setup(Level.Trial)
+        public void setup(){
+            op = Workloads.create("Account.accSummary", transactions);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long credit(Credit state){
+        return state.op.getAsLong();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long debit(Debit state){
+        return state.op.getAsLong();
+    }
+
+    /**
+     * Scored as the time to add 1000000 Transactions
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = 1000000)
+    @Measurement(iterations = 5, batchSize = 1000000)
+    public long addTransaction(AddTransaction state){
+        return state.op.getAsLong();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long accSummary(Summary state){
+        return state.op.getAsLong();
+    }
+}
@@ -0,0 +1,111 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Bank.login by number of Users, and taking new User IDs and account numbers by how full their ID space is
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BankBenchmarks {
+    /**
+     * A Bank of Users sharing one PIN hash, built once per fork as logging in only reads it
+     */
+    @State(Scope.Benchmark)
+    public static class Login {
+        @Param({ "1000", "100000", "1000000" })
+        public String users;
+
+        /**
+         * PinHasher iterations, the PIN check is most of a login's cost
+         */
+        @Param({ "10000" })
+        public int pbkdf2;
+
+        LongSupplier op;
+
+        @Setup(Level.Trial)
+        public void setup(){
+            Workloads.setPinIterations(pbkdf2);
+            op = Workloads.create("Bank.login", users);
+        }
+    }
+
+    /**
+     * A 900000 ID space filled to a fraction, refilled every iteration so it fills by at most 1% while measured
+     */
+    @State(Scope.Benchmark)
+    public static class NewUserID {
+        @Param({ "0.0", "0.5", "0.9" })
+        public String fill;
+
+        LongSupplier op;
+
+        @Setup(Level.Iteration)
+        public void setup(){
+            op = Workloads.create("Bank.getNewUserID", fill);
+        }
+    }
+
+    /**
+     * As NewUserID, for account numbers
+     */
+    @State(Scope.Benchmark)
+    public static class NewAccNum {
+        @Param({ "0.0", "0.5", "0.9" })
+        public String fill;
+
+        LongSupplier op;
+
+        @Setup(Level.Iteration)
+        public void setup(){
+            op = Workloads.create("Bank.getNewAccNum", fill);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long login(Login state){
+        return state.op.getAsLong();
+    }
+
+    /**
+     * Scored as the time to take 9000 IDs
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, batchSize = 9000)
+    @Measurement(iterations = 5, batchSize = 9000)
+    public long getNewUserID(NewUserID state){
+        return state.op.getAsLong();
+    }
+
+    /**
+     * Scored as the time to take 9000 account numbers
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, batchSize = 9000)
+    @Measurement(iterations = 5, batchSize = 9000)
+    public long getNewAccNum(NewAccNum state){
+        return state.op.getAsLong();
+    }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Journal append throughput with each record forced on its own, and with group commit, from one thread and from eight
+ * Records go to a temporary directory, so results depend on the disk under it
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JournalBenchmarks {
+    /**
+     * A new Journal every iteration, shared by the threads
+     */
+    @State(Scope.Benchmark)
+    public static class Appender {
+        @Param({ "fsyncPerOp", "groupCommit" })
+        public String policy;
+
+        LongSupplier op;
+
+        @Setup(Level.Iteration)
+        public void setup(){
+            op = Workloads.create("Journal.append." + policy, "1");
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(1)
+    public long append(Appender state){
+        return state.op.getAsLong();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(8)
+    public long append8(Appender state){
+        return state.op.getAsLong();
+    }
+}
@@ -0,0 +1,60 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PIN checks from one thread and from eight: getInstance is the old path, looking SHA-256 up on every call,
+ * sha256 is the same hash through PinHasher's per-thread digest, and pbkdf2 is how new PINs are checked
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PinBenchmarks {
+    @State(Scope.Benchmark)
+    public static class Verify {
+        @Param({ "getInstance", "sha256", "pbkdf2" })
+        public String path;
+
+        @Param({ "10000" })
+        public int pbkdf2;
+
+        LongSupplier op;
+
+        @Setup(Level.Trial)
+        public void setup(){
+            Workloads.setPinIterations(pbkdf2);
+            op = Workloads.create("PinHasher.verify." + path, "1");
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(1)
+    public long verify(Verify state){
+        return state.op.getAsLong();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(8)
+    public long verify8(Verify state){
+        return state.op.getAsLong();
+    }
+}
@@ -0,0 +1,51 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A million-Transaction statement rendered into a null sink in each format
+ * Run with -prof gc to see the allocation per Transaction, which stays flat however long the statement is
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StatementBenchmarks {
+    @State(Scope.Benchmark)
+    public static class Statement {
+        @Param({ "TEXT", "CSV", "JSON" })
+        public String format;
+
+        LongSupplier op;
+
+        @Setup(Level.Trial)
+        public void setup(){
+            op = Workloads.create("StatementRenderer.render", format);
+        }
+    }
+
+    /**
+     * Scored in Transactions
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(1000000)
+    public long render(Statement state){
+        return state.op.getAsLong();
+    }
+}
@@ -0,0 +1,47 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * User.transfer between a User's two accounts, alternating direction so both balances stay positive
+ */
+@Fork(1)
+public class UserBenchmarks {
+    /**
+     * A fresh User every iteration, as each transfer adds a Transaction to both ledgers
+     */
+    @State(Scope.Benchmark)
+    public static class Transfer {
+        LongSupplier op;
+
+        @Setup(Level.Iteration)
+        public void setup(){
+            op = Workloads.create("User.transfer", "");
+        }
+    }
+
+    /**
+     * Scored as the time to make 100000 transfers
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = 100000)
+    @Measurement(iterations = 5, batchSize = 100000)
+    public long transfer(Transfer state){
+        return state.op.getAsLong();
+    }
+}
@@ -0,0 +1,56 @@
+package bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.function.LongSupplier;
+
+/**
+ * Reaches the workloads of Bench, which lives in the default package with the rest of the ATM
+ * JMH benchmarks must be in a package, and a class in a package cannot name a class in the default package,
+ * so the classes are looked up by name once per setup; what is measured is a plain LongSupplier call
+ */
+final class Workloads {
+    /**
+     * Private constructor as no instances of Workloads should be created
+     * All methods will be static/class level
+     */
+    private Workloads(){};
+
+    /**
+     * Builds fresh state for a Bench workload and returns its operation
+     * @param name  Benchmark name in Bench, such as Bank.login
+     * @param param Parameter value, such as 1000
+     * @return      Operation, its result must be consumed
+     */
+    static LongSupplier create(String name, String param){
+        return (LongSupplier) invoke("Bench", "workload", new Class<?>[]{ String.class, String.class }, name, param);
+    }
+
+    /**
+     * Sets the PBKDF2 iterations of PINs hashed from now on
+     * @param iterations Number of iterations
+     */
+    static void setPinIterations(int iterations){
+        invoke("PinHasher", "setIterations", new Class<?>[]{ int.class }, iterations);
+    }
+
+    /**
+     * Calls a public static method of a class in the default package
+     * @param className     Class name
+     * @param methodName    Method name
+     * @param types         Parameter types
+     * @param args          Arguments
+     * @return              Result of the method
+     */
+    private static Object invoke(String className, String methodName, Class<?> types[], Object... args){
+        try {
+            return Class.forName(className).getMethod(methodName, types).invoke(null, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to reach " + className + "." + methodName, e);
+        }
+    }
+}